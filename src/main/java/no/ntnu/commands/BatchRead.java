@@ -0,0 +1,117 @@
+package no.ntnu.commands;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import no.ntnu.controlpanel.ClientSession;
+import no.ntnu.greenhouse.GreenhouseSimulator;
+import no.ntnu.greenhouse.SensorActuatorNode;
+import no.ntnu.tools.MessageType;
+
+/**
+ * Command to read the sensor data and/or the actuator status of several nodes at once.
+ *
+ * <p>The batch is made of one {@link RequestSensorData} and/or one {@link RequestActuatorStatus}
+ * per node. Their responses are collected in one {@link MessageType#BATCH} response, so a full
+ * refresh of the greenhouse takes a single round trip.</p>
+ */
+public class BatchRead extends Command {
+  /**
+   * Flag for reading the sensor data of the nodes.
+   */
+  public static final byte READ_SENSOR_DATA = 1;
+  /**
+   * Flag for reading the actuator status of the nodes.
+   */
+  public static final byte READ_ACTUATOR_STATUS = 2;
+
+  // Entry header: response type (1 byte), node ID (4 bytes) and payload length (2 bytes)
+  private static final int ENTRY_HEADER_SIZE = 7;
+
+  private final int[] nodeIds;
+  private final byte reads;
+
+  /**
+   * Command to read several nodes at once.
+   *
+   * @param nodeIds The IDs of the nodes to read. When empty, read all the nodes.
+   * @param reads   What to read from each node, a combination of {@link #READ_SENSOR_DATA}
+   *                and {@link #READ_ACTUATOR_STATUS}
+   */
+  public BatchRead(int[] nodeIds, byte reads) {
+    if ((reads & (READ_SENSOR_DATA | READ_ACTUATOR_STATUS)) == 0) {
+      throw new IllegalArgumentException("A batch must read something");
+    }
+    this.nodeIds = nodeIds.clone();
+    this.reads = reads;
+  }
+
+  @Override
+  public byte getMessageType() {
+    return MessageType.BATCH_READ;
+  }
+
+  @Override
+  public void writeArguments(ByteBuffer payload) {
+    payload.put(reads);
+    payload.putShort((short) nodeIds.length);
+    for (int nodeId : nodeIds) {
+      payload.putInt(nodeId);
+    }
+  }
+
+  /**
+   * Get the single-node commands the batch is made of.
+   *
+   * @param greenhouse The greenhouse, used to find all the nodes when no nodes are named
+   * @return The commands, in the order their responses appear in the batch response
+   */
+  public List<Command> getCommands(GreenhouseSimulator greenhouse) {
+    List<Integer> ids = new ArrayList<>();
+    if (nodeIds.length == 0) {
+      for (SensorActuatorNode node : greenhouse.getTopology().getNodes()) {
+        ids.add(node.getId());
+      }
+    } else {
+      for (int nodeId : nodeIds) {
+        ids.add(nodeId);
+      }
+    }
+    List<Command> commands = new ArrayList<>();
+    for (int nodeId : ids) {
+      if ((reads & READ_SENSOR_DATA) != 0) {
+        commands.add(new RequestSensorData(nodeId));
+      }
+      if ((reads & READ_ACTUATOR_STATUS) != 0) {
+        commands.add(new RequestActuatorStatus(nodeId));
+      }
+    }
+    return commands;
+  }
+
+  @Override
+  public byte execute(GreenhouseSimulator greenhouse, ByteBuffer response) {
+    return execute(greenhouse, null, response);
+  }
+
+  @Override
+  public byte execute(GreenhouseSimulator greenhouse, ClientSession session,
+                      ByteBuffer response) {
+    List<Command> commands = getCommands(greenhouse);
+    response.putShort((short) commands.size());
+    for (Command command : commands) {
+      int entryStart = response.position();
+      response.position(entryStart + ENTRY_HEADER_SIZE);
+      // Each command writes its response into its own part of the buffer, so an error
+      // response only replaces that part
+      ByteBuffer entry = response.slice();
+      byte type = command.execute(greenhouse, session, entry);
+      entry.flip();
+      response.put(entryStart, type)
+          .putInt(entryStart + 1, command.getNodeId())
+          .putShort(entryStart + 5, (short) entry.limit());
+      response.position(response.position() + entry.limit());
+    }
+    return MessageType.BATCH;
+  }
+}
@@ -1,17 +1,79 @@
 package no.ntnu.commands;
 
+import java.nio.ByteBuffer;
+import no.ntnu.controlpanel.ClientSession;
 import no.ntnu.greenhouse.GreenhouseSimulator;
+import no.ntnu.tools.MessageCodec;
+import no.ntnu.tools.MessageType;
 
 /**
  * A command that can be sent to the server.
  * All commands must implement this interface.
+ *
+ * <p>On the control panel side, a command is written as a request message with
+ * {@link #getMessageType()}, {@link #getNodeId()} and {@link #writeArguments(ByteBuffer)}.
+ * On the greenhouse side, the {@link CommandFactory} recreates it from the request and the
+ * command is executed.</p>
  */
 public abstract class Command {
+  /**
+   * Get the message type of the request carrying this command.
+   *
+   * @return One of the request types in {@link MessageType}
+   */
+  public abstract byte getMessageType();
+
+  /**
+   * Get the ID of the node the command is for.
+   *
+   * @return The ID of the node, or 0 when the command is not for a specific node
+   */
+  public int getNodeId() {
+    return 0;
+  }
+
+  /**
+   * Write the arguments of the command, other than the node ID, to a request payload.
+   *
+   * @param payload The payload buffer to write to
+   */
+  public void writeArguments(ByteBuffer payload) {
+    // Most commands have no arguments other than the node ID
+  }
+
   /**
    * Execute the command.
    *
    * @param greenhouse The greenhouse simulator to execute the command on.
-   * @return A string response to the command.
+   * @param response   The buffer to write the response payload to.
+   * @return The message type of the response.
+   */
+  public abstract byte execute(GreenhouseSimulator greenhouse, ByteBuffer response);
+
+  /**
+   * Execute the command on behalf of one connected control panel. Most commands only depend on
+   * the greenhouse; commands which change the connection itself override this method.
+   *
+   * @param greenhouse The greenhouse simulator to execute the command on.
+   * @param session    The session of the control panel which sent the command.
+   * @param response   The buffer to write the response payload to.
+   * @return The message type of the response.
+   */
+  public byte execute(GreenhouseSimulator greenhouse, ClientSession session,
+                      ByteBuffer response) {
+    return execute(greenhouse, response);
+  }
+
+  /**
+   * Replace the response with an error message.
+   *
+   * @param response The response payload buffer
+   * @param message  The error message
+   * @return The message type of an error response
    */
-  public abstract String execute(GreenhouseSimulator greenhouse);
+  protected static byte error(ByteBuffer response, String message) {
+    response.clear();
+    MessageCodec.putError(response, message);
+    return MessageType.ERROR;
+  }
 }
@@ -1,35 +1,231 @@
 package no.ntnu.commands;
 
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
 import no.ntnu.exceptions.MessageFormatException;
+import no.ntnu.greenhouse.ActuatorSettings;
+import no.ntnu.tools.Message;
+import no.ntnu.tools.MessageCodec;
+import no.ntnu.tools.MessageType;
 
 /**
  * Factory class for parsing commands.
  */
 public class CommandFactory {
   /**
-   * Parse a command from a message.
+   * Parse a command from a message typed by the user of the control panel.
    *
    * @param message The message to parse
    * @return The parsed command
    * @throws MessageFormatException If the message is not a valid command
    */
   public Command parseCommand(String message) throws MessageFormatException {
-    String[] parts = message.split(" ");
-    if (parts.length < 1) {
+    String[] parts = message.trim().split(" ");
+    if (parts[0].isEmpty()) {
       throw new MessageFormatException("Message is empty");
     }
 
-    switch (parts[0]) {
-      case "0x01":
-        return new RequestSensorData(Integer.parseInt(parts[1]));
-      case "0x02":
-        return new RequestActuatorStatus(Integer.parseInt(parts[1]));
-      case "0x03":
-        return new SendActuatorCommand(Integer.parseInt(parts[1]), Integer.parseInt(parts[2]));
-      case "list":
-        return new ListSensors();
-      default:
-        throw new MessageFormatException("Unknown command: " + parts[0]);
+    try {
+      switch (parts[0]) {
+        case "0x01":
+          return new RequestSensorData(Integer.parseInt(parts[1]));
+        case "0x02":
+          return new RequestActuatorStatus(Integer.parseInt(parts[1]));
+        case "0x03":
+          return new SendActuatorCommand(Integer.parseInt(parts[1]), Integer.parseInt(parts[2]));
+        case "list":
+          return new ListSensors(0, parts.length > 1 ? Integer.parseInt(parts[1]) : 0,
+              ListSensors.DEFAULT_PAGE_SIZE);
+        case "subscribe":
+          return parseSubscribe(parts);
+        case "unsubscribe":
+          return new Unsubscribe();
+        case "batch":
+          return parseBatchRead(parts);
+        case "ping":
+          return new Ping(System.nanoTime());
+        case "set":
+          return new SetActuators(parseActuatorSettings(parts[1]));
+        case "scene":
+          return parseScene(parts);
+        default:
+          throw new MessageFormatException("Unknown command: " + parts[0]);
+      }
+    } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+      throw new MessageFormatException("Invalid arguments for command: " + message);
     }
   }
-}
\ No newline at end of file
+
+  /**
+   * Parse a command from a decoded request message.
+   *
+   * @param message The request message
+   * @return The parsed command
+   * @throws MessageFormatException If the message is not a valid command
+   */
+  public Command parseCommand(Message message) throws MessageFormatException {
+    ByteBuffer payload = message.getPayload();
+    try {
+      switch (message.getType()) {
+        case MessageType.REQUEST_SENSOR_DATA:
+          return new RequestSensorData(message.getNodeId(),
+              payload.hasRemaining() ? payload.get() : RequestSensorData.MODE_FULL);
+        case MessageType.REQUEST_ACTUATOR_STATUS:
+          return new RequestActuatorStatus(message.getNodeId());
+        case MessageType.SEND_ACTUATOR_COMMAND:
+          return new SendActuatorCommand(message.getNodeId(), payload.getInt(), payload.get());
+        case MessageType.LIST_SENSORS:
+          return readListSensors(payload);
+        case MessageType.SUBSCRIBE:
+          return readSubscribe(payload);
+        case MessageType.UNSUBSCRIBE:
+          return new Unsubscribe();
+        case MessageType.BATCH_READ:
+          return readBatchRead(payload);
+        case MessageType.READ_HISTORY:
+          return new ReadHistory(payload.getLong(), payload.getInt(),
+              payload.hasRemaining() ? payload.get() : ReadHistory.MODE_SEALED);
+        case MessageType.JOIN_TELEMETRY:
+          return new JoinTelemetry();
+        case MessageType.RESEND_TELEMETRY:
+          return new ResendTelemetry(payload.getLong(), Short.toUnsignedInt(payload.getShort()));
+        case MessageType.PING:
+          return new Ping(payload.getLong());
+        case MessageType.SET_ACTUATORS:
+          return new SetActuators(ActuatorSettings.read(payload));
+        case MessageType.SAVE_SCENE:
+          return new SaveScene(MessageCodec.getString(payload), ActuatorSettings.read(payload));
+        case MessageType.RUN_SCENE:
+          return new RunScene(payload.getInt());
+        default:
+          throw new MessageFormatException("Unknown message type: " + message.getType());
+      }
+    } catch (BufferUnderflowException e) {
+      throw new MessageFormatException("Missing arguments for message type "
+          + message.getType());
+    }
+  }
+
+  /**
+   * Parse "subscribe [nodeIds|all] [sensorTypes]", where both lists are comma-separated.
+   */
+  private static Subscribe parseSubscribe(String[] parts) {
+    int[] nodeIds = parseNodeIds(parts);
+    Set<String> sensorTypes = new HashSet<>();
+    if (parts.length > 2) {
+      sensorTypes.addAll(Arrays.asList(parts[2].split(",")));
+    }
+    return new Subscribe(nodeIds, sensorTypes);
+  }
+
+  /**
+   * Parse "batch [nodeIds|all] [sensors|actuators]", reading both when the last part is left
+   * out.
+   */
+  private static BatchRead parseBatchRead(String[] parts) throws MessageFormatException {
+    byte reads = BatchRead.READ_SENSOR_DATA | BatchRead.READ_ACTUATOR_STATUS;
+    if (parts.length > 2) {
+      switch (parts[2]) {
+        case "sensors":
+          reads = BatchRead.READ_SENSOR_DATA;
+          break;
+        case "actuators":
+          reads = BatchRead.READ_ACTUATOR_STATUS;
+          break;
+        default:
+          throw new MessageFormatException("Unknown batch read: " + parts[2]);
+      }
+    }
+    return new BatchRead(parseNodeIds(parts), reads);
+  }
+
+  /**
+   * Parse "scene save [name] [settings]" or "scene [sceneId]".
+   */
+  private static Command parseScene(String[] parts) {
+    if (parts[1].equals("save")) {
+      return new SaveScene(parts[2], parseActuatorSettings(parts[3]));
+    }
+    return new RunScene(Integer.parseInt(parts[1]));
+  }
+
+  /**
+   * Parse comma-separated actuator settings, each written as "nodeId:actuatorId=on|off".
+   */
+  private static ActuatorSettings parseActuatorSettings(String part) {
+    String[] settings = part.split(",");
+    int[] nodeIds = new int[settings.length];
+    int[] actuatorIds = new int[settings.length];
+    boolean[] states = new boolean[settings.length];
+    for (int i = 0; i < settings.length; i++) {
+      String[] setting = settings[i].split("[:=]");
+      nodeIds[i] = Integer.parseInt(setting[0]);
+      actuatorIds[i] = Integer.parseInt(setting[1]);
+      switch (setting[2]) {
+        case "on":
+          states[i] = true;
+          break;
+        case "off":
+          states[i] = false;
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown actuator state: " + setting[2]);
+      }
+    }
+    return new ActuatorSettings(nodeIds, actuatorIds, states);
+  }
+
+  /**
+   * Parse a comma-separated list of node IDs in the second part of a command. No list, or
+   * "all", gives an empty array.
+   */
+  private static int[] parseNodeIds(String[] parts) {
+    int[] nodeIds = new int[0];
+    if (parts.length > 1 && !parts[1].equals("all")) {
+      String[] ids = parts[1].split(",");
+      nodeIds = new int[ids.length];
+      for (int i = 0; i < ids.length; i++) {
+        nodeIds[i] = Integer.parseInt(ids[i]);
+      }
+    }
+    return nodeIds;
+  }
+
+  private static BatchRead readBatchRead(ByteBuffer payload) {
+    byte reads = payload.get();
+    int[] nodeIds = new int[Short.toUnsignedInt(payload.getShort())];
+    for (int i = 0; i < nodeIds.length; i++) {
+      nodeIds[i] = payload.getInt();
+    }
+    return new BatchRead(nodeIds, reads);
+  }
+
+  /**
+   * Read the optional arguments of a list request: the known version, the cursor and the page
+   * size. Without them, the whole list is asked for.
+   */
+  private static ListSensors readListSensors(ByteBuffer payload) throws MessageFormatException {
+    if (!payload.hasRemaining()) {
+      return new ListSensors();
+    }
+    int knownVersion = payload.getInt();
+    int cursor = payload.getInt();
+    return new ListSensors(knownVersion, cursor, ListSensors.readPageSize(payload));
+  }
+
+  private static Subscribe readSubscribe(ByteBuffer payload) {
+    int[] nodeIds = new int[Short.toUnsignedInt(payload.getShort())];
+    for (int i = 0; i < nodeIds.length; i++) {
+      nodeIds[i] = payload.getInt();
+    }
+    Set<String> sensorTypes = new HashSet<>();
+    int typeCount = Byte.toUnsignedInt(payload.get());
+    for (int i = 0; i < typeCount; i++) {
+      sensorTypes.add(MessageCodec.getString(payload));
+    }
+    return new Subscribe(nodeIds, sensorTypes);
+  }
+}
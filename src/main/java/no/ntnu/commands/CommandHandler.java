@@ -0,0 +1,26 @@
+package no.ntnu.commands;
+
+import java.nio.ByteBuffer;
+import no.ntnu.controlpanel.ClientSession;
+import no.ntnu.exceptions.MessageFormatException;
+import no.ntnu.greenhouse.GreenhouseSimulator;
+import no.ntnu.tools.Message;
+
+/**
+ * Executes the requests of one message type on the greenhouse, reading the arguments straight
+ * from the received request. See {@link CommandRegistry}.
+ */
+public interface CommandHandler {
+  /**
+   * Execute a request.
+   *
+   * @param request    The decoded request. Its payload holds the arguments.
+   * @param greenhouse The greenhouse simulator to execute the request on
+   * @param session    The session of the control panel which sent the request
+   * @param response   The buffer to write the response payload to
+   * @return The message type of the response
+   * @throws MessageFormatException If the arguments are not valid
+   */
+  byte execute(Message request, GreenhouseSimulator greenhouse, ClientSession session,
+               ByteBuffer response) throws MessageFormatException;
+}
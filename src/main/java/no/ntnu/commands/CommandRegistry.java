@@ -0,0 +1,121 @@
+package no.ntnu.commands;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import no.ntnu.controlpanel.ClientSession;
+import no.ntnu.exceptions.MessageFormatException;
+import no.ntnu.greenhouse.GreenhouseSimulator;
+import no.ntnu.tools.Message;
+import no.ntnu.tools.MessageType;
+
+/**
+ * The handlers of the request types the greenhouse understands, looked up by the message type
+ * of each request.
+ *
+ * <p>The requests control panels send all the time (sensor data, actuator status, actuator
+ * commands, node lists and pings) are handled in place: the arguments are read straight from
+ * the request payload, and no command object is created. The other requests are parsed into a
+ * {@link Command} by the {@link CommandFactory} first.</p>
+ *
+ * <p>Requests which may take long, such as history reads and batch reads of many nodes, are
+ * registered as slow with {@link #registerSlow(byte, CommandHandler)}. A connection executes
+ * them on an executor, and goes on with its next requests meanwhile; all the others are
+ * executed at once on the thread of the connection.</p>
+ *
+ * <p>New request types are added with {@link #register(byte, CommandHandler)}, before the
+ * greenhouse is started. Looking up a handler is safe from any thread.</p>
+ */
+public class CommandRegistry {
+  private final CommandHandler[] handlers = new CommandHandler[256];
+  private final boolean[] slow = new boolean[256];
+
+  /**
+   * Create a registry with the handlers of all the request types in {@link MessageType}.
+   *
+   * @return The registry
+   */
+  public static CommandRegistry createDefault() {
+    CommandRegistry registry = new CommandRegistry();
+    registry.register(MessageType.REQUEST_SENSOR_DATA, RequestSensorData::handle);
+    registry.register(MessageType.REQUEST_ACTUATOR_STATUS, RequestActuatorStatus::handle);
+    registry.register(MessageType.SEND_ACTUATOR_COMMAND, SendActuatorCommand::handle);
+    registry.register(MessageType.LIST_SENSORS, ListSensors::handle);
+    registry.register(MessageType.PING, Ping::handle);
+    CommandFactory commandFactory = new CommandFactory();
+    CommandHandler parsed = (request, greenhouse, session, response) ->
+        commandFactory.parseCommand(request).execute(greenhouse, session, response);
+    registry.register(MessageType.SUBSCRIBE, parsed);
+    registry.register(MessageType.UNSUBSCRIBE, parsed);
+    registry.registerSlow(MessageType.BATCH_READ, parsed);
+    registry.registerSlow(MessageType.READ_HISTORY, parsed);
+    registry.register(MessageType.JOIN_TELEMETRY, parsed);
+    registry.register(MessageType.RESEND_TELEMETRY, parsed);
+    registry.register(MessageType.SET_ACTUATORS, parsed);
+    registry.register(MessageType.SAVE_SCENE, parsed);
+    registry.register(MessageType.RUN_SCENE, parsed);
+    return registry;
+  }
+
+  /**
+   * Set the handler of a request type, replacing the handler it had.
+   *
+   * @param type    The message type of the requests
+   * @param handler The handler
+   */
+  public void register(byte type, CommandHandler handler) {
+    set(type, handler, false);
+  }
+
+  /**
+   * Set the handler of a request type which may take long to execute, replacing the handler it
+   * had. Its requests are executed on an executor instead of the thread of the connection.
+   *
+   * @param type    The message type of the requests
+   * @param handler The handler, which must be safe to call from any thread
+   */
+  public void registerSlow(byte type, CommandHandler handler) {
+    set(type, handler, true);
+  }
+
+  private void set(byte type, CommandHandler handler, boolean isSlow) {
+    if (handler == null) {
+      throw new IllegalArgumentException("No handler for message type " + type);
+    }
+    handlers[Byte.toUnsignedInt(type)] = handler;
+    slow[Byte.toUnsignedInt(type)] = isSlow;
+  }
+
+  /**
+   * Check whether the requests of a type are executed on an executor.
+   *
+   * @param type The message type of the requests
+   * @return {@code true} if the type was registered as slow
+   */
+  public boolean isSlow(byte type) {
+    return slow[Byte.toUnsignedInt(type)];
+  }
+
+  /**
+   * Execute a request with the handler of its type.
+   *
+   * @param request    The decoded request
+   * @param greenhouse The greenhouse simulator to execute the request on
+   * @param session    The session of the control panel which sent the request
+   * @param response   The buffer to write the response payload to
+   * @return The message type of the response
+   * @throws MessageFormatException If the type is unknown or the arguments are not valid
+   */
+  public byte execute(Message request, GreenhouseSimulator greenhouse, ClientSession session,
+                      ByteBuffer response) throws MessageFormatException {
+    CommandHandler handler = handlers[Byte.toUnsignedInt(request.getType())];
+    if (handler == null) {
+      throw new MessageFormatException("Unknown message type: " + request.getType());
+    }
+    try {
+      return handler.execute(request, greenhouse, session, response);
+    } catch (BufferUnderflowException e) {
+      throw new MessageFormatException("Missing arguments for message type "
+          + request.getType());
+    }
+  }
+}
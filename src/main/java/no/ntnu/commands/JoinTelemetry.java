@@ -0,0 +1,31 @@
+package no.ntnu.commands;
+
+import java.nio.ByteBuffer;
+import no.ntnu.greenhouse.GreenhouseSimulator;
+import no.ntnu.greenhouse.TelemetryPublisher;
+import no.ntnu.tools.MessageType;
+
+/**
+ * Command to join the multicast telemetry of the greenhouse.
+ *
+ * <p>The response tells where the greenhouse multicasts the new sensor readings and actuator
+ * states of all the nodes, the key the datagrams are sealed with, and the sequence number of
+ * the next datagram. As the response is sent on the encrypted connection, only control panels
+ * which have done a key exchange with the greenhouse get the key.</p>
+ */
+public class JoinTelemetry extends Command {
+  @Override
+  public byte getMessageType() {
+    return MessageType.JOIN_TELEMETRY;
+  }
+
+  @Override
+  public byte execute(GreenhouseSimulator greenhouse, ByteBuffer response) {
+    TelemetryPublisher publisher = greenhouse.getTelemetryPublisher();
+    if (publisher == null) {
+      return error(response, "Error: Multicast telemetry is not enabled.");
+    }
+    publisher.writeGroup(response);
+    return MessageType.TELEMETRY_GROUP;
+  }
+}
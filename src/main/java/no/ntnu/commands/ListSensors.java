@@ -1,38 +1,134 @@
 package no.ntnu.commands;
 
-import java.util.ArrayList;
-import java.util.List;
-import no.ntnu.greenhouse.Actuator;
+import java.nio.ByteBuffer;
+import no.ntnu.controlpanel.ClientSession;
+import no.ntnu.exceptions.MessageFormatException;
 import no.ntnu.greenhouse.GreenhouseSimulator;
-import no.ntnu.greenhouse.Sensor;
-import no.ntnu.greenhouse.SensorActuatorNode;
+import no.ntnu.greenhouse.TopologySnapshot;
+import no.ntnu.tools.Message;
+import no.ntnu.tools.MessageType;
 
 /**
  * Command for listing all sensors in the greenhouse.
+ *
+ * <p>Without arguments, the whole node list is sent in one {@link MessageType#NODE_LIST}
+ * response. With a cursor and a page size, it is sent one {@link MessageType#NODE_PAGE} at a
+ * time. A control panel which already knows the current version of the topology gets a short
+ * {@link MessageType#TOPOLOGY_UNCHANGED} response instead of the first page.</p>
  */
 public class ListSensors extends Command {
+  /**
+   * The number of nodes on a page, when the user does not choose.
+   */
+  public static final int DEFAULT_PAGE_SIZE = 100;
+  /**
+   * The largest number of nodes on a page.
+   */
+  public static final int MAX_PAGE_SIZE = 1000;
+
+  private final boolean paged;
+  private final int knownVersion;
+  private final int cursor;
+  private final int pageSize;
+
+  /**
+   * Command to list all the nodes in one response.
+   */
+  public ListSensors() {
+    this.paged = false;
+    this.knownVersion = 0;
+    this.cursor = 0;
+    this.pageSize = 0;
+  }
+
+  /**
+   * Command to list one page of the nodes.
+   *
+   * @param knownVersion The version of the topology the control panel knows, or 0 if none
+   * @param cursor       The cursor of the page, 0 for the first page
+   * @param pageSize     The largest number of nodes on the page
+   */
+  public ListSensors(int knownVersion, int cursor, int pageSize) {
+    if (pageSize <= 0 || pageSize > MAX_PAGE_SIZE) {
+      throw new IllegalArgumentException("Invalid page size: " + pageSize);
+    }
+    this.paged = true;
+    this.knownVersion = knownVersion;
+    this.cursor = cursor;
+    this.pageSize = pageSize;
+  }
+
   @Override
-  public String execute(GreenhouseSimulator greenhouse) {
-    // Get all sensors in the greenhouse
-    ArrayList<SensorActuatorNode> sensors = greenhouse.getSensors();
-    StringBuilder response = new StringBuilder();
-    response.append("Sensors:\n");
-    int i = 1;
-    // For each sensor, list the sensor types and actuators
-    for (SensorActuatorNode node : sensors) {
-      List<String> sensorTypes = new ArrayList<>();
-      for (Sensor sensor : node.getSensors()) {
-        sensorTypes.add(sensor.getType());
-      }
-      List<String> actuators = new ArrayList<>();
-      for (Actuator actuator : node.getActuators()) {
-        actuators.add(actuator.getType());
+  public byte getMessageType() {
+    return MessageType.LIST_SENSORS;
+  }
+
+  @Override
+  public void writeArguments(ByteBuffer payload) {
+    if (paged) {
+      payload.putInt(knownVersion);
+      payload.putInt(cursor);
+      payload.putShort((short) pageSize);
+    }
+  }
+
+  @Override
+  public byte execute(GreenhouseSimulator greenhouse, ByteBuffer response) {
+    return execute(greenhouse, paged, knownVersion, cursor, pageSize, response);
+  }
+
+  /**
+   * Handle a request without creating a command, see {@link CommandRegistry}.
+   *
+   * @param request    The request, with the optional version, cursor and page size as its
+   *                   payload
+   * @param greenhouse The greenhouse simulator
+   * @param session    The session of the control panel
+   * @param response   The buffer to write the response payload to
+   * @return The message type of the response
+   * @throws MessageFormatException If the page size is 0
+   */
+  static byte handle(Message request, GreenhouseSimulator greenhouse, ClientSession session,
+                     ByteBuffer response) throws MessageFormatException {
+    ByteBuffer payload = request.getPayload();
+    if (!payload.hasRemaining()) {
+      return execute(greenhouse, false, 0, 0, 0, response);
+    }
+    int knownVersion = payload.getInt();
+    int cursor = payload.getInt();
+    return execute(greenhouse, true, knownVersion, cursor, readPageSize(payload), response);
+  }
+
+  /**
+   * Read the page size of a request. Larger pages than the greenhouse allows are cut down to
+   * its largest page size.
+   *
+   * @param payload The request payload, at the page size
+   * @return The page size
+   * @throws MessageFormatException If the page size is 0
+   */
+  static int readPageSize(ByteBuffer payload) throws MessageFormatException {
+    int pageSize = Short.toUnsignedInt(payload.getShort());
+    if (pageSize == 0) {
+      throw new MessageFormatException("Invalid page size: " + pageSize);
+    }
+    return Math.min(pageSize, MAX_PAGE_SIZE);
+  }
+
+  private static byte execute(GreenhouseSimulator greenhouse, boolean paged, int knownVersion,
+                              int cursor, int pageSize, ByteBuffer response) {
+    TopologySnapshot topology = greenhouse.getTopology();
+    if (!paged) {
+      if (!topology.writeList(response)) {
+        return error(response, "Error: Too many nodes for one list, ask for pages.");
       }
-      response.append(i).append(". Node with nodeId = ").append(node.getId())
-          .append(" has sensor types: ").append(sensorTypes)
-          .append(", and has these actuators: ").append(actuators).append("\n");
-      i++;
+      return MessageType.NODE_LIST;
+    }
+    if (cursor == 0 && knownVersion != 0 && knownVersion == topology.getVersion()) {
+      response.putInt(topology.getVersion());
+      return MessageType.TOPOLOGY_UNCHANGED;
     }
-    return response.toString().trim();
+    topology.writePage(cursor, pageSize, response);
+    return MessageType.NODE_PAGE;
   }
 }
@@ -0,0 +1,59 @@
+package no.ntnu.commands;
+
+import java.nio.ByteBuffer;
+import no.ntnu.controlpanel.ClientSession;
+import no.ntnu.greenhouse.GreenhouseSimulator;
+import no.ntnu.tools.Message;
+import no.ntnu.tools.MessageType;
+
+/**
+ * Command to check that the connection is alive and measure its round trip time.
+ *
+ * <p>The greenhouse answers at once with a pong holding the same timestamp, so the control
+ * panel can tell how long the round trip took without keeping track of when each ping was
+ * sent. Pings also keep an idle connection from being closed by the greenhouse.</p>
+ */
+public class Ping extends Command {
+  private final long timestamp;
+
+  /**
+   * Command to ping the greenhouse.
+   *
+   * @param timestamp The time the ping is sent, from {@link System#nanoTime()} on the control
+   *                  panel
+   */
+  public Ping(long timestamp) {
+    this.timestamp = timestamp;
+  }
+
+  @Override
+  public byte getMessageType() {
+    return MessageType.PING;
+  }
+
+  @Override
+  public void writeArguments(ByteBuffer payload) {
+    payload.putLong(timestamp);
+  }
+
+  @Override
+  public byte execute(GreenhouseSimulator greenhouse, ByteBuffer response) {
+    response.putLong(timestamp);
+    return MessageType.PONG;
+  }
+
+  /**
+   * Handle a request without creating a command, see {@link CommandRegistry}.
+   *
+   * @param request    The request, with the timestamp as its payload
+   * @param greenhouse The greenhouse simulator
+   * @param session    The session of the control panel
+   * @param response   The buffer to write the response payload to
+   * @return The message type of the response
+   */
+  static byte handle(Message request, GreenhouseSimulator greenhouse, ClientSession session,
+                     ByteBuffer response) {
+    response.putLong(request.getPayload().getLong());
+    return MessageType.PONG;
+  }
+}
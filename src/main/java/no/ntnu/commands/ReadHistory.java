@@ -0,0 +1,102 @@
+package no.ntnu.commands;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import no.ntnu.controlpanel.ClientSession;
+import no.ntnu.greenhouse.GreenhouseSimulator;
+import no.ntnu.greenhouse.SensorHistory;
+import no.ntnu.tools.MessageCodec;
+import no.ntnu.tools.MessageType;
+
+/**
+ * Command to download one chunk of the recorded sensor history.
+ *
+ * <p>The response describes the chunk: the size of the whole history, the offset and length of
+ * the chunk and its SHA-256 digest. In {@link #MODE_SEALED}, the default, the chunk follows in
+ * the encrypted payload of the response, so it is at most {@link #MAX_SEALED_LENGTH} bytes. In
+ * {@link #MODE_PLAINTEXT} the chunk is written unencrypted to the connection right after the
+ * response, straight from the history file, so a large history never passes through the memory
+ * of the greenhouse; the digest still protects it from being changed, but anyone on the network
+ * can read it. The control panel downloads the history by asking for the chunk at the end of
+ * what it already has, so an interrupted download can continue where it stopped.</p>
+ */
+public class ReadHistory extends Command {
+  /**
+   * Send the chunk inside the encrypted response.
+   */
+  public static final byte MODE_SEALED = 0;
+  /**
+   * Send the chunk unencrypted after the response, straight from the history file.
+   */
+  public static final byte MODE_PLAINTEXT = 1;
+  /**
+   * The largest chunk which fits in a response next to the description of the chunk.
+   */
+  public static final int MAX_SEALED_LENGTH = MessageCodec.MAX_PAYLOAD_SIZE - 52;
+
+  private final long offset;
+  private final int maxLength;
+  private final byte mode;
+
+  /**
+   * Command to download a chunk of the sensor history.
+   *
+   * @param offset    Where the chunk starts in the history
+   * @param maxLength The largest chunk to send, in bytes. The chunk is shorter at the end of
+   *                  the history, and never larger than {@link SensorHistory#CHUNK_SIZE}, or
+   *                  {@link #MAX_SEALED_LENGTH} in {@link #MODE_SEALED}.
+   * @param mode      {@link #MODE_SEALED} or {@link #MODE_PLAINTEXT}
+   */
+  public ReadHistory(long offset, int maxLength, byte mode) {
+    if (offset < 0 || maxLength < 0) {
+      throw new IllegalArgumentException("Invalid history chunk: " + maxLength + " bytes at "
+          + offset);
+    }
+    if (mode != MODE_SEALED && mode != MODE_PLAINTEXT) {
+      throw new IllegalArgumentException("Invalid history mode: " + mode);
+    }
+    this.offset = offset;
+    this.maxLength = maxLength;
+    this.mode = mode;
+  }
+
+  @Override
+  public byte getMessageType() {
+    return MessageType.READ_HISTORY;
+  }
+
+  @Override
+  public void writeArguments(ByteBuffer payload) {
+    payload.putLong(offset).putInt(maxLength).put(mode);
+  }
+
+  @Override
+  public byte execute(GreenhouseSimulator greenhouse, ByteBuffer response) {
+    return error(response, "Error: The history can only be sent on a client connection.");
+  }
+
+  @Override
+  public byte execute(GreenhouseSimulator greenhouse, ClientSession session,
+                      ByteBuffer response) {
+    SensorHistory history = greenhouse.getSensorHistory();
+    if (history == null) {
+      return error(response, "Error: No sensor history is recorded.");
+    }
+    int length = history.getChunkLength(offset,
+        mode == MODE_SEALED ? Math.min(maxLength, MAX_SEALED_LENGTH) : maxLength);
+    try {
+      response.putLong(history.getSize())
+          .putLong(offset)
+          .putInt(length)
+          .put(history.getDigest(offset, length));
+      if (mode == MODE_SEALED) {
+        history.read(offset, length, response);
+      } else {
+        session.setResponseRegion(history.getRegion(offset, length));
+      }
+    } catch (IOException e) {
+      return error(response, "Error: Could not read the sensor history: " + e.getMessage());
+    }
+    return MessageType.HISTORY_CHUNK;
+  }
+}
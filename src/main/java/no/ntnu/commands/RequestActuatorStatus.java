@@ -1,9 +1,13 @@
 package no.ntnu.commands;
 
+import java.nio.ByteBuffer;
+import no.ntnu.controlpanel.ClientSession;
 import no.ntnu.greenhouse.Actuator;
 import no.ntnu.greenhouse.ActuatorCollection;
 import no.ntnu.greenhouse.GreenhouseSimulator;
 import no.ntnu.greenhouse.SensorActuatorNode;
+import no.ntnu.tools.Message;
+import no.ntnu.tools.MessageType;
 
 /**
  * Command to request the status of an actuator from a node.
@@ -28,37 +32,58 @@ public class RequestActuatorStatus extends Command {
    *
    * @return The ID of the node.
    */
+  @Override
   public int getNodeId() {
     return nodeId;
   }
 
   @Override
-  public String execute(GreenhouseSimulator greenhouse) {
-    StringBuilder sb = new StringBuilder();
+  public byte getMessageType() {
+    return MessageType.REQUEST_ACTUATOR_STATUS;
+  }
+
+  @Override
+  public byte execute(GreenhouseSimulator greenhouse, ByteBuffer response) {
+    return execute(greenhouse, nodeId, response);
+  }
+
+  /**
+   * Handle a request without creating a command, see {@link CommandRegistry}.
+   *
+   * @param request    The request, with no payload
+   * @param greenhouse The greenhouse simulator
+   * @param session    The session of the control panel
+   * @param response   The buffer to write the response payload to
+   * @return The message type of the response
+   */
+  static byte handle(Message request, GreenhouseSimulator greenhouse, ClientSession session,
+                     ByteBuffer response) {
+    return execute(greenhouse, request.getNodeId(), response);
+  }
+
+  private static byte execute(GreenhouseSimulator greenhouse, int nodeId, ByteBuffer response) {
     try {
-      SensorActuatorNode node = greenhouse.getSensorNode(nodeId);
+      SensorActuatorNode node = greenhouse.getTopology().getNode(nodeId);
       if (node == null) {
-        return "Error: Node not found.";
-      }
-      if (nodeId != 1 && nodeId != 2 && nodeId != 3){
-        return "Invalid MAC authentication.";
-      }
-      ActuatorCollection actuators = node.getActuators();
-      sb.append("Actuator status from node ").append(nodeId).append(": ");
-      if (actuators.size() == 0) {
-        sb.append("No actuators found for node ").append(nodeId).append(".");
-      } else {
-        for (Actuator actuator : actuators) {
-          sb.append("Actuator ")
-              .append(actuator.getId())
-              .append(": ")
-              .append(actuator.isOn() ? "on" : "off")
-              .append(", ");
-        }
+        return error(response, "Error: Node not found.");
       }
+      greenhouse.getResponseCache().write(node, MessageType.ACTUATOR_STATUS, response,
+          RequestActuatorStatus::writeStatus);
     } catch (Exception e) {
-      sb.append("Error executing RequestActuatorStatus: ").append(e.getMessage());
+      return error(response, "Error executing RequestActuatorStatus: " + e.getMessage());
+    }
+    return MessageType.ACTUATOR_STATUS;
+  }
+
+  private static void writeStatus(SensorActuatorNode node, ByteBuffer response) {
+    ActuatorCollection actuators = node.getActuators();
+    // Never in the middle of a batch of actuator changes
+    synchronized (node) {
+      response.putShort((short) actuators.size());
+      for (Actuator actuator : actuators) {
+        response.putInt(actuator.getId());
+        response.put((byte) (actuator.isOn() ? 1 : 0));
+      }
     }
-    return sb.toString().trim();
   }
 }
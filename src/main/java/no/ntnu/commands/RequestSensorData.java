@@ -1,18 +1,40 @@
 package no.ntnu.commands;
 
+import java.nio.ByteBuffer;
+import no.ntnu.controlpanel.ClientSession;
+import no.ntnu.controlpanel.SensorDeltaEncoder;
 import no.ntnu.greenhouse.GreenhouseSimulator;
 import no.ntnu.greenhouse.Sensor;
 import no.ntnu.greenhouse.SensorActuatorNode;
-import no.ntnu.greenhouse.SensorReading;
+import no.ntnu.tools.Message;
+import no.ntnu.tools.MessageCodec;
+import no.ntnu.tools.MessageType;
 
 /**
  * Command to request sensor data from a node.
  *
  * <p>When a control panel node wants to get the latest sensor data from a sensor node, it sends
  * this command to the sensor node.
+ *
+ * <p>In delta mode, the response only holds the readings which have changed since the previous
+ * response on the same connection, see {@link SensorDeltaEncoder}.</p>
  */
 public class RequestSensorData extends Command {
+  /**
+   * Respond with all the readings, as {@link MessageType#SENSOR_DATA}.
+   */
+  public static final byte MODE_FULL = 0;
+  /**
+   * Respond with the changed readings, as {@link MessageType#SENSOR_DELTA}.
+   */
+  public static final byte MODE_DELTA = 1;
+  /**
+   * Respond with a {@link MessageType#SENSOR_DELTA} keyframe holding all the readings.
+   */
+  public static final byte MODE_KEYFRAME = 2;
+
   private final int nodeId;
+  private final byte mode;
 
   /**
    * Command to request sensor data from a node.
@@ -20,7 +42,18 @@ public class RequestSensorData extends Command {
    * @param nodeId The ID of the node to request sensor data from
    */
   public RequestSensorData(int nodeId) {
+    this(nodeId, MODE_FULL);
+  }
+
+  /**
+   * Command to request sensor data from a node in one of the response modes.
+   *
+   * @param nodeId The ID of the node to request sensor data from
+   * @param mode   One of {@link #MODE_FULL}, {@link #MODE_DELTA} and {@link #MODE_KEYFRAME}
+   */
+  public RequestSensorData(int nodeId, byte mode) {
     this.nodeId = nodeId;
+    this.mode = mode;
   }
 
   /**
@@ -28,33 +61,73 @@ public class RequestSensorData extends Command {
    *
    * @return The ID of the node.
    */
+  @Override
   public int getNodeId() {
     return nodeId;
   }
 
   @Override
-  public String execute(GreenhouseSimulator greenhouse) {
-    StringBuilder sb = new StringBuilder();
+  public byte getMessageType() {
+    return MessageType.REQUEST_SENSOR_DATA;
+  }
+
+  @Override
+  public void writeArguments(ByteBuffer payload) {
+    if (mode != MODE_FULL) {
+      payload.put(mode);
+    }
+  }
+
+  @Override
+  public byte execute(GreenhouseSimulator greenhouse, ByteBuffer response) {
+    return execute(greenhouse, null, response);
+  }
+
+  @Override
+  public byte execute(GreenhouseSimulator greenhouse, ClientSession session,
+                      ByteBuffer response) {
+    return execute(greenhouse, session, nodeId, mode, response);
+  }
+
+  /**
+   * Handle a request without creating a command, see {@link CommandRegistry}.
+   *
+   * @param request    The request, with the optional mode as its payload
+   * @param greenhouse The greenhouse simulator
+   * @param session    The session of the control panel
+   * @param response   The buffer to write the response payload to
+   * @return The message type of the response
+   */
+  static byte handle(Message request, GreenhouseSimulator greenhouse, ClientSession session,
+                     ByteBuffer response) {
+    ByteBuffer payload = request.getPayload();
+    byte mode = payload.hasRemaining() ? payload.get() : MODE_FULL;
+    return execute(greenhouse, session, request.getNodeId(), mode, response);
+  }
+
+  private static byte execute(GreenhouseSimulator greenhouse, ClientSession session, int nodeId,
+                              byte mode, ByteBuffer response) {
     try {
-      SensorActuatorNode node = greenhouse.getSensorNode(nodeId);
+      SensorActuatorNode node = greenhouse.getTopology().getNode(nodeId);
       if (node == null) {
-        return "Error: Node not found.";
-      }
-      if (nodeId != 1 && nodeId != 2 && nodeId != 3){
-        return "Invalid MAC authentication.";
+        return error(response, "Error: Node not found.");
       }
-      sb.append("Readings from node ").append(nodeId).append(": ");
-      for (Sensor sensor : node.getSensors()) {
-        SensorReading reading = sensor.getReading();
-        sb.append(sensor.getType())
-            .append(": ")
-            .append(reading != null ? reading.getFormatted() : "N/A")
-            .append(", ");
+      if (mode != MODE_FULL && session != null) {
+        return session.getSensorDeltaEncoder().write(nodeId, node.getSensors(),
+            mode == MODE_KEYFRAME, response);
       }
+      greenhouse.getResponseCache().write(node, MessageType.SENSOR_DATA, response,
+          RequestSensorData::writeReadings);
     } catch (Exception e) {
-      sb.append("Error executing RequestSensorData: ").append(e.getMessage());
+      return error(response, "Error executing RequestSensorData: " + e.getMessage());
     }
-    return sb.toString().trim();
+    return MessageType.SENSOR_DATA;
   }
 
+  private static void writeReadings(SensorActuatorNode node, ByteBuffer response) {
+    response.putShort((short) node.getSensors().size());
+    for (Sensor sensor : node.getSensors()) {
+      MessageCodec.putReading(response, sensor.getReading());
+    }
+  }
 }
@@ -0,0 +1,58 @@
+package no.ntnu.commands;
+
+import java.nio.ByteBuffer;
+import no.ntnu.greenhouse.GreenhouseSimulator;
+import no.ntnu.greenhouse.TelemetryPublisher;
+import no.ntnu.tools.MessageType;
+
+/**
+ * Command to get multicast telemetry datagrams which the control panel missed.
+ *
+ * <p>The datagrams are sent over the connection exactly as they were multicast, still sealed
+ * with the group key. Only the last {@link TelemetryPublisher#RETAINED_COUNT} datagrams are
+ * kept; older ones are left out of the response.</p>
+ */
+public class ResendTelemetry extends Command {
+  /**
+   * The largest number of datagrams which can be asked for at once.
+   */
+  public static final int MAX_COUNT = 64;
+
+  private final long first;
+  private final int count;
+
+  /**
+   * Command to get some telemetry datagrams again.
+   *
+   * @param first The sequence number of the first datagram
+   * @param count The number of datagrams, at most {@link #MAX_COUNT}
+   */
+  public ResendTelemetry(long first, int count) {
+    if (first < 0 || count < 0 || count > MAX_COUNT) {
+      throw new IllegalArgumentException("Invalid telemetry range: " + count + " from "
+          + first);
+    }
+    this.first = first;
+    this.count = count;
+  }
+
+  @Override
+  public byte getMessageType() {
+    return MessageType.RESEND_TELEMETRY;
+  }
+
+  @Override
+  public void writeArguments(ByteBuffer payload) {
+    payload.putLong(first).putShort((short) count);
+  }
+
+  @Override
+  public byte execute(GreenhouseSimulator greenhouse, ByteBuffer response) {
+    TelemetryPublisher publisher = greenhouse.getTelemetryPublisher();
+    if (publisher == null) {
+      return error(response, "Error: Multicast telemetry is not enabled.");
+    }
+    publisher.writeRetained(first, count, response);
+    return MessageType.TELEMETRY;
+  }
+}
@@ -0,0 +1,44 @@
+package no.ntnu.commands;
+
+import java.nio.ByteBuffer;
+import no.ntnu.greenhouse.ActuatorSettings;
+import no.ntnu.greenhouse.GreenhouseSimulator;
+import no.ntnu.tools.MessageType;
+
+/**
+ * Command to apply the actuator settings of a scene saved with {@link SaveScene}.
+ *
+ * <p>The request only holds the ID of the scene, however many actuators it sets. The response
+ * is the same as for {@link SetActuators}: one result byte per setting of the scene.</p>
+ */
+public class RunScene extends Command {
+  private final int sceneId;
+
+  /**
+   * Command to run a scene.
+   *
+   * @param sceneId The ID the greenhouse gave the scene when it was saved
+   */
+  public RunScene(int sceneId) {
+    this.sceneId = sceneId;
+  }
+
+  @Override
+  public byte getMessageType() {
+    return MessageType.RUN_SCENE;
+  }
+
+  @Override
+  public void writeArguments(ByteBuffer payload) {
+    payload.putInt(sceneId);
+  }
+
+  @Override
+  public byte execute(GreenhouseSimulator greenhouse, ByteBuffer response) {
+    ActuatorSettings settings = greenhouse.getScenes().get(sceneId);
+    if (settings == null) {
+      return error(response, "Error: Scene " + sceneId + " not found.");
+    }
+    return SetActuators.writeResults(settings.apply(greenhouse), response);
+  }
+}
@@ -0,0 +1,54 @@
+package no.ntnu.commands;
+
+import java.nio.ByteBuffer;
+import no.ntnu.greenhouse.ActuatorSettings;
+import no.ntnu.greenhouse.GreenhouseSimulator;
+import no.ntnu.tools.MessageCodec;
+import no.ntnu.tools.MessageType;
+
+/**
+ * Command to save actuator settings as a named scene in the greenhouse, so they can later be
+ * applied with a {@link RunScene} holding only the ID of the scene.
+ *
+ * <p>The settings are not checked against the nodes when they are saved, since nodes may be
+ * added later; the results of running the scene tell which settings could be applied.</p>
+ */
+public class SaveScene extends Command {
+  private final String name;
+  private final ActuatorSettings settings;
+
+  /**
+   * Command to save a scene.
+   *
+   * @param name     The name of the scene. A scene with the same name is replaced.
+   * @param settings The actuator settings of the scene
+   */
+  public SaveScene(String name, ActuatorSettings settings) {
+    if (name == null || name.isEmpty()) {
+      throw new IllegalArgumentException("Scene name missing");
+    }
+    this.name = name;
+    this.settings = settings;
+  }
+
+  @Override
+  public byte getMessageType() {
+    return MessageType.SAVE_SCENE;
+  }
+
+  @Override
+  public void writeArguments(ByteBuffer payload) {
+    MessageCodec.putString(payload, name);
+    settings.write(payload);
+  }
+
+  @Override
+  public byte execute(GreenhouseSimulator greenhouse, ByteBuffer response) {
+    try {
+      response.putInt(greenhouse.getScenes().save(name, settings));
+    } catch (IllegalArgumentException e) {
+      return error(response, "Error: " + e.getMessage());
+    }
+    return MessageType.SCENE_SAVED;
+  }
+}
@@ -1,8 +1,12 @@
 package no.ntnu.commands;
 
+import java.nio.ByteBuffer;
+import no.ntnu.controlpanel.ClientSession;
 import no.ntnu.greenhouse.Actuator;
 import no.ntnu.greenhouse.GreenhouseSimulator;
 import no.ntnu.greenhouse.SensorActuatorNode;
+import no.ntnu.tools.Message;
+import no.ntnu.tools.MessageType;
 
 /**
  * Command to send an actuator command to a node. This could be to turn on a light, open a window, etc.
@@ -11,18 +15,46 @@ import no.ntnu.greenhouse.SensorActuatorNode;
  * the node.
  */
 public class SendActuatorCommand extends Command {
+  /**
+   * Turn the actuator off.
+   */
+  public static final byte ACTION_OFF = 0;
+  /**
+   * Turn the actuator on.
+   */
+  public static final byte ACTION_ON = 1;
+  /**
+   * Toggle the actuator.
+   */
+  public static final byte ACTION_TOGGLE = 2;
+
   private final int nodeId;
   private final int actuatorId;
+  private final byte action;
 
   /**
-   * Command to send an actuator command to a node.
+   * Command to toggle an actuator on a node.
    *
    * @param nodeId     The ID of the node to send the actuator command to
    * @param actuatorId The ID of the actuator to send the command to
    */
   public SendActuatorCommand(int nodeId, int actuatorId) {
+    this(nodeId, actuatorId, ACTION_TOGGLE);
+  }
+
+  /**
+   * Command to send an actuator command to a node.
+   *
+   * @param nodeId     The ID of the node to send the actuator command to
+   * @param actuatorId The ID of the actuator to send the command to
+   * @param action     What to do with the actuator: {@link #ACTION_OFF}, {@link #ACTION_ON} or
+   *                   {@link #ACTION_TOGGLE}
+   */
+  public SendActuatorCommand(int nodeId, int actuatorId, byte action) {
+    checkAction(action);
     this.nodeId = nodeId;
     this.actuatorId = actuatorId;
+    this.action = action;
   }
 
   /**
@@ -30,29 +62,81 @@ public class SendActuatorCommand extends Command {
    *
    * @return The ID of the node.
    */
+  @Override
   public int getNodeId() {
     return this.nodeId;
   }
 
+  /**
+   * Get the ID of the actuator to send the command to.
+   *
+   * @return The ID of the actuator.
+   */
+  public int getActuatorId() {
+    return this.actuatorId;
+  }
+
   @Override
-  public String execute(GreenhouseSimulator greenhouse) {
-    SensorActuatorNode node = greenhouse.getSensorNode(nodeId);
-    if (node == null) {
-      return "Error: Node not found.";
+  public byte getMessageType() {
+    return MessageType.SEND_ACTUATOR_COMMAND;
+  }
+
+  @Override
+  public void writeArguments(ByteBuffer payload) {
+    payload.putInt(this.actuatorId);
+    payload.put(this.action);
+  }
+
+  @Override
+  public byte execute(GreenhouseSimulator greenhouse, ByteBuffer response) {
+    return execute(greenhouse, nodeId, actuatorId, action, response);
+  }
+
+  /**
+   * Handle a request without creating a command, see {@link CommandRegistry}.
+   *
+   * @param request    The request, with the actuator ID and the action as its payload
+   * @param greenhouse The greenhouse simulator
+   * @param session    The session of the control panel
+   * @param response   The buffer to write the response payload to
+   * @return The message type of the response
+   */
+  static byte handle(Message request, GreenhouseSimulator greenhouse, ClientSession session,
+                     ByteBuffer response) {
+    ByteBuffer payload = request.getPayload();
+    int actuatorId = payload.getInt();
+    byte action = payload.get();
+    checkAction(action);
+    return execute(greenhouse, request.getNodeId(), actuatorId, action, response);
+  }
+
+  private static void checkAction(byte action) {
+    if (action != ACTION_OFF && action != ACTION_ON && action != ACTION_TOGGLE) {
+      throw new IllegalArgumentException("Unknown actuator action: " + action);
     }
-    if (nodeId != 1 && nodeId != 2 && nodeId != 3){
-      return "Invalid MAC authentication.";
+  }
+
+  private static byte execute(GreenhouseSimulator greenhouse, int nodeId, int actuatorId,
+                              byte action, ByteBuffer response) {
+    SensorActuatorNode node = greenhouse.getTopology().getNode(nodeId);
+    if (node == null) {
+      return error(response, "Error: Node not found.");
     }
     try {
-      // Toggle the actuator
-      node.toggleActuator(this.actuatorId);
-      // Get the actuator and return a message
-      Actuator actuator = node.getActuators().get(this.actuatorId);
-      // Return a message indicating the actuator state
-      return "Actuator " + this.actuatorId + " on node " + this.nodeId + " is now " +
-          (actuator.isOn() ? "ON" : "off");
+      Actuator actuator = node.getActuators().get(actuatorId);
+      boolean on;
+      if (actuator == null || action == ACTION_TOGGLE) {
+        // Toggle the actuator, this also reports a missing actuator
+        on = node.toggleActuator(actuatorId);
+      } else {
+        on = node.setActuator(actuatorId, action == ACTION_ON);
+      }
+      // Return the state of the actuator after the batch the command was applied in
+      response.putInt(actuatorId);
+      response.put((byte) (on ? 1 : 0));
+      return MessageType.ACTUATOR_STATE;
     } catch (IllegalArgumentException e) {
-      return "Error: " + e.getMessage();
+      return error(response, "Error: " + e.getMessage());
     }
   }
 }
@@ -0,0 +1,56 @@
+package no.ntnu.commands;
+
+import java.nio.ByteBuffer;
+import no.ntnu.greenhouse.ActuatorSettings;
+import no.ntnu.greenhouse.GreenhouseSimulator;
+import no.ntnu.tools.MessageType;
+
+/**
+ * Command to turn many actuators, on one or more nodes, on or off in one request.
+ *
+ * <p>The states are explicit, so sending the command twice does no harm. The settings of each
+ * node are applied all together or not at all, see {@link ActuatorSettings#apply}, and the
+ * {@link MessageType#ACTUATOR_RESULTS} response holds one result byte per setting, in the order
+ * of the request.</p>
+ */
+public class SetActuators extends Command {
+  private final ActuatorSettings settings;
+
+  /**
+   * Command to set actuators.
+   *
+   * @param settings The node, actuator and state of each actuator to set
+   */
+  public SetActuators(ActuatorSettings settings) {
+    this.settings = settings;
+  }
+
+  @Override
+  public byte getMessageType() {
+    return MessageType.SET_ACTUATORS;
+  }
+
+  @Override
+  public void writeArguments(ByteBuffer payload) {
+    settings.write(payload);
+  }
+
+  @Override
+  public byte execute(GreenhouseSimulator greenhouse, ByteBuffer response) {
+    return writeResults(settings.apply(greenhouse), response);
+  }
+
+  /**
+   * Write the results of applied actuator settings as an {@link MessageType#ACTUATOR_RESULTS}
+   * payload: the result count (2 bytes) and one result byte per setting.
+   *
+   * @param results  The results, from {@link ActuatorSettings#apply}
+   * @param response The buffer to write the response payload to
+   * @return The message type of the response
+   */
+  static byte writeResults(byte[] results, ByteBuffer response) {
+    response.putShort((short) results.length);
+    response.put(results);
+    return MessageType.ACTUATOR_RESULTS;
+  }
+}
@@ -0,0 +1,82 @@
+package no.ntnu.commands;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import no.ntnu.controlpanel.ClientSession;
+import no.ntnu.greenhouse.GreenhouseSimulator;
+import no.ntnu.greenhouse.SensorActuatorNode;
+import no.ntnu.greenhouse.TopologySnapshot;
+import no.ntnu.tools.MessageCodec;
+import no.ntnu.tools.MessageType;
+
+/**
+ * Command to subscribe to the sensor readings and actuator changes of some nodes.
+ *
+ * <p>Instead of polling the nodes, the control panel gets the new readings pushed to it every
+ * time a node generates them, and every time an actuator on the node changes state. A new
+ * subscription replaces the previous one of the connection.</p>
+ */
+public class Subscribe extends Command {
+  private final int[] nodeIds;
+  private final Set<String> sensorTypes;
+
+  /**
+   * Command to subscribe to updates from some nodes.
+   *
+   * @param nodeIds     The IDs of the nodes to subscribe to. When empty, subscribe to all the
+   *                    nodes.
+   * @param sensorTypes The types of the sensors to get readings from. When empty, get readings
+   *                    from all the sensors.
+   */
+  public Subscribe(int[] nodeIds, Set<String> sensorTypes) {
+    this.nodeIds = nodeIds.clone();
+    this.sensorTypes = new HashSet<>(sensorTypes);
+  }
+
+  @Override
+  public byte getMessageType() {
+    return MessageType.SUBSCRIBE;
+  }
+
+  @Override
+  public void writeArguments(ByteBuffer payload) {
+    payload.putShort((short) nodeIds.length);
+    for (int nodeId : nodeIds) {
+      payload.putInt(nodeId);
+    }
+    payload.put((byte) sensorTypes.size());
+    for (String sensorType : sensorTypes) {
+      MessageCodec.putString(payload, sensorType);
+    }
+  }
+
+  @Override
+  public byte execute(GreenhouseSimulator greenhouse, ByteBuffer response) {
+    return error(response, "Error: Subscriptions need a client connection.");
+  }
+
+  @Override
+  public byte execute(GreenhouseSimulator greenhouse, ClientSession session,
+                      ByteBuffer response) {
+    TopologySnapshot topology = greenhouse.getTopology();
+    List<SensorActuatorNode> nodes;
+    if (nodeIds.length == 0) {
+      nodes = topology.getNodes();
+    } else {
+      nodes = new ArrayList<>();
+      for (int nodeId : nodeIds) {
+        SensorActuatorNode node = topology.getNode(nodeId);
+        if (node == null) {
+          return error(response, "Error: Node " + nodeId + " not found.");
+        }
+        nodes.add(node);
+      }
+    }
+    session.subscribe(nodes, sensorTypes);
+    response.putShort((short) nodes.size());
+    return MessageType.SUBSCRIPTION;
+  }
+}
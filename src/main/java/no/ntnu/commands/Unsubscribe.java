@@ -0,0 +1,29 @@
+package no.ntnu.commands;
+
+import java.nio.ByteBuffer;
+import no.ntnu.controlpanel.ClientSession;
+import no.ntnu.greenhouse.GreenhouseSimulator;
+import no.ntnu.tools.MessageType;
+
+/**
+ * Command to stop the updates requested with {@link Subscribe}.
+ */
+public class Unsubscribe extends Command {
+  @Override
+  public byte getMessageType() {
+    return MessageType.UNSUBSCRIBE;
+  }
+
+  @Override
+  public byte execute(GreenhouseSimulator greenhouse, ByteBuffer response) {
+    return error(response, "Error: Subscriptions need a client connection.");
+  }
+
+  @Override
+  public byte execute(GreenhouseSimulator greenhouse, ClientSession session,
+                      ByteBuffer response) {
+    session.unsubscribe();
+    response.putShort((short) 0);
+    return MessageType.SUBSCRIPTION;
+  }
+}
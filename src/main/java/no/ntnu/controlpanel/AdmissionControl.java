@@ -0,0 +1,262 @@
+package no.ntnu.controlpanel;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import no.ntnu.tools.Logger;
+import no.ntnu.tools.MessageType;
+
+/**
+ * Decides which control panels and commands the greenhouse serves, so one misbehaving client
+ * can not take all the capacity from the others.
+ *
+ * <p>Only a limited number of connections are served at the same time; connections above the
+ * limit are closed as soon as they are accepted. On each connection, commands go through a
+ * token bucket for the connection and one for their message type. A command which does not get
+ * a token from both is not executed; the client gets an immediate
+ * {@link MessageType#BUSY} response saying when to retry, so nothing waits in a queue.</p>
+ *
+ * <p>The limits must be set before the greenhouse is started. Rejections are counted per
+ * client host, so they add up over reconnections.</p>
+ */
+public class AdmissionControl {
+  /**
+   * The default number of control panels served at the same time.
+   */
+  public static final int DEFAULT_CONNECTION_LIMIT = 256;
+  /**
+   * The default number of commands per second on one connection.
+   */
+  public static final double DEFAULT_COMMAND_RATE = 200;
+  /**
+   * The default number of commands one connection may send in a burst.
+   */
+  public static final int DEFAULT_COMMAND_BURST = 400;
+  /**
+   * The default number of actuator commands per second on one connection.
+   */
+  public static final double DEFAULT_ACTUATOR_COMMAND_RATE = 10;
+  /**
+   * The default number of actuator commands one connection may send in a burst.
+   */
+  public static final int DEFAULT_ACTUATOR_COMMAND_BURST = 20;
+  /**
+   * The default number of pings per second on one connection.
+   */
+  public static final double DEFAULT_PING_RATE = 1;
+  /**
+   * The default number of pings one connection may send in a burst.
+   */
+  public static final int DEFAULT_PING_BURST = 5;
+
+  private static final int MESSAGE_TYPES = 256;
+
+  private int connectionLimit = DEFAULT_CONNECTION_LIMIT;
+  private double commandRate = DEFAULT_COMMAND_RATE;
+  private int commandBurst = DEFAULT_COMMAND_BURST;
+  // The rate and burst of each message type, a rate of 0 when the type is not limited
+  private final double[] typeRates = new double[MESSAGE_TYPES];
+  private final int[] typeBursts = new int[MESSAGE_TYPES];
+  private final AtomicInteger connections = new AtomicInteger();
+  private final AtomicLong rejectedConnections = new AtomicLong();
+  private final LongAdder rejectedCommands = new LongAdder();
+  private final Map<InetAddress, LongAdder> rejectionsByHost = new ConcurrentHashMap<>();
+
+  /**
+   * Create admission control with the default limits.
+   */
+  public AdmissionControl() {
+    setCommandRate(MessageType.SEND_ACTUATOR_COMMAND, DEFAULT_ACTUATOR_COMMAND_RATE,
+        DEFAULT_ACTUATOR_COMMAND_BURST);
+    setCommandRate(MessageType.SET_ACTUATORS, DEFAULT_ACTUATOR_COMMAND_RATE,
+        DEFAULT_ACTUATOR_COMMAND_BURST);
+    setCommandRate(MessageType.RUN_SCENE, DEFAULT_ACTUATOR_COMMAND_RATE,
+        DEFAULT_ACTUATOR_COMMAND_BURST);
+    setCommandRate(MessageType.PING, DEFAULT_PING_RATE, DEFAULT_PING_BURST);
+  }
+
+  /**
+   * Set the number of control panels served at the same time.
+   *
+   * @param connectionLimit The largest number of open connections
+   */
+  public void setConnectionLimit(int connectionLimit) {
+    if (connectionLimit <= 0) {
+      throw new IllegalArgumentException("Invalid connection limit: " + connectionLimit);
+    }
+    this.connectionLimit = connectionLimit;
+  }
+
+  /**
+   * Set how many commands of any type one connection may send.
+   *
+   * @param ratePerSecond The number of commands per second
+   * @param burst         The number of commands which may be sent at once
+   */
+  public void setCommandRate(double ratePerSecond, int burst) {
+    checkRate(ratePerSecond, burst);
+    this.commandRate = ratePerSecond;
+    this.commandBurst = burst;
+  }
+
+  /**
+   * Set how many commands of one type one connection may send, in addition to the limit for
+   * all the commands.
+   *
+   * @param type          The message type of the command
+   * @param ratePerSecond The number of commands per second, or 0 to not limit the type
+   * @param burst         The number of commands which may be sent at once
+   */
+  public void setCommandRate(byte type, double ratePerSecond, int burst) {
+    if (ratePerSecond != 0) {
+      checkRate(ratePerSecond, burst);
+    }
+    typeRates[Byte.toUnsignedInt(type)] = ratePerSecond;
+    typeBursts[Byte.toUnsignedInt(type)] = burst;
+  }
+
+  private static void checkRate(double ratePerSecond, int burst) {
+    if (ratePerSecond <= 0 || burst <= 0) {
+      throw new IllegalArgumentException("Invalid command rate: " + ratePerSecond + "/"
+          + burst);
+    }
+  }
+
+  /**
+   * Admit a new connection, unless the connection limit has been reached.
+   *
+   * @param remoteAddress The address of the control panel
+   * @return The admitted client, which must be closed with the connection, or {@code null} if
+   *     the connection must be rejected
+   */
+  public Client admit(SocketAddress remoteAddress) {
+    if (connections.incrementAndGet() > connectionLimit) {
+      connections.decrementAndGet();
+      rejectedConnections.incrementAndGet();
+      return null;
+    }
+    return new Client(remoteAddress);
+  }
+
+  /**
+   * Get the number of commands rejected from one host, over all its connections.
+   *
+   * @param host The address of the host
+   * @return The number of rejected commands
+   */
+  public long getRejectedCount(InetAddress host) {
+    LongAdder rejections = rejectionsByHost.get(host);
+    return rejections != null ? rejections.sum() : 0;
+  }
+
+  /**
+   * Get a summary of the connections and rejections, for logging.
+   *
+   * @return A human-readable description of the admission control statistics
+   */
+  public String getStatistics() {
+    return "admission control: " + connections.get() + "/" + connectionLimit
+        + " connections, " + rejectedConnections.get() + " connections and "
+        + rejectedCommands.sum() + " commands rejected";
+  }
+
+  /**
+   * One admitted connection, with its token buckets. Only used by the thread handling the
+   * requests of the connection, except for {@link #close()}.
+   */
+  public class Client {
+    private final SocketAddress remoteAddress;
+    private final LongAdder hostRejections;
+    private final TokenBucket commandBucket = new TokenBucket(commandRate, commandBurst);
+    // Created when the first command of each limited type arrives
+    private final TokenBucket[] typeBuckets = new TokenBucket[MESSAGE_TYPES];
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private boolean throttled;
+
+    private Client(SocketAddress remoteAddress) {
+      this.remoteAddress = remoteAddress;
+      this.hostRejections = remoteAddress instanceof InetSocketAddress inetAddress
+          && inetAddress.getAddress() != null
+          ? rejectionsByHost.computeIfAbsent(inetAddress.getAddress(), host -> new LongAdder())
+          : new LongAdder();
+    }
+
+    /**
+     * Admit a command, taking a token from the bucket of the connection and the bucket of its
+     * type.
+     *
+     * @param type The message type of the command
+     * @return 0 if the command may be executed, otherwise how many milliseconds the client
+     *     should wait before sending it again
+     */
+    public long admitCommand(byte type) {
+      long now = System.nanoTime();
+      TokenBucket typeBucket = getTypeBucket(type);
+      long delay = commandBucket.getDelay(now);
+      if (typeBucket != null) {
+        delay = Math.max(delay, typeBucket.getDelay(now));
+      }
+      if (delay > 0) {
+        reject();
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(delay + 999_999));
+      }
+      commandBucket.take();
+      if (typeBucket != null) {
+        typeBucket.take();
+      }
+      throttled = false;
+      return 0;
+    }
+
+    private TokenBucket getTypeBucket(byte type) {
+      int index = Byte.toUnsignedInt(type);
+      TokenBucket bucket = typeBuckets[index];
+      if (bucket == null && typeRates[index] > 0) {
+        bucket = new TokenBucket(typeRates[index], typeBursts[index]);
+        typeBuckets[index] = bucket;
+      }
+      return bucket;
+    }
+
+    private void reject() {
+      rejected.incrementAndGet();
+      hostRejections.increment();
+      rejectedCommands.increment();
+      // Log once per run of rejections, not once per command
+      if (!throttled) {
+        throttled = true;
+        Logger.error("Client " + remoteAddress + " is over its rate limit, rejecting commands");
+      }
+    }
+
+    /**
+     * Get the number of commands rejected on this connection.
+     *
+     * @return The number of rejected commands
+     */
+    public long getRejectedCount() {
+      return rejected.get();
+    }
+
+    /**
+     * Give the connection slot back. Can be called more than once.
+     */
+    public void close() {
+      if (closed.compareAndSet(false, true)) {
+        connections.decrementAndGet();
+        if (rejected.get() > 0) {
+          Logger.info("Client " + remoteAddress + " had " + rejected.get()
+              + " commands rejected");
+        }
+      }
+    }
+  }
+}
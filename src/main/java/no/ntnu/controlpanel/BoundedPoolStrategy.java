@@ -0,0 +1,101 @@
+package no.ntnu.controlpanel;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Run the client handlers on a fixed number of threads. Connections which arrive while all the
+ * threads are busy wait in a bounded queue; when the queue is full as well, the connection
+ * is rejected.
+ *
+ * <p>Note that a handler occupies its thread for as long as the connection is open, so the pool
+ * size is also the number of control panels served at the same time.</p>
+ *
+ * <p>The writer tasks of the connections have a pool of the same size of their own, as they
+ * would otherwise wait behind handlers which hold their threads for good. A connection has at
+ * most two writer tasks waiting, so their queue is bounded by the number of connections.</p>
+ */
+public class BoundedPoolStrategy implements ClientExecutionStrategy {
+  private final ThreadPoolExecutor executor;
+  private final ExecutorService writers;
+  private final AtomicLong submitted = new AtomicLong();
+  private final AtomicLong rejected = new AtomicLong();
+
+  /**
+   * Create a bounded pool.
+   *
+   * @param poolSize      The number of handler threads
+   * @param queueCapacity The number of connections allowed to wait for a free thread
+   */
+  public BoundedPoolStrategy(int poolSize, int queueCapacity) {
+    if (poolSize <= 0 || queueCapacity < 0) {
+      throw new IllegalArgumentException("Invalid pool size or queue capacity");
+    }
+    AtomicInteger threadNumber = new AtomicInteger();
+    this.executor = new ThreadPoolExecutor(poolSize, poolSize, 0, TimeUnit.MILLISECONDS,
+        queueCapacity == 0 ? new SynchronousQueue<>() : new ArrayBlockingQueue<>(queueCapacity),
+        handler -> new Thread(handler, "client-handler-" + threadNumber.incrementAndGet()));
+    AtomicInteger writerNumber = new AtomicInteger();
+    this.writers = Executors.newFixedThreadPool(poolSize, writer -> {
+      Thread thread = new Thread(writer, "client-writer-" + writerNumber.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  @Override
+  public boolean execute(Runnable handler) {
+    boolean accepted = true;
+    submitted.incrementAndGet();
+    try {
+      executor.execute(handler);
+    } catch (RejectedExecutionException e) {
+      rejected.incrementAndGet();
+      accepted = false;
+    }
+    return accepted;
+  }
+
+  @Override
+  public void executeWriter(Runnable writer) {
+    writers.execute(writer);
+  }
+
+  /**
+   * Get the number of connections currently waiting for a free thread.
+   *
+   * @return The queue depth
+   */
+  public int getQueueDepth() {
+    return executor.getQueue().size();
+  }
+
+  /**
+   * Get the number of connections rejected because both the pool and the queue were full.
+   *
+   * @return The number of rejected connections
+   */
+  public long getRejectedCount() {
+    return rejected.get();
+  }
+
+  @Override
+  public String getStatistics() {
+    return "bounded pool: " + executor.getActiveCount() + "/" + executor.getMaximumPoolSize()
+        + " threads busy, " + getQueueDepth() + " queued, " + submitted.get() + " submitted, "
+        + rejected.get() + " rejected";
+  }
+
+  @Override
+  public void shutdown() {
+    executor.shutdownNow();
+    writers.shutdownNow();
+  }
+}
@@ -0,0 +1,38 @@
+package no.ntnu.controlpanel;
+
+/**
+ * Decides which thread runs the {@link ClientHandler} of each accepted connection when the
+ * greenhouse uses the blocking server.
+ */
+public interface ClientExecutionStrategy {
+  /**
+   * Run the handler of one client connection.
+   *
+   * @param handler The client handler to run
+   * @return {@code true} if the handler was accepted, {@code false} if it was rejected and the
+   *     connection should be closed.
+   */
+  boolean execute(Runnable handler);
+
+  /**
+   * Run a task which writes the queued messages of a connection. The task is only started when
+   * there is something to write, and ends once the queue is empty, so an idle connection holds
+   * no thread for writing.
+   *
+   * @param writer The writer task of one connection
+   * @throws java.util.concurrent.RejectedExecutionException If the strategy has been shut down
+   */
+  void executeWriter(Runnable writer);
+
+  /**
+   * Get a short, human-readable summary of the strategy and its counters.
+   *
+   * @return The statistics of the strategy
+   */
+  String getStatistics();
+
+  /**
+   * Stop accepting new handlers and interrupt the running ones.
+   */
+  void shutdown();
+}
@@ -1,46 +1,62 @@
 package no.ntnu.controlpanel;
 
+import java.io.BufferedInputStream;
 import java.io.EOFException;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.io.PrintWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
-import java.security.InvalidKeyException;
-import java.security.KeyPair;
-import java.security.KeyPairGenerator;
-import java.security.NoSuchAlgorithmException;
-import java.security.PrivateKey;
-import java.security.PublicKey;
-import javax.crypto.KeyAgreement;
-import javax.crypto.SecretKey;
-import javax.crypto.spec.SecretKeySpec;
-import no.ntnu.commands.Command;
-import no.ntnu.commands.CommandFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import no.ntnu.greenhouse.GreenhouseSimulator;
-import no.ntnu.tools.ChecksumHandler;
-import no.ntnu.tools.EncryptionDecryption;
 import no.ntnu.tools.Logger;
+import no.ntnu.tools.MessageCodec;
 
 /**
  * Handles communication with TCP clients.
+ *
+ * <p>The handler thread, which the {@link ClientExecutionStrategy} of the greenhouse runs, reads
+ * the requests. Everything to send goes into the {@link OutboundQueue} of the connection, and
+ * a writer task, which the strategy runs as well, is started when something is queued and no
+ * write is on its way. The task writes until the queue is empty and then ends, so an idle
+ * connection holds no thread for writing. A slow control panel therefore only holds up its own
+ * handler, which stops reading requests until the queue has drained, and never the nodes
+ * pushing updates to it.</p>
  */
-public class ClientHandler extends Thread {
-  private final GreenhouseSimulator client;
+public class ClientHandler implements Runnable, MessageSink {
+  private static final int INITIAL_BUFFER_SIZE = 4096;
+
   private final Socket clientSocket;
-  private ObjectInputStream objectReader;
-  private PrintWriter socketWriter;
-  private SecretKey sharedSecret;
-  private final ChecksumHandler checksumHandler = new ChecksumHandler();
+  private final ClientSession session;
+  private final OutboundQueue outboundQueue;
+  private final ConnectionReaper connectionReaper;
+  private final ClientExecutionStrategy executionStrategy;
+  private final AtomicBoolean writeScheduled = new AtomicBoolean();
+  // Held while writing, so two writer tasks of the connection never write at the same time
+  private final Object writeLock = new Object();
+  // Grows when a large request requires it, like the read buffer of a NioConnection
+  private ByteBuffer requestBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+  private InputStream socketReader;
+  private OutputStream socketWriter;
+  private WritableByteChannel fileTarget;
 
   /**
    * Create a new client handler.
    *
    * @param client       The greenhouse simulator
    * @param clientSocket The client socket
+   * @param admission    The admission of the client, see {@link AdmissionControl}
    */
-  public ClientHandler(GreenhouseSimulator client, Socket clientSocket) {
-    this.client = client;
+  public ClientHandler(GreenhouseSimulator client, Socket clientSocket,
+                       AdmissionControl.Client admission) {
+    this.session = new ClientSession(client, admission);
+    this.session.setSink(this);
+    this.outboundQueue = client.createOutboundQueue();
+    this.connectionReaper = client.getConnectionReaper();
+    this.executionStrategy = client.getExecutionStrategy();
     this.clientSocket = clientSocket;
     Logger.info("Greenhouse connected from " + clientSocket.getRemoteSocketAddress()
         + ", port: " + clientSocket.getPort());
@@ -51,10 +67,11 @@ public class ClientHandler extends Thread {
    */
   @Override
   public void run() {
+    connectionReaper.register(session, this::closeIdleSocket);
     if (establishStreams()) {
       handleClientRequest();
-      closeSocket();
     }
+    closeSocket();
     Logger.info("Exiting the handler of the greenhouse "
         + this.clientSocket.getRemoteSocketAddress());
   }
@@ -63,12 +80,13 @@ public class ClientHandler extends Thread {
     boolean success = false;
     try {
       // Initialize the streams
-      this.objectReader = new ObjectInputStream(this.clientSocket.getInputStream());
-      this.socketWriter = new PrintWriter(this.clientSocket.getOutputStream(), true);
+      this.socketReader = new BufferedInputStream(this.clientSocket.getInputStream());
+      this.socketWriter = this.clientSocket.getOutputStream();
+      // File data goes straight from the file to the socket when the socket has a channel
+      this.fileTarget = clientSocket.getChannel() != null
+          ? clientSocket.getChannel() : Channels.newChannel(this.socketWriter);
       // Perform key exchange
-      exchangeKeys();
-      // If we reach this point, the streams are successfully established
-      success = true;
+      success = session.exchangeKeys(this.socketReader, this.socketWriter);
     } catch (IOException e) {
       Logger.error("Failed to establish streams: " + e.getMessage());
     }
@@ -79,16 +97,22 @@ public class ClientHandler extends Thread {
     try {
       // While the thread is not interrupted, keep reading commands from the client
       while (!Thread.currentThread().isInterrupted()) {
-        String command = receiveClientCommand();
-        if (command == null) {
+        if (!receiveClientCommand()) {
           Logger.info("Client connection closed");
           break;
         }
-        boolean shouldContinue = handleCommand(command);
-        if (!shouldContinue) {
+        // The response is queued for the writer through sendResponse
+        session.handleMessage(this.requestBuffer);
+        if (session.isShutdownRequested()) {
+          // Send what is still queued before the socket is closed
+          writeQueued();
           break;
         }
+        // Stop reading requests while the client is not reading the responses
+        outboundQueue.awaitCaughtUp();
       }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
     } catch (Exception e) {
       Logger.error("Error in client request handling: " + e.getMessage());
     } finally {
@@ -96,177 +120,120 @@ public class ClientHandler extends Thread {
     }
   }
 
-  private String receiveClientCommand() {
+  private boolean receiveClientCommand() {
     try {
       // Check if the stream is available before reading
-      if (objectReader == null || clientSocket.isClosed() || clientSocket.isInputShutdown()) {
+      if (socketReader == null || clientSocket.isClosed() || clientSocket.isInputShutdown()) {
         Logger.info("Socket is closed or input stream is shutdown");
-        return null;
-      }
-      // Read the object from the stream
-      Object receivedObject = objectReader.readObject();
-      if (receivedObject == null) {
-        Logger.info("Received null object - potential connection closure");
-        return null;
+        return false;
       }
-      // Check if the object is a string
-      if (!(receivedObject instanceof String)) {
-        Logger.error("Received non-string object: " + receivedObject.getClass());
-        return null;
+      // Read the next complete message from the stream
+      ByteBuffer message = MessageCodec.readMessageGrowing(this.socketReader, this.requestBuffer);
+      if (message == null) {
+        return false;
       }
-      // Check if the string is in the correct format
-      String receivedData = (String) receivedObject;
-      // Split into two parts: the command and the checksum
-      String[] parts = receivedData.split(":", 2);
-      if (parts.length != 2) {
-        Logger.error("Invalid command format: " + receivedData);
-        return null;
-      }
-      // Validate the checksum and return the command
-      return validateChecksum(parts);
+      this.requestBuffer = message;
+      return true;
     } catch (EOFException e) {
       // This typically means the connection was closed
       Logger.info("End of stream reached - connection likely closed");
-      return null;
+      return false;
     } catch (IOException e) {
       Logger.error("IO Error while reading command: " + e.getMessage());
-      return null;
-    } catch (ClassNotFoundException e) {
-      Logger.error("Deserialization error: class not found: " + e.getMessage());
-      return null;
-    } catch (NoSuchAlgorithmException e) {
-      Logger.error("Checksum calculation error: " + e.getMessage());
-      return null;
+      return false;
     }
   }
 
-  private String validateChecksum(String[] parts) throws NoSuchAlgorithmException {
-    String encryptedCommand = parts[0];
-    String receivedChecksum = parts[1];
-    String calculatedChecksum = checksumHandler.calculateChecksum(encryptedCommand);
-    if (!receivedChecksum.equals(calculatedChecksum)) {
-      Logger.error("Checksum mismatch: " + receivedChecksum + " != " + calculatedChecksum);
-      return null;
+  @Override
+  public void sendUpdate(ByteBuffer message, long key) {
+    if (outboundQueue.addUpdate(message, key)) {
+      scheduleWrite();
     }
-    return encryptedCommand;
   }
 
-  private boolean handleCommand(String encryptedCommand) {
-    boolean shouldContinue = true;
-    // Check if the encrypted command is empty or null
-    if (encryptedCommand == null || encryptedCommand.isEmpty()) {
-      shouldContinue = false;
-    }
-    // Decrypt the command
-    String command = decryptCommand(encryptedCommand);
-    if (command == null) {
-      shouldContinue = false;
-    }
-    // Special handling for shutdown command
-    if (command.equals("SHUTDOWN")) {
-      Logger.info("Received shutdown command from client");
-      shouldContinue = false;
-    }
-    // Execute the command
-    executeCommand(command);
-    // If we reach this point, the command was successfully executed and we should continue
-    return shouldContinue;
+  @Override
+  public void sendResponse(ByteBuffer message, FileRegion region) {
+    outboundQueue.addResponse(message, region);
+    scheduleWrite();
   }
 
-  private void executeCommand(String command) {
-    CommandFactory factory = new CommandFactory();
-    Logger.info("Command from the client: " + command);
-    String response = null;
-    String encryptedResponse = null;
-    // Execute the command
-    try {
-      Command cmd = factory.parseCommand(command);
-      response = cmd.execute(client);
-    } catch (IllegalArgumentException e) {
-      response = "ERROR: Invalid command format - " + e.getMessage();
-    } catch (Exception e) {
-      response = "Command execution error: " + e.getMessage();
-    }
-    // Encrypt the response
-    try {
-      encryptedResponse = EncryptionDecryption.encrypt(response, sharedSecret);
-    } catch (Exception e) {
-      Logger.error("Error encrypting response: " + e.getMessage());
-    }
-    // Send the encrypted response to the client
-    if (encryptedResponse != null) {
-      sendToClient(encryptedResponse);
+  private void scheduleWrite() {
+    if (writeScheduled.compareAndSet(false, true)) {
+      try {
+        executionStrategy.executeWriter(this::writeQueued);
+      } catch (RejectedExecutionException e) {
+        // The greenhouse is stopping, and closes the connection
+        writeScheduled.set(false);
+      }
     }
   }
 
-  private String decryptCommand(String encryptedCommand) {
-    String command;
-    try {
-      command = EncryptionDecryption.decrypt(encryptedCommand, sharedSecret);
-    } catch (Exception e) {
-      Logger.error("Error decrypting command: " + e.getMessage());
-      return null;
+  /**
+   * Get the queue of the messages waiting to be written to the client.
+   *
+   * @return The outbound queue, with its depth and counters
+   */
+  public OutboundQueue getOutboundQueue() {
+    return outboundQueue;
+  }
+
+  /**
+   * Write everything queued so far, including the messages queued while writing. Runs as the
+   * writer task of the connection. A message queued after the task has cleared the scheduled
+   * flag starts another task, which waits for this one and then writes it.
+   */
+  private void writeQueued() {
+    synchronized (writeLock) {
+      writeScheduled.set(false);
+      try {
+        ByteBuffer message = outboundQueue.poll();
+        if (message == null) {
+          return;
+        }
+        while (message != null) {
+          this.socketWriter.write(message.array(), message.arrayOffset() + message.position(),
+              message.remaining());
+          FileRegion region = outboundQueue.takeRegion();
+          if (region != null) {
+            region.transferTo(fileTarget);
+          }
+          message = outboundQueue.poll();
+        }
+        this.socketWriter.flush();
+      } catch (IOException e) {
+        if (!clientSocket.isClosed()) {
+          Logger.error("Failed to send response to client: " + e.getMessage());
+        }
+        // The handler thread, blocked on reading or waiting for the queue, then cleans up
+        outboundQueue.close();
+        closeIdleSocket();
+      }
     }
-    return command;
   }
 
-  private void sendToClient(String response) {
+  /**
+   * Close the socket from the reaper thread or the writer task. The handler thread, blocked on
+   * reading, then fails and cleans up the connection.
+   */
+  private void closeIdleSocket() {
     try {
-      this.socketWriter.println(response);
-    } catch (Exception e) {
-      Logger.error("Failed to send response to client: " + e.getMessage());
+      clientSocket.close();
+    } catch (IOException e) {
+      Logger.error("Error closing idle socket: " + e.getMessage());
     }
   }
 
   private void closeSocket() {
+    session.close();
+    outboundQueue.close();
     try {
       if (clientSocket != null && !clientSocket.isClosed()) {
-        Logger.info("Closing socket for " + clientSocket.getRemoteSocketAddress());
-        if (objectReader != null) {
-          objectReader.close();
-        }
-        if (socketWriter != null) {
-          socketWriter.close();
-        }
+        Logger.info("Closing socket for " + clientSocket.getRemoteSocketAddress() + ", "
+            + outboundQueue.getStatistics());
         clientSocket.close();
       }
     } catch (IOException e) {
       Logger.error("Error closing socket: " + e.getMessage());
     }
   }
-
-  /**
-   * Perform key exchange with the client.
-   * This method was created with help from GitHub Copilot.
-   */
-  private void exchangeKeys() {
-    try {
-      // Generate key pair
-      KeyPairGenerator keyPairGen = KeyPairGenerator.getInstance("DH");
-      keyPairGen.initialize(2048);
-      KeyPair keyPair = keyPairGen.generateKeyPair();
-      PrivateKey privateKey = keyPair.getPrivate();
-      PublicKey publicKey = keyPair.getPublic();
-
-      // Send public key to client
-      ObjectOutputStream objectWriter = new ObjectOutputStream(clientSocket.getOutputStream());
-      objectWriter.writeObject(publicKey);
-      objectWriter.flush();
-
-      // Receive client's public key
-      PublicKey clientPublicKey = (PublicKey) objectReader.readObject();
-
-      // Generate shared secret
-      KeyAgreement keyAgree = KeyAgreement.getInstance("DH");
-      keyAgree.init(privateKey);
-      keyAgree.doPhase(clientPublicKey, true);
-      byte[] sharedSecretBytes = keyAgree.generateSecret();
-
-      // Derive AES key from shared secret
-      sharedSecret = new SecretKeySpec(sharedSecretBytes, 0, 16, "AES");
-    } catch (NoSuchAlgorithmException | InvalidKeyException | ClassNotFoundException
-             | IOException e) {
-      Logger.error("Failed to generate key pair: " + e.getMessage());
-    }
-  }
 }
@@ -0,0 +1,378 @@
+package no.ntnu.controlpanel;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import no.ntnu.exceptions.MessageFormatException;
+import no.ntnu.greenhouse.Actuator;
+import no.ntnu.greenhouse.GreenhouseSimulator;
+import no.ntnu.greenhouse.Sensor;
+import no.ntnu.greenhouse.SensorActuatorNode;
+import no.ntnu.listeners.common.ActuatorListener;
+import no.ntnu.listeners.greenhouse.SensorListener;
+import no.ntnu.tools.BufferPool;
+import no.ntnu.tools.KeyExchange;
+import no.ntnu.tools.Logger;
+import no.ntnu.tools.Message;
+import no.ntnu.tools.MessageCodec;
+import no.ntnu.tools.MessageType;
+import no.ntnu.tools.PayloadCompressor;
+
+/**
+ * The server-side state of one connected control panel, independent of how the bytes are
+ * transported. Both the thread-per-connection {@link ClientHandler} and the
+ * {@link NioGreenhouseServer} hand every received message to a session, so the command path
+ * is the same in both server modes.
+ */
+public class ClientSession {
+  private static final int POOLED_BUFFERS = 2 * Runtime.getRuntime().availableProcessors();
+  // A payload and a message buffer are taken for each response and update while it is built
+  // and encoded, and given back once the sink has queued a copy of the message. The buffers
+  // are shared by all the sessions, so a connection holds none while it is idle.
+  private static final BufferPool PAYLOADS =
+      new BufferPool(MessageCodec.MAX_PAYLOAD_SIZE, POOLED_BUFFERS);
+  private static final BufferPool MESSAGES =
+      new BufferPool(MessageCodec.MAX_MESSAGE_SIZE, POOLED_BUFFERS);
+  // The file data to send after the response being built on this thread, set by the command
+  private static final ThreadLocal<FileRegion> RESPONSE_REGION = new ThreadLocal<>();
+
+  private final GreenhouseSimulator greenhouse;
+  private final AdmissionControl.Client admission;
+  private final Message request = new Message();
+  private final List<Subscription> subscriptions = new ArrayList<>();
+  private final SensorDeltaEncoder sensorDeltaEncoder = new SensorDeltaEncoder();
+  private MessageCodec codec;
+  private MessageSink sink;
+  private boolean shutdownRequested;
+  private volatile long lastActivity = System.nanoTime();
+
+  /**
+   * Create a new client session.
+   *
+   * @param greenhouse The greenhouse simulator the commands are executed on
+   * @param admission  Decides which commands of the client are executed
+   */
+  public ClientSession(GreenhouseSimulator greenhouse, AdmissionControl.Client admission) {
+    this.greenhouse = greenhouse;
+    this.admission = admission;
+  }
+
+  /**
+   * Set where the responses and the messages the client did not ask for are sent. Must be set
+   * before the first message is handled.
+   *
+   * @param sink The sink of the connection
+   */
+  public void setSink(MessageSink sink) {
+    this.sink = sink;
+  }
+
+  /**
+   * Get the encoder of the delta sensor data responses sent to this client.
+   *
+   * @return The encoder, which remembers what has been sent on this connection
+   */
+  public SensorDeltaEncoder getSensorDeltaEncoder() {
+    return sensorDeltaEncoder;
+  }
+
+  /**
+   * Check whether the client has asked to close the connection, or has sent something
+   * which makes it impossible to continue.
+   *
+   * @return {@code true} if the connection should be closed, {@code false} otherwise.
+   */
+  public boolean isShutdownRequested() {
+    return shutdownRequested;
+  }
+
+  /**
+   * Get when a message was last received from the client.
+   *
+   * @return The time of the last message, or of the creation of the session if no message has
+   *     been received, from {@link System#nanoTime()}
+   */
+  public long getLastActivity() {
+    return lastActivity;
+  }
+
+  /**
+   * Handle one request message received from the client. The response is sent through the
+   * sink: at once, or, for slow requests, later from another thread, see
+   * {@link #executeAsync(Message, Executor)}.
+   *
+   * @param input The buffer holding the complete message, positioned at its start. The
+   *              position is moved past the message.
+   */
+  public void handleMessage(ByteBuffer input) {
+    lastActivity = System.nanoTime();
+    try {
+      codec.decode(input, request);
+    } catch (MessageFormatException e) {
+      Logger.error("Invalid message from the client: " + e.getMessage());
+      shutdownRequested = true;
+      return;
+    }
+    // Special handling for shutdown command
+    if (request.getType() == MessageType.SHUTDOWN) {
+      Logger.info("Received shutdown command from client");
+      shutdownRequested = true;
+      return;
+    }
+    // Turn away a client over its limits before spending anything on the command. Pings count
+    // as well, so a flood of them can not take the capacity of the other commands.
+    long retryAfter = admission.admitCommand(request.getType());
+    if (retryAfter > 0) {
+      rejectCommand(retryAfter);
+      return;
+    }
+    if (request.getType() != MessageType.PING) {
+      Logger.info("Command from the client: " + String.format("0x%02x", request.getType())
+          + " " + request.getNodeId());
+    }
+    if (greenhouse.getCommandRegistry().isSlow(request.getType())) {
+      try {
+        executeAsync(request.copy(), greenhouse.getCommandExecutor());
+      } catch (RejectedExecutionException e) {
+        rejectCommand(request, "ERROR: The greenhouse is shutting down");
+      }
+      return;
+    }
+    executeCommand(request);
+  }
+
+  /**
+   * Execute a request on an executor, so the connection can go on reading and executing the
+   * next requests meanwhile. The response is sent through the sink when it is ready, which may
+   * be after the responses to later requests; the control panel matches them by request ID.
+   *
+   * @param request  The decoded request, which must not be reused until the stage completes
+   * @param executor Runs the request, and encodes and sends the response
+   * @return A stage which is completed once the response has been handed to the sink
+   * @throws RejectedExecutionException If the executor does not accept the request
+   */
+  public CompletionStage<Void> executeAsync(Message request, Executor executor) {
+    return CompletableFuture.runAsync(() -> executeCommand(request), executor);
+  }
+
+  private void rejectCommand(long retryAfter) {
+    ByteBuffer payload = PAYLOADS.take();
+    try {
+      payload.putInt((int) Math.min(retryAfter, Integer.MAX_VALUE));
+      sendResponse(request, MessageType.BUSY, payload);
+    } finally {
+      PAYLOADS.release(payload);
+    }
+  }
+
+  private void rejectCommand(Message request, String message) {
+    ByteBuffer payload = PAYLOADS.take();
+    try {
+      sendResponse(request, error(payload, message), payload);
+    } finally {
+      PAYLOADS.release(payload);
+    }
+  }
+
+  private void executeCommand(Message request) {
+    ByteBuffer payload = PAYLOADS.take();
+    try {
+      byte responseType;
+      // Execute the command
+      try {
+        responseType = greenhouse.getCommandRegistry().execute(request, greenhouse, this,
+            payload);
+      } catch (MessageFormatException | IllegalArgumentException e) {
+        responseType = error(payload, "ERROR: Invalid command format - " + e.getMessage());
+      } catch (BufferOverflowException e) {
+        responseType = error(payload, "Command execution error: response too large");
+      } catch (Exception e) {
+        responseType = error(payload, "Command execution error: " + e.getMessage());
+      }
+      sendResponse(request, responseType, payload);
+    } finally {
+      PAYLOADS.release(payload);
+    }
+  }
+
+  /**
+   * Encrypt a response and hand it to the sink, followed by the file data the command has set,
+   * if any.
+   */
+  private void sendResponse(Message request, byte responseType, ByteBuffer payload) {
+    FileRegion region = RESPONSE_REGION.get();
+    RESPONSE_REGION.remove();
+    payload.flip();
+    ByteBuffer response = MESSAGES.take();
+    try {
+      codec.encode(responseType, request.getRequestId(), request.getNodeId(), payload,
+          response);
+      response.flip();
+      sink.sendResponse(response, responseType == MessageType.ERROR ? null : region);
+    } catch (MessageFormatException e) {
+      Logger.error("Error encrypting response: " + e.getMessage());
+    } finally {
+      MESSAGES.release(response);
+    }
+  }
+
+  /**
+   * Send a part of a file right after the response to the command being executed. Called by
+   * the command.
+   *
+   * @param region The file data to send after the response
+   */
+  public void setResponseRegion(FileRegion region) {
+    RESPONSE_REGION.set(region);
+  }
+
+  /**
+   * Push the sensor readings and actuator changes of some nodes to the client from now on,
+   * replacing the previous subscription.
+   *
+   * @param nodes       The nodes to subscribe to
+   * @param sensorTypes The types of sensors to push readings from, or an empty set for all
+   */
+  public synchronized void subscribe(List<SensorActuatorNode> nodes, Set<String> sensorTypes) {
+    unsubscribe();
+    for (SensorActuatorNode node : nodes) {
+      Subscription subscription = new Subscription(node, sensorTypes);
+      node.addSensorListener(subscription);
+      node.addActuatorListener(subscription);
+      subscriptions.add(subscription);
+    }
+    Logger.info("Client subscribed to " + nodes.size() + " nodes");
+  }
+
+  /**
+   * Stop pushing updates to the client.
+   */
+  public synchronized void unsubscribe() {
+    for (Subscription subscription : subscriptions) {
+      subscription.node.removeSensorListener(subscription);
+      subscription.node.removeActuatorListener(subscription);
+    }
+    subscriptions.clear();
+  }
+
+  /**
+   * Release everything the session holds on to. Called when the connection is closed.
+   */
+  public void close() {
+    unsubscribe();
+    admission.close();
+    if (greenhouse.getConnectionReaper() != null) {
+      greenhouse.getConnectionReaper().unregister(this);
+    }
+    if (codec != null && codec.getCompressor() != null) {
+      Logger.info("Closing session, " + codec.getCompressor().getStatistics());
+    }
+    Logger.info("Session closed, " + greenhouse.getResponseCache().getStatistics());
+  }
+
+  private void push(byte type, int nodeId, long key, ByteBuffer payload) {
+    payload.flip();
+    ByteBuffer message = MESSAGES.take();
+    try {
+      codec.encode(type, MessageCodec.NO_REQUEST_ID, nodeId, payload, message);
+      message.flip();
+      sink.sendUpdate(message, key);
+    } catch (MessageFormatException e) {
+      Logger.error("Error encrypting update: " + e.getMessage());
+    } finally {
+      MESSAGES.release(message);
+    }
+  }
+
+  private static byte error(ByteBuffer payload, String message) {
+    payload.clear();
+    MessageCodec.putError(payload, message);
+    return MessageType.ERROR;
+  }
+
+  /**
+   * Perform key exchange with the client, see {@link KeyExchange}.
+   *
+   * @param input  The stream on which the public key of the client arrives
+   * @param output The stream on which the public key of the server is sent
+   * @return {@code true} when a shared secret was established, {@code false} on error.
+   */
+  public boolean exchangeKeys(InputStream input, OutputStream output) {
+    boolean success = false;
+    try {
+      KeyExchange keyExchange = new KeyExchange(greenhouse.isCompressionEnabled()
+          ? KeyExchange.FEATURE_COMPRESSION : 0);
+      codec = new MessageCodec(keyExchange.respond(input, output,
+          greenhouse.getSessionTickets()), false);
+      if ((keyExchange.getFeatures() & KeyExchange.FEATURE_COMPRESSION) != 0) {
+        codec.enableCompression(new PayloadCompressor());
+      }
+      Logger.info(String.format("Key exchange done in %.3f ms%s",
+          keyExchange.getDuration() / 1e6, keyExchange.isResumed() ? " (resumed)" : ""));
+      success = true;
+    } catch (GeneralSecurityException | IOException e) {
+      Logger.error("Key exchange failed: " + e.getMessage());
+    }
+    return success;
+  }
+
+  /**
+   * The subscription to one node. Called on the thread which updates the node, so everything
+   * it sends goes through the sink of the connection.
+   */
+  private class Subscription implements SensorListener, ActuatorListener {
+    private final SensorActuatorNode node;
+    private final Set<String> sensorTypes;
+
+    Subscription(SensorActuatorNode node, Set<String> sensorTypes) {
+      this.node = node;
+      this.sensorTypes = sensorTypes;
+    }
+
+    @Override
+    public void sensorsUpdated(List<Sensor> sensors) {
+      ByteBuffer payload = PAYLOADS.take();
+      try {
+        int countPosition = payload.position();
+        payload.putShort((short) 0);
+        int count = 0;
+        for (Sensor sensor : sensors) {
+          if (sensorTypes.isEmpty() || sensorTypes.contains(sensor.getType())) {
+            MessageCodec.putReading(payload, sensor.getReading());
+            count++;
+          }
+        }
+        if (count > 0) {
+          payload.putShort(countPosition, (short) count);
+          push(MessageType.SENSOR_DATA, node.getId(),
+              OutboundQueue.updateKey(node.getId(), -1), payload);
+        }
+      } finally {
+        PAYLOADS.release(payload);
+      }
+    }
+
+    @Override
+    public void actuatorUpdated(int nodeId, Actuator actuator) {
+      ByteBuffer payload = PAYLOADS.take();
+      try {
+        payload.putInt(actuator.getId());
+        payload.put((byte) (actuator.isOn() ? 1 : 0));
+        push(MessageType.ACTUATOR_STATE, nodeId,
+            OutboundQueue.updateKey(nodeId, actuator.getId()), payload);
+      } finally {
+        PAYLOADS.release(payload);
+      }
+    }
+  }
+}
@@ -1,5 +1,7 @@
 package no.ntnu.controlpanel;
 
+import java.util.concurrent.CompletableFuture;
+
 /**
  * A communication channel for disseminating control commands to the sensor nodes
  * (sending commands to the server) and receiving notifications about events.
@@ -12,8 +14,9 @@ public interface CommunicationChannel {
    * @param nodeId     ID of the node to which the actuator is attached
    * @param actuatorId Node-wide unique ID of the actuator
    * @param isOn       When true, actuator must be turned on; off when false.
+   * @return A future which is completed with the response when the change has been applied
    */
-  void sendActuatorChange(int nodeId, int actuatorId, boolean isOn);
+  CompletableFuture<String> sendActuatorChange(int nodeId, int actuatorId, boolean isOn);
 
   /**
    * Open the communication channel.
@@ -0,0 +1,128 @@
+package no.ntnu.controlpanel;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import no.ntnu.tools.Logger;
+
+/**
+ * Closes the control panel connections which have not sent anything for longer than the idle
+ * timeout. A control panel which lost power or network leaves a half-open connection, which the
+ * greenhouse would otherwise keep reading from forever; a live control panel sends a ping
+ * whenever it has been quiet for a while, so it is never closed.
+ *
+ * <p>One reaper thread checks all the connections of the greenhouse, in both server modes, a
+ * few times per timeout. Connections are registered before the key exchange, so a client which
+ * never completes it is closed as well.</p>
+ */
+public class ConnectionReaper {
+  /**
+   * The default idle timeout, in milliseconds.
+   */
+  public static final long DEFAULT_IDLE_TIMEOUT = 60000;
+  // How many times per idle timeout the connections are checked
+  private static final int CHECKS_PER_TIMEOUT = 4;
+
+  private final long idleTimeout;
+  private final Map<ClientSession, Runnable> connections = new ConcurrentHashMap<>();
+  private final AtomicLong reapedCount = new AtomicLong();
+  private ScheduledExecutorService executor;
+
+  /**
+   * Create a reaper.
+   *
+   * @param idleTimeout How long a connection may be idle, in milliseconds, or 0 to never close
+   *                    idle connections
+   */
+  public ConnectionReaper(long idleTimeout) {
+    if (idleTimeout < 0) {
+      throw new IllegalArgumentException("Invalid idle timeout: " + idleTimeout);
+    }
+    this.idleTimeout = idleTimeout;
+  }
+
+  /**
+   * Start checking the registered connections.
+   */
+  public synchronized void start() {
+    if (idleTimeout > 0 && executor == null) {
+      executor = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "connection-reaper");
+        thread.setDaemon(true);
+        return thread;
+      });
+      long period = Math.max(1, idleTimeout / CHECKS_PER_TIMEOUT);
+      executor.scheduleWithFixedDelay(this::reapIdleConnections, period, period,
+          TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Stop checking the connections.
+   */
+  public synchronized void stop() {
+    if (executor != null) {
+      executor.shutdownNow();
+      executor = null;
+    }
+  }
+
+  /**
+   * Close a connection once its session has been idle for too long, replacing the earlier
+   * registration of the same session.
+   *
+   * @param session The session of the connection, which tells when it was last active
+   * @param close   Closes the connection. Called on the reaper thread.
+   */
+  public void register(ClientSession session, Runnable close) {
+    connections.put(session, close);
+  }
+
+  /**
+   * Stop watching a connection, when it is closed.
+   *
+   * @param session The session of the connection
+   */
+  public void unregister(ClientSession session) {
+    connections.remove(session);
+  }
+
+  /**
+   * Get the idle timeout.
+   *
+   * @return How long a connection may be idle, in milliseconds, or 0 when they may be idle
+   *     forever
+   */
+  public long getIdleTimeout() {
+    return idleTimeout;
+  }
+
+  private void reapIdleConnections() {
+    long now = System.nanoTime();
+    for (Map.Entry<ClientSession, Runnable> connection : connections.entrySet()) {
+      long idle = TimeUnit.NANOSECONDS.toMillis(now - connection.getKey().getLastActivity());
+      if (idle > idleTimeout && connections.remove(connection.getKey(), connection.getValue())) {
+        reapedCount.incrementAndGet();
+        Logger.info("Closing a connection which has been idle for " + idle + " ms");
+        try {
+          connection.getValue().run();
+        } catch (RuntimeException e) {
+          Logger.error("Error closing an idle connection: " + e.getMessage());
+        }
+      }
+    }
+  }
+
+  /**
+   * Get a summary of the watched and closed connections, for logging.
+   *
+   * @return A human-readable description of the reaper statistics
+   */
+  public String getStatistics() {
+    return "connection reaper: " + connections.size() + " connections watched, "
+        + reapedCount.get() + " closed after " + idleTimeout + " ms idle";
+  }
+}
@@ -0,0 +1,62 @@
+package no.ntnu.controlpanel;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A part of a file to be written to a connection right after a message, without reading it into
+ * memory first. {@link FileChannel#transferTo(long, long, WritableByteChannel)} lets the
+ * operating system copy the bytes from the file to the socket directly.
+ */
+public class FileRegion {
+  private final FileChannel file;
+  private long position;
+  private long remaining;
+
+  /**
+   * Create a file region.
+   *
+   * @param file     The file, which must stay open until the region has been written
+   * @param position Where the region starts in the file
+   * @param count    The size of the region, in bytes
+   */
+  public FileRegion(FileChannel file, long position, long count) {
+    this.file = file;
+    this.position = position;
+    this.remaining = count;
+  }
+
+  /**
+   * Write as much of the rest of the region as the target accepts. A blocking target accepts
+   * everything.
+   *
+   * @param target The channel to write to
+   * @return {@code true} if the whole region has been written
+   * @throws IOException If the file has become shorter than the region, or writing fails
+   */
+  public boolean transferTo(WritableByteChannel target) throws IOException {
+    while (remaining > 0) {
+      long count = file.transferTo(position, remaining, target);
+      if (count == 0) {
+        if (position >= file.size()) {
+          throw new IOException("The file ended " + remaining + " bytes before the region");
+        }
+        // The target is full
+        return false;
+      }
+      position += count;
+      remaining -= count;
+    }
+    return true;
+  }
+
+  /**
+   * Get the number of bytes left to write.
+   *
+   * @return The remaining size of the region
+   */
+  public long getRemaining() {
+    return remaining;
+  }
+}
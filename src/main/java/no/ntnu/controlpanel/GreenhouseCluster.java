@@ -0,0 +1,288 @@
+package no.ntnu.controlpanel;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.StringJoiner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import no.ntnu.commands.CommandFactory;
+import no.ntnu.exceptions.MessageFormatException;
+import no.ntnu.greenhouse.SensorReading;
+import no.ntnu.tools.Logger;
+
+/**
+ * Queries several greenhouses at once, for a view of a whole site.
+ *
+ * <p>A query is sent on the channel of every greenhouse at the same time, and the answers are
+ * gathered into one {@link Result}. A greenhouse which has not answered within the deadline,
+ * or which can not be reached, is left out of the result and reported as failed, so a query
+ * takes about as long as the slowest greenhouse which answers, and never longer than the
+ * deadline.</p>
+ *
+ * <p>A channel which has lost its connection is reconnected in the background, so one
+ * greenhouse being down does not hold up the queries to the others.</p>
+ */
+public class GreenhouseCluster {
+  /**
+   * The default time to wait for the slowest greenhouse, in milliseconds.
+   */
+  public static final long DEFAULT_DEADLINE = 3000;
+
+  private final List<RealCommunicationChannel> channels;
+  private final ExecutorService connector;
+  // The channels being reconnected, so each is only reconnected once at a time
+  private final Set<RealCommunicationChannel> reconnecting = ConcurrentHashMap.newKeySet();
+  private final CommandFactory commandFactory = new CommandFactory();
+  private volatile long deadline = DEFAULT_DEADLINE;
+
+  /**
+   * Create a cluster of greenhouses. The channels are not opened until {@link #open()} is
+   * called.
+   *
+   * @param channels The channels to the greenhouses, one per greenhouse
+   */
+  public GreenhouseCluster(List<RealCommunicationChannel> channels) {
+    if (channels.isEmpty()) {
+      throw new IllegalArgumentException("A cluster needs at least one greenhouse");
+    }
+    this.channels = List.copyOf(channels);
+    AtomicInteger threadNumber = new AtomicInteger();
+    this.connector = Executors.newCachedThreadPool(task -> {
+      Thread thread = new Thread(task, "greenhouse-connector-" + threadNumber.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * Set how long a query waits for the greenhouses to answer.
+   *
+   * @param deadline The deadline in milliseconds
+   */
+  public void setDeadline(long deadline) {
+    if (deadline <= 0) {
+      throw new IllegalArgumentException("Invalid deadline: " + deadline);
+    }
+    this.deadline = deadline;
+  }
+
+  /**
+   * Get the channels to the greenhouses.
+   *
+   * @return The channels, in the order they were given
+   */
+  public List<RealCommunicationChannel> getChannels() {
+    return channels;
+  }
+
+  /**
+   * Open the channels to all the greenhouses at the same time. The greenhouses which could not
+   * be reached are reconnected when they are queried.
+   *
+   * @return The number of greenhouses connected
+   */
+  public int open() {
+    List<CompletableFuture<Boolean>> opened = new ArrayList<>();
+    for (RealCommunicationChannel channel : channels) {
+      opened.add(CompletableFuture.supplyAsync(channel::open, connector));
+    }
+    int connected = 0;
+    for (CompletableFuture<Boolean> channelOpened : opened) {
+      if (channelOpened.join()) {
+        connected++;
+      }
+    }
+    Logger.info("Connected to " + connected + " of " + channels.size() + " greenhouses");
+    return connected;
+  }
+
+  /**
+   * Close the channels to all the greenhouses.
+   */
+  public void close() {
+    connector.shutdownNow();
+    for (RealCommunicationChannel channel : channels) {
+      channel.close();
+    }
+  }
+
+  /**
+   * Send a command to all the greenhouses.
+   *
+   * @param command The command to send, as typed by the user
+   * @return A future which is completed with the response of every greenhouse which answered.
+   *     It fails with a {@link MessageFormatException} if the command is not valid.
+   */
+  public CompletableFuture<Result<String>> sendCommand(String command) {
+    try {
+      // Checked once here instead of failing on every channel
+      commandFactory.parseCommand(command);
+    } catch (MessageFormatException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+    return gather(channel -> channel.sendCommand(command));
+  }
+
+  /**
+   * Request the current sensor readings of a node from all the greenhouses.
+   *
+   * @param nodeId The ID of the node in each greenhouse
+   * @return A future which is completed with the readings from every greenhouse which answered
+   */
+  public CompletableFuture<Result<List<SensorReading>>> requestSensorData(int nodeId) {
+    return gather(channel -> channel.requestSensorData(nodeId));
+  }
+
+  /**
+   * Send a request to all the greenhouses at the same time, and gather the answers.
+   *
+   * @param request Sends the request on one channel
+   * @param <T>     The type of the answers
+   * @return A future which is completed when every greenhouse has answered, failed or missed
+   *     the deadline. It never fails.
+   */
+  public <T> CompletableFuture<Result<T>> gather(
+      Function<RealCommunicationChannel, CompletableFuture<T>> request) {
+    long start = System.nanoTime();
+    long timeout = deadline;
+    List<CompletableFuture<T>> answers = new ArrayList<>(channels.size());
+    for (RealCommunicationChannel channel : channels) {
+      CompletableFuture<T> answer;
+      if (!channel.isConnected()) {
+        // Sending would wait for the channel while it is being opened
+        answer = CompletableFuture.failedFuture(new IOException("Not connected"));
+        reconnect(channel);
+      } else {
+        try {
+          // A copy, so the deadline does not fail the request the channel itself waits for
+          answer = request.apply(channel).copy().orTimeout(timeout, TimeUnit.MILLISECONDS);
+        } catch (RuntimeException e) {
+          answer = CompletableFuture.failedFuture(e);
+        }
+      }
+      answers.add(answer);
+    }
+    return CompletableFuture.allOf(answers.toArray(new CompletableFuture<?>[0]))
+        .handle((ignored, error) -> {
+          Result<T> result = new Result<>(System.nanoTime() - start);
+          for (int i = 0; i < channels.size(); i++) {
+            collect(result, channels.get(i), answers.get(i));
+          }
+          return result;
+        });
+  }
+
+  private <T> void collect(Result<T> result, RealCommunicationChannel channel,
+                           CompletableFuture<T> answer) {
+    String endpoint = channel.getEndpoint();
+    try {
+      result.results.put(endpoint, answer.join());
+    } catch (CompletionException e) {
+      Throwable cause = e.getCause() != null ? e.getCause() : e;
+      result.failures.put(endpoint, cause);
+      if (cause instanceof IOException && !channel.isConnected()) {
+        reconnect(channel);
+      }
+    }
+  }
+
+  private void reconnect(RealCommunicationChannel channel) {
+    if (reconnecting.add(channel)) {
+      Logger.info("Reconnecting to the greenhouse at " + channel.getEndpoint() + "...");
+      connector.execute(() -> {
+        try {
+          channel.open();
+        } finally {
+          reconnecting.remove(channel);
+        }
+      });
+    }
+  }
+
+  /**
+   * The answers of the greenhouses to one query. A partial result when some of them failed or
+   * missed the deadline.
+   *
+   * @param <T> The type of the answers
+   */
+  public static class Result<T> {
+    private final Map<String, T> results = new LinkedHashMap<>();
+    private final Map<String, Throwable> failures = new LinkedHashMap<>();
+    private final long duration;
+
+    private Result(long duration) {
+      this.duration = duration;
+    }
+
+    /**
+     * Get the answers of the greenhouses which answered.
+     *
+     * @return The answers by endpoint, "host:port", in the order of the channels
+     */
+    public Map<String, T> getResults() {
+      return Collections.unmodifiableMap(results);
+    }
+
+    /**
+     * Get why the other greenhouses did not answer. A greenhouse which missed the deadline
+     * failed with a {@link TimeoutException}.
+     *
+     * @return The failures by endpoint, in the order of the channels
+     */
+    public Map<String, Throwable> getFailures() {
+      return Collections.unmodifiableMap(failures);
+    }
+
+    /**
+     * Check whether some of the greenhouses did not answer.
+     *
+     * @return {@code true} if the result does not have an answer from every greenhouse
+     */
+    public boolean isPartial() {
+      return !failures.isEmpty();
+    }
+
+    /**
+     * Get how long the query took.
+     *
+     * @return The time from sending the query until the last greenhouse had answered or
+     *     missed the deadline, in nanoseconds
+     */
+    public long getDuration() {
+      return duration;
+    }
+
+    /**
+     * Format the result as text, with one line per greenhouse.
+     *
+     * @return A human-readable description of the answers and failures
+     */
+    @Override
+    public String toString() {
+      StringJoiner lines = new StringJoiner("\n");
+      lines.add(String.format("%d of %d greenhouses answered in %.3f ms", results.size(),
+          results.size() + failures.size(), duration / 1e6));
+      for (Map.Entry<String, T> answer : results.entrySet()) {
+        lines.add(answer.getKey() + ": " + answer.getValue());
+      }
+      for (Map.Entry<String, Throwable> failure : failures.entrySet()) {
+        Throwable cause = failure.getValue();
+        lines.add(failure.getKey() + " failed: " + (cause instanceof TimeoutException
+            ? "no answer within the deadline" : cause.getMessage()));
+      }
+      return lines.toString();
+    }
+  }
+}
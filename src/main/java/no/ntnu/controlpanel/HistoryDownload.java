@@ -0,0 +1,146 @@
+package no.ntnu.controlpanel;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import no.ntnu.exceptions.MessageFormatException;
+import no.ntnu.tools.Logger;
+
+/**
+ * The control panel side of a sensor history download, written to a local file chunk by chunk.
+ *
+ * <p>Each chunk is streamed from the response, or from the connection when the greenhouse sends
+ * it in plaintext after the response, to the file through a small buffer, and is kept
+ * only if its digest matches the one the greenhouse sent. The file therefore always ends at the
+ * end of a verified chunk, and a download which was interrupted continues from the size of the
+ * file.</p>
+ */
+public class HistoryDownload {
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final Path path;
+  private final FileChannel file;
+  private final long resumedFrom;
+  private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+  private volatile long offset;
+  private volatile long total = -1;
+
+  /**
+   * Start or continue a download.
+   *
+   * @param path The local file. If it exists, the download continues at its end.
+   * @throws IOException If the file can not be opened
+   */
+  public HistoryDownload(Path path) throws IOException {
+    this.path = path;
+    this.file = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    this.resumedFrom = file.size();
+    this.offset = resumedFrom;
+  }
+
+  /**
+   * Get where the next chunk starts.
+   *
+   * @return The number of bytes downloaded and verified so far
+   */
+  public long getOffset() {
+    return offset;
+  }
+
+  /**
+   * Check whether the whole history has been downloaded, as far as the last chunk told.
+   *
+   * @return {@code true} if there is nothing more to download
+   */
+  public boolean isComplete() {
+    return total >= 0 && offset >= total;
+  }
+
+  /**
+   * Receive one chunk, from a HISTORY_CHUNK message or following it on the connection.
+   *
+   * @param input       The stream holding the chunk, positioned at its start. All the bytes of
+   *                    the chunk are read, even when the chunk is not used.
+   * @param totalSize   The size of the whole history on the greenhouse
+   * @param chunkOffset Where the chunk starts in the history
+   * @param length      The length of the chunk
+   * @param digest      The SHA-256 digest of the chunk
+   * @throws IOException            If reading from the connection or writing to the file fails
+   * @throws MessageFormatException If the chunk is not the next one, or does not match its
+   *                                digest. Nothing is written to the file in that case.
+   */
+  public void receive(InputStream input, long totalSize, long chunkOffset, int length,
+                      byte[] digest) throws IOException, MessageFormatException {
+    if (chunkOffset != offset) {
+      input.skipNBytes(length);
+      throw new MessageFormatException("Expected the history chunk at offset " + offset
+          + ", got " + chunkOffset);
+    }
+    MessageDigest sha256;
+    try {
+      sha256 = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      input.skipNBytes(length);
+      throw new IOException("SHA-256 is not available", e);
+    }
+    long position = offset;
+    boolean verified = false;
+    try {
+      int left = length;
+      while (left > 0) {
+        int count = input.read(buffer.array(), 0, Math.min(left, BUFFER_SIZE));
+        if (count < 0) {
+          throw new EOFException("The connection ended in the middle of a history chunk");
+        }
+        sha256.update(buffer.array(), 0, count);
+        buffer.clear().limit(count);
+        while (buffer.hasRemaining()) {
+          position += file.write(buffer, position);
+        }
+        left -= count;
+      }
+      if (!MessageDigest.isEqual(sha256.digest(), digest)) {
+        throw new MessageFormatException("The history chunk at offset " + offset
+            + " does not match its digest");
+      }
+      verified = true;
+    } finally {
+      if (!verified) {
+        // Keep the file at the end of the last verified chunk
+        file.truncate(offset);
+      }
+    }
+    offset = position;
+    total = totalSize;
+  }
+
+  /**
+   * Describe the download, for the user.
+   *
+   * @return What has been downloaded, and where to
+   */
+  public String getSummary() {
+    String summary = "Downloaded " + offset + " bytes of sensor history to " + path;
+    if (resumedFrom > 0) {
+      summary += ", continuing from " + resumedFrom + " bytes";
+    }
+    return summary;
+  }
+
+  /**
+   * Close the local file. The download can be continued later with a new instance.
+   */
+  public void close() {
+    try {
+      file.close();
+    } catch (IOException e) {
+      Logger.error("Error closing " + path + ": " + e.getMessage());
+    }
+  }
+}
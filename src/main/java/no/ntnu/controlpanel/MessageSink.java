@@ -0,0 +1,32 @@
+package no.ntnu.controlpanel;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The way a {@link ClientSession} sends its messages: the responses to the requests, and the
+ * messages the client did not ask for, such as the sensor readings of a subscription. Each
+ * server mode provides its own sink for the connection.
+ */
+public interface MessageSink {
+  /**
+   * Send one update to the client. Can be called from any thread, and does not wait for the
+   * message to be written.
+   *
+   * @param message The encoded message, ready for reading. The caller reuses the buffer once
+   *                the method returns, so it must be written out or copied before that.
+   * @param key     What the update is about, see {@link OutboundQueue#updateKey(int, int)}.
+   *                A newer update with the same key may replace this one before it is sent.
+   */
+  void sendUpdate(ByteBuffer message, long key);
+
+  /**
+   * Send the response to a request, on the thread which handled the request or, for a slow
+   * request, on the thread which executed it. Can be called from any thread, and does not wait
+   * for the message to be written.
+   *
+   * @param message The encoded message, ready for reading. The caller reuses the buffer once
+   *                the method returns, so it must be written out or copied before that.
+   * @param region  The file data to write right after the message, or {@code null}
+   */
+  void sendResponse(ByteBuffer message, FileRegion region);
+}
@@ -0,0 +1,242 @@
+package no.ntnu.controlpanel;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import no.ntnu.tools.Logger;
+import no.ntnu.tools.MessageCodec;
+
+/**
+ * One control panel connection served by the {@link NioGreenhouseServer}. All the methods except
+ * {@link #sendUpdate(ByteBuffer, long)} and {@link #sendResponse(ByteBuffer, FileRegion)} are
+ * called from the event loop thread which owns the connection, so no locking is needed.
+ *
+ * <p>Messages are sliced out of the read buffer as soon as they are complete. The read buffer
+ * starts small and only grows when a large message requires it. Responses and updates wait in an
+ * {@link OutboundQueue} until the channel accepts them, and the connection stops reading
+ * requests while the client is falling behind.</p>
+ */
+public class NioConnection implements MessageSink {
+  private static final int INITIAL_BUFFER_SIZE = 4096;
+  // The largest number of messages handed to the channel in one gathering write
+  private static final int MAX_GATHER = 16;
+
+  private final SocketChannel channel;
+  private final ClientSession session;
+  private final Executor eventLoop;
+  private final OutboundQueue outboundQueue;
+  // Messages taken from the queue which are not completely written yet
+  private final ByteBuffer[] writing = new ByteBuffer[MAX_GATHER];
+  private int writingCount;
+  // File data to write after the last message in writing, which is not completely written yet
+  private FileRegion writingRegion;
+  private final AtomicBoolean flushScheduled = new AtomicBoolean();
+  private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+  private SelectionKey key;
+  private boolean closeAfterWrite;
+
+  /**
+   * Create a new connection.
+   *
+   * @param channel       The channel of the connection, already in non-blocking mode
+   * @param session       The session, with the key exchange already done
+   * @param outboundQueue The queue of the messages waiting to be written
+   * @param eventLoop     Runs tasks on the event loop thread which owns the connection
+   */
+  public NioConnection(SocketChannel channel, ClientSession session,
+                       OutboundQueue outboundQueue, Executor eventLoop) {
+    this.channel = channel;
+    this.session = session;
+    this.outboundQueue = outboundQueue;
+    this.eventLoop = eventLoop;
+    session.setSink(this);
+  }
+
+  /**
+   * Get the channel of this connection.
+   *
+   * @return The socket channel
+   */
+  public SocketChannel getChannel() {
+    return channel;
+  }
+
+  /**
+   * Set the selection key of the connection, once it is registered with a selector.
+   *
+   * @param key The selection key
+   */
+  public void setKey(SelectionKey key) {
+    this.key = key;
+  }
+
+  /**
+   * Read everything available on the channel and handle all the complete messages.
+   *
+   * @throws IOException When reading from the channel fails
+   */
+  public void onReadable() throws IOException {
+    int bytesRead = channel.read(readBuffer);
+    if (bytesRead < 0) {
+      Logger.info("Client connection closed");
+      close();
+      return;
+    }
+    readBuffer.flip();
+    int size = MessageCodec.getMessageSize(readBuffer);
+    while (size > 0 && size <= readBuffer.remaining() && !closeAfterWrite) {
+      ByteBuffer message = readBuffer.slice(readBuffer.position(), size);
+      readBuffer.position(readBuffer.position() + size);
+      session.handleMessage(message);
+      if (session.isShutdownRequested()) {
+        closeAfterWrite = true;
+      }
+      size = MessageCodec.getMessageSize(readBuffer);
+    }
+    if (size > readBuffer.capacity()) {
+      // The next message does not fit in the buffer, make room for it
+      ByteBuffer larger = ByteBuffer.allocate(size);
+      larger.put(readBuffer);
+      readBuffer = larger;
+    } else {
+      readBuffer.compact();
+    }
+    onWritable();
+  }
+
+  /**
+   * Send an update which is not a response to a request. The update is queued, and the event
+   * loop is asked to write it unless a write is already on its way.
+   *
+   * @param message The encoded message, ready for reading
+   * @param key     What the update is about
+   */
+  @Override
+  public void sendUpdate(ByteBuffer message, long key) {
+    if (outboundQueue.addUpdate(message, key)) {
+      scheduleFlush();
+    }
+  }
+
+  /**
+   * Send the response to a request. The response is queued, and the event loop is asked to
+   * write it unless a write is already on its way. Responses to requests handled on the event
+   * loop are written at the end of the read anyway, so the extra write finds little to do.
+   *
+   * @param message The encoded message, ready for reading
+   * @param region  The file data to write right after the message, or {@code null}
+   */
+  @Override
+  public void sendResponse(ByteBuffer message, FileRegion region) {
+    outboundQueue.addResponse(message, region);
+    scheduleFlush();
+  }
+
+  private void scheduleFlush() {
+    if (flushScheduled.compareAndSet(false, true)) {
+      eventLoop.execute(() -> {
+        flushScheduled.set(false);
+        if (channel.isOpen()) {
+          try {
+            onWritable();
+          } catch (IOException e) {
+            Logger.error("Failed to write to client: " + e.getMessage());
+            close();
+          }
+        }
+      });
+    }
+  }
+
+  /**
+   * Get the queue of the messages waiting to be written to the client.
+   *
+   * @return The outbound queue, with its depth and counters
+   */
+  public OutboundQueue getOutboundQueue() {
+    return outboundQueue;
+  }
+
+  /**
+   * Write as much of the queued messages as the channel accepts, and choose what to wait for
+   * next: more room on the channel while messages are left, and new requests unless the
+   * client has fallen behind.
+   *
+   * @throws IOException When writing to the channel fails
+   */
+  public void onWritable() throws IOException {
+    boolean drained = write();
+    int ops = drained ? 0 : SelectionKey.OP_WRITE;
+    if (!closeAfterWrite && !outboundQueue.isFallingBehind()) {
+      ops |= SelectionKey.OP_READ;
+    }
+    key.interestOps(ops);
+    if (drained && closeAfterWrite) {
+      close();
+    }
+  }
+
+  /**
+   * Write queued messages, several at a time, until the queue is empty or the channel is full.
+   * A message followed by file data is the last one in its gathering write, and the file data
+   * is transferred once the message has been written.
+   *
+   * @return {@code true} if everything was written
+   */
+  private boolean write() throws IOException {
+    while (true) {
+      if (writingCount == 0 && writingRegion != null) {
+        if (!writingRegion.transferTo(channel)) {
+          return false;
+        }
+        writingRegion = null;
+      }
+      while (writingRegion == null && writingCount < writing.length) {
+        ByteBuffer message = outboundQueue.poll();
+        if (message == null) {
+          break;
+        }
+        writing[writingCount++] = message;
+        writingRegion = outboundQueue.takeRegion();
+      }
+      if (writingCount == 0) {
+        return true;
+      }
+      channel.write(writing, 0, writingCount);
+      int written = 0;
+      while (written < writingCount && !writing[written].hasRemaining()) {
+        written++;
+      }
+      System.arraycopy(writing, written, writing, 0, writingCount - written);
+      Arrays.fill(writing, writingCount - written, writingCount, null);
+      writingCount -= written;
+      if (writingCount > 0) {
+        return false;
+      }
+    }
+  }
+
+  /**
+   * Close the connection.
+   */
+  public void close() {
+    session.close();
+    outboundQueue.close();
+    try {
+      if (channel.isOpen()) {
+        Logger.info("Closing socket for " + channel.getRemoteAddress() + ", "
+            + outboundQueue.getStatistics());
+        if (key != null) {
+          key.cancel();
+        }
+        channel.close();
+      }
+    } catch (IOException e) {
+      Logger.error("Error closing socket: " + e.getMessage());
+    }
+  }
+}
@@ -0,0 +1,300 @@
+package no.ntnu.controlpanel;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import no.ntnu.greenhouse.GreenhouseSimulator;
+import no.ntnu.tools.Logger;
+
+/**
+ * A non-blocking greenhouse server. A small, fixed number of event loop threads multiplex all
+ * the control panel connections with a {@link Selector} each, instead of using one
+ * {@link ClientHandler} thread per connection.
+ *
+ * <p>The key exchange is blocking, so it is done on a separate handshake thread before the
+ * connection is handed over to one of the event loops. A client which does not finish the key
+ * exchange within {@link #HANDSHAKE_TIMEOUT} milliseconds is closed, so silent clients can only
+ * hold a handshake thread for that long. After that, every message is handled by a
+ * {@link ClientSession} on the event loop thread owning the connection.</p>
+ */
+public class NioGreenhouseServer {
+  /**
+   * How long a client may take to finish the key exchange, in milliseconds.
+   */
+  public static final int HANDSHAKE_TIMEOUT = 5000;
+  private static final int HANDSHAKE_THREADS = 16;
+
+  private final GreenhouseSimulator greenhouse;
+  private final int port;
+  private final EventLoop[] eventLoops;
+  private final ExecutorService handshakeExecutor;
+  private ServerSocketChannel serverChannel;
+  private int nextEventLoop;
+
+  /**
+   * Create a non-blocking server.
+   *
+   * @param greenhouse     The greenhouse simulator the commands are executed on
+   * @param port           The TCP port to listen on
+   * @param eventLoopCount The number of event loop threads
+   */
+  public NioGreenhouseServer(GreenhouseSimulator greenhouse, int port, int eventLoopCount) {
+    if (eventLoopCount <= 0) {
+      throw new IllegalArgumentException("There must be at least one event loop");
+    }
+    this.greenhouse = greenhouse;
+    this.port = port;
+    this.eventLoops = new EventLoop[eventLoopCount];
+    AtomicInteger threadNumber = new AtomicInteger();
+    this.handshakeExecutor = Executors.newFixedThreadPool(HANDSHAKE_THREADS, task -> {
+      Thread thread = new Thread(task, "nio-handshake-" + threadNumber.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * Open the listening channel and start the event loops.
+   *
+   * @return {@code true} on success, {@code false} on error.
+   */
+  public boolean start() {
+    boolean success = false;
+    try {
+      for (int i = 0; i < eventLoops.length; i++) {
+        eventLoops[i] = new EventLoop(i);
+      }
+      this.serverChannel = ServerSocketChannel.open();
+      this.serverChannel.bind(new InetSocketAddress(port));
+      this.serverChannel.configureBlocking(false);
+      // The first event loop accepts new connections in addition to serving its own
+      eventLoops[0].register(serverChannel, SelectionKey.OP_ACCEPT, null);
+      for (EventLoop eventLoop : eventLoops) {
+        eventLoop.start();
+      }
+      Logger.info("Non-blocking server listening on port " + port + " with "
+          + eventLoops.length + " event loops");
+      success = true;
+    } catch (IOException e) {
+      Logger.error("Could not open a listening channel on port " + port
+          + ", reason: " + e.getMessage());
+    }
+    return success;
+  }
+
+  /**
+   * Stop the server and close all the connections.
+   */
+  public void stop() {
+    handshakeExecutor.shutdownNow();
+    for (EventLoop eventLoop : eventLoops) {
+      if (eventLoop != null) {
+        eventLoop.shutdown();
+      }
+    }
+    try {
+      if (serverChannel != null) {
+        serverChannel.close();
+      }
+    } catch (IOException e) {
+      Logger.error("Error while closing the listening channel: " + e.getMessage());
+    }
+  }
+
+  private void acceptNextClient() {
+    try {
+      SocketChannel channel = serverChannel.accept();
+      while (channel != null) {
+        AdmissionControl.Client admission =
+            greenhouse.getAdmissionControl().admit(channel.getRemoteAddress());
+        if (admission != null) {
+          Logger.info("Accepted new client connection: " + channel.getRemoteAddress());
+          SocketChannel acceptedChannel = channel;
+          handshakeExecutor.execute(() -> performHandshake(acceptedChannel, admission));
+        } else {
+          Logger.error("Rejected client connection " + channel.getRemoteAddress() + ", "
+              + greenhouse.getAdmissionControl().getStatistics());
+          closeChannel(channel);
+        }
+        channel = serverChannel.accept();
+      }
+    } catch (IOException e) {
+      Logger.error("Could not accept the next client: " + e.getMessage());
+    }
+  }
+
+  private void closeChannel(SocketChannel channel) {
+    try {
+      channel.close();
+    } catch (IOException e) {
+      Logger.error("Error closing client channel: " + e.getMessage());
+    }
+  }
+
+  private void performHandshake(SocketChannel channel, AdmissionControl.Client admission) {
+    ClientSession session = new ClientSession(greenhouse, admission);
+    ConnectionReaper reaper = greenhouse.getConnectionReaper();
+    reaper.register(session, () -> closeChannel(channel));
+    try {
+      // The streams of the socket adaptor, unlike those of Channels, honour the read timeout
+      channel.socket().setSoTimeout(HANDSHAKE_TIMEOUT);
+      if (session.exchangeKeys(channel.socket().getInputStream(),
+          channel.socket().getOutputStream())) {
+        channel.socket().setSoTimeout(0);
+        channel.configureBlocking(false);
+        EventLoop eventLoop = nextEventLoop();
+        NioConnection connection = new NioConnection(channel, session,
+            greenhouse.createOutboundQueue(), eventLoop);
+        // Only the event loop thread may close the connection once it is registered
+        reaper.register(session, () -> eventLoop.execute(connection::close));
+        eventLoop.register(channel, SelectionKey.OP_READ, connection);
+      } else {
+        session.close();
+        channel.close();
+      }
+    } catch (IOException e) {
+      Logger.error("Failed to establish the connection: " + e.getMessage());
+      session.close();
+      try {
+        channel.close();
+      } catch (IOException ex) {
+        Logger.error("Error closing socket: " + ex.getMessage());
+      }
+    }
+  }
+
+  private synchronized EventLoop nextEventLoop() {
+    EventLoop eventLoop = eventLoops[nextEventLoop];
+    nextEventLoop = (nextEventLoop + 1) % eventLoops.length;
+    return eventLoop;
+  }
+
+  /**
+   * One selector and the thread which runs it. Other threads hand work to the event loop with
+   * {@link #execute(Runnable)}, as only the event loop thread may touch its connections.
+   */
+  private class EventLoop extends Thread implements Executor {
+    private final Selector selector;
+    private final Queue<Runnable> pendingTasks = new ConcurrentLinkedQueue<>();
+    private volatile boolean running = true;
+
+    EventLoop(int index) throws IOException {
+      super("nio-event-loop-" + index);
+      this.selector = Selector.open();
+    }
+
+    /**
+     * Register a channel with this event loop. Can be called from any thread.
+     */
+    void register(SelectableChannel channel, int ops, NioConnection connection) {
+      execute(() -> {
+        try {
+          SelectionKey key = channel.register(selector, ops, connection);
+          if (connection != null) {
+            connection.setKey(key);
+          }
+        } catch (IOException e) {
+          Logger.error("Could not register the channel: " + e.getMessage());
+        }
+      });
+    }
+
+    /**
+     * Run a task on the event loop thread. Can be called from any thread.
+     */
+    @Override
+    public void execute(Runnable task) {
+      pendingTasks.add(task);
+      selector.wakeup();
+    }
+
+    void shutdown() {
+      running = false;
+      selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (running) {
+          selector.select();
+          Runnable task = pendingTasks.poll();
+          while (task != null) {
+            runTask(task);
+            task = pendingTasks.poll();
+          }
+          for (SelectionKey key : selector.selectedKeys()) {
+            handleKey(key);
+          }
+          selector.selectedKeys().clear();
+        }
+      } catch (IOException | ClosedSelectorException e) {
+        Logger.error("Event loop stopped: " + e.getMessage());
+      } finally {
+        closeAll();
+      }
+    }
+
+    private void runTask(Runnable task) {
+      try {
+        task.run();
+      } catch (RuntimeException e) {
+        Logger.error("Error in an event loop task: " + e);
+      }
+    }
+
+    private void handleKey(SelectionKey key) {
+      if (!key.isValid()) {
+        return;
+      }
+      if (key.isAcceptable()) {
+        try {
+          acceptNextClient();
+        } catch (RuntimeException e) {
+          Logger.error("Error while accepting a client: " + e);
+        }
+        return;
+      }
+      NioConnection connection = (NioConnection) key.attachment();
+      try {
+        if (key.isReadable()) {
+          connection.onReadable();
+        }
+        if (key.isValid() && key.isWritable()) {
+          connection.onWritable();
+        }
+      } catch (IOException e) {
+        Logger.error("IO Error on connection: " + e.getMessage());
+        connection.close();
+      } catch (RuntimeException e) {
+        // Only this connection is closed, the others on the event loop go on
+        Logger.error("Error on connection, closing it: " + e);
+        connection.close();
+      }
+    }
+
+    private void closeAll() {
+      for (SelectionKey key : selector.keys()) {
+        if (key.attachment() instanceof NioConnection connection) {
+          connection.close();
+        }
+      }
+      try {
+        selector.close();
+      } catch (IOException e) {
+        Logger.error("Error while closing the selector: " + e.getMessage());
+      }
+    }
+  }
+}
@@ -0,0 +1,319 @@
+package no.ntnu.controlpanel;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The messages waiting to be written to one control panel connection.
+ *
+ * <p>Responses are always queued; the connection stops reading new requests while more than the
+ * high watermark of bytes is queued, and continues once the queue has drained below the low
+ * watermark. Updates are never allowed to block the thread producing them. A queued update is
+ * replaced by a newer update about the same thing, and while the queue is above the high
+ * watermark, new sensor readings are dropped, since the next readings replace them anyway.
+ * Actuator states are never dropped: a state change would otherwise be lost for good, so they
+ * are queued past the watermark. There is at most one of them queued per actuator.</p>
+ *
+ * <p>The newer update goes to the tail of the queue rather than into the place of the one it
+ * replaces. Every message is encrypted with the next counter of the connection before it is
+ * queued, so the messages are written in the order of their counters, and the control panel
+ * never sees a response fall further behind an update than its replay window allows.</p>
+ *
+ * <p>A response can be followed by a {@link FileRegion}, which the writer transfers from the
+ * file right after the message. File regions do not count towards the watermarks, as they take
+ * up no memory while they wait.</p>
+ *
+ * <p>All the methods are thread-safe.</p>
+ */
+public class OutboundQueue {
+  /**
+   * The default number of queued bytes above which the connection is falling behind.
+   */
+  public static final int DEFAULT_HIGH_WATERMARK = 256 * 1024;
+  /**
+   * The default number of queued bytes below which the connection has caught up again.
+   */
+  public static final int DEFAULT_LOW_WATERMARK = 64 * 1024;
+
+  private final int highWatermark;
+  private final int lowWatermark;
+  private final Map<Long, Entry> queuedUpdates = new HashMap<>();
+  // The queued messages, oldest first, linked through the entries so that a replaced update
+  // is taken out of the middle at once
+  private Entry head;
+  private Entry tail;
+  private int depth;
+  private int queuedBytes;
+  private boolean fallingBehind;
+  private boolean closed;
+  private long coalescedCount;
+  private long droppedCount;
+  private FileRegion takenRegion;
+
+  /**
+   * Create a queue with the default watermarks.
+   */
+  public OutboundQueue() {
+    this(DEFAULT_HIGH_WATERMARK, DEFAULT_LOW_WATERMARK);
+  }
+
+  /**
+   * Create a queue.
+   *
+   * @param highWatermark The number of queued bytes above which no more requests are read and
+   *                      new updates are dropped
+   * @param lowWatermark  The number of queued bytes below which requests are read again
+   */
+  public OutboundQueue(int highWatermark, int lowWatermark) {
+    if (lowWatermark < 0 || highWatermark < lowWatermark) {
+      throw new IllegalArgumentException("Invalid watermarks: " + highWatermark + "/"
+          + lowWatermark);
+    }
+    this.highWatermark = highWatermark;
+    this.lowWatermark = lowWatermark;
+  }
+
+  /**
+   * Get the key of an update, identifying what the update is about.
+   *
+   * @param nodeId The node the update is about
+   * @param itemId The actuator the update is about, or -1 for the sensor readings of the node
+   * @return The key
+   */
+  public static long updateKey(int nodeId, int itemId) {
+    return ((long) nodeId << 32) | (itemId & 0xFFFFFFFFL);
+  }
+
+  /**
+   * Check whether an update is about the sensor readings of a node.
+   *
+   * @param key The key of the update, see {@link #updateKey(int, int)}
+   * @return {@code true} for sensor readings, {@code false} for the state of an actuator
+   */
+  public static boolean isSensorKey(long key) {
+    return (int) key == -1;
+  }
+
+  /**
+   * Queue a response. The message is copied.
+   *
+   * @param message The encoded message, ready for reading
+   */
+  public synchronized void addResponse(ByteBuffer message) {
+    addResponse(message, null);
+  }
+
+  /**
+   * Queue a response followed by a part of a file. The message is copied.
+   *
+   * @param message The encoded message, ready for reading
+   * @param region  The file data to write right after the message, or {@code null}
+   */
+  public synchronized void addResponse(ByteBuffer message, FileRegion region) {
+    if (!closed) {
+      Entry entry = new Entry(copy(message), null);
+      entry.region = region;
+      add(entry);
+    }
+  }
+
+  /**
+   * Queue an update, replacing a queued update with the same key. The update is added at the
+   * tail of the queue either way. The message is copied.
+   *
+   * @param message The encoded message, ready for reading
+   * @param key     What the update is about, see {@link #updateKey(int, int)}
+   * @return {@code true} if the update was queued, {@code false} if it was dropped because it
+   *     holds sensor readings and the connection is falling behind
+   */
+  public synchronized boolean addUpdate(ByteBuffer message, long key) {
+    if (closed) {
+      return false;
+    }
+    Entry queued = queuedUpdates.remove(key);
+    if (queued != null) {
+      unlink(queued);
+      queuedBytes -= queued.message.remaining();
+      coalescedCount++;
+    } else if (fallingBehind && isSensorKey(key)) {
+      droppedCount++;
+      return false;
+    }
+    Entry entry = new Entry(copy(message), key);
+    queuedUpdates.put(key, entry);
+    add(entry);
+    return true;
+  }
+
+  private void add(Entry entry) {
+    if (head == null) {
+      head = entry;
+    } else {
+      tail.next = entry;
+      entry.previous = tail;
+    }
+    tail = entry;
+    depth++;
+    queuedBytes += entry.message.remaining();
+    if (queuedBytes > highWatermark) {
+      fallingBehind = true;
+    }
+  }
+
+  private void unlink(Entry entry) {
+    if (entry.previous == null) {
+      head = entry.next;
+    } else {
+      entry.previous.next = entry.next;
+    }
+    if (entry.next == null) {
+      tail = entry.previous;
+    } else {
+      entry.next.previous = entry.previous;
+    }
+    entry.previous = null;
+    entry.next = null;
+    depth--;
+  }
+
+  /**
+   * Take the next message to write, without waiting.
+   *
+   * @return The message, ready for reading, or {@code null} if the queue is empty
+   */
+  public synchronized ByteBuffer poll() {
+    Entry entry = head;
+    if (entry == null) {
+      return null;
+    }
+    unlink(entry);
+    takenRegion = entry.region;
+    if (entry.key != null) {
+      queuedUpdates.remove(entry.key);
+    }
+    queuedBytes -= entry.message.remaining();
+    if (fallingBehind && queuedBytes <= lowWatermark) {
+      fallingBehind = false;
+      notifyAll();
+    }
+    return entry.message;
+  }
+
+  /**
+   * Take the file data which has to be written right after the message taken last.
+   *
+   * @return The file region, or {@code null} if the message is not followed by any
+   */
+  public synchronized FileRegion takeRegion() {
+    FileRegion region = takenRegion;
+    takenRegion = null;
+    return region;
+  }
+
+  /**
+   * Wait until the connection has caught up, if it has fallen behind.
+   *
+   * @throws InterruptedException If the thread is interrupted while waiting
+   */
+  public synchronized void awaitCaughtUp() throws InterruptedException {
+    while (fallingBehind && !closed) {
+      wait();
+    }
+  }
+
+  /**
+   * Check whether more than the high watermark is queued, and the queue has not drained below
+   * the low watermark since.
+   *
+   * @return {@code true} if the connection is falling behind
+   */
+  public synchronized boolean isFallingBehind() {
+    return fallingBehind;
+  }
+
+  /**
+   * Check whether there is nothing to write.
+   *
+   * @return {@code true} if the queue is empty
+   */
+  public synchronized boolean isEmpty() {
+    return head == null;
+  }
+
+  /**
+   * Stop accepting new messages. The messages already queued can still be taken.
+   */
+  public synchronized void close() {
+    closed = true;
+    notifyAll();
+  }
+
+  /**
+   * Get the number of queued messages.
+   *
+   * @return The queue depth
+   */
+  public synchronized int getDepth() {
+    return depth;
+  }
+
+  /**
+   * Get the number of queued bytes.
+   *
+   * @return The size of all the queued messages
+   */
+  public synchronized int getQueuedBytes() {
+    return queuedBytes;
+  }
+
+  /**
+   * Get the number of updates which replaced an older update in the queue.
+   *
+   * @return The coalesced count
+   */
+  public synchronized long getCoalescedCount() {
+    return coalescedCount;
+  }
+
+  /**
+   * Get the number of sensor updates dropped because the connection was falling behind.
+   *
+   * @return The dropped count
+   */
+  public synchronized long getDroppedCount() {
+    return droppedCount;
+  }
+
+  /**
+   * Get a summary of the queue, for logging.
+   *
+   * @return The depth, size and counters of the queue
+   */
+  public synchronized String getStatistics() {
+    return "outbound queue: " + depth + " messages (" + queuedBytes + " bytes), "
+        + coalescedCount + " updates coalesced, " + droppedCount + " updates dropped";
+  }
+
+  private static ByteBuffer copy(ByteBuffer message) {
+    ByteBuffer copy = ByteBuffer.allocate(message.remaining());
+    copy.put(message).flip();
+    return copy;
+  }
+
+  /**
+   * One queued message.
+   */
+  private static class Entry {
+    private final ByteBuffer message;
+    private final Long key;
+    private FileRegion region;
+    private Entry previous;
+    private Entry next;
+
+    Entry(ByteBuffer message, Long key) {
+      this.message = message;
+      this.key = key;
+    }
+  }
+}
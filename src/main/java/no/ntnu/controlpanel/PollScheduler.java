@@ -0,0 +1,363 @@
+package no.ntnu.controlpanel;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.StringJoiner;
+import java.util.TreeMap;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import no.ntnu.greenhouse.SensorReading;
+import no.ntnu.listeners.controlpanel.GreenhouseEventListener;
+import no.ntnu.tools.Logger;
+
+/**
+ * Polls the sensor data of every node of the greenhouse, each at its own interval, chosen from
+ * how fast its readings change.
+ *
+ * <p>The scheduler keeps a smoothed rate of change for every sensor. A node is polled often
+ * enough that no reading moves more than a small part of its range between two polls, and at
+ * least a few times before a reading which is trending toward one of its limits can cross it.
+ * A node with a reading outside its limits is polled at the shortest interval. When the
+ * readings become stable, the interval grows step by step up to the longest interval; when they
+ * start changing, it shrinks at once.</p>
+ *
+ * <p>The nodes are listed, page by page, when the scheduler starts. Readings pushed by the
+ * greenhouse count as polls, so a subscribed node is only polled when the pushes stop. One
+ * thread schedules all the nodes, and all the state is only touched on that thread. A lost
+ * connection is reopened on a thread of its own, so the scheduler is never held up by the
+ * connection attempts.</p>
+ */
+public class PollScheduler implements GreenhouseEventListener {
+  /**
+   * The default shortest poll interval, in milliseconds.
+   */
+  public static final long DEFAULT_MIN_INTERVAL = 1000;
+  /**
+   * The default longest poll interval, in milliseconds.
+   */
+  public static final long DEFAULT_MAX_INTERVAL = 60000;
+  // The largest part of the range of a reading it may move between two polls
+  private static final double CHANGE_PER_POLL = 0.05;
+  // How many polls there should be before a trending reading reaches its limit
+  private static final double POLLS_BEFORE_LIMIT = 4;
+  // How much the interval may grow after one poll
+  private static final double BACKOFF = 1.5;
+  // The weight of a new rate of change in the smoothed rate
+  private static final double RATE_WEIGHT = 0.5;
+  private static final double MILLIS_PER_SECOND = 1000.0;
+
+  private final RealCommunicationChannel channel;
+  private final ScheduledExecutorService executor;
+  private final ExecutorService connector;
+  // Set while the channel is being reopened, so it is only reopened once at a time
+  private final AtomicBoolean reconnecting = new AtomicBoolean();
+  private final Map<String, double[]> limits = new HashMap<>();
+  private final Map<Integer, NodeState> nodes = new TreeMap<>();
+  private long minInterval = DEFAULT_MIN_INTERVAL;
+  private long maxInterval = DEFAULT_MAX_INTERVAL;
+  private volatile boolean running;
+
+  /**
+   * Create a scheduler. The nodes are not polled until {@link #start()} is called.
+   *
+   * @param channel The channel to poll the greenhouse on
+   */
+  public PollScheduler(RealCommunicationChannel channel) {
+    this.channel = channel;
+    this.executor = Executors.newSingleThreadScheduledExecutor(task -> {
+      Thread thread = new Thread(task, "poll-scheduler");
+      thread.setDaemon(true);
+      return thread;
+    });
+    this.connector = Executors.newSingleThreadExecutor(task -> {
+      Thread thread = new Thread(task, "poll-reconnector");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * Set the bounds of the poll intervals.
+   *
+   * @param minInterval The shortest interval, in milliseconds
+   * @param maxInterval The longest interval, in milliseconds
+   */
+  public void setIntervals(long minInterval, long maxInterval) {
+    if (minInterval <= 0 || maxInterval < minInterval) {
+      throw new IllegalArgumentException("Invalid poll intervals: " + minInterval + "/"
+          + maxInterval);
+    }
+    executor.execute(() -> {
+      this.minInterval = minInterval;
+      this.maxInterval = maxInterval;
+    });
+  }
+
+  /**
+   * Set the limits the readings of one type of sensor should stay within. Readings without
+   * limits are only polled according to how fast they change.
+   *
+   * @param sensorType The type of the sensors, for example "temperature"
+   * @param low        The lowest acceptable value
+   * @param high       The highest acceptable value
+   */
+  public void setLimits(String sensorType, double low, double high) {
+    if (high <= low) {
+      throw new IllegalArgumentException("Invalid limits for " + sensorType + ": " + low
+          + "/" + high);
+    }
+    executor.execute(() -> limits.put(sensorType, new double[] {low, high}));
+  }
+
+  /**
+   * Start polling. The nodes already known are polled at once, and the greenhouse is asked for
+   * its nodes.
+   */
+  public void start() {
+    running = true;
+    executor.execute(() -> {
+      for (NodeState node : nodes.values()) {
+        schedule(node, 0);
+      }
+    });
+    channel.refreshNodes().exceptionally(error -> {
+      Logger.error("Could not list the nodes to poll: " + error.getMessage());
+      return null;
+    });
+  }
+
+  /**
+   * Stop polling. The intervals are kept for the next start.
+   */
+  public void stop() {
+    running = false;
+    executor.execute(() -> {
+      for (NodeState node : nodes.values()) {
+        cancel(node);
+      }
+    });
+  }
+
+  /**
+   * Check whether the nodes are being polled.
+   *
+   * @return {@code true} if polling has been started and not stopped
+   */
+  public boolean isRunning() {
+    return running;
+  }
+
+  /**
+   * Get the current poll interval of every node.
+   *
+   * @return The poll interval in milliseconds by node ID
+   */
+  public Map<Integer, Long> getIntervals() {
+    try {
+      return executor.submit(() -> {
+        Map<Integer, Long> intervals = new TreeMap<>();
+        for (NodeState node : nodes.values()) {
+          intervals.put(node.nodeId, node.interval);
+        }
+        return intervals;
+      }).get();
+    } catch (Exception e) {
+      throw new IllegalStateException("Could not get the poll intervals", e);
+    }
+  }
+
+  @Override
+  public void onNodeAdded(SensorActuatorNodeInfo nodeInfo) {
+    executor.execute(() -> {
+      if (!nodes.containsKey(nodeInfo.getId())) {
+        NodeState node = new NodeState(nodeInfo.getId(), minInterval);
+        nodes.put(node.nodeId, node);
+        if (running) {
+          schedule(node, 0);
+        }
+      }
+    });
+  }
+
+  @Override
+  public void onNodeRemoved(int nodeId) {
+    executor.execute(() -> {
+      NodeState node = nodes.remove(nodeId);
+      if (node != null) {
+        cancel(node);
+      }
+    });
+  }
+
+  @Override
+  public void onSensorData(int nodeId, List<SensorReading> sensors) {
+    // Pushed readings make a poll unnecessary
+    executor.execute(() -> {
+      NodeState node = nodes.get(nodeId);
+      if (node != null) {
+        update(node, sensors);
+        if (running && !node.polling) {
+          schedule(node, node.interval);
+        }
+      }
+    });
+  }
+
+  @Override
+  public void onActuatorStateChanged(int nodeId, int actuatorId, boolean isOn) {
+    // Actuator changes do not affect the poll intervals
+  }
+
+  private void schedule(NodeState node, long delay) {
+    cancel(node);
+    node.nextPoll = executor.schedule(() -> poll(node), delay, TimeUnit.MILLISECONDS);
+  }
+
+  private void cancel(NodeState node) {
+    if (node.nextPoll != null) {
+      node.nextPoll.cancel(false);
+      node.nextPoll = null;
+    }
+  }
+
+  private void poll(NodeState node) {
+    node.nextPoll = null;
+    if (!running || nodes.get(node.nodeId) != node) {
+      return;
+    }
+    if (reconnecting.get()) {
+      // Sending would wait for the reconnection, try again at the next interval
+      schedule(node, node.interval);
+      return;
+    }
+    node.polling = true;
+    channel.requestSensorData(node.nodeId).whenComplete((readings, error) ->
+        executor.execute(() -> polled(node, readings, error)));
+  }
+
+  private void polled(NodeState node, List<SensorReading> readings, Throwable error) {
+    node.polling = false;
+    if (error != null) {
+      Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+      Logger.error("Could not poll node " + node.nodeId + ": " + cause.getMessage());
+      if (cause instanceof IOException && !channel.isConnected()) {
+        reconnect();
+      }
+    } else {
+      update(node, readings);
+      Logger.info("Polled: " + ResponseFormatter.formatSensorData(node.nodeId, readings)
+          + " (next poll in " + node.interval + " ms)");
+    }
+    if (running && nodes.get(node.nodeId) == node) {
+      schedule(node, node.interval);
+    }
+  }
+
+  private void reconnect() {
+    // Only one node reconnects; the others find the channel open again
+    if (reconnecting.compareAndSet(false, true)) {
+      Logger.info("Trying to reconnect...");
+      connector.execute(() -> {
+        try {
+          channel.open();
+        } finally {
+          reconnecting.set(false);
+        }
+      });
+    }
+  }
+
+  /**
+   * Take new readings of a node into account, and choose its next poll interval.
+   */
+  private void update(NodeState node, List<SensorReading> readings) {
+    long now = System.nanoTime();
+    if (node.values == null || node.values.length != readings.size()) {
+      node.values = new double[readings.size()];
+      node.rates = new double[readings.size()];
+      node.sampled = false;
+    }
+    double seconds = (now - node.sampleTime) / 1e9;
+    double target = maxInterval;
+    for (int i = 0; i < readings.size(); i++) {
+      SensorReading reading = readings.get(i);
+      double value = reading.getValue();
+      if (node.sampled && seconds > 0) {
+        double rate = (value - node.values[i]) / seconds;
+        node.rates[i] = RATE_WEIGHT * rate + (1 - RATE_WEIGHT) * node.rates[i];
+      }
+      node.values[i] = value;
+      target = Math.min(target, getTargetInterval(reading.getType(), value, node.rates[i]));
+    }
+    node.sampleTime = now;
+    node.sampled = true;
+    long interval = target < node.interval ? (long) target
+        : (long) Math.min(target, node.interval * BACKOFF);
+    node.interval = Math.max(minInterval, Math.min(maxInterval, interval));
+  }
+
+  /**
+   * Get how long one reading may go without being polled, in milliseconds.
+   *
+   * @param type  The type of the sensor
+   * @param value The current value
+   * @param rate  The smoothed rate of change, per second
+   */
+  private double getTargetInterval(String type, double value, double rate) {
+    double[] limit = limits.get(type);
+    if (limit != null && (value < limit[0] || value > limit[1])) {
+      return minInterval;
+    }
+    double target = maxInterval;
+    double range = limit != null ? limit[1] - limit[0] : Math.max(Math.abs(value), 1);
+    if (rate != 0) {
+      target = Math.min(target, CHANGE_PER_POLL * range / Math.abs(rate) * MILLIS_PER_SECOND);
+    }
+    if (limit != null && rate != 0) {
+      double distance = rate > 0 ? limit[1] - value : value - limit[0];
+      double timeToLimit = distance / Math.abs(rate) * MILLIS_PER_SECOND;
+      target = Math.min(target, timeToLimit / POLLS_BEFORE_LIMIT);
+    }
+    return target;
+  }
+
+  /**
+   * Get a summary of the poll intervals, for logging.
+   *
+   * @return A human-readable description of the interval of every node
+   */
+  public String getStatistics() {
+    StringJoiner intervals = new StringJoiner(", ", "poll intervals: ", "");
+    intervals.setEmptyValue("no nodes to poll");
+    for (Map.Entry<Integer, Long> interval : getIntervals().entrySet()) {
+      intervals.add("node " + interval.getKey() + " every " + interval.getValue() + " ms");
+    }
+    return intervals.toString();
+  }
+
+  /**
+   * The polling state of one node.
+   */
+  private static class NodeState {
+    private final int nodeId;
+    private long interval;
+    private double[] values;
+    private double[] rates;
+    private long sampleTime;
+    private boolean sampled;
+    private boolean polling;
+    private ScheduledFuture<?> nextPoll;
+
+    NodeState(int nodeId, long interval) {
+      this.nodeId = nodeId;
+      this.interval = interval;
+    }
+  }
+}
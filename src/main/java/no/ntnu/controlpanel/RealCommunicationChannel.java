@@ -1,54 +1,254 @@
 package no.ntnu.controlpanel;
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
 import java.net.Socket;
-import java.security.InvalidKeyException;
-import java.security.KeyPair;
-import java.security.KeyPairGenerator;
-import java.security.NoSuchAlgorithmException;
-import java.security.PrivateKey;
-import java.security.PublicKey;
-import javax.crypto.BadPaddingException;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.KeyAgreement;
-import javax.crypto.NoSuchPaddingException;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.SecretKeySpec;
+import no.ntnu.commands.Command;
+import no.ntnu.commands.CommandFactory;
+import no.ntnu.commands.JoinTelemetry;
+import no.ntnu.commands.ListSensors;
+import no.ntnu.commands.Ping;
+import no.ntnu.commands.ReadHistory;
+import no.ntnu.commands.RequestSensorData;
+import no.ntnu.commands.ResendTelemetry;
+import no.ntnu.commands.SendActuatorCommand;
+import no.ntnu.exceptions.MessageFormatException;
+import no.ntnu.exceptions.ServerBusyException;
 import no.ntnu.greenhouse.GreenhouseSimulator;
-import no.ntnu.tools.ChecksumHandler;
-import no.ntnu.tools.EncryptionDecryption;
+import no.ntnu.greenhouse.SensorHistory;
+import no.ntnu.greenhouse.SensorReading;
+import no.ntnu.listeners.controlpanel.GreenhouseEventListener;
+import no.ntnu.tools.KeyExchange;
 import no.ntnu.tools.Logger;
+import no.ntnu.tools.Message;
+import no.ntnu.tools.MessageCodec;
+import no.ntnu.tools.MessageType;
+import no.ntnu.tools.PayloadCompressor;
+import no.ntnu.tools.SessionTicket;
 
 /**
  * A communication channel for disseminating control commands to the sensor nodes
  * (sending commands to the server) and receiving notifications about events.
+ *
+ * <p>Every request gets a unique request ID, and the greenhouse repeats it in the response.
+ * A single reader thread reads all the responses and completes the future of the matching
+ * request, so any number of requests can be in flight on the connection at the same time.</p>
+ *
+ * <p>Messages without a request ID are updates pushed by the greenhouse after a subscribe
+ * command. They are passed on to the registered {@link GreenhouseEventListener}s, like the
+ * updates received from the multicast telemetry after {@link #joinTelemetry()}.</p>
+ *
+ * <p>When nothing has been sent for a while, the channel pings the greenhouse, so the
+ * greenhouse does not close the connection as idle. The pongs give a smoothed round trip time,
+ * from which the response timeout is chosen. A ping without a pong means the connection is
+ * dead, and it is closed.</p>
  */
-public class RealCommunicationChannel implements CommunicationChannel {
-  private Socket socket;
-  private BufferedReader reader;
-  private ObjectOutputStream objectWriter;
-  private static final String HOST = "localhost";
-  private Thread communicationThread;
-  private boolean running;
-  private SecretKey sharedSecret;
-  private final ChecksumHandler checksumHandler = new ChecksumHandler();
+public class RealCommunicationChannel implements CommunicationChannel,
+    TelemetryReceiver.Handler {
+  // How long to wait for the response to a request, in milliseconds, before the round trip
+  // time has been measured and at most after that
+  private static final long RESPONSE_TIMEOUT = 10000;
+  // The shortest response timeout, however short the round trip time
+  private static final long MIN_RESPONSE_TIMEOUT = 2000;
+  /**
+   * The default time without sending anything after which the greenhouse is pinged, in
+   * milliseconds.
+   */
+  public static final long DEFAULT_KEEPALIVE_INTERVAL = 15000;
+  private static final int HISTORY_DIGEST_SIZE = 32;
+  private static final int TELEMETRY_KEY_SIZE = 16;
+  private volatile Socket socket;
+  private InputStream socketReader;
+  private volatile OutputStream socketWriter;
+  private static final String DEFAULT_HOST = "localhost";
+  private final String host;
+  private final int port;
+  private MessageCodec codec;
+  private final CommandFactory commandFactory = new CommandFactory();
+  private final ByteBuffer requestPayload = ByteBuffer.allocate(MessageCodec.MAX_PAYLOAD_SIZE);
+  private final ByteBuffer requestMessage = ByteBuffer.allocate(MessageCodec.MAX_MESSAGE_SIZE);
+  private final Map<Integer, HistoryDownload> historyDownloads = new ConcurrentHashMap<>();
+  private final Map<Integer, CompletableFuture<List<SensorReading>>> sensorDataRequests =
+      new ConcurrentHashMap<>();
+  private final Map<Integer, CompletableFuture<Message>> forwardedRequests =
+      new ConcurrentHashMap<>();
+  // The nodes seen in the last node list, to tell the listeners which were added or removed
+  private final Set<Integer> knownNodes = ConcurrentHashMap.newKeySet();
+  // The topology version of the last complete node list, 0 when none has been listed
+  private volatile int topologyVersion;
+  private final Map<Integer, CompletableFuture<String>> pendingRequests =
+      new ConcurrentHashMap<>();
+  private final AtomicInteger nextRequestId = new AtomicInteger();
+  private Thread readerThread;
+  private final List<GreenhouseEventListener> listeners = new CopyOnWriteArrayList<>();
+  // The last subscribe command, sent again when the connection is reopened
+  private volatile Command subscription;
+  private final SensorDeltaDecoder sensorDeltaDecoder = new SensorDeltaDecoder();
+  private volatile boolean deltaSensorData = true;
+  private volatile boolean plaintextHistory;
+  private SessionTicket sessionTicket;
+  private volatile boolean compression = true;
+  // Whether to join the telemetry group again when the connection is reopened
+  private volatile boolean telemetryJoined;
+  private volatile TelemetryReceiver telemetryReceiver;
+  private final RttEstimator rttEstimator = new RttEstimator(RESPONSE_TIMEOUT,
+      MIN_RESPONSE_TIMEOUT, RESPONSE_TIMEOUT);
+  private volatile long keepaliveInterval = DEFAULT_KEEPALIVE_INTERVAL;
+  private volatile long lastSent = System.nanoTime();
+  private ScheduledExecutorService keepaliveExecutor;
+  private final PollScheduler pollScheduler = new PollScheduler(this);
 
   /**
-   * Create a new real communication channel.
+   * Create a new real communication channel to the greenhouse on this host.
    */
   public RealCommunicationChannel() {
+    this(DEFAULT_HOST, GreenhouseSimulator.TCP_PORT);
+  }
+
+  /**
+   * Create a new real communication channel to a greenhouse.
+   *
+   * @param host The host name or address of the greenhouse
+   * @param port The TCP port of the greenhouse
+   */
+  public RealCommunicationChannel(String host, int port) {
+    this.host = host;
+    this.port = port;
+    listeners.add(pollScheduler);
+  }
+
+  /**
+   * Get the greenhouse this channel connects to.
+   *
+   * @return The host and port of the greenhouse, as "host:port"
+   */
+  public String getEndpoint() {
+    return host + ":" + port;
+  }
+
+  /**
+   * Add a listener for the updates pushed by the greenhouse.
+   *
+   * @param listener The listener which will receive the updates
+   */
+  public void addListener(GreenhouseEventListener listener) {
+    listeners.add(listener);
+  }
+
+  /**
+   * Choose how sensor data is requested. In delta mode, which is the default, the greenhouse
+   * only sends the readings which have changed since the previous request for the same node.
+   *
+   * @param deltaSensorData {@code true} to request deltas, {@code false} to always request all
+   *                        the readings
+   */
+  public void setDeltaSensorData(boolean deltaSensorData) {
+    this.deltaSensorData = deltaSensorData;
+  }
+
+  /**
+   * Choose how the sensor history is downloaded. By default each chunk is encrypted, inside the
+   * response. In plaintext mode the greenhouse sends larger chunks straight from its history
+   * file, without copying or encrypting them; their digest is still checked, but anyone on the
+   * network can read the history.
+   *
+   * @param plaintextHistory {@code true} to download the history unencrypted
+   */
+  public void setPlaintextHistory(boolean plaintextHistory) {
+    this.plaintextHistory = plaintextHistory;
+  }
+
+  /**
+   * Set whether to offer payload compression to the greenhouse. Takes effect from the next
+   * time the channel is opened.
+   *
+   * @param compression {@code true} to let the greenhouse compress large payloads
+   */
+  public void setCompression(boolean compression) {
+    this.compression = compression;
+  }
+
+  /**
+   * Set how long the channel may be quiet before it pings the greenhouse. Must be shorter than
+   * the idle timeout of the greenhouse. Takes effect from the next time the channel is opened.
+   *
+   * @param keepaliveInterval The interval in milliseconds, or 0 to never ping
+   */
+  public void setKeepaliveInterval(long keepaliveInterval) {
+    if (keepaliveInterval < 0) {
+      throw new IllegalArgumentException("Invalid keepalive interval: " + keepaliveInterval);
+    }
+    this.keepaliveInterval = keepaliveInterval;
+  }
+
+  /**
+   * Get the scheduler which polls the sensor data of the nodes while the heartbeat is on, to
+   * set its bounds and limits or see the intervals it has chosen.
+   *
+   * @return The poll scheduler
+   */
+  public PollScheduler getPollScheduler() {
+    return pollScheduler;
+  }
+
+  /**
+   * Check whether the channel is connected to the greenhouse. Does not wait while the channel
+   * is being opened.
+   *
+   * @return {@code true} if requests can be sent, {@code false} if the connection is closed
+   */
+  public boolean isConnected() {
+    Socket current = socket;
+    return socketWriter != null && current != null && !current.isClosed();
+  }
+
+  /**
+   * Get the smoothed round trip time of the connection, measured with pings.
+   *
+   * @return The estimate, with the response timeout chosen from it
+   */
+  public RttEstimator getRttEstimator() {
+    return rttEstimator;
   }
 
   @Override
-  public void sendActuatorChange(int nodeId, int actuatorId, boolean isOn) {
+  public CompletableFuture<String> sendActuatorChange(int nodeId, int actuatorId, boolean isOn) {
     // Send the actuator change to the server
     String state = isOn ? "on" : "off";
     Logger.info("Sending command to greenhouse: turn " + state + " actuator"
         + "[" + actuatorId + "] on node " + nodeId);
+    byte action = isOn ? SendActuatorCommand.ACTION_ON : SendActuatorCommand.ACTION_OFF;
+    return send(new SendActuatorCommand(nodeId, actuatorId, action));
   }
 
   /**
@@ -60,7 +260,13 @@ public class RealCommunicationChannel implements CommunicationChannel {
    * @return {@code true} if the connection was established, {@code false} otherwise.
    */
   @Override
-  public boolean open() {
+  public synchronized boolean open() {
+    closeSocket();
+    failPendingRequests(new IOException("The connection was reset"));
+    // The greenhouse may have been restarted with other nodes
+    topologyVersion = 0;
+    // and keeps no delta state for a new connection
+    sensorDeltaDecoder.clear();
     int attempt = 1; // Current connection attempt
     int maxAttempts = 5; // Maximum number of connection attempts
     int delayBetweenAttempts = 5000; // Delay between connection attempts in milliseconds
@@ -68,17 +274,25 @@ public class RealCommunicationChannel implements CommunicationChannel {
     // Try to establish a connection
     while ((attempt <= maxAttempts) && !success) {
       try {
-        this.socket = new Socket(HOST, GreenhouseSimulator.TCP_PORT);
-        this.objectWriter = new ObjectOutputStream(this.socket.getOutputStream());
-        this.objectWriter.flush();
-        this.reader = new BufferedReader(new InputStreamReader(this.socket.getInputStream()));
+        this.socket = new Socket(host, port);
         // Perform key exchange
         exchangeKeys();
+        this.socketReader = new BufferedInputStream(this.socket.getInputStream());
+        this.socketWriter = this.socket.getOutputStream();
+        startReader();
         // If we reach this point, the connection is successfully established
         Logger.success("Connection established!");
         success = true;
+        if (this.subscription != null) {
+          send(this.subscription);
+        }
+        if (this.telemetryJoined) {
+          send(new JoinTelemetry());
+        }
+        startKeepalive();
       } catch (IOException e) {
         Logger.error("Connection attempt " + attempt + " failed: " + e.getMessage());
+        closeSocket();
         // Wait before next attempt
         try {
           Thread.sleep(delayBetweenAttempts);
@@ -102,61 +316,85 @@ public class RealCommunicationChannel implements CommunicationChannel {
   public void close() {
     try {
       // Send a shutdown signal if needed
-      if (objectWriter != null) {
-        sendCommand("SHUTDOWN");
+      if (socketWriter != null) {
+        sendMessage(MessageType.SHUTDOWN, MessageCodec.NO_REQUEST_ID, 0, null);
       }
-      // Close the socket
-      if (socket != null && !socket.isClosed()) {
-        socket.close();
-      }
-    } catch (IOException e) {
-      Logger.error("Error closing socket: " + e.getMessage());
+    } catch (IOException | MessageFormatException e) {
+      Logger.error("Error sending shutdown: " + e.getMessage());
+    }
+    stopKeepalive();
+    Logger.info("Closing the channel, " + rttEstimator.getStatistics());
+    closeSocket();
+    failPendingRequests(new IOException("The communication channel is closed"));
+    closeTelemetry();
+  }
+
+  private synchronized void startKeepalive() {
+    if (keepaliveExecutor != null) {
+      keepaliveExecutor.shutdownNow();
+      keepaliveExecutor = null;
+    }
+    if (keepaliveInterval > 0) {
+      keepaliveExecutor = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "keepalive");
+        thread.setDaemon(true);
+        return thread;
+      });
+      long period = Math.max(1, keepaliveInterval / 2);
+      keepaliveExecutor.scheduleWithFixedDelay(this::sendKeepalive, period, period,
+          TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private synchronized void stopKeepalive() {
+    if (keepaliveExecutor != null) {
+      keepaliveExecutor.shutdownNow();
+      keepaliveExecutor = null;
     }
   }
 
   /**
-   * Start continuous communication with the server.
-   * This method will periodically send requests for sensor data to the server.
+   * Ping the greenhouse if nothing has been sent for the keepalive interval. If the pong does
+   * not arrive in time, the connection is closed, which fails all the requests waiting on it.
    */
-  public void startHeartbeat() {
-    this.running = true;
-    this.communicationThread = new Thread(() -> {
-      while (this.running) {
+  private void sendKeepalive() {
+    long quiet = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastSent);
+    Socket pinged = this.socket;
+    if (quiet < keepaliveInterval || pinged == null || pinged.isClosed()) {
+      return;
+    }
+    send(new Ping(System.nanoTime())).exceptionally(error -> {
+      if (error instanceof TimeoutException && !pinged.isClosed()) {
+        Logger.error("No pong from the greenhouse, closing the connection");
         try {
-          sendHeartbeatRequest();
+          pinged.close();
         } catch (IOException e) {
-          handleHeartbeatConnectionError(e);
-        } catch (InterruptedException e) {
-          this.running = false;
-        } catch (NoSuchPaddingException | IllegalBlockSizeException | NoSuchAlgorithmException
-                 | BadPaddingException | InvalidKeyException e) {
-          Logger.error("Error while decrypting: " + e.getMessage());
+          Logger.error("Error closing socket: " + e.getMessage());
         }
       }
+      return null;
     });
-    communicationThread.setDaemon(true);
-    communicationThread.start();
   }
 
-  private void sendHeartbeatRequest()
-      throws IOException, InterruptedException, NoSuchPaddingException, IllegalBlockSizeException,
-      NoSuchAlgorithmException, BadPaddingException, InvalidKeyException {
-    // Periodically send requests for sensor data
-    for (int nodeId : new int[] {1, 2, 3}) {
-      sendCommand("0x01 " + nodeId);
-      String response = receiveResponse();
-      Logger.info("Heartbeat response: " + response + "\n");
+  private void closeSocket() {
+    if (codec != null && codec.getCompressor() != null) {
+      Logger.info("Closing connection, " + codec.getCompressor().getStatistics());
+    }
+    try {
+      if (socket != null && !socket.isClosed()) {
+        socket.close();
+      }
+    } catch (IOException e) {
+      Logger.error("Error closing socket: " + e.getMessage());
     }
-    Thread.sleep(60000); // 1 minute between cycles
   }
 
-  private void handleHeartbeatConnectionError(IOException e) {
-    Logger.error("Error in heartbeat: " + e.getMessage());
-    Logger.info("Trying to reconnect...");
-    if (!open()) {
-      Logger.error("Reconnection failed, stopping heartbeat");
-      this.running = false;
-    }
+  /**
+   * Start polling the sensor data of all the nodes, each as often as its readings change, see
+   * {@link PollScheduler}.
+   */
+  public void startHeartbeat() {
+    pollScheduler.start();
   }
 
   /**
@@ -167,8 +405,8 @@ public class RealCommunicationChannel implements CommunicationChannel {
    */
   public boolean toggleHeartbeat() {
     boolean heartbeat = false;
-    if (this.running) {
-      stopHeartbeat();
+    if (pollScheduler.isRunning()) {
+      pollScheduler.stop();
     } else {
       startHeartbeat();
       heartbeat = true;
@@ -176,91 +414,565 @@ public class RealCommunicationChannel implements CommunicationChannel {
     return heartbeat;
   }
 
-  private void stopHeartbeat() {
-    this.running = false;
-    if (this.communicationThread != null) {
-      this.communicationThread.interrupt();
-    }
-  }
-
   /**
    * Send a command to the server.
    *
-   * @param command The command to send.
+   * @param command The command to send, as typed by the user.
+   * @return A future which is completed with the response from the server. It fails with a
+   *     {@link MessageFormatException} if the command is not valid, a
+   *     {@link ServerBusyException} if the greenhouse turned it away, an {@link IOException} if
+   *     the connection fails, or a {@link java.util.concurrent.TimeoutException} if there is no
+   *     response in time.
    */
-  public void sendCommand(String command) {
+  public CompletableFuture<String> sendCommand(String command) {
+    CompletableFuture<String> response;
     try {
-      if (this.objectWriter == null) {
-        Logger.error("Object writer is null, cannot send command");
-        return;
-      }
-      // Encrypt command and calculate checksum
-      String encryptedCommand = EncryptionDecryption.encrypt(command, this.sharedSecret);
-      String checksum = this.checksumHandler.calculateChecksum(encryptedCommand);
-      // Send encrypted command and checksum
-      this.objectWriter.writeObject(encryptedCommand + ":" + checksum);
-      this.objectWriter.flush();
+      response = send(this.commandFactory.parseCommand(command));
       // Log the sent command
       Logger.info("Sent command: " + command);
+    } catch (MessageFormatException e) {
+      response = CompletableFuture.failedFuture(e);
+    }
+    return response;
+  }
+
+  /**
+   * Request the current sensor readings of a node.
+   *
+   * @param nodeId The ID of the node
+   * @return A future which is completed with all the readings of the node, or fails like
+   *     {@link #sendCommand(String)}, or with an {@link IOException} holding the error message
+   *     of the greenhouse
+   */
+  public CompletableFuture<List<SensorReading>> requestSensorData(int nodeId) {
+    CompletableFuture<List<SensorReading>> readings = new CompletableFuture<>();
+    send(new RequestSensorData(nodeId), id -> sensorDataRequests.put(id, readings))
+        .whenComplete((response, error) -> {
+          if (error != null) {
+            readings.completeExceptionally(error);
+          } else {
+            // The greenhouse answered with an error message instead of readings
+            readings.completeExceptionally(new IOException(response));
+          }
+        });
+    return readings;
+  }
+
+  /**
+   * Send a command and get the response as it came from the greenhouse, to pass it on to
+   * another control panel. Only for commands whose response is a single message, not for
+   * history downloads or telemetry.
+   *
+   * @param command The command
+   * @return A future which is completed with a copy of the response message, or fails like
+   *     {@link #sendCommand(String)}
+   */
+  public CompletableFuture<Message> forward(Command command) {
+    CompletableFuture<Message> forwarded = new CompletableFuture<>();
+    send(command, id -> forwardedRequests.put(id, forwarded))
+        .whenComplete((response, error) -> {
+          if (error != null) {
+            forwarded.completeExceptionally(error);
+          }
+        });
+    return forwarded;
+  }
+
+  /**
+   * Find the nodes of the greenhouse, one page at a time, and tell the listeners which nodes
+   * were added or removed. When the nodes have not changed since they were last listed, the
+   * greenhouse only says so.
+   *
+   * @return A future which is completed when the nodes are known, or fails like
+   *     {@link #sendCommand(String)}
+   */
+  public CompletableFuture<Void> refreshNodes() {
+    return listNodes(topologyVersion, 0, new ArrayList<>());
+  }
+
+  private CompletableFuture<Void> listNodes(int version, int cursor, List<Integer> nodeIds) {
+    return forward(new ListSensors(version, cursor, ListSensors.MAX_PAGE_SIZE))
+        .thenCompose(response -> {
+          if (response.getType() == MessageType.TOPOLOGY_UNCHANGED) {
+            return CompletableFuture.completedFuture(null);
+          }
+          if (response.getType() != MessageType.NODE_PAGE) {
+            return CompletableFuture.failedFuture(
+                new IOException(ResponseFormatter.format(response)));
+          }
+          ByteBuffer payload = response.getPayload();
+          int pageVersion = payload.getInt();
+          int nextCursor = payload.getInt();
+          if (cursor != 0 && pageVersion != version) {
+            // Nodes were added or removed between the pages, so the pages do not fit together
+            return listNodes(0, 0, new ArrayList<>());
+          }
+          nodeIds.addAll(ResponseFormatter.readNodeIds(payload));
+          if (nextCursor != 0) {
+            return listNodes(pageVersion, nextCursor, nodeIds);
+          }
+          updateKnownNodes(nodeIds);
+          topologyVersion = pageVersion;
+          return CompletableFuture.completedFuture(null);
+        });
+  }
+
+  /**
+   * Download the sensor history recorded by the greenhouse to a file, one chunk at a time. If
+   * the file exists, the download continues at its end, so an interrupted download can be
+   * completed by calling this method again with the same file.
+   *
+   * @param path The local file
+   * @return A future which is completed with a summary of the download, or fails if a chunk
+   *     could not be downloaded. The chunks downloaded before that are kept.
+   */
+  public CompletableFuture<String> downloadHistory(Path path) {
+    HistoryDownload download;
+    try {
+      download = new HistoryDownload(path);
     } catch (IOException e) {
-      Logger.error("Error sending command: " + e.getMessage());
-    } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException
-             | IllegalBlockSizeException | BadPaddingException e) {
-      Logger.error("Error encrypting command: " + e.getMessage());
+      return CompletableFuture.failedFuture(e);
     }
+    return downloadHistoryChunks(download)
+        .whenComplete((result, error) -> download.close());
+  }
+
+  private CompletableFuture<String> downloadHistoryChunks(HistoryDownload download) {
+    return send(readHistory(download.getOffset()), id -> historyDownloads.put(id, download))
+        .exceptionallyCompose(error -> retryWhenBusy(error, download))
+        .thenCompose(response -> download.isComplete()
+            ? CompletableFuture.completedFuture(download.getSummary())
+            : downloadHistoryChunks(download));
   }
 
   /**
-   * Receive a response from the server.
+   * Ask for the same chunk again when the greenhouse was too busy to send it, once the time
+   * it asked for has passed.
+   */
+  private CompletionStage<String> retryWhenBusy(Throwable error, HistoryDownload download) {
+    Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+    if (!(cause instanceof ServerBusyException busy)) {
+      return CompletableFuture.failedFuture(cause);
+    }
+    return CompletableFuture.supplyAsync(() -> download.getOffset(),
+            CompletableFuture.delayedExecutor(busy.getRetryAfter(), TimeUnit.MILLISECONDS))
+        .thenCompose(offset -> send(readHistory(offset),
+            id -> historyDownloads.put(id, download)))
+        .exceptionallyCompose(retryError -> retryWhenBusy(retryError, download));
+  }
+
+  private ReadHistory readHistory(long offset) {
+    return new ReadHistory(offset, SensorHistory.CHUNK_SIZE,
+        plaintextHistory ? ReadHistory.MODE_PLAINTEXT : ReadHistory.MODE_SEALED);
+  }
+
+  /**
+   * Receive the sensor readings and actuator changes of all the nodes from the multicast
+   * telemetry of the greenhouse, instead of having them pushed on this connection. Telemetry
+   * which is lost is sent again on this connection, as long as the greenhouse still has it.
    *
-   * @return The response from the server.
-   */
-  public String receiveResponse() throws IOException, NoSuchPaddingException,
-      IllegalBlockSizeException, NoSuchAlgorithmException, BadPaddingException,
-      InvalidKeyException {
-    // Read encrypted response
-    String encryptedResponse = this.reader.readLine();
-    // If the response is null, return null
-    if (encryptedResponse == null) {
-      return null;
+   * @return A future which is completed when the telemetry group has been joined. It fails if
+   *     the greenhouse does not multicast, or the group can not be joined from this host; a
+   *     subscription on the connection can be used instead then.
+   */
+  public CompletableFuture<String> joinTelemetry() {
+    return send(new JoinTelemetry()).thenApply(response -> {
+      if (this.telemetryReceiver == null) {
+        // The greenhouse answered with an error message instead of a group
+        this.telemetryJoined = false;
+        throw new CompletionException(new IOException(response));
+      }
+      return response;
+    });
+  }
+
+  @Override
+  public void onUpdate(Message update) {
+    handleUpdate(update);
+  }
+
+  @Override
+  public void onGap(long first, int count) {
+    send(new ResendTelemetry(first, count))
+        .exceptionally(error -> {
+          Logger.error("Could not get the lost telemetry: " + error.getMessage());
+          return null;
+        });
+  }
+
+  private CompletableFuture<String> send(Command command) {
+    return send(command, null);
+  }
+
+  /**
+   * Send a command as a new request.
+   *
+   * @param command  The command
+   * @param register Called with the request ID before the request is sent, to register what
+   *                 else waits for the response, or {@code null}
+   * @return A future which is completed with the response as text
+   */
+  private CompletableFuture<String> send(Command command, IntConsumer register) {
+    if (this.deltaSensorData && command.getMessageType() == MessageType.REQUEST_SENSOR_DATA) {
+      int nodeId = command.getNodeId();
+      command = new RequestSensorData(nodeId, this.sensorDeltaDecoder.getRequestMode(nodeId));
+    }
+    if (command.getMessageType() == MessageType.SUBSCRIBE) {
+      this.subscription = command;
+    } else if (command.getMessageType() == MessageType.UNSUBSCRIBE) {
+      this.subscription = null;
+    } else if (command.getMessageType() == MessageType.JOIN_TELEMETRY) {
+      this.telemetryJoined = true;
+    }
+    int requestId = nextRequestId.incrementAndGet();
+    if (requestId == MessageCodec.NO_REQUEST_ID) {
+      requestId = nextRequestId.incrementAndGet();
+    }
+    int id = requestId;
+    CompletableFuture<String> response = new CompletableFuture<>();
+    pendingRequests.put(id, response);
+    if (register != null) {
+      register.accept(id);
+    }
+    response.orTimeout(rttEstimator.getTimeout(), TimeUnit.MILLISECONDS)
+        .whenComplete((result, error) -> {
+          pendingRequests.remove(id);
+          historyDownloads.remove(id);
+          sensorDataRequests.remove(id);
+          forwardedRequests.remove(id);
+        });
+    try {
+      sendMessage(command.getMessageType(), id, command.getNodeId(), command);
+    } catch (IOException | MessageFormatException e) {
+      response.completeExceptionally(e);
+    }
+    return response;
+  }
+
+  private synchronized void sendMessage(byte type, int requestId, int nodeId, Command command)
+      throws IOException, MessageFormatException {
+    if (this.socketWriter == null) {
+      throw new IOException("Not connected, cannot send command");
+    }
+    // Encrypt the arguments and frame them as one message
+    this.requestPayload.clear();
+    if (command != null) {
+      try {
+        command.writeArguments(this.requestPayload);
+      } catch (BufferOverflowException e) {
+        throw new MessageFormatException("The arguments do not fit in one message");
+      }
+    }
+    this.requestPayload.flip();
+    this.requestMessage.clear();
+    this.codec.encode(type, requestId, nodeId, this.requestPayload, this.requestMessage);
+    this.requestMessage.flip();
+    this.socketWriter.write(this.requestMessage.array(), 0, this.requestMessage.limit());
+    this.socketWriter.flush();
+    this.lastSent = System.nanoTime();
+  }
+
+  /**
+   * Start the thread which reads all the messages from the server and hands each response to
+   * the request waiting for it.
+   */
+  private void startReader() {
+    InputStream input = this.socketReader;
+    MessageCodec connectionCodec = this.codec;
+    this.readerThread = new Thread(() -> {
+      ByteBuffer buffer = ByteBuffer.allocate(MessageCodec.MAX_MESSAGE_SIZE);
+      Message message = new Message();
+      IOException failure = new EOFException("The greenhouse closed the connection");
+      try {
+        while (MessageCodec.readMessage(input, buffer)) {
+          try {
+            connectionCodec.decode(buffer, message);
+            if (message.getType() == MessageType.HISTORY_CHUNK) {
+              receiveHistoryChunk(message, input);
+            } else if (message.getType() == MessageType.TELEMETRY_GROUP) {
+              receiveTelemetryGroup(message);
+            } else {
+              dispatch(message);
+            }
+          } catch (MessageFormatException e) {
+            Logger.error("Invalid response from sensor node: " + e.getMessage());
+          }
+        }
+      } catch (IOException e) {
+        failure = e;
+      }
+      connectionLost(failure);
+    }, "response-reader");
+    this.readerThread.setDaemon(true);
+    this.readerThread.start();
+  }
+
+  /**
+   * Stop sending on a connection which the greenhouse has closed, so new requests fail at once
+   * instead of timing out, and fail the requests waiting for a response.
+   */
+  private synchronized void connectionLost(IOException failure) {
+    // Only if this is still the current connection
+    if (Thread.currentThread() == this.readerThread) {
+      this.socketWriter = null;
+      failPendingRequests(failure);
+      sensorDeltaDecoder.clear();
+    }
+  }
+
+  private void dispatch(Message message) {
+    if (message.getRequestId() == MessageCodec.NO_REQUEST_ID) {
+      handleUpdate(message);
+      return;
+    }
+    TelemetryReceiver receiver = this.telemetryReceiver;
+    if (message.getType() == MessageType.TELEMETRY && receiver != null) {
+      receiver.receiveResent(message.getPayload().duplicate());
+    }
+    if (message.getType() == MessageType.BUSY) {
+      rejectRequest(message);
+      return;
+    }
+    ByteBuffer payload = message.getPayload();
+    if (message.getType() == MessageType.PONG && payload.remaining() >= Long.BYTES) {
+      rttEstimator.addSample(System.nanoTime() - payload.getLong(payload.position()));
+    }
+    if (message.getType() == MessageType.NODE_LIST) {
+      try {
+        updateKnownNodes(ResponseFormatter.readNodeIds(payload.duplicate()));
+      } catch (BufferUnderflowException e) {
+        // Left to the text of the response
+      }
+    }
+    CompletableFuture<Message> forwarded = forwardedRequests.remove(message.getRequestId());
+    if (forwarded != null) {
+      forwarded.complete(message.copy());
+    }
+    // Deltas are applied even when nobody waits for them, so the readings stay in sync
+    CompletableFuture<List<SensorReading>> readings =
+        sensorDataRequests.remove(message.getRequestId());
+    String text;
+    if (message.getType() == MessageType.SENSOR_DELTA) {
+      text = readSensorDelta(message, readings);
+    } else {
+      if (message.getType() == MessageType.SENSOR_DATA && readings != null) {
+        completeReadings(readings, payload.duplicate());
+      }
+      text = ResponseFormatter.format(message);
+    }
+    CompletableFuture<String> response = pendingRequests.remove(message.getRequestId());
+    if (response != null) {
+      response.complete(text);
+    } else {
+      Logger.error("Received a response to an unknown request: " + message.getRequestId());
+    }
+  }
+
+  /**
+   * Fail the request which the greenhouse turned away, so the caller can send it again later.
+   */
+  private void rejectRequest(Message message) {
+    CompletableFuture<String> response = pendingRequests.remove(message.getRequestId());
+    historyDownloads.remove(message.getRequestId());
+    if (response == null) {
+      Logger.error("Received a response to an unknown request: " + message.getRequestId());
+    } else if (message.getPayload().remaining() < Integer.BYTES) {
+      response.completeExceptionally(
+          new MessageFormatException("Invalid busy response from sensor node"));
+    } else {
+      response.completeExceptionally(
+          new ServerBusyException(Integer.toUnsignedLong(message.getPayload().getInt())));
+    }
+  }
+
+  /**
+   * Receive the chunk of sensor history in a HISTORY_CHUNK message, or following it on the
+   * connection, and hand it to the download which asked for it.
+   */
+  private void receiveHistoryChunk(Message message, InputStream connectionInput)
+      throws IOException {
+    ByteBuffer payload = message.getPayload();
+    long totalSize = payload.getLong();
+    long offset = payload.getLong();
+    int length = payload.getInt();
+    byte[] digest = new byte[HISTORY_DIGEST_SIZE];
+    payload.get(digest);
+    // A sealed chunk is the rest of the payload, a plaintext one follows the message
+    InputStream input = payload.remaining() == length
+        ? new ByteArrayInputStream(payload.array(), payload.arrayOffset() + payload.position(),
+            length)
+        : connectionInput;
+    HistoryDownload download = historyDownloads.remove(message.getRequestId());
+    CompletableFuture<String> response = pendingRequests.remove(message.getRequestId());
+    if (download == null || response == null) {
+      // Nobody waits for the chunk any more, but it has to be read past
+      input.skipNBytes(length);
+      Logger.error("Received a history chunk for an unknown request: "
+          + message.getRequestId());
+      return;
+    }
+    try {
+      download.receive(input, totalSize, offset, length, digest);
+      response.complete(ResponseFormatter.format(message));
+    } catch (MessageFormatException e) {
+      response.completeExceptionally(e);
     }
-    // Return the decrypted response
-    return EncryptionDecryption.decrypt(encryptedResponse, this.sharedSecret);
   }
 
   /**
-   * Perform a key exchange with the server to establish a shared secret key.
+   * Join the telemetry group described by a TELEMETRY_GROUP response, replacing the group joined
+   * before, and complete the request which asked for it.
    */
-  private void exchangeKeys() {
+  private void receiveTelemetryGroup(Message message) {
+    CompletableFuture<String> response = pendingRequests.remove(message.getRequestId());
+    ByteBuffer payload = message.getPayload();
+    try {
+      InetSocketAddress group = new InetSocketAddress(
+          InetAddress.getByName(MessageCodec.getString(payload)),
+          Short.toUnsignedInt(payload.getShort()));
+      byte[] key = new byte[TELEMETRY_KEY_SIZE];
+      payload.get(key);
+      long nextSequence = payload.getLong();
+      // Receive on the interface the greenhouse is reached through
+      NetworkInterface networkInterface =
+          NetworkInterface.getByInetAddress(this.socket.getLocalAddress());
+      TelemetryReceiver receiver = new TelemetryReceiver(group, networkInterface,
+          new SecretKeySpec(key, "AES"), nextSequence, this);
+      closeTelemetry();
+      this.telemetryReceiver = receiver;
+      receiver.start();
+      Logger.info("Joined the telemetry group " + group + " on " + networkInterface.getName());
+      if (response != null) {
+        response.complete("Receiving telemetry from " + group);
+      }
+    } catch (IOException | GeneralSecurityException | BufferUnderflowException e) {
+      this.telemetryJoined = false;
+      if (response != null) {
+        response.completeExceptionally(e);
+      } else {
+        Logger.error("Could not join the telemetry group: " + e.getMessage());
+      }
+    }
+  }
+
+  private void closeTelemetry() {
+    TelemetryReceiver receiver = this.telemetryReceiver;
+    this.telemetryReceiver = null;
+    if (receiver != null) {
+      receiver.close();
+    }
+  }
+
+  private String readSensorDelta(Message message,
+                                 CompletableFuture<List<SensorReading>> readings) {
+    String text;
     try {
-      // Generate key pair
-      KeyPairGenerator keyPairGen = KeyPairGenerator.getInstance("DH");
-      keyPairGen.initialize(2048);
-      KeyPair keyPair = keyPairGen.generateKeyPair();
-      PrivateKey privateKey = keyPair.getPrivate();
-      PublicKey publicKey = keyPair.getPublic();
+      int nodeId = message.getNodeId();
+      List<SensorReading> current = this.sensorDeltaDecoder.read(nodeId, message.getPayload());
+      if (readings != null) {
+        readings.complete(current);
+      }
+      text = ResponseFormatter.formatSensorData(nodeId, current);
+    } catch (MessageFormatException e) {
+      text = e.getMessage() + ", all the readings are requested next time";
+    }
+    return text;
+  }
 
-      // Send public key to server
-      this.objectWriter.writeObject(publicKey);
-      this.objectWriter.flush();
+  private static void completeReadings(CompletableFuture<List<SensorReading>> readings,
+                                       ByteBuffer payload) {
+    try {
+      readings.complete(ResponseFormatter.readSensorData(payload));
+    } catch (BufferUnderflowException e) {
+      // Left to fail with the text of the response
+    }
+  }
 
-      // Receive public key from server
-      ObjectInputStream objectReader = new ObjectInputStream(socket.getInputStream());
-      PublicKey serverPublicKey = (PublicKey) objectReader.readObject();
+  /**
+   * Tell the listeners about the nodes which have appeared in, or disappeared from, the node
+   * list since the last time the greenhouse sent it.
+   */
+  private void updateKnownNodes(List<Integer> nodeIds) {
+    Set<Integer> removed = new HashSet<>(knownNodes);
+    nodeIds.forEach(removed::remove);
+    for (int nodeId : removed) {
+      knownNodes.remove(nodeId);
+      for (GreenhouseEventListener listener : listeners) {
+        listener.onNodeRemoved(nodeId);
+      }
+    }
+    for (int nodeId : nodeIds) {
+      if (knownNodes.add(nodeId)) {
+        for (GreenhouseEventListener listener : listeners) {
+          listener.onNodeAdded(new SensorActuatorNodeInfo(nodeId));
+        }
+      }
+    }
+  }
 
-      // Generate shared secret
-      KeyAgreement keyAgree = KeyAgreement.getInstance("DH");
-      keyAgree.init(privateKey);
-      keyAgree.doPhase(serverPublicKey, true);
-      byte[] sharedSecretBytes = keyAgree.generateSecret();
+  private void handleUpdate(Message message) {
+    ByteBuffer payload = message.getPayload();
+    int nodeId = message.getNodeId();
+    try {
+      switch (message.getType()) {
+        case MessageType.SENSOR_DATA:
+          List<SensorReading> readings = ResponseFormatter.readSensorData(payload);
+          for (GreenhouseEventListener listener : listeners) {
+            listener.onSensorData(nodeId, readings);
+          }
+          break;
+        case MessageType.ACTUATOR_STATE:
+          int actuatorId = payload.getInt();
+          boolean isOn = payload.get() != 0;
+          for (GreenhouseEventListener listener : listeners) {
+            listener.onActuatorStateChanged(nodeId, actuatorId, isOn);
+          }
+          break;
+        default:
+          Logger.error("Unknown update from the greenhouse: " + message.getType());
+      }
+    } catch (BufferUnderflowException e) {
+      Logger.error("Invalid update from sensor node " + nodeId);
+    }
+  }
 
-      // Derive AES key from shared secret
-      this.sharedSecret = new SecretKeySpec(sharedSecretBytes, 0, 16, "AES");
-    } catch (NoSuchAlgorithmException | InvalidKeyException | IOException e) {
-      Logger.error("Key exchange failed: " + e.getMessage());
-    } catch (ClassNotFoundException e) {
-      Logger.error("Error reading public key: " + e.getMessage());
+  private void failPendingRequests(IOException cause) {
+    historyDownloads.clear();
+    sensorDataRequests.clear();
+    forwardedRequests.clear();
+    for (Integer requestId : pendingRequests.keySet()) {
+      CompletableFuture<String> response = pendingRequests.remove(requestId);
+      if (response != null) {
+        response.completeExceptionally(cause);
+      }
     }
   }
 
+  /**
+   * Perform a key exchange with the server to establish a shared secret key. When reconnecting,
+   * the ticket of the previous connection is used to resume the session.
+   *
+   * @throws IOException If the key exchange fails
+   */
+  private void exchangeKeys() throws IOException {
+    try {
+      KeyExchange keyExchange = new KeyExchange(compression
+          ? KeyExchange.FEATURE_COMPRESSION : 0);
+      SecretKey sharedSecret = keyExchange.initiate(this.socket.getInputStream(),
+          this.socket.getOutputStream(), this.sessionTicket);
+      this.codec = new MessageCodec(sharedSecret, true);
+      if ((keyExchange.getFeatures() & KeyExchange.FEATURE_COMPRESSION) != 0) {
+        this.codec.enableCompression(new PayloadCompressor());
+      }
+      this.sessionTicket = keyExchange.getSessionTicket();
+      Logger.info(String.format("Key exchange done in %.3f ms%s",
+          keyExchange.getDuration() / 1e6, keyExchange.isResumed() ? " (resumed)" : ""));
+    } catch (GeneralSecurityException e) {
+      this.sessionTicket = null;
+      throw new IOException("Key exchange failed: " + e.getMessage(), e);
+    } catch (IOException e) {
+      this.sessionTicket = null;
+      throw e;
+    }
+  }
 }
@@ -0,0 +1,226 @@
+package no.ntnu.controlpanel;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import no.ntnu.greenhouse.ActuatorSettings;
+import no.ntnu.greenhouse.SensorReading;
+import no.ntnu.tools.Message;
+import no.ntnu.tools.MessageCodec;
+import no.ntnu.tools.MessageType;
+
+/**
+ * Turns the typed response messages from the greenhouse into human-readable text for the
+ * control panel.
+ */
+public class ResponseFormatter {
+  /**
+   * Not allowed to create instances of this class.
+   */
+  private ResponseFormatter() {
+  }
+
+  /**
+   * Format a response message as text.
+   *
+   * @param response The decoded response message
+   * @return A human-readable description of the response
+   */
+  public static String format(Message response) {
+    return format(response.getType(), response.getNodeId(), response.getPayload());
+  }
+
+  private static String format(byte type, int nodeId, ByteBuffer payload) {
+    try {
+      switch (type) {
+        case MessageType.SENSOR_DATA:
+          return formatSensorData(nodeId, readSensorData(payload));
+        case MessageType.ACTUATOR_STATUS:
+          return formatActuatorStatus(nodeId, payload);
+        case MessageType.ACTUATOR_STATE:
+          return "Actuator " + payload.getInt() + " on node " + nodeId + " is now "
+              + (payload.get() != 0 ? "ON" : "off");
+        case MessageType.NODE_LIST:
+          return formatNodeList(payload);
+        case MessageType.NODE_PAGE:
+          return formatNodePage(payload);
+        case MessageType.TOPOLOGY_UNCHANGED:
+          return "The nodes have not changed since version " + payload.getInt();
+        case MessageType.SUBSCRIPTION:
+          int nodeCount = Short.toUnsignedInt(payload.getShort());
+          return nodeCount == 0 ? "Unsubscribed from all nodes"
+              : "Subscribed to updates from " + nodeCount + " nodes";
+        case MessageType.BATCH:
+          return formatBatch(payload);
+        case MessageType.HISTORY_CHUNK:
+          long totalSize = payload.getLong();
+          long offset = payload.getLong();
+          return "History chunk of " + payload.getInt() + " bytes at offset " + offset + " of "
+              + totalSize;
+        case MessageType.TELEMETRY:
+          return Short.toUnsignedInt(payload.getShort()) + " telemetry messages sent again";
+        case MessageType.ACTUATOR_RESULTS:
+          return formatActuatorResults(payload);
+        case MessageType.SCENE_SAVED:
+          return "Scene saved with ID " + payload.getInt();
+        case MessageType.PONG:
+          return String.format("Pong after %.3f ms",
+              (System.nanoTime() - payload.getLong()) / 1e6);
+        case MessageType.ERROR:
+          return MessageCodec.getError(payload);
+        default:
+          return "Unknown response type: " + type;
+      }
+    } catch (BufferUnderflowException e) {
+      return "Invalid response from sensor node";
+    }
+  }
+
+  /**
+   * Read the sensor readings from the payload of a sensor data response.
+   *
+   * @param payload The payload of the response
+   * @return The sensor readings
+   */
+  public static List<SensorReading> readSensorData(ByteBuffer payload) {
+    int count = Short.toUnsignedInt(payload.getShort());
+    List<SensorReading> readings = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      readings.add(MessageCodec.getReading(payload));
+    }
+    return readings;
+  }
+
+  /**
+   * Format sensor readings from a node as text.
+   *
+   * @param nodeId   The ID of the node
+   * @param readings The sensor readings
+   * @return A human-readable description of the readings
+   */
+  public static String formatSensorData(int nodeId, List<SensorReading> readings) {
+    StringBuilder sb = new StringBuilder();
+    sb.append("Readings from node ").append(nodeId).append(": ");
+    for (SensorReading reading : readings) {
+      sb.append(reading.getType())
+          .append(": ")
+          .append(reading.getFormatted())
+          .append(", ");
+    }
+    return sb.toString().trim();
+  }
+
+  /**
+   * Read the IDs of the nodes from the payload of a node list response, or from the rest of a
+   * node page after its version and cursor.
+   *
+   * @param payload The payload of the response
+   * @return The node IDs, in the order of the list
+   */
+  public static List<Integer> readNodeIds(ByteBuffer payload) {
+    int nodeCount = Short.toUnsignedInt(payload.getShort());
+    List<Integer> nodeIds = new ArrayList<>(nodeCount);
+    for (int i = 0; i < nodeCount; i++) {
+      nodeIds.add(payload.getInt());
+      int sensorCount = Short.toUnsignedInt(payload.getShort());
+      for (int j = 0; j < sensorCount; j++) {
+        MessageCodec.getString(payload);
+      }
+      int actuatorCount = Short.toUnsignedInt(payload.getShort());
+      for (int j = 0; j < actuatorCount; j++) {
+        payload.getInt();
+        MessageCodec.getString(payload);
+      }
+    }
+    return nodeIds;
+  }
+
+  private static String formatBatch(ByteBuffer payload) {
+    StringBuilder sb = new StringBuilder();
+    int count = Short.toUnsignedInt(payload.getShort());
+    for (int i = 0; i < count; i++) {
+      byte type = payload.get();
+      int nodeId = payload.getInt();
+      int length = Short.toUnsignedInt(payload.getShort());
+      ByteBuffer entry = payload.slice(payload.position(), length);
+      payload.position(payload.position() + length);
+      sb.append("\n").append(format(type, nodeId, entry));
+    }
+    return "Batch of " + count + " responses:" + sb;
+  }
+
+  private static String formatActuatorResults(ByteBuffer payload) {
+    StringBuilder sb = new StringBuilder();
+    int count = Short.toUnsignedInt(payload.getShort());
+    sb.append("Results of ").append(count).append(" actuator settings: ");
+    for (int i = 1; i <= count; i++) {
+      switch (payload.get()) {
+        case ActuatorSettings.RESULT_OFF:
+          sb.append(i).append(". off, ");
+          break;
+        case ActuatorSettings.RESULT_ON:
+          sb.append(i).append(". ON, ");
+          break;
+        case ActuatorSettings.RESULT_UNKNOWN_NODE:
+          sb.append(i).append(". node not found, ");
+          break;
+        case ActuatorSettings.RESULT_UNKNOWN_ACTUATOR:
+          sb.append(i).append(". actuator not found, ");
+          break;
+        default:
+          sb.append(i).append(". not applied, ");
+      }
+    }
+    return sb.toString().trim();
+  }
+
+  private static String formatActuatorStatus(int nodeId, ByteBuffer payload) {
+    StringBuilder sb = new StringBuilder();
+    sb.append("Actuator status from node ").append(nodeId).append(": ");
+    int count = Short.toUnsignedInt(payload.getShort());
+    if (count == 0) {
+      sb.append("No actuators found for node ").append(nodeId).append(".");
+    }
+    for (int i = 0; i < count; i++) {
+      sb.append("Actuator ")
+          .append(payload.getInt())
+          .append(": ")
+          .append(payload.get() != 0 ? "on" : "off")
+          .append(", ");
+    }
+    return sb.toString().trim();
+  }
+
+  private static String formatNodeList(ByteBuffer payload) {
+    StringBuilder sb = new StringBuilder();
+    sb.append("Sensors:\n");
+    int nodeCount = Short.toUnsignedInt(payload.getShort());
+    for (int i = 1; i <= nodeCount; i++) {
+      int nodeId = payload.getInt();
+      List<String> sensorTypes = new ArrayList<>();
+      int sensorCount = Short.toUnsignedInt(payload.getShort());
+      for (int j = 0; j < sensorCount; j++) {
+        sensorTypes.add(MessageCodec.getString(payload));
+      }
+      List<String> actuators = new ArrayList<>();
+      int actuatorCount = Short.toUnsignedInt(payload.getShort());
+      for (int j = 0; j < actuatorCount; j++) {
+        payload.getInt();
+        actuators.add(MessageCodec.getString(payload));
+      }
+      sb.append(i).append(". Node with nodeId = ").append(nodeId)
+          .append(" has sensor types: ").append(sensorTypes)
+          .append(", and has these actuators: ").append(actuators).append("\n");
+    }
+    return sb.toString().trim();
+  }
+
+  private static String formatNodePage(ByteBuffer payload) {
+    int version = payload.getInt();
+    int nextCursor = payload.getInt();
+    String nodes = formatNodeList(payload);
+    return nodes + "\n" + (nextCursor != 0 ? "More nodes: list " + nextCursor
+        : "No more nodes") + " (topology version " + version + ")";
+  }
+}
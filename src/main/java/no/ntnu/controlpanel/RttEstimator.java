@@ -0,0 +1,91 @@
+package no.ntnu.controlpanel;
+
+/**
+ * A smoothed estimate of the round trip time of a connection, and the response timeout which
+ * follows from it, computed like the retransmission timeout of TCP (RFC 6298): the smoothed
+ * round trip time plus four times its mean deviation.
+ *
+ * <p>All the methods are thread-safe.</p>
+ */
+public class RttEstimator {
+  // The weights of a new sample in the smoothed round trip time and its deviation
+  private static final double ALPHA = 1.0 / 8;
+  private static final double BETA = 1.0 / 4;
+  private static final long NANOS_PER_MILLI = 1_000_000L;
+
+  private final long initialTimeout;
+  private final long minTimeout;
+  private final long maxTimeout;
+  private double smoothedRtt;
+  private double rttVariation;
+  private long sampleCount;
+
+  /**
+   * Create an estimator without any samples.
+   *
+   * @param initialTimeout The timeout to use before the first sample, in milliseconds
+   * @param minTimeout     The shortest timeout, in milliseconds
+   * @param maxTimeout     The longest timeout, in milliseconds
+   */
+  public RttEstimator(long initialTimeout, long minTimeout, long maxTimeout) {
+    if (minTimeout <= 0 || maxTimeout < minTimeout) {
+      throw new IllegalArgumentException("Invalid timeout bounds: " + minTimeout + "/"
+          + maxTimeout);
+    }
+    this.initialTimeout = initialTimeout;
+    this.minTimeout = minTimeout;
+    this.maxTimeout = maxTimeout;
+  }
+
+  /**
+   * Add a measured round trip time.
+   *
+   * @param rtt The round trip time, in nanoseconds
+   */
+  public synchronized void addSample(long rtt) {
+    if (rtt < 0) {
+      return;
+    }
+    if (sampleCount == 0) {
+      smoothedRtt = rtt;
+      rttVariation = rtt / 2.0;
+    } else {
+      rttVariation = (1 - BETA) * rttVariation + BETA * Math.abs(smoothedRtt - rtt);
+      smoothedRtt = (1 - ALPHA) * smoothedRtt + ALPHA * rtt;
+    }
+    sampleCount++;
+  }
+
+  /**
+   * Get the smoothed round trip time.
+   *
+   * @return The smoothed round trip time in nanoseconds, or 0 before the first sample
+   */
+  public synchronized long getSmoothedRtt() {
+    return (long) smoothedRtt;
+  }
+
+  /**
+   * Get how long to wait for a response before giving up on it.
+   *
+   * @return The timeout in milliseconds
+   */
+  public synchronized long getTimeout() {
+    if (sampleCount == 0) {
+      return initialTimeout;
+    }
+    long timeout = (long) Math.ceil((smoothedRtt + 4 * rttVariation) / NANOS_PER_MILLI);
+    return Math.min(maxTimeout, Math.max(minTimeout, timeout));
+  }
+
+  /**
+   * Get a summary of the estimate, for logging.
+   *
+   * @return A human-readable description of the round trip time
+   */
+  public synchronized String getStatistics() {
+    return String.format("round trip time %.3f ms (+/- %.3f ms, %d samples), timeout %d ms",
+        smoothedRtt / NANOS_PER_MILLI, rttVariation / NANOS_PER_MILLI, sampleCount,
+        getTimeout());
+  }
+}
@@ -0,0 +1,119 @@
+package no.ntnu.controlpanel;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import no.ntnu.commands.RequestSensorData;
+import no.ntnu.exceptions.MessageFormatException;
+import no.ntnu.greenhouse.SensorReading;
+import no.ntnu.tools.MessageCodec;
+import no.ntnu.tools.MessageType;
+
+/**
+ * Reads the {@link MessageType#SENSOR_DELTA} responses on the control panel side, keeping the
+ * last readings of every node so the deltas can be applied to them. Must see every delta
+ * response of the connection, in the order they arrive, including the ones nobody waits for
+ * any more.
+ */
+public class SensorDeltaDecoder {
+  private final Map<Integer, NodeReadings> nodes = new ConcurrentHashMap<>();
+
+  /**
+   * Get the mode to request the sensor data of a node in.
+   *
+   * @param nodeId The ID of the node
+   * @return {@link RequestSensorData#MODE_KEYFRAME} if the readings of the node are not known
+   *     or out of sync, {@link RequestSensorData#MODE_DELTA} otherwise
+   */
+  public byte getRequestMode(int nodeId) {
+    return nodes.containsKey(nodeId) ? RequestSensorData.MODE_DELTA
+        : RequestSensorData.MODE_KEYFRAME;
+  }
+
+  /**
+   * Forget the readings of all the nodes, for example when the connection is reopened.
+   */
+  public void clear() {
+    nodes.clear();
+  }
+
+  /**
+   * Read a delta response and apply it to the known readings of the node.
+   *
+   * @param nodeId  The ID of the node the response is about
+   * @param payload The payload of the response
+   * @return All the current readings of the node
+   * @throws MessageFormatException If the response is a delta which does not match the known
+   *                                readings. The readings of the node are forgotten, so the
+   *                                next request asks for a keyframe.
+   */
+  public List<SensorReading> read(int nodeId, ByteBuffer payload)
+      throws MessageFormatException {
+    try {
+      return apply(nodeId, payload);
+    } catch (BufferUnderflowException e) {
+      nodes.remove(nodeId);
+      throw new MessageFormatException("Sensor data of node " + nodeId + " is truncated");
+    }
+  }
+
+  private List<SensorReading> apply(int nodeId, ByteBuffer payload)
+      throws MessageFormatException {
+    byte flag = payload.get();
+    int sensorCount = Short.toUnsignedInt(payload.getShort());
+    NodeReadings readings;
+    if (flag == SensorDeltaEncoder.KEYFRAME) {
+      readings = new NodeReadings(sensorCount);
+      for (int i = 0; i < sensorCount; i++) {
+        SensorReading reading = MessageCodec.getReading(payload);
+        readings.types[i] = reading.getType();
+        readings.units[i] = reading.getUnit();
+        readings.values[i] = MessageCodec.toHundredths(reading.getValue());
+      }
+      nodes.put(nodeId, readings);
+    } else {
+      readings = nodes.get(nodeId);
+      if (readings == null || readings.values.length != sensorCount) {
+        nodes.remove(nodeId);
+        throw new MessageFormatException("Sensor data of node " + nodeId + " is out of sync");
+      }
+      int changeCount = Short.toUnsignedInt(payload.getShort());
+      for (int i = 0; i < changeCount; i++) {
+        int index = Short.toUnsignedInt(payload.getShort());
+        int delta = payload.getShort();
+        if (index >= sensorCount) {
+          nodes.remove(nodeId);
+          throw new MessageFormatException("Invalid sensor index in delta: " + index);
+        }
+        readings.values[index] += delta;
+      }
+    }
+    return readings.toList();
+  }
+
+  /**
+   * The last known readings of one node.
+   */
+  private static class NodeReadings {
+    private final String[] types;
+    private final String[] units;
+    private final int[] values;
+
+    NodeReadings(int sensorCount) {
+      types = new String[sensorCount];
+      units = new String[sensorCount];
+      values = new int[sensorCount];
+    }
+
+    List<SensorReading> toList() {
+      List<SensorReading> list = new ArrayList<>(values.length);
+      for (int i = 0; i < values.length; i++) {
+        list.add(new SensorReading(types[i], MessageCodec.fromHundredths(values[i]), units[i]));
+      }
+      return list;
+    }
+  }
+}
@@ -0,0 +1,137 @@
+package no.ntnu.controlpanel;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import no.ntnu.greenhouse.Sensor;
+import no.ntnu.greenhouse.SensorReading;
+import no.ntnu.tools.MessageCodec;
+import no.ntnu.tools.MessageType;
+
+/**
+ * Writes the {@link MessageType#SENSOR_DELTA} responses of one connection. The encoder remembers
+ * the values last sent for every node, and only sends the sensors whose value has changed since
+ * then. A keyframe with all the readings is sent first, after every {@link #KEYFRAME_INTERVAL}
+ * responses, and whenever the changes can not be described as deltas.
+ *
+ * <p>TCP delivers the responses in order, so the values sent are the values the control panel
+ * has. Only used by the thread handling the requests of the connection.</p>
+ */
+public class SensorDeltaEncoder {
+  /**
+   * The largest number of delta responses sent for a node between two keyframes.
+   */
+  public static final int KEYFRAME_INTERVAL = 10;
+  /**
+   * The flag marking a keyframe, the first byte of the payload.
+   */
+  public static final byte KEYFRAME = 1;
+  /**
+   * The flag marking a delta, the first byte of the payload.
+   */
+  public static final byte DELTA = 0;
+
+  private final Map<Integer, NodeState> nodes = new HashMap<>();
+
+  /**
+   * Write the readings of a node as a delta response.
+   *
+   * @param nodeId        The ID of the node
+   * @param sensors       The sensors of the node
+   * @param forceKeyframe When true, send all the readings even if a delta is possible
+   * @param response      The buffer to write the response payload to
+   * @return The message type of the response
+   */
+  public byte write(int nodeId, List<Sensor> sensors, boolean forceKeyframe,
+                    ByteBuffer response) {
+    int[] values = new int[sensors.size()];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = MessageCodec.toHundredths(sensors.get(i).getReading().getValue());
+    }
+    return write(nodeId, values, forceKeyframe, response, keyframe -> {
+      for (Sensor sensor : sensors) {
+        MessageCodec.putReading(keyframe, sensor.getReading());
+      }
+    });
+  }
+
+  /**
+   * Write readings received from elsewhere, for example from the greenhouse behind a gateway,
+   * as a delta response.
+   *
+   * @param nodeId        The ID of the node
+   * @param readings      The current readings of the node
+   * @param forceKeyframe When true, send all the readings even if a delta is possible
+   * @param response      The buffer to write the response payload to
+   * @return The message type of the response
+   */
+  public byte writeReadings(int nodeId, List<SensorReading> readings, boolean forceKeyframe,
+                            ByteBuffer response) {
+    int[] values = new int[readings.size()];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = MessageCodec.toHundredths(readings.get(i).getValue());
+    }
+    return write(nodeId, values, forceKeyframe, response, keyframe -> {
+      for (SensorReading reading : readings) {
+        MessageCodec.putReading(keyframe, reading);
+      }
+    });
+  }
+
+  private byte write(int nodeId, int[] values, boolean forceKeyframe, ByteBuffer response,
+                     Consumer<ByteBuffer> readingWriter) {
+    NodeState state = nodes.get(nodeId);
+    if (forceKeyframe || state == null || state.deltasSinceKeyframe >= KEYFRAME_INTERVAL
+        || !writeDelta(state.values, values, response)) {
+      response.put(KEYFRAME);
+      response.putShort((short) values.length);
+      readingWriter.accept(response);
+      state = new NodeState();
+      nodes.put(nodeId, state);
+    } else {
+      state.deltasSinceKeyframe++;
+    }
+    state.values = values;
+    return MessageType.SENSOR_DELTA;
+  }
+
+  /**
+   * Write the changed values, if they can all be written as deltas.
+   *
+   * @return {@code true} if the delta was written, {@code false} if a keyframe is needed
+   */
+  private static boolean writeDelta(int[] previous, int[] values, ByteBuffer response) {
+    if (previous.length != values.length) {
+      return false;
+    }
+    int start = response.position();
+    response.put(DELTA);
+    response.putShort((short) values.length);
+    int countPosition = response.position();
+    response.putShort((short) 0);
+    int count = 0;
+    for (int i = 0; i < values.length; i++) {
+      int delta = values[i] - previous[i];
+      if (delta < Short.MIN_VALUE || delta > Short.MAX_VALUE) {
+        response.position(start);
+        return false;
+      }
+      if (delta != 0) {
+        response.putShort((short) i).putShort((short) delta);
+        count++;
+      }
+    }
+    response.putShort(countPosition, (short) count);
+    return true;
+  }
+
+  /**
+   * What the control panel knows about one node.
+   */
+  private static class NodeState {
+    private int[] values;
+    private int deltasSinceKeyframe;
+  }
+}
@@ -0,0 +1,207 @@
+package no.ntnu.controlpanel;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.security.GeneralSecurityException;
+import java.util.HashMap;
+import java.util.Map;
+import javax.crypto.SecretKey;
+import no.ntnu.commands.ResendTelemetry;
+import no.ntnu.exceptions.MessageFormatException;
+import no.ntnu.greenhouse.TelemetryPublisher;
+import no.ntnu.tools.Logger;
+import no.ntnu.tools.Message;
+import no.ntnu.tools.MessageCodec;
+import no.ntnu.tools.MessageType;
+
+/**
+ * Receives the multicast telemetry of the greenhouse, see {@link TelemetryPublisher}.
+ *
+ * <p>Datagrams which can not be opened with the group key are dropped. The sequence numbers of
+ * the datagrams tell when some have been lost; the handler is then asked to get them over the
+ * connection instead. An update is only handed on if it is newer than the last one handed on
+ * for the same sensor readings or actuator, so datagrams which arrive late, twice or after a
+ * newer update has already been received are ignored.</p>
+ */
+public class TelemetryReceiver {
+  private final DatagramChannel channel;
+  private final MessageCodec codec;
+  private final Handler handler;
+  private final Map<Long, Long> latestSequences = new HashMap<>();
+  private final Message message = new Message();
+  private long nextSequence;
+  private long receivedCount;
+  private long missedCount;
+  private long recoveredCount;
+  private long ignoredCount;
+
+  /**
+   * What the receiver needs from the connection to the greenhouse.
+   */
+  public interface Handler {
+    /**
+     * Handle a SENSOR_DATA or ACTUATOR_STATE update, as if it had been pushed on the connection.
+     *
+     * @param update The update, only valid during the call
+     */
+    void onUpdate(Message update);
+
+    /**
+     * Get some datagrams which were lost over the connection, with
+     * {@link ResendTelemetry}. The response must be passed to
+     * {@link #receiveResent(ByteBuffer)}.
+     *
+     * @param first The sequence number of the first datagram lost
+     * @param count The number of datagrams lost, at most {@link ResendTelemetry#MAX_COUNT}
+     */
+    void onGap(long first, int count);
+  }
+
+  /**
+   * Join a telemetry group.
+   *
+   * @param group            The multicast group and port
+   * @param networkInterface The interface to receive on
+   * @param key              The group key
+   * @param nextSequence     The sequence number of the next datagram the greenhouse sends
+   * @param handler          Where the updates go
+   * @throws IOException              If the group can not be joined
+   * @throws GeneralSecurityException If AES-GCM is not available
+   */
+  public TelemetryReceiver(InetSocketAddress group, NetworkInterface networkInterface,
+                           SecretKey key, long nextSequence, Handler handler)
+      throws IOException, GeneralSecurityException {
+    this.codec = new MessageCodec(key, true);
+    this.nextSequence = nextSequence;
+    this.handler = handler;
+    // Several control panels on the same host listen on the same port
+    this.channel = DatagramChannel.open(StandardProtocolFamily.INET)
+        .setOption(StandardSocketOptions.SO_REUSEADDR, true)
+        .bind(new InetSocketAddress(group.getPort()));
+    try {
+      channel.join(group.getAddress(), networkInterface);
+    } catch (IOException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Start the thread which receives the datagrams.
+   */
+  public void start() {
+    Thread thread = new Thread(this::receiveDatagrams, "telemetry-receiver");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  private void receiveDatagrams() {
+    ByteBuffer datagram = ByteBuffer.allocate(TelemetryPublisher.MAX_DATAGRAM_SIZE);
+    try {
+      while (true) {
+        datagram.clear();
+        channel.receive(datagram);
+        datagram.flip();
+        receive(datagram, false);
+      }
+    } catch (ClosedChannelException e) {
+      // The receiver was closed
+    } catch (IOException e) {
+      Logger.error("Telemetry stopped: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Receive the datagrams which were sent again over the connection.
+   *
+   * @param payload The payload of a {@link MessageType#TELEMETRY} response
+   */
+  public void receiveResent(ByteBuffer payload) {
+    int count = Short.toUnsignedInt(payload.getShort());
+    for (int i = 0; i < count; i++) {
+      int length = Short.toUnsignedInt(payload.getShort());
+      ByteBuffer datagram = payload.slice(payload.position(), length);
+      payload.position(payload.position() + length);
+      receive(datagram, true);
+    }
+  }
+
+  private void receive(ByteBuffer datagram, boolean resent) {
+    long gapStart = -1;
+    int gapCount = 0;
+    synchronized (this) {
+      if (MessageCodec.getMessageSize(datagram) != datagram.remaining()) {
+        Logger.error("Dropped a truncated telemetry datagram");
+        return;
+      }
+      ByteBuffer sealed = datagram.duplicate();
+      try {
+        codec.decode(datagram, message);
+      } catch (MessageFormatException e) {
+        Logger.error("Dropped a telemetry datagram: " + e.getMessage());
+        return;
+      }
+      long sequence = MessageCodec.getCounter(sealed);
+      if (resent) {
+        recoveredCount++;
+      } else {
+        receivedCount++;
+        if (sequence > nextSequence) {
+          missedCount += sequence - nextSequence;
+          // Older datagrams are unlikely to be kept, and newer readings replace them anyway
+          gapStart = Math.max(nextSequence, sequence - ResendTelemetry.MAX_COUNT);
+          gapCount = (int) (sequence - gapStart);
+        }
+        nextSequence = Math.max(nextSequence, sequence + 1);
+      }
+      long key = updateKey(message);
+      Long latest = latestSequences.get(key);
+      if (latest != null && latest >= sequence) {
+        ignoredCount++;
+      } else {
+        latestSequences.put(key, sequence);
+        handler.onUpdate(message);
+      }
+    }
+    if (gapCount > 0) {
+      handler.onGap(gapStart, gapCount);
+    }
+  }
+
+  private static long updateKey(Message update) {
+    int itemId = -1;
+    if (update.getType() == MessageType.ACTUATOR_STATE) {
+      ByteBuffer payload = update.getPayload();
+      itemId = payload.getInt(payload.position());
+    }
+    return OutboundQueue.updateKey(update.getNodeId(), itemId);
+  }
+
+  /**
+   * Leave the group and stop receiving.
+   */
+  public void close() {
+    try {
+      channel.close();
+    } catch (IOException e) {
+      Logger.error("Error closing the telemetry socket: " + e.getMessage());
+    }
+    Logger.info("Left the telemetry group, " + getStatistics());
+  }
+
+  /**
+   * Get a summary of what has been received, for logging.
+   *
+   * @return The number of datagrams received, lost, recovered over the connection and ignored
+   */
+  public synchronized String getStatistics() {
+    return "telemetry: " + receivedCount + " datagrams received, " + missedCount + " lost, "
+        + recoveredCount + " recovered over TCP, " + ignoredCount + " late or repeated";
+  }
+}
@@ -0,0 +1,44 @@
+package no.ntnu.controlpanel;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Start a new platform thread for every connection. Simple, but there is no upper limit on
+ * the number of threads, so a connection storm can exhaust native threads and stack memory.
+ *
+ * <p>The writer tasks run on a shared pool of threads, which are started as they are needed and
+ * stop after a minute without work.</p>
+ */
+public class ThreadPerConnectionStrategy implements ClientExecutionStrategy {
+  private final AtomicLong started = new AtomicLong();
+  private final AtomicLong writerThreads = new AtomicLong();
+  private final ExecutorService writers = Executors.newCachedThreadPool(writer -> {
+    Thread thread = new Thread(writer, "client-writer-" + writerThreads.incrementAndGet());
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  @Override
+  public boolean execute(Runnable handler) {
+    new Thread(handler, "client-handler-" + started.incrementAndGet()).start();
+    return true;
+  }
+
+  @Override
+  public void executeWriter(Runnable writer) {
+    writers.execute(writer);
+  }
+
+  @Override
+  public String getStatistics() {
+    return "thread per connection: " + started.get() + " threads started";
+  }
+
+  @Override
+  public void shutdown() {
+    // The handler threads stop when their sockets are closed
+    writers.shutdownNow();
+  }
+}
@@ -0,0 +1,54 @@
+package no.ntnu.controlpanel;
+
+/**
+ * A token bucket rate limiter. Tokens are added at a fixed rate up to the capacity of the
+ * bucket, and every admitted command takes one, so a client can send a burst of up to the
+ * capacity and after that only as fast as the rate.
+ *
+ * <p>Not thread-safe: a bucket belongs to one connection, and is only used by the thread
+ * handling its requests.</p>
+ */
+public class TokenBucket {
+  private static final long NANOS_PER_SECOND = 1_000_000_000L;
+
+  private final double capacity;
+  private final double tokensPerNano;
+  private double tokens;
+  private long lastRefill;
+
+  /**
+   * Create a full token bucket.
+   *
+   * @param ratePerSecond The number of tokens added per second
+   * @param capacity      The largest number of tokens the bucket holds
+   */
+  public TokenBucket(double ratePerSecond, int capacity) {
+    if (ratePerSecond <= 0 || capacity <= 0) {
+      throw new IllegalArgumentException("Invalid rate or capacity: " + ratePerSecond + "/"
+          + capacity);
+    }
+    this.capacity = capacity;
+    this.tokensPerNano = ratePerSecond / NANOS_PER_SECOND;
+    this.tokens = capacity;
+    this.lastRefill = System.nanoTime();
+  }
+
+  /**
+   * Get how long it takes until a token is available, without taking it.
+   *
+   * @param now The current time, from {@link System#nanoTime()}
+   * @return The time to wait in nanoseconds, 0 if a token is available now
+   */
+  public long getDelay(long now) {
+    tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerNano);
+    lastRefill = now;
+    return tokens >= 1 ? 0 : (long) Math.ceil((1 - tokens) / tokensPerNano);
+  }
+
+  /**
+   * Take a token. Must only be called right after {@link #getDelay(long)} returned 0.
+   */
+  public void take() {
+    tokens--;
+  }
+}
@@ -0,0 +1,70 @@
+package no.ntnu.controlpanel;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Run every client handler on its own virtual thread. Virtual threads are cheap to block, so
+ * the blocking reads in {@link ClientHandler} no longer pin a native thread and its stack.
+ *
+ * <p>The project is compiled for Java 17, where virtual threads do not exist, so the executor
+ * is looked up by reflection. Use {@link #isSupported()} before creating the strategy.</p>
+ */
+public class VirtualThreadStrategy implements ClientExecutionStrategy {
+  private static final String FACTORY_METHOD = "newVirtualThreadPerTaskExecutor";
+
+  private final ExecutorService executor;
+  private final AtomicLong started = new AtomicLong();
+
+  /**
+   * Create a virtual thread strategy.
+   *
+   * @throws UnsupportedOperationException If the running JDK has no virtual threads
+   */
+  public VirtualThreadStrategy() {
+    try {
+      this.executor = (ExecutorService) Executors.class.getMethod(FACTORY_METHOD).invoke(null);
+    } catch (ReflectiveOperationException e) {
+      throw new UnsupportedOperationException("Virtual threads are not supported by Java "
+          + Runtime.version().feature());
+    }
+  }
+
+  /**
+   * Check whether the running JDK supports virtual threads.
+   *
+   * @return {@code true} if virtual threads are available, {@code false} otherwise.
+   */
+  public static boolean isSupported() {
+    boolean supported = true;
+    try {
+      Executors.class.getMethod(FACTORY_METHOD);
+    } catch (NoSuchMethodException e) {
+      supported = false;
+    }
+    return supported;
+  }
+
+  @Override
+  public boolean execute(Runnable handler) {
+    started.incrementAndGet();
+    executor.execute(handler);
+    return true;
+  }
+
+  @Override
+  public void executeWriter(Runnable writer) {
+    executor.execute(writer);
+  }
+
+  @Override
+  public String getStatistics() {
+    return "virtual threads: " + started.get() + " started";
+  }
+
+  @Override
+  public void shutdown() {
+    executor.shutdownNow();
+  }
+}
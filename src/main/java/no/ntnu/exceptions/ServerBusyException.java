@@ -0,0 +1,28 @@
+package no.ntnu.exceptions;
+
+/**
+ * Exception thrown when the greenhouse turns a request away because the control panel is over
+ * its rate limit.
+ */
+public class ServerBusyException extends Exception {
+  private final long retryAfter;
+
+  /**
+   * Constructor for the ServerBusyException class.
+   *
+   * @param retryAfter How many milliseconds to wait before sending the request again
+   */
+  public ServerBusyException(long retryAfter) {
+    super("The greenhouse is busy, retry after " + retryAfter + " ms");
+    this.retryAfter = retryAfter;
+  }
+
+  /**
+   * Get how long to wait before sending the request again.
+   *
+   * @return The time to wait, in milliseconds
+   */
+  public long getRetryAfter() {
+    return retryAfter;
+  }
+}
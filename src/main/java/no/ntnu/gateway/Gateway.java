@@ -0,0 +1,299 @@
+package no.ntnu.gateway;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import no.ntnu.controlpanel.AdmissionControl;
+import no.ntnu.controlpanel.ClientExecutionStrategy;
+import no.ntnu.controlpanel.ConnectionReaper;
+import no.ntnu.controlpanel.RealCommunicationChannel;
+import no.ntnu.controlpanel.ThreadPerConnectionStrategy;
+import no.ntnu.tools.BufferPool;
+import no.ntnu.tools.Logger;
+import no.ntnu.tools.MessageCodec;
+import no.ntnu.tools.SessionTickets;
+
+/**
+ * A gateway between many control panels and one greenhouse. It speaks the same protocol as the
+ * greenhouse to the control panels, and as a control panel to the greenhouse, over a few
+ * upstream connections shared by all the control panels.
+ *
+ * <p>Reads are answered from a short-lived {@link ReadCache}, and identical reads from
+ * different control panels share one request to the greenhouse, so a hundred dashboards polling
+ * the same node cost the greenhouse about as much as one. Actuator commands are sent on at
+ * once. Subscriptions, history downloads and telemetry are not supported through the gateway;
+ * control panels behind it poll.</p>
+ *
+ * <p>Every control panel is served by a {@link GatewayConnection}, which the
+ * {@link ClientExecutionStrategy} of the gateway runs, as on the blocking server of the
+ * greenhouse. The {@link AdmissionControl} of the gateway limits the number of control panels
+ * and the rate of their commands the same way.</p>
+ */
+public class Gateway {
+  /**
+   * The default TCP port the control panels connect to.
+   */
+  public static final int DEFAULT_PORT = 9059;
+  /**
+   * The default number of connections to the greenhouse.
+   */
+  public static final int DEFAULT_UPSTREAM_CONNECTIONS = 2;
+  // Enough for the responses being built at the same time, not one per control panel
+  private static final int POOLED_BUFFERS = 2 * Runtime.getRuntime().availableProcessors();
+
+  private final int port;
+  private final List<RealCommunicationChannel> upstream = new ArrayList<>();
+  private final ReadCache readCache;
+  private final SessionTickets sessionTickets = new SessionTickets();
+  private final AtomicInteger nextUpstream = new AtomicInteger();
+  // The upstream connections being reopened, so each is only reopened once at a time
+  private final Set<RealCommunicationChannel> reconnecting = ConcurrentHashMap.newKeySet();
+  private final AtomicLong connectionCount = new AtomicLong();
+  private final AdmissionControl admissionControl = new AdmissionControl();
+  private final BufferPool payloadBuffers =
+      new BufferPool(MessageCodec.MAX_PAYLOAD_SIZE, POOLED_BUFFERS);
+  private final BufferPool messageBuffers =
+      new BufferPool(MessageCodec.MAX_MESSAGE_SIZE, POOLED_BUFFERS);
+  private ClientExecutionStrategy executionStrategy = new ThreadPerConnectionStrategy();
+  private ServerSocket serverSocket;
+  private volatile boolean running;
+
+  /**
+   * Create a gateway.
+   *
+   * @param greenhouseHost      The host of the greenhouse
+   * @param greenhousePort      The TCP port of the greenhouse
+   * @param port                The TCP port the control panels connect to
+   * @param upstreamConnections The number of connections to the greenhouse
+   * @param ttl                 How long a read response is kept, in milliseconds
+   */
+  public Gateway(String greenhouseHost, int greenhousePort, int port, int upstreamConnections,
+                 long ttl) {
+    if (upstreamConnections <= 0) {
+      throw new IllegalArgumentException("Invalid number of upstream connections: "
+          + upstreamConnections);
+    }
+    this.port = port;
+    this.readCache = new ReadCache(ttl);
+    for (int i = 0; i < upstreamConnections; i++) {
+      RealCommunicationChannel channel =
+          new RealCommunicationChannel(greenhouseHost, greenhousePort);
+      // Deltas are made for each control panel, from the full readings
+      channel.setDeltaSensorData(false);
+      upstream.add(channel);
+    }
+  }
+
+  /**
+   * Choose which threads run the control panel connections. Must be called before
+   * {@link #start()}.
+   *
+   * @param executionStrategy The strategy for running the connections and their writer tasks
+   */
+  public void setExecutionStrategy(ClientExecutionStrategy executionStrategy) {
+    this.executionStrategy = executionStrategy;
+  }
+
+  /**
+   * Get the admission control of the control panel connections, to set its limits before
+   * {@link #start()}.
+   *
+   * @return The admission control, with the connection limit and the command rates
+   */
+  public AdmissionControl getAdmissionControl() {
+    return admissionControl;
+  }
+
+  /**
+   * Connect to the greenhouse and start accepting control panels.
+   *
+   * @return {@code true} on success, {@code false} if the greenhouse could not be reached or
+   *     the port could not be opened
+   */
+  public boolean start() {
+    int connected = 0;
+    for (RealCommunicationChannel channel : upstream) {
+      if (channel.open()) {
+        connected++;
+      }
+    }
+    if (connected == 0) {
+      Logger.error("Could not connect the gateway to the greenhouse");
+      return false;
+    }
+    try {
+      serverSocket = new ServerSocket(port);
+    } catch (IOException e) {
+      Logger.error("Could not open a listening socket on port " + port + ", reason: "
+          + e.getMessage());
+      return false;
+    }
+    running = true;
+    Thread acceptor = new Thread(this::acceptClients, "gateway-acceptor");
+    acceptor.start();
+    Logger.info("Gateway listening on port " + port + " with " + connected + " of "
+        + upstream.size() + " connections to the greenhouse");
+    return true;
+  }
+
+  /**
+   * Stop accepting control panels and close the connections to the greenhouse.
+   */
+  public void stop() {
+    running = false;
+    try {
+      if (serverSocket != null) {
+        serverSocket.close();
+      }
+    } catch (IOException e) {
+      Logger.error("Error closing the listening socket: " + e.getMessage());
+    }
+    executionStrategy.shutdown();
+    for (RealCommunicationChannel channel : upstream) {
+      channel.close();
+    }
+    Logger.info("Gateway stopped, " + getStatistics());
+  }
+
+  private void acceptClients() {
+    while (running) {
+      try {
+        admitClient(serverSocket.accept());
+      } catch (IOException e) {
+        if (running) {
+          Logger.error("Could not accept the next client: " + e.getMessage());
+        }
+      }
+    }
+  }
+
+  private void admitClient(Socket socket) {
+    AdmissionControl.Client admission = admissionControl.admit(socket.getRemoteSocketAddress());
+    if (admission == null) {
+      Logger.error("Too many control panels, rejecting " + socket.getRemoteSocketAddress()
+          + ", " + admissionControl.getStatistics());
+      closeRejected(socket);
+      return;
+    }
+    connectionCount.incrementAndGet();
+    if (!executionStrategy.execute(new GatewayConnection(this, socket, admission))) {
+      Logger.error("Rejected control panel connection, " + executionStrategy.getStatistics());
+      admission.close();
+      closeRejected(socket);
+    }
+  }
+
+  private static void closeRejected(Socket socket) {
+    try {
+      socket.close();
+    } catch (IOException e) {
+      Logger.error("Error closing a rejected connection: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Choose the upstream connection for the next request to the greenhouse. Connections which
+   * have been lost are reopened in the background meanwhile.
+   *
+   * @return A connected channel, or {@code null} if none of them is connected
+   */
+  RealCommunicationChannel nextUpstream() {
+    for (int i = 0; i < upstream.size(); i++) {
+      RealCommunicationChannel channel =
+          upstream.get(Math.floorMod(nextUpstream.getAndIncrement(), upstream.size()));
+      if (channel.isConnected()) {
+        return channel;
+      }
+      reconnect(channel);
+    }
+    return null;
+  }
+
+  private void reconnect(RealCommunicationChannel channel) {
+    if (running && reconnecting.add(channel)) {
+      Thread reconnector = new Thread(() -> {
+        try {
+          channel.open();
+        } finally {
+          reconnecting.remove(channel);
+        }
+      }, "gateway-reconnect");
+      reconnector.setDaemon(true);
+      reconnector.start();
+    }
+  }
+
+  /**
+   * Get the cache of the read responses.
+   *
+   * @return The read cache, with its hit ratio
+   */
+  public ReadCache getReadCache() {
+    return readCache;
+  }
+
+  /**
+   * Get the session tickets issued to the control panels, so they can resume their sessions
+   * when they reconnect.
+   *
+   * @return The session tickets of the gateway
+   */
+  SessionTickets getSessionTickets() {
+    return sessionTickets;
+  }
+
+  /**
+   * Get the strategy which runs the connections, and their writer tasks.
+   *
+   * @return The execution strategy
+   */
+  ClientExecutionStrategy getExecutionStrategy() {
+    return executionStrategy;
+  }
+
+  /**
+   * Get the buffers the connections build their response payloads in.
+   *
+   * @return The pool of payload buffers
+   */
+  BufferPool getPayloadBuffers() {
+    return payloadBuffers;
+  }
+
+  /**
+   * Get the buffers the connections encrypt their responses in.
+   *
+   * @return The pool of message buffers
+   */
+  BufferPool getMessageBuffers() {
+    return messageBuffers;
+  }
+
+  /**
+   * Get how long a control panel may be silent before its connection is closed.
+   *
+   * @return The idle timeout in milliseconds
+   */
+  long getIdleTimeout() {
+    return ConnectionReaper.DEFAULT_IDLE_TIMEOUT;
+  }
+
+  /**
+   * Get a summary of the gateway use, for logging.
+   *
+   * @return A human-readable description of the gateway statistics
+   */
+  public String getStatistics() {
+    long connectedUpstream = upstream.stream().filter(RealCommunicationChannel::isConnected)
+        .count();
+    return "gateway: " + connectionCount.get() + " control panels served, "
+        + connectedUpstream + "/" + upstream.size() + " connections to the greenhouse, "
+        + readCache.getStatistics() + ", " + admissionControl.getStatistics();
+  }
+}
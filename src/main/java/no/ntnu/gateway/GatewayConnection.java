@@ -0,0 +1,367 @@
+package no.ntnu.gateway;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import no.ntnu.commands.Command;
+import no.ntnu.commands.CommandFactory;
+import no.ntnu.commands.RequestSensorData;
+import no.ntnu.controlpanel.AdmissionControl;
+import no.ntnu.controlpanel.OutboundQueue;
+import no.ntnu.controlpanel.RealCommunicationChannel;
+import no.ntnu.controlpanel.ResponseFormatter;
+import no.ntnu.controlpanel.SensorDeltaEncoder;
+import no.ntnu.exceptions.MessageFormatException;
+import no.ntnu.exceptions.ServerBusyException;
+import no.ntnu.tools.KeyExchange;
+import no.ntnu.tools.Logger;
+import no.ntnu.tools.Message;
+import no.ntnu.tools.MessageCodec;
+import no.ntnu.tools.MessageType;
+import no.ntnu.tools.PayloadCompressor;
+
+/**
+ * One control panel connected to the gateway. To the control panel, the gateway is the
+ * greenhouse: the connection is encrypted with its own key, and the requests are answered with
+ * the same messages the greenhouse would send.
+ *
+ * <p>Reads are answered through the {@link ReadCache} of the gateway. Sensor data is always
+ * read from the greenhouse in full, and turned into delta responses here, as what a control
+ * panel has already received is known only on its own connection. Actuator commands are sent on
+ * to the greenhouse at once, and invalidate the cached reads of their node; batch actuator
+ * settings and scenes may change any node, and invalidate all the cached reads.</p>
+ *
+ * <p>The handler, which the execution strategy of the gateway runs, reads the requests. The
+ * responses complete on the threads of the upstream connections, and are queued for a writer
+ * task, which the strategy runs as well when something is queued, like the writer of a
+ * {@link no.ntnu.controlpanel.ClientHandler}. A slow control panel therefore never holds up
+ * the responses to the others, and an idle one holds no thread for writing. The responses are
+ * built in buffers shared by all the connections.</p>
+ */
+public class GatewayConnection implements Runnable {
+  private static final int INITIAL_BUFFER_SIZE = 4096;
+
+  private final Gateway gateway;
+  private final Socket socket;
+  private final AdmissionControl.Client admission;
+  private final OutboundQueue outboundQueue = new OutboundQueue();
+  private final CommandFactory commandFactory = new CommandFactory();
+  private final SensorDeltaEncoder sensorDeltaEncoder = new SensorDeltaEncoder();
+  private final Message request = new Message();
+  private final AtomicBoolean writeScheduled = new AtomicBoolean();
+  // Held while writing, so two writer tasks of the connection never write at the same time
+  private final Object writeLock = new Object();
+  // Grows when a large request requires it
+  private ByteBuffer requestBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+  private MessageCodec codec;
+  private OutputStream output;
+
+  /**
+   * Create a connection.
+   *
+   * @param gateway   The gateway
+   * @param socket    The socket of the control panel
+   * @param admission The admission of the control panel, see {@link AdmissionControl}
+   */
+  public GatewayConnection(Gateway gateway, Socket socket, AdmissionControl.Client admission) {
+    this.gateway = gateway;
+    this.socket = socket;
+    this.admission = admission;
+  }
+
+  @Override
+  public void run() {
+    Logger.info("Control panel connected to the gateway from "
+        + socket.getRemoteSocketAddress());
+    try {
+      // A control panel pings while it is quiet, so a long silence means it is gone
+      socket.setSoTimeout((int) gateway.getIdleTimeout());
+      InputStream input = socket.getInputStream();
+      output = socket.getOutputStream();
+      if (exchangeKeys(input, output)) {
+        handleRequests(input);
+      }
+    } catch (IOException e) {
+      Logger.error("Error on the gateway connection: " + e.getMessage());
+    } finally {
+      close();
+    }
+  }
+
+  private boolean exchangeKeys(InputStream input, OutputStream output) {
+    boolean success = false;
+    try {
+      KeyExchange keyExchange = new KeyExchange(KeyExchange.FEATURE_COMPRESSION);
+      codec = new MessageCodec(keyExchange.respond(input, output,
+          gateway.getSessionTickets()), false);
+      if ((keyExchange.getFeatures() & KeyExchange.FEATURE_COMPRESSION) != 0) {
+        codec.enableCompression(new PayloadCompressor());
+      }
+      success = true;
+    } catch (GeneralSecurityException | IOException e) {
+      Logger.error("Key exchange failed: " + e.getMessage());
+    }
+    return success;
+  }
+
+  private void handleRequests(InputStream input) throws IOException {
+    try {
+      for (ByteBuffer message = MessageCodec.readMessageGrowing(input, requestBuffer);
+           message != null; message = MessageCodec.readMessageGrowing(input, requestBuffer)) {
+        requestBuffer = message;
+        codec.decode(requestBuffer, request);
+        if (request.getType() == MessageType.SHUTDOWN) {
+          break;
+        }
+        // The same limits as on the greenhouse, before anything is sent upstream
+        long retryAfter = admission.admitCommand(request.getType());
+        if (retryAfter > 0) {
+          respondBusy(request.getRequestId(), request.getNodeId(), retryAfter);
+        } else {
+          handleRequest();
+        }
+        // Stop reading requests while the client is not reading the responses
+        outboundQueue.awaitCaughtUp();
+      }
+    } catch (SocketTimeoutException | EOFException e) {
+      Logger.info("Gateway connection closed: " + e.getMessage());
+    } catch (MessageFormatException e) {
+      Logger.error("Invalid message from the client: " + e.getMessage());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void handleRequest() {
+    int requestId = request.getRequestId();
+    int nodeId = request.getNodeId();
+    byte type = request.getType();
+    ByteBuffer payload = request.getPayload();
+    try {
+      switch (type) {
+        case MessageType.PING:
+          // Answered here, the greenhouse has its own keepalive
+          respond(MessageType.PONG, requestId, nodeId, payload);
+          break;
+        case MessageType.REQUEST_SENSOR_DATA:
+          byte mode = payload.hasRemaining() ? payload.get() : RequestSensorData.MODE_FULL;
+          read(new ReadCache.Key(type, nodeId, new byte[0]), new RequestSensorData(nodeId))
+              .whenComplete((response, error) ->
+                  respondSensorData(requestId, nodeId, mode, response, error));
+          break;
+        case MessageType.REQUEST_ACTUATOR_STATUS:
+        case MessageType.LIST_SENSORS:
+        case MessageType.BATCH_READ:
+          byte[] arguments = new byte[payload.remaining()];
+          payload.duplicate().get(arguments);
+          read(new ReadCache.Key(type, nodeId, arguments), commandFactory.parseCommand(request))
+              .whenComplete((response, error) ->
+                  respond(requestId, nodeId, response, error));
+          break;
+        case MessageType.SEND_ACTUATOR_COMMAND:
+          Command command = commandFactory.parseCommand(request);
+          gateway.getReadCache().invalidate(nodeId);
+          forward(command).whenComplete((response, error) -> {
+            // Reads which started while the command was on its way may have missed it
+            gateway.getReadCache().invalidate(nodeId);
+            respond(requestId, nodeId, response, error);
+          });
+          break;
+        case MessageType.SET_ACTUATORS:
+        case MessageType.RUN_SCENE:
+          // Any node may be changed, the scenes are only known to the greenhouse
+          Command settings = commandFactory.parseCommand(request);
+          gateway.getReadCache().invalidateAll();
+          forward(settings).whenComplete((response, error) -> {
+            gateway.getReadCache().invalidateAll();
+            respond(requestId, nodeId, response, error);
+          });
+          break;
+        case MessageType.SAVE_SCENE:
+          forward(commandFactory.parseCommand(request)).whenComplete((response, error) ->
+              respond(requestId, nodeId, response, error));
+          break;
+        default:
+          respondError(requestId, nodeId, "ERROR: Not supported through the gateway - "
+              + String.format("0x%02x", type));
+      }
+    } catch (MessageFormatException | IllegalArgumentException e) {
+      respondError(requestId, nodeId, "ERROR: Invalid command format - " + e.getMessage());
+    }
+  }
+
+  private CompletableFuture<Message> read(ReadCache.Key key, Command command) {
+    return gateway.getReadCache().get(key, () -> forward(command));
+  }
+
+  private CompletableFuture<Message> forward(Command command) {
+    RealCommunicationChannel upstream = gateway.nextUpstream();
+    if (upstream == null) {
+      return CompletableFuture.failedFuture(
+          new IOException("The gateway is not connected to the greenhouse"));
+    }
+    return upstream.forward(command);
+  }
+
+  private void respondSensorData(int requestId, int nodeId, byte mode, Message response,
+                                 Throwable error) {
+    if (error != null || mode == RequestSensorData.MODE_FULL
+        || response.getType() != MessageType.SENSOR_DATA) {
+      respond(requestId, nodeId, response, error);
+      return;
+    }
+    ByteBuffer payload = gateway.getPayloadBuffers().take();
+    try {
+      byte type;
+      // The encoder keeps what the control panel has received, one response at a time
+      synchronized (sensorDeltaEncoder) {
+        try {
+          type = sensorDeltaEncoder.writeReadings(nodeId,
+              ResponseFormatter.readSensorData(response.getPayload().duplicate()),
+              mode == RequestSensorData.MODE_KEYFRAME, payload);
+        } catch (BufferUnderflowException | BufferOverflowException e) {
+          payload.clear();
+          MessageCodec.putError(payload, "Invalid sensor data from the greenhouse");
+          type = MessageType.ERROR;
+        }
+        payload.flip();
+        respond(type, requestId, nodeId, payload);
+      }
+    } finally {
+      gateway.getPayloadBuffers().release(payload);
+    }
+  }
+
+  /**
+   * Send a response from the greenhouse on to the control panel, or tell it why there is none.
+   */
+  private void respond(int requestId, int nodeId, Message response, Throwable error) {
+    Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+    if (cause instanceof ServerBusyException busy) {
+      respondBusy(requestId, nodeId, busy.getRetryAfter());
+    } else if (cause instanceof TimeoutException) {
+      respondError(requestId, nodeId, "ERROR: No response from the greenhouse");
+    } else if (cause != null) {
+      respondError(requestId, nodeId, "ERROR: " + cause.getMessage());
+    } else {
+      respond(response.getType(), requestId, nodeId, response.getPayload().duplicate());
+    }
+  }
+
+  private void respondBusy(int requestId, int nodeId, long retryAfter) {
+    ByteBuffer payload = gateway.getPayloadBuffers().take();
+    try {
+      payload.putInt((int) Math.min(retryAfter, Integer.MAX_VALUE)).flip();
+      respond(MessageType.BUSY, requestId, nodeId, payload);
+    } finally {
+      gateway.getPayloadBuffers().release(payload);
+    }
+  }
+
+  private void respondError(int requestId, int nodeId, String message) {
+    ByteBuffer payload = gateway.getPayloadBuffers().take();
+    try {
+      MessageCodec.putError(payload, message);
+      payload.flip();
+      respond(MessageType.ERROR, requestId, nodeId, payload);
+    } finally {
+      gateway.getPayloadBuffers().release(payload);
+    }
+  }
+
+  /**
+   * Encrypt a response and queue it for the writer. Called on the handler thread and on the
+   * threads of the upstream connections; the responses are queued in the order of their
+   * counters.
+   */
+  private void respond(byte type, int requestId, int nodeId, ByteBuffer payload) {
+    ByteBuffer message = gateway.getMessageBuffers().take();
+    try {
+      synchronized (this) {
+        try {
+          codec.encode(type, requestId, nodeId, payload, message);
+        } catch (MessageFormatException e) {
+          Logger.error("Error encrypting response: " + e.getMessage());
+          return;
+        }
+        message.flip();
+        outboundQueue.addResponse(message);
+      }
+    } finally {
+      gateway.getMessageBuffers().release(message);
+    }
+    scheduleWrite();
+  }
+
+  private void scheduleWrite() {
+    if (writeScheduled.compareAndSet(false, true)) {
+      try {
+        gateway.getExecutionStrategy().executeWriter(this::writeQueued);
+      } catch (RejectedExecutionException e) {
+        // The gateway is stopping, and closes the connection
+        writeScheduled.set(false);
+      }
+    }
+  }
+
+  /**
+   * Write everything queued so far, including the messages queued while writing. Runs as the
+   * writer task of the connection, and on the handler thread when the connection is closed.
+   */
+  private void writeQueued() {
+    synchronized (writeLock) {
+      writeScheduled.set(false);
+      try {
+        ByteBuffer message = outboundQueue.poll();
+        if (message == null) {
+          return;
+        }
+        while (message != null) {
+          output.write(message.array(), message.arrayOffset() + message.position(),
+              message.remaining());
+          message = outboundQueue.poll();
+        }
+        output.flush();
+      } catch (IOException e) {
+        if (!socket.isClosed()) {
+          Logger.error("Failed to send response to client: " + e.getMessage());
+        }
+        // The handler, blocked on reading, then fails and cleans up
+        outboundQueue.close();
+        closeSocket();
+      }
+    }
+  }
+
+  private void close() {
+    outboundQueue.close();
+    if (output != null) {
+      // Send the responses which are already queued before the socket is closed
+      writeQueued();
+    }
+    closeSocket();
+    admission.close();
+    Logger.info("Control panel " + socket.getRemoteSocketAddress()
+        + " left the gateway, " + gateway.getReadCache().getStatistics());
+  }
+
+  private void closeSocket() {
+    try {
+      socket.close();
+    } catch (IOException e) {
+      Logger.error("Error closing socket: " + e.getMessage());
+    }
+  }
+}
@@ -0,0 +1,225 @@
+package no.ntnu.gateway;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import no.ntnu.tools.Message;
+import no.ntnu.tools.MessageType;
+
+/**
+ * The responses of the gateway to read requests, kept for a short time so repeated reads from
+ * many control panels are answered without asking the greenhouse again.
+ *
+ * <p>A read which is already waiting for the greenhouse is not sent again: every control panel
+ * asking for the same thing meanwhile gets the same response. Failed reads are not kept. Writes
+ * invalidate the responses they may have changed.</p>
+ *
+ * <p>Expired responses are dropped when a new read is added, at most once per time to live.
+ * The cache never holds more than its largest number of entries: when it is full even after
+ * that, other entries are dropped to make room, whether they have expired or not.</p>
+ *
+ * <p>All the methods are thread-safe.</p>
+ */
+public class ReadCache {
+  /**
+   * The default time a response is kept, in milliseconds.
+   */
+  public static final long DEFAULT_TTL = 1000;
+  /**
+   * The default largest number of responses kept.
+   */
+  public static final int DEFAULT_MAX_ENTRIES = 4096;
+
+  private final long ttl;
+  private final int maxEntries;
+  private final AtomicLong nextPurge = new AtomicLong(System.nanoTime());
+  private final Map<Key, Entry> entries = new ConcurrentHashMap<>();
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder joined = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+
+  /**
+   * Create an empty cache holding at most {@link #DEFAULT_MAX_ENTRIES} responses.
+   *
+   * @param ttl How long a response is kept, in milliseconds
+   */
+  public ReadCache(long ttl) {
+    this(ttl, DEFAULT_MAX_ENTRIES);
+  }
+
+  /**
+   * Create an empty cache.
+   *
+   * @param ttl        How long a response is kept, in milliseconds
+   * @param maxEntries The largest number of responses kept, including the reads waiting for
+   *                   the greenhouse
+   */
+  public ReadCache(long ttl, int maxEntries) {
+    if (ttl <= 0) {
+      throw new IllegalArgumentException("Invalid time to live: " + ttl);
+    }
+    if (maxEntries <= 0) {
+      throw new IllegalArgumentException("Invalid number of entries: " + maxEntries);
+    }
+    this.ttl = TimeUnit.MILLISECONDS.toNanos(ttl);
+    this.maxEntries = maxEntries;
+  }
+
+  /**
+   * Get the response to a read, from the cache, from a read of the same thing already waiting
+   * for the greenhouse, or else by reading it.
+   *
+   * @param key  What is read
+   * @param read Sends the read to the greenhouse, when it has to be
+   * @return A future which is completed with the response. The message is shared, so its
+   *     payload must only be read through a duplicate.
+   */
+  public CompletableFuture<Message> get(Key key, Supplier<CompletableFuture<Message>> read) {
+    long now = System.nanoTime();
+    Entry created = new Entry();
+    Entry entry = entries.compute(key, (k, current) ->
+        current != null && current.isUsable(now) ? current : created);
+    if (entry != created) {
+      if (entry.response.isDone()) {
+        hits.increment();
+      } else {
+        joined.increment();
+      }
+      return entry.response;
+    }
+    misses.increment();
+    purge(now);
+    try {
+      read.get().whenComplete((response, error) -> {
+        if (error != null) {
+          entries.remove(key, created);
+          created.response.completeExceptionally(error);
+        } else {
+          created.expires = System.nanoTime() + ttl;
+          created.response.complete(response);
+        }
+      });
+    } catch (RuntimeException e) {
+      entries.remove(key, created);
+      created.response.completeExceptionally(e);
+    }
+    return created.response;
+  }
+
+  /**
+   * Drop the expired responses, if that has not been done for a time to live, and then as many
+   * other entries as needed to get down to the largest number of entries.
+   */
+  private void purge(long now) {
+    long due = nextPurge.get();
+    if (now - due >= 0 && nextPurge.compareAndSet(due, now + ttl)) {
+      entries.values().removeIf(entry -> !entry.isUsable(now));
+    }
+    Iterator<Entry> iterator = entries.values().iterator();
+    while (entries.size() > maxEntries && iterator.hasNext()) {
+      iterator.next();
+      iterator.remove();
+    }
+  }
+
+  /**
+   * Get the number of responses kept, including the reads waiting for the greenhouse.
+   *
+   * @return The number of entries
+   */
+  public int size() {
+    return entries.size();
+  }
+
+  /**
+   * Forget the responses a write to a node may have changed. Reads already waiting for the
+   * greenhouse still complete, but are not kept.
+   *
+   * @param nodeId The ID of the node written to
+   */
+  public void invalidate(int nodeId) {
+    entries.keySet().removeIf(key -> key.nodeId == nodeId || key.type == MessageType.BATCH_READ);
+  }
+
+  /**
+   * Forget all the responses, after a write which may have changed any node.
+   */
+  public void invalidateAll() {
+    entries.clear();
+  }
+
+  /**
+   * Get how many reads were answered without asking the greenhouse.
+   *
+   * @return The part of the reads answered from the cache or by joining a waiting read, from 0
+   *     to 1
+   */
+  public double getHitRatio() {
+    long shared = hits.sum() + joined.sum();
+    long total = shared + misses.sum();
+    return total == 0 ? 0 : (double) shared / total;
+  }
+
+  /**
+   * Get a summary of the cache use, for logging.
+   *
+   * @return A human-readable description of the cache statistics
+   */
+  public String getStatistics() {
+    return String.format("read cache: %d responses, %d hits, %d joined, %d misses "
+            + "(%.1f%% answered without the greenhouse)", entries.size(), hits.sum(),
+        joined.sum(), misses.sum(), getHitRatio() * 100);
+  }
+
+  /**
+   * What a read request reads: its type, node and arguments.
+   */
+  public static final class Key {
+    private final byte type;
+    private final int nodeId;
+    private final byte[] arguments;
+
+    /**
+     * Create a key.
+     *
+     * @param type      The message type of the read request
+     * @param nodeId    The ID of the node read, or 0 when the read is not for one node
+     * @param arguments The other arguments of the read
+     */
+    public Key(byte type, int nodeId, byte[] arguments) {
+      this.type = type;
+      this.nodeId = nodeId;
+      this.arguments = arguments;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      return other instanceof Key key && type == key.type && nodeId == key.nodeId
+          && Arrays.equals(arguments, key.arguments);
+    }
+
+    @Override
+    public int hashCode() {
+      return (31 * type + nodeId) * 31 + Arrays.hashCode(arguments);
+    }
+  }
+
+  /**
+   * One response, while it is waiting for the greenhouse and after that until it expires.
+   */
+  private static class Entry {
+    private final CompletableFuture<Message> response = new CompletableFuture<>();
+    private volatile long expires;
+
+    boolean isUsable(long now) {
+      return !response.isDone()
+          || !response.isCompletedExceptionally() && now - expires < 0;
+    }
+  }
+}
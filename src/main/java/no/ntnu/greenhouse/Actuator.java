@@ -7,6 +7,10 @@ import no.ntnu.listeners.common.ActuatorListener;
 /**
  * An actuator that can change the environment in a way. The actuator will make impact on the
  * sensors attached to this same node.
+ *
+ * <p>Once the actuator is added to a node, turning it on or off queues the command on the node,
+ * which applies it together with the other actuator commands, and notifies the listeners of the
+ * node.</p>
  */
 public class Actuator {
   private static int nextId = 1;
@@ -16,8 +20,11 @@ public class Actuator {
   private Map<String, Double> impacts = new HashMap<>();
 
   private ActuatorListener listener;
+  // The node which applies the commands, once the actuator is added to one
+  private SensorActuatorNode node;
 
-  private boolean on;
+  // Only changed by the node while it holds its lock, but read by any thread
+  private volatile boolean on;
 
   /**
    * Create an actuator. An ID will be auto-generated.
@@ -59,6 +66,15 @@ public class Actuator {
     this.listener = listener;
   }
 
+  /**
+   * Let the node this actuator is added to apply the commands to it.
+   *
+   * @param node The node
+   */
+  void attachTo(SensorActuatorNode node) {
+    this.node = node;
+  }
+
   /**
    * Register the impact of this actuator when active.
    *
@@ -94,8 +110,12 @@ public class Actuator {
    * Toggle the actuator - if it was off, not it will be ON, and vice versa.
    */
   public void toggle() {
-    this.on = !this.on;
-    notifyChanges();
+    if (node != null) {
+      node.toggleActuator(this);
+    } else {
+      this.on = !this.on;
+      notifyChanges();
+    }
   }
 
   private void notifyChanges() {
@@ -114,18 +134,15 @@ public class Actuator {
   }
 
   /**
-   * Apply impact of this actuator to all sensors of one specific sensor node.
+   * Add the impact this actuator has on the sensors of its node, now that it has been turned on
+   * or off, to the total impact of several actuators.
    *
-   * @param node The sensor node to be affected by this actuator.
+   * @param totals The total impact on each type of sensor, added to
    */
-  public void applyImpact(SensorActuatorNode node) {
+  public void addImpact(Map<String, Double> totals) {
     for (Map.Entry<String, Double> impactEntry : impacts.entrySet()) {
-      String sensorType = impactEntry.getKey();
       double impact = impactEntry.getValue();
-      if (!on) {
-        impact = -impact;
-      }
-      node.applyActuatorImpact(sensorType, impact);
+      totals.merge(impactEntry.getKey(), on ? impact : -impact, Double::sum);
     }
   }
 
@@ -137,24 +154,28 @@ public class Actuator {
         + '}';
   }
 
+  /**
+   * Change the state without notifying the listener, when the node applies the impact and
+   * notifies its own listeners for a whole batch of changes.
+   *
+   * @param on Turn on when true, turn off when false
+   */
+  void setState(boolean on) {
+    this.on = on;
+  }
+
   /**
    * Turn on the actuator.
    */
   public void turnOn() {
-    if (!on) {
-      on = true;
-      notifyChanges();
-    }
+    set(true);
   }
 
   /**
    * Turn off the actuator.
    */
   public void turnOff() {
-    if (on) {
-      on = false;
-      notifyChanges();
-    }
+    set(false);
   }
 
   /**
@@ -177,10 +198,11 @@ public class Actuator {
    * @param on Turn on when true, turn off when false
    */
   public void set(boolean on) {
-    if (on) {
-      turnOn();
-    } else {
-      turnOff();
+    if (node != null) {
+      node.setActuator(this, on);
+    } else if (this.on != on) {
+      this.on = on;
+      notifyChanges();
     }
   }
 }
@@ -0,0 +1,187 @@
+package no.ntnu.greenhouse;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import no.ntnu.tools.MessageCodec;
+
+/**
+ * Desired states of actuators on any number of nodes: a list of (node ID, actuator ID, on/off)
+ * entries. Used by the batch actuator command, and stored as a named scene.
+ *
+ * <p>The settings are applied atomically per node, see {@link #apply(GreenhouseSimulator)}.</p>
+ */
+public final class ActuatorSettings {
+  /**
+   * The actuator is now off.
+   */
+  public static final byte RESULT_OFF = 0;
+  /**
+   * The actuator is now on.
+   */
+  public static final byte RESULT_ON = 1;
+  /**
+   * There is no node with the ID of the entry, nothing was changed for it.
+   */
+  public static final byte RESULT_UNKNOWN_NODE = 2;
+  /**
+   * The node has no actuator with the ID of the entry. Nothing was changed on the node.
+   */
+  public static final byte RESULT_UNKNOWN_ACTUATOR = 3;
+  /**
+   * The entry is valid, but nothing was changed on the node because another entry for the same
+   * node names an unknown actuator.
+   */
+  public static final byte RESULT_NOT_APPLIED = 4;
+
+  // Entry: node ID (4 bytes), actuator ID (4 bytes) and state (1 byte)
+  private static final int ENTRY_SIZE = 9;
+  /**
+   * The largest number of entries, so that the entry count and the entries fit in the payload of
+   * one message.
+   */
+  public static final int MAX_SETTINGS = (MessageCodec.MAX_PAYLOAD_SIZE - 2) / ENTRY_SIZE;
+
+  private final int[] nodeIds;
+  private final int[] actuatorIds;
+  private final boolean[] states;
+
+  /**
+   * Create actuator settings.
+   *
+   * @param nodeIds     The node ID of each entry
+   * @param actuatorIds The actuator ID of each entry
+   * @param states      The desired state of each entry, {@code true} for on
+   * @throws IllegalArgumentException If the arrays differ in length, or there are no entries
+   *                                  or more than {@link #MAX_SETTINGS}
+   */
+  public ActuatorSettings(int[] nodeIds, int[] actuatorIds, boolean[] states) {
+    if (nodeIds.length != actuatorIds.length || nodeIds.length != states.length) {
+      throw new IllegalArgumentException("Every actuator setting needs a node, an actuator "
+          + "and a state");
+    }
+    if (nodeIds.length == 0 || nodeIds.length > MAX_SETTINGS) {
+      throw new IllegalArgumentException("Invalid number of actuator settings: "
+          + nodeIds.length);
+    }
+    this.nodeIds = nodeIds.clone();
+    this.actuatorIds = actuatorIds.clone();
+    this.states = states.clone();
+  }
+
+  /**
+   * Get the number of entries.
+   *
+   * @return The number of actuators to set
+   */
+  public int size() {
+    return nodeIds.length;
+  }
+
+  /**
+   * Write the settings: entry count (2 bytes), then for each entry the node ID (4 bytes), the
+   * actuator ID (4 bytes) and the state (1 byte, 1 = on).
+   *
+   * @param buffer The buffer to write to
+   */
+  public void write(ByteBuffer buffer) {
+    buffer.putShort((short) nodeIds.length);
+    for (int i = 0; i < nodeIds.length; i++) {
+      buffer.putInt(nodeIds[i]);
+      buffer.putInt(actuatorIds[i]);
+      buffer.put((byte) (states[i] ? 1 : 0));
+    }
+  }
+
+  /**
+   * Read settings written by {@link #write(ByteBuffer)}.
+   *
+   * @param buffer The buffer to read from
+   * @return The settings
+   * @throws IllegalArgumentException If there are no entries, or a state is not 0 or 1
+   */
+  public static ActuatorSettings read(ByteBuffer buffer) {
+    int count = Short.toUnsignedInt(buffer.getShort());
+    if (buffer.remaining() < count * ENTRY_SIZE) {
+      throw new IllegalArgumentException("Missing actuator settings");
+    }
+    int[] nodeIds = new int[count];
+    int[] actuatorIds = new int[count];
+    boolean[] states = new boolean[count];
+    for (int i = 0; i < count; i++) {
+      nodeIds[i] = buffer.getInt();
+      actuatorIds[i] = buffer.getInt();
+      byte state = buffer.get();
+      if (state != 0 && state != 1) {
+        throw new IllegalArgumentException("Invalid actuator state: " + state);
+      }
+      states[i] = state == 1;
+    }
+    return new ActuatorSettings(nodeIds, actuatorIds, states);
+  }
+
+  /**
+   * Set the actuators of the greenhouse. The entries of one node are applied all together, and
+   * no other command changes the actuators of the node in between; if one of them names an
+   * actuator the node does not have, none of them are applied. The nodes are done one after
+   * the other, in the order they first appear.
+   *
+   * @param greenhouse The greenhouse
+   * @return The result of each entry, in the order of the entries: {@link #RESULT_OFF},
+   *     {@link #RESULT_ON}, {@link #RESULT_UNKNOWN_NODE}, {@link #RESULT_UNKNOWN_ACTUATOR} or
+   *     {@link #RESULT_NOT_APPLIED}
+   */
+  public byte[] apply(GreenhouseSimulator greenhouse) {
+    Map<Integer, List<Integer>> entriesByNode = new LinkedHashMap<>();
+    for (int i = 0; i < nodeIds.length; i++) {
+      entriesByNode.computeIfAbsent(nodeIds[i], id -> new ArrayList<>()).add(i);
+    }
+    byte[] results = new byte[nodeIds.length];
+    for (Map.Entry<Integer, List<Integer>> entry : entriesByNode.entrySet()) {
+      applyToNode(greenhouse, entry.getKey(), entry.getValue(), results);
+    }
+    return results;
+  }
+
+  private void applyToNode(GreenhouseSimulator greenhouse, int nodeId, List<Integer> entries,
+                           byte[] results) {
+    SensorActuatorNode node;
+    try {
+      node = greenhouse.getSensorNode(nodeId);
+    } catch (IllegalArgumentException e) {
+      node = null;
+    }
+    if (node == null) {
+      for (int i : entries) {
+        results[i] = RESULT_UNKNOWN_NODE;
+      }
+      return;
+    }
+    int[] ids = new int[entries.size()];
+    boolean[] on = new boolean[entries.size()];
+    boolean valid = true;
+    for (int j = 0; j < ids.length; j++) {
+      int i = entries.get(j);
+      ids[j] = actuatorIds[i];
+      on[j] = states[i];
+      if (node.getActuators().get(ids[j]) == null) {
+        results[i] = RESULT_UNKNOWN_ACTUATOR;
+        valid = false;
+      }
+    }
+    if (!valid) {
+      for (int i : entries) {
+        if (results[i] != RESULT_UNKNOWN_ACTUATOR) {
+          results[i] = RESULT_NOT_APPLIED;
+        }
+      }
+      return;
+    }
+    boolean[] applied = node.setActuators(ids, on);
+    for (int j = 0; j < applied.length; j++) {
+      results[entries.get(j)] = applied[j] ? RESULT_ON : RESULT_OFF;
+    }
+  }
+}
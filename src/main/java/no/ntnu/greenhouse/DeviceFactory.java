@@ -13,6 +13,10 @@ public class DeviceFactory {
   private static final double NORMAL_GREENHOUSE_HUMIDITY = 80;
   private static final String HUMIDITY_UNIT = "%";
   private static final String SENSOR_TYPE_TEMPERATURE = "temperature";
+  private static final String SENSOR_TYPE_HUMIDITY = "humidity";
+  private static final String ACTUATOR_TYPE_WINDOW = "window";
+  private static final String ACTUATOR_TYPE_FAN = "fan";
+  private static final String ACTUATOR_TYPE_HEATER = "heater";
 
   private static int nextNodeId = 1;
 
@@ -22,6 +26,20 @@ public class DeviceFactory {
   private DeviceFactory() {
   }
 
+  /**
+   * Get the names used by the devices this factory creates: the sensor types, their units and
+   * the actuator types. They appear in almost every message, which makes them useful as a
+   * compression dictionary.
+   *
+   * @return The names, the most common ones last
+   */
+  public static String[] getDeviceNames() {
+    return new String[] {
+        ACTUATOR_TYPE_HEATER, ACTUATOR_TYPE_FAN, ACTUATOR_TYPE_WINDOW,
+        HUMIDITY_UNIT, TEMPERATURE_UNIT, SENSOR_TYPE_HUMIDITY, SENSOR_TYPE_TEMPERATURE
+    };
+  }
+
   /**
    * Create a sensor/actuator device with specific number of sensors and actuators.
    *
@@ -83,7 +101,7 @@ public class DeviceFactory {
    * @return A typical humidity sensor which can be used as a template
    */
   public static Sensor createHumiditySensor() {
-    return new Sensor("humidity", MIN_HUMIDITY, MAX_HUMIDITY,
+    return new Sensor(SENSOR_TYPE_HUMIDITY, MIN_HUMIDITY, MAX_HUMIDITY,
         randomize(NORMAL_GREENHOUSE_HUMIDITY, 5.0), HUMIDITY_UNIT);
   }
 
@@ -94,9 +112,9 @@ public class DeviceFactory {
    * @return The window actuator
    */
   public static Actuator createWindow(int nodeId) {
-    Actuator actuator = new Actuator("window", nodeId);
+    Actuator actuator = new Actuator(ACTUATOR_TYPE_WINDOW, nodeId);
     actuator.setImpact(SENSOR_TYPE_TEMPERATURE, -5.0);
-    actuator.setImpact("humidity", -10.0);
+    actuator.setImpact(SENSOR_TYPE_HUMIDITY, -10.0);
     return actuator;
   }
 
@@ -107,7 +125,7 @@ public class DeviceFactory {
    * @return The fan actuator
    */
   public static Actuator createFan(int nodeId) {
-    Actuator actuator = new Actuator("fan", nodeId);
+    Actuator actuator = new Actuator(ACTUATOR_TYPE_FAN, nodeId);
     actuator.setImpact(SENSOR_TYPE_TEMPERATURE, -1.0);
     return actuator;
   }
@@ -119,7 +137,7 @@ public class DeviceFactory {
    * @return The heater actuator
    */
   public static Actuator createHeater(int nodeId) {
-    Actuator actuator = new Actuator("heater", nodeId);
+    Actuator actuator = new Actuator(ACTUATOR_TYPE_HEATER, nodeId);
     actuator.setImpact(SENSOR_TYPE_TEMPERATURE, 4.0);
     return actuator;
   }
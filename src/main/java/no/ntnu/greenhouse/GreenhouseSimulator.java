@@ -1,30 +1,76 @@
 package no.ntnu.greenhouse;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import no.ntnu.commands.CommandRegistry;
+import no.ntnu.controlpanel.AdmissionControl;
+import no.ntnu.controlpanel.ClientExecutionStrategy;
 import no.ntnu.controlpanel.ClientHandler;
+import no.ntnu.controlpanel.ConnectionReaper;
+import no.ntnu.controlpanel.NioGreenhouseServer;
+import no.ntnu.controlpanel.OutboundQueue;
+import no.ntnu.controlpanel.ThreadPerConnectionStrategy;
 import no.ntnu.listeners.greenhouse.NodeStateListener;
 import no.ntnu.tools.Logger;
+import no.ntnu.tools.SessionTickets;
 
 /**
  * Application entrypoint - a simulator for a greenhouse.
  */
 public class GreenhouseSimulator {
-  private final Map<Integer, SensorActuatorNode> nodes = new HashMap<>();
+  private final Map<Integer, SensorActuatorNode> nodes = new ConcurrentHashMap<>();
+  // Rebuilt only when a node is added or removed, read by every list request
+  private volatile TopologySnapshot topology = new TopologySnapshot(0, List.of());
 
   private final List<PeriodicSwitch> periodicSwitches = new LinkedList<>();
   private final boolean fake;
   public static final int TCP_PORT = 9057;
+  /**
+   * The default number of threads executing slow commands, such as history reads.
+   */
+  public static final int DEFAULT_COMMAND_THREADS = 4;
+  private int port = TCP_PORT;
   private ServerSocket serverSocket;
   private boolean running;
+  private volatile boolean started;
   private Socket clientSocket;
-
+  private ServerMode serverMode = ServerMode.THREAD_PER_CONNECTION;
+  private NioGreenhouseServer nioServer;
+  private ClientExecutionStrategy executionStrategy = new ThreadPerConnectionStrategy();
+  private int outboundHighWatermark = OutboundQueue.DEFAULT_HIGH_WATERMARK;
+  private int outboundLowWatermark = OutboundQueue.DEFAULT_LOW_WATERMARK;
+  private final SessionTickets sessionTickets = new SessionTickets();
+  private final ResponseCache responseCache = new ResponseCache();
+  private final CommandRegistry commandRegistry = CommandRegistry.createDefault();
+  private final SceneStore scenes = new SceneStore();
+  private Executor commandExecutor;
+  // Created in start() when no executor was set, and shut down in stop()
+  private ExecutorService defaultCommandExecutor;
+  private final AdmissionControl admissionControl = new AdmissionControl();
+  private long idleTimeout = ConnectionReaper.DEFAULT_IDLE_TIMEOUT;
+  private ConnectionReaper connectionReaper;
+  private boolean compression = true;
+  private Path historyFile;
+  private long historyMaxSize = SensorHistory.DEFAULT_MAX_SIZE;
+  private SensorHistory sensorHistory;
+  private InetSocketAddress telemetryGroup;
+  private NetworkInterface telemetryInterface;
+  private TelemetryPublisher telemetryPublisher;
 
   /**
    * Create a greenhouse simulator.
@@ -36,6 +82,237 @@ public class GreenhouseSimulator {
     this.fake = fake;
   }
 
+  /**
+   * Get the cache of the serialized sensor data and actuator status responses of the nodes.
+   *
+   * @return The response cache, with its hit ratio
+   */
+  public ResponseCache getResponseCache() {
+    return responseCache;
+  }
+
+  /**
+   * Get the handlers of the requests from the control panels, to add new request types before
+   * {@link #start()}.
+   *
+   * @return The command registry
+   */
+  public CommandRegistry getCommandRegistry() {
+    return commandRegistry;
+  }
+
+  /**
+   * Get the named scenes the control panels have saved.
+   *
+   * @return The scene store
+   */
+  public SceneStore getScenes() {
+    return scenes;
+  }
+
+  /**
+   * Set the executor of the slow commands, which connections hand over so they can go on with
+   * their next requests meanwhile. Must be called before {@link #start()}.
+   *
+   * @param commandExecutor The executor, or {@code null} for a pool of
+   *                        {@link #DEFAULT_COMMAND_THREADS} threads
+   */
+  public void setCommandExecutor(Executor commandExecutor) {
+    this.commandExecutor = commandExecutor;
+  }
+
+  /**
+   * Get the executor of the slow commands, see {@link CommandRegistry#registerSlow}.
+   *
+   * @return The executor
+   */
+  public Executor getCommandExecutor() {
+    return commandExecutor;
+  }
+
+  /**
+   * Set the TCP port the control panels connect to, so several greenhouses can run on the same
+   * host. Must be called before {@link #start()}.
+   *
+   * @param port The port number, {@link #TCP_PORT} by default
+   */
+  public void setPort(int port) {
+    if (port <= 0 || port > 0xFFFF) {
+      throw new IllegalArgumentException("Invalid port: " + port);
+    }
+    this.port = port;
+  }
+
+  /**
+   * Choose how control panel connections are served. Must be called before {@link #start()}.
+   *
+   * @param serverMode The server mode to use for real communication
+   */
+  public void setServerMode(ServerMode serverMode) {
+    this.serverMode = serverMode;
+  }
+
+  /**
+   * Choose which threads run the client handlers of the blocking server. Must be called before
+   * {@link #start()}. Not used by the non-blocking server.
+   *
+   * @param executionStrategy The strategy for running client handlers
+   */
+  public void setExecutionStrategy(ClientExecutionStrategy executionStrategy) {
+    this.executionStrategy = executionStrategy;
+  }
+
+  /**
+   * Get the strategy which runs the client handlers, and their writer tasks, of the blocking
+   * server.
+   *
+   * @return The execution strategy
+   */
+  public ClientExecutionStrategy getExecutionStrategy() {
+    return executionStrategy;
+  }
+
+  /**
+   * Set how many bytes may wait to be written to a control panel. Above the high watermark, no
+   * more requests are read from the control panel and new sensor updates are dropped, until the
+   * queue has drained below the low watermark. Must be called before {@link #start()}.
+   *
+   * @param highWatermark The high watermark, in bytes
+   * @param lowWatermark  The low watermark, in bytes
+   */
+  public void setOutboundWatermarks(int highWatermark, int lowWatermark) {
+    if (lowWatermark < 0 || highWatermark < lowWatermark) {
+      throw new IllegalArgumentException("Invalid watermarks: " + highWatermark + "/"
+          + lowWatermark);
+    }
+    this.outboundHighWatermark = highWatermark;
+    this.outboundLowWatermark = lowWatermark;
+  }
+
+  /**
+   * Create the outbound queue of a new control panel connection.
+   *
+   * @return A queue with the configured watermarks
+   */
+  public OutboundQueue createOutboundQueue() {
+    return new OutboundQueue(outboundHighWatermark, outboundLowWatermark);
+  }
+
+  /**
+   * Get the admission control of the control panel connections, to set its limits before
+   * {@link #start()}.
+   *
+   * @return The admission control, with the connection limit and the command rates
+   */
+  public AdmissionControl getAdmissionControl() {
+    return admissionControl;
+  }
+
+  /**
+   * Set how long a control panel connection may be idle before it is closed. Control panels
+   * ping the greenhouse while they have nothing else to send, so only dead connections are
+   * closed. Must be called before {@link #start()}.
+   *
+   * @param idleTimeout The idle timeout in milliseconds, or 0 to never close idle connections
+   */
+  public void setIdleTimeout(long idleTimeout) {
+    if (idleTimeout < 0) {
+      throw new IllegalArgumentException("Invalid idle timeout: " + idleTimeout);
+    }
+    this.idleTimeout = idleTimeout;
+  }
+
+  /**
+   * Get the reaper which closes the idle control panel connections.
+   *
+   * @return The connection reaper, or {@code null} before the communication is started
+   */
+  public ConnectionReaper getConnectionReaper() {
+    return connectionReaper;
+  }
+
+  /**
+   * Set whether large payloads may be compressed, for the control panels which support it.
+   * Must be called before {@link #start()}.
+   *
+   * @param compression {@code true} to offer compression, {@code false} otherwise
+   */
+  public void setCompression(boolean compression) {
+    this.compression = compression;
+  }
+
+  /**
+   * Check whether large payloads may be compressed.
+   *
+   * @return {@code true} if compression is offered to the control panels
+   */
+  public boolean isCompressionEnabled() {
+    return compression;
+  }
+
+  /**
+   * Set the file the sensor readings are recorded in, or {@code null} to not record them, which
+   * is the default. Must be called before {@link #start()}.
+   *
+   * @param historyFile The history file. Records are added to the end of an existing file.
+   */
+  public void setHistoryFile(Path historyFile) {
+    this.historyFile = historyFile;
+  }
+
+  /**
+   * Set the size the history file may grow to; no more readings are recorded after that. Must
+   * be called before {@link #start()}.
+   *
+   * @param maxSize The size limit in bytes, {@link SensorHistory#DEFAULT_MAX_SIZE} by default
+   */
+  public void setHistoryLimit(long maxSize) {
+    if (maxSize <= 0) {
+      throw new IllegalArgumentException("Invalid history size limit: " + maxSize);
+    }
+    this.historyMaxSize = maxSize;
+  }
+
+  /**
+   * Get the recorded sensor readings.
+   *
+   * @return The sensor history, or {@code null} if the readings are not recorded
+   */
+  public SensorHistory getSensorHistory() {
+    return sensorHistory;
+  }
+
+  /**
+   * Multicast the new sensor readings and actuator states to a group, for the control panels
+   * which join it. Turned off by default. Must be called before {@link #start()}.
+   *
+   * @param group            The multicast group and port, or {@code null} to not multicast
+   * @param networkInterface The interface to multicast on
+   */
+  public void setTelemetry(InetSocketAddress group, NetworkInterface networkInterface) {
+    this.telemetryGroup = group;
+    this.telemetryInterface = networkInterface;
+  }
+
+  /**
+   * Get the multicast telemetry publisher.
+   *
+   * @return The publisher, or {@code null} if the greenhouse does not multicast
+   */
+  public TelemetryPublisher getTelemetryPublisher() {
+    return telemetryPublisher;
+  }
+
+  /**
+   * Get the session tickets of this greenhouse, used by reconnecting control panels to skip
+   * the full key exchange.
+   *
+   * @return The session ticket issuer
+   */
+  public SessionTickets getSessionTickets() {
+    return sessionTickets;
+  }
+
   /**
    * Initialise the greenhouse but don't start the simulation just yet.
    */
@@ -43,6 +320,7 @@ public class GreenhouseSimulator {
     createNode(1, 2, 1, 0, 0);
     createNode(1, 0, 0, 2, 1);
     createNode(2, 0, 0, 0, 0);
+    updateTopology();
     Logger.info("Greenhouse initialized");
   }
 
@@ -50,12 +328,73 @@ public class GreenhouseSimulator {
     SensorActuatorNode node = DeviceFactory.createNode(
         temperature, humidity, windows, fans, heaters);
     nodes.put(node.getId(), node);
+    responseCache.watch(node);
+  }
+
+  /**
+   * Add a node to the greenhouse. The node is started at once if the simulation is running.
+   *
+   * @param node The node, with an ID no other node in the greenhouse has
+   */
+  public void addNode(SensorActuatorNode node) {
+    if (nodes.putIfAbsent(node.getId(), node) != null) {
+      throw new IllegalArgumentException("Node with ID " + node.getId() + " already exists");
+    }
+    responseCache.watch(node);
+    updateTopology();
+    if (started) {
+      if (sensorHistory != null) {
+        sensorHistory.record(node);
+      }
+      node.start();
+    }
+  }
+
+  /**
+   * Remove a node from the greenhouse, stopping it.
+   *
+   * @param nodeId The ID of the node
+   * @return The removed node, or {@code null} if there is no node with that ID
+   */
+  public SensorActuatorNode removeNode(int nodeId) {
+    SensorActuatorNode node = nodes.remove(nodeId);
+    if (node != null) {
+      updateTopology();
+      responseCache.forget(node);
+      node.stop();
+    }
+    return node;
+  }
+
+  private synchronized void updateTopology() {
+    topology = new TopologySnapshot(topology.getVersion() + 1, nodes.values());
+  }
+
+  /**
+   * Get the nodes of the greenhouse as they are now.
+   *
+   * @return The current topology snapshot, which does not change when nodes are added or
+   *     removed later
+   */
+  public TopologySnapshot getTopology() {
+    return topology;
   }
 
   /**
    * Start a simulation of a greenhouse - all the sensor and actuator nodes inside it.
    */
   public void start() {
+    if (commandExecutor == null) {
+      AtomicInteger threadNumber = new AtomicInteger();
+      defaultCommandExecutor = Executors.newFixedThreadPool(DEFAULT_COMMAND_THREADS, task -> {
+        Thread thread = new Thread(task, "greenhouse-command-" + threadNumber.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      });
+      commandExecutor = defaultCommandExecutor;
+    }
+    startRecording();
+    startTelemetry();
     initiateCommunication();
     for (SensorActuatorNode node : nodes.values()) {
       node.start();
@@ -63,10 +402,38 @@ public class GreenhouseSimulator {
     for (PeriodicSwitch periodicSwitch : periodicSwitches) {
       periodicSwitch.start();
     }
+    started = true;
 
     Logger.info("Simulator started");
   }
 
+  private void startRecording() {
+    if (historyFile != null) {
+      try {
+        sensorHistory = new SensorHistory(historyFile, historyMaxSize);
+        for (SensorActuatorNode node : nodes.values()) {
+          sensorHistory.record(node);
+        }
+        Logger.info("Recording sensor history in " + historyFile + ", "
+            + sensorHistory.getSize() + " bytes so far");
+      } catch (IOException e) {
+        Logger.error("Could not open the sensor history: " + e.getMessage());
+      }
+    }
+  }
+
+  private void startTelemetry() {
+    if (telemetryGroup != null && !fake) {
+      try {
+        TelemetryPublisher publisher = new TelemetryPublisher(telemetryGroup, telemetryInterface);
+        publisher.start(nodes.values());
+        telemetryPublisher = publisher;
+      } catch (IOException | GeneralSecurityException e) {
+        Logger.error("Could not start multicast telemetry: " + e.getMessage());
+      }
+    }
+  }
+
   private void initiateCommunication() {
     if (fake) {
       initiateFakePeriodicSwitches();
@@ -79,6 +446,14 @@ public class GreenhouseSimulator {
    * Start the real communication with the greenhouse.
    */
   private void initiateRealCommunication() {
+    this.connectionReaper = new ConnectionReaper(idleTimeout);
+    this.connectionReaper.start();
+    if (serverMode == ServerMode.NIO) {
+      int eventLoops = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+      this.nioServer = new NioGreenhouseServer(this, port, eventLoops);
+      this.nioServer.start();
+      return;
+    }
     // Start a new thread for the server
     new Thread(() -> {
       // Open a listening socket
@@ -89,9 +464,7 @@ public class GreenhouseSimulator {
           this.clientSocket = acceptNextClient();
           // If the client is not null, start a new client handler
           if (this.clientSocket != null) {
-            Logger.info("Accepted new client connection: " + this.clientSocket.getInetAddress());
-            ClientHandler clientHandler = new ClientHandler(this, this.clientSocket);
-            clientHandler.start();
+            serveClient(this.clientSocket);
           }
         }
       }
@@ -107,10 +480,12 @@ public class GreenhouseSimulator {
   private boolean openListeningSocket() {
     boolean success = false;
     try {
-      this.serverSocket = new ServerSocket(this.TCP_PORT);
+      // Opened through a channel, so the accepted sockets have channels for file transfers
+      this.serverSocket = ServerSocketChannel.open()
+          .bind(new InetSocketAddress(port)).socket();
       success = true;
     } catch (IOException e) {
-      System.err.println("Could not open a listening socket on port " + TCP_PORT
+      System.err.println("Could not open a listening socket on port " + port
           + ", reason: " + e.getMessage());
     }
     return success;
@@ -131,6 +506,31 @@ public class GreenhouseSimulator {
     return clientSocket;
   }
 
+  private void serveClient(Socket socket) {
+    AdmissionControl.Client admission = admissionControl.admit(socket.getRemoteSocketAddress());
+    if (admission == null) {
+      Logger.error("Rejected client connection " + socket.getRemoteSocketAddress() + ", "
+          + admissionControl.getStatistics());
+      closeRejectedClient(socket);
+      return;
+    }
+    Logger.info("Accepted new client connection: " + socket.getInetAddress());
+    ClientHandler clientHandler = new ClientHandler(this, socket, admission);
+    if (!executionStrategy.execute(clientHandler)) {
+      Logger.error("Rejected client connection, " + executionStrategy.getStatistics());
+      admission.close();
+      closeRejectedClient(socket);
+    }
+  }
+
+  private void closeRejectedClient(Socket rejectedSocket) {
+    try {
+      rejectedSocket.close();
+    } catch (IOException e) {
+      Logger.error("Error closing rejected client socket: " + e.getMessage());
+    }
+  }
+
   private void initiateFakePeriodicSwitches() {
     periodicSwitches.add(new PeriodicSwitch("Window DJ", nodes.get(1), 2, 20000));
     periodicSwitches.add(new PeriodicSwitch("Heater DJ", nodes.get(2), 7, 8000));
@@ -140,10 +540,21 @@ public class GreenhouseSimulator {
    * Stop the simulation of the greenhouse - all the nodes in it.
    */
   public void stop() {
+    started = false;
     stopCommunication();
     for (SensorActuatorNode node : nodes.values()) {
       node.stop();
     }
+    if (sensorHistory != null) {
+      sensorHistory.close();
+    }
+    if (telemetryPublisher != null) {
+      telemetryPublisher.stop();
+    }
+    if (defaultCommandExecutor != null) {
+      defaultCommandExecutor.shutdownNow();
+    }
+    Logger.info("Simulator stopped, " + responseCache.getStatistics());
   }
 
   private void stopCommunication() {
@@ -151,8 +562,13 @@ public class GreenhouseSimulator {
       for (PeriodicSwitch periodicSwitch : periodicSwitches) {
         periodicSwitch.stop();
       }
+    } else if (nioServer != null) {
+      nioServer.stop();
+      connectionReaper.stop();
     } else {
+      connectionReaper.stop();
       this.running = false;
+      executionStrategy.shutdown();
       try {
         if (clientSocket != null) {
           clientSocket.close();
@@ -192,9 +608,9 @@ public class GreenhouseSimulator {
   /**
    * Returns all the sensor/actuator nodes in the greenhouse.
    *
-   * @return A list of all the nodes
+   * @return A list of all the nodes, sorted by their ID
    */
   public ArrayList<SensorActuatorNode> getSensors() {
-    return new ArrayList<>(nodes.values().stream().toList());
+    return new ArrayList<>(topology.getNodes());
   }
 }
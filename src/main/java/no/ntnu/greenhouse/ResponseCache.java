@@ -0,0 +1,180 @@
+package no.ntnu.greenhouse;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import no.ntnu.listeners.common.ActuatorListener;
+import no.ntnu.listeners.greenhouse.SensorListener;
+import no.ntnu.tools.MessageType;
+
+/**
+ * The serialized sensor data and actuator status responses of every node, kept until the node
+ * changes. The sensor readings only change every few seconds and the actuators when they are
+ * switched, so most requests are answered by copying the bytes of the previous response.
+ *
+ * <p>The responses of a node are forgotten when it notifies its listeners of new sensor
+ * readings or of an actuator change; an actuator change also changes the readings, through its
+ * impact. When several connections ask for a response which is not cached, one of them
+ * serializes it, and the others wait for it and copy it.</p>
+ *
+ * <p>All the methods are thread-safe.</p>
+ */
+public class ResponseCache {
+  private final Map<Integer, NodeResponses> nodes = new ConcurrentHashMap<>();
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder joined = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder invalidations = new LongAdder();
+
+  /**
+   * Start caching the responses of a node.
+   *
+   * @param node The node
+   */
+  public void watch(SensorActuatorNode node) {
+    NodeResponses responses = new NodeResponses();
+    node.addSensorListener(responses);
+    node.addActuatorListener(responses);
+    nodes.put(node.getId(), responses);
+  }
+
+  /**
+   * Stop caching the responses of a node, when it is removed.
+   *
+   * @param node The node
+   */
+  public void forget(SensorActuatorNode node) {
+    NodeResponses responses = nodes.remove(node.getId());
+    if (responses != null) {
+      node.removeSensorListener(responses);
+      node.removeActuatorListener(responses);
+    }
+  }
+
+  /**
+   * Write a response payload about a node, from the cache if it has not changed since it was
+   * last serialized.
+   *
+   * @param node       The node
+   * @param type       The message type of the response, {@link MessageType#SENSOR_DATA} or
+   *                   {@link MessageType#ACTUATOR_STATUS}
+   * @param response   The buffer to write the response payload to
+   * @param serializer Writes the response payload of the node, when it is not cached
+   */
+  public void write(SensorActuatorNode node, byte type, ByteBuffer response,
+                    BiConsumer<SensorActuatorNode, ByteBuffer> serializer) {
+    NodeResponses responses = nodes.get(node.getId());
+    if (responses == null) {
+      serializer.accept(node, response);
+      return;
+    }
+    Slot slot;
+    if (type == MessageType.SENSOR_DATA) {
+      slot = responses.sensorData;
+    } else if (type == MessageType.ACTUATOR_STATUS) {
+      slot = responses.actuatorStatus;
+    } else {
+      throw new IllegalArgumentException("Responses of type " + type + " are not cached");
+    }
+    slot.write(node, response, serializer);
+  }
+
+  /**
+   * Get the part of the requests answered without serializing the response.
+   *
+   * @return The hit ratio, from 0 to 1
+   */
+  public double getHitRatio() {
+    long shared = hits.sum() + joined.sum();
+    long total = shared + misses.sum();
+    return total == 0 ? 0 : (double) shared / total;
+  }
+
+  /**
+   * Get a summary of the cache use, for logging.
+   *
+   * @return A human-readable description of the cache statistics
+   */
+  public String getStatistics() {
+    return String.format("response cache: %d hits, %d joined, %d misses, %d invalidations "
+            + "(%.1f%% hit ratio)", hits.sum(), joined.sum(), misses.sum(), invalidations.sum(),
+        getHitRatio() * 100);
+  }
+
+  /**
+   * The cached responses of one node, forgotten when the node changes.
+   */
+  private class NodeResponses implements SensorListener, ActuatorListener {
+    private final Slot sensorData = new Slot();
+    private final Slot actuatorStatus = new Slot();
+
+    @Override
+    public void sensorsUpdated(List<Sensor> sensors) {
+      sensorData.invalidate();
+    }
+
+    @Override
+    public void actuatorUpdated(int nodeId, Actuator actuator) {
+      // The impact of the actuator has changed the readings as well
+      sensorData.invalidate();
+      actuatorStatus.invalidate();
+    }
+  }
+
+  /**
+   * One cached response. While the response is being serialized, the slot holds an incomplete
+   * future, which the other requests wait for.
+   */
+  private class Slot {
+    private final AtomicReference<CompletableFuture<byte[]>> current = new AtomicReference<>();
+
+    void write(SensorActuatorNode node, ByteBuffer response,
+               BiConsumer<SensorActuatorNode, ByteBuffer> serializer) {
+      CompletableFuture<byte[]> cached = current.get();
+      while (cached == null) {
+        CompletableFuture<byte[]> created = new CompletableFuture<>();
+        if (current.compareAndSet(null, created)) {
+          misses.increment();
+          serialize(node, response, serializer, created);
+          return;
+        }
+        cached = current.get();
+      }
+      if (cached.isDone()) {
+        hits.increment();
+      } else {
+        joined.increment();
+      }
+      // Serializing takes microseconds, so waiting for it is cheaper than doing it again
+      response.put(cached.join());
+    }
+
+    private void serialize(SensorActuatorNode node, ByteBuffer response,
+                           BiConsumer<SensorActuatorNode, ByteBuffer> serializer,
+                           CompletableFuture<byte[]> created) {
+      int start = response.position();
+      try {
+        serializer.accept(node, response);
+      } catch (RuntimeException e) {
+        current.compareAndSet(created, null);
+        created.completeExceptionally(e);
+        throw e;
+      }
+      byte[] bytes = new byte[response.position() - start];
+      response.get(start, bytes);
+      created.complete(bytes);
+    }
+
+    void invalidate() {
+      // A response being serialized while the node changed is not kept either
+      if (current.getAndSet(null) != null) {
+        invalidations.increment();
+      }
+    }
+  }
+}
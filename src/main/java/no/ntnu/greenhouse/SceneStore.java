@@ -0,0 +1,67 @@
+package no.ntnu.greenhouse;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The named scenes of the greenhouse: actuator settings saved by a control panel, which any
+ * control panel can then apply by the ID of the scene alone.
+ *
+ * <p>Saving a scene with the name of an existing one replaces its settings and keeps its ID.
+ * The scenes are kept in memory until the greenhouse stops. All the methods are
+ * thread-safe.</p>
+ */
+public class SceneStore {
+  /**
+   * The largest number of scenes.
+   */
+  public static final int MAX_SCENES = 256;
+
+  private final Map<String, Integer> ids = new HashMap<>();
+  private final Map<Integer, ActuatorSettings> scenes = new ConcurrentHashMap<>();
+  private int nextId = 1;
+
+  /**
+   * Save a scene.
+   *
+   * @param name     The name of the scene
+   * @param settings The actuator settings of the scene
+   * @return The ID of the scene
+   * @throws IllegalArgumentException If the name is empty, or there are too many scenes
+   */
+  public synchronized int save(String name, ActuatorSettings settings) {
+    if (name == null || name.isEmpty()) {
+      throw new IllegalArgumentException("Scene name missing");
+    }
+    Integer id = ids.get(name);
+    if (id == null) {
+      if (ids.size() >= MAX_SCENES) {
+        throw new IllegalArgumentException("Too many scenes, at most " + MAX_SCENES);
+      }
+      id = nextId++;
+      ids.put(name, id);
+    }
+    scenes.put(id, settings);
+    return id;
+  }
+
+  /**
+   * Get the settings of a scene.
+   *
+   * @param id The ID of the scene
+   * @return The actuator settings, or {@code null} if there is no scene with the ID
+   */
+  public ActuatorSettings get(int id) {
+    return scenes.get(id);
+  }
+
+  /**
+   * Get the number of scenes.
+   *
+   * @return The number of saved scenes
+   */
+  public int size() {
+    return scenes.size();
+  }
+}
@@ -1,10 +1,18 @@
 package no.ntnu.greenhouse;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 import java.util.Random;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
 import no.ntnu.listeners.common.ActuatorListener;
 import no.ntnu.listeners.common.CommunicationChannelListener;
 import no.ntnu.listeners.greenhouse.NodeStateListener;
@@ -13,18 +21,30 @@ import no.ntnu.tools.Logger;
 
 /**
  * Represents one node with sensors and actuators.
+ *
+ * <p>Actuator commands are put in an ordered queue, and applied in batches while holding the
+ * lock of the node: the thread which gets the lock applies all the commands queued so far, and
+ * commands sent meanwhile wait for the next batch. Within a batch only the final state of each
+ * actuator counts, so two toggles cancel out and repeated sets collapse into the last one. Each
+ * actuator which ends up changed has its impact applied once per batch, and the sensors are
+ * scanned once for all of them. A reader holding the lock sees all of a batch or none of it.
+ * The listeners are notified of the changed actuators once the lock is released, so a slow
+ * listener does not hold up the next batch.</p>
  */
-public class SensorActuatorNode implements ActuatorListener, CommunicationChannelListener {
+public class SensorActuatorNode implements CommunicationChannelListener {
   // How often to generate new sensor values, in seconds.
   private static final long SENSING_DELAY = 5000;
   private final int id;
 
   private final List<Sensor> sensors = new LinkedList<>();
   private final ActuatorCollection actuators = new ActuatorCollection();
+  // Actuator commands waiting for the next batch, in the order they were sent
+  private final Queue<ActuatorOperation> pendingOperations = new ConcurrentLinkedQueue<>();
 
-  private final List<SensorListener> sensorListeners = new LinkedList<>();
-  private final List<ActuatorListener> actuatorListeners = new LinkedList<>();
-  private final List<NodeStateListener> stateListeners = new LinkedList<>();
+  // Listeners can be added and removed by connection threads while the sensor timer notifies
+  private final List<SensorListener> sensorListeners = new CopyOnWriteArrayList<>();
+  private final List<ActuatorListener> actuatorListeners = new CopyOnWriteArrayList<>();
+  private final List<NodeStateListener> stateListeners = new CopyOnWriteArrayList<>();
 
   Timer sensorReadingTimer;
 
@@ -82,7 +102,7 @@ public class SensorActuatorNode implements ActuatorListener, CommunicationChanne
    * @param actuator The actuator to add
    */
   public void addActuator(Actuator actuator) {
-    actuator.setListener(this);
+    actuator.attachTo(this);
     actuators.add(actuator);
     Logger.info("Created " + actuator.getType() + "[" + actuator.getId() + "] on node " + id);
   }
@@ -98,6 +118,15 @@ public class SensorActuatorNode implements ActuatorListener, CommunicationChanne
     }
   }
 
+  /**
+   * Unregister a listener for sensor updates.
+   *
+   * @param listener The listener which should no longer get notified
+   */
+  public void removeSensorListener(SensorListener listener) {
+    sensorListeners.remove(listener);
+  }
+
   /**
    * Register a new listener for actuator updates.
    *
@@ -109,6 +138,15 @@ public class SensorActuatorNode implements ActuatorListener, CommunicationChanne
     }
   }
 
+  /**
+   * Unregister a listener for actuator updates.
+   *
+   * @param listener The listener which should no longer get notified
+   */
+  public void removeActuatorListener(ActuatorListener listener) {
+    actuatorListeners.remove(listener);
+  }
+
   /**
    * Register a new listener for node state updates.
    *
@@ -200,14 +238,25 @@ public class SensorActuatorNode implements ActuatorListener, CommunicationChanne
    * Toggle an actuator attached to this device.
    *
    * @param actuatorId The ID of the actuator to toggle
+   * @return The state of the actuator once the batch the toggle was applied in is done
    * @throws IllegalArgumentException If no actuator with given configuration is found on this node
    */
-  public void toggleActuator(int actuatorId) {
+  public boolean toggleActuator(int actuatorId) {
     Actuator actuator = getActuator(actuatorId);
     if (actuator == null) {
       throw new IllegalArgumentException("actuator[" + actuatorId + "] not found on node " + id);
     }
-    actuator.toggle();
+    return toggleActuator(actuator);
+  }
+
+  /**
+   * Toggle an actuator of this node, queued like the commands of the control panels.
+   *
+   * @param actuator The actuator to toggle
+   * @return The state of the actuator once the batch the toggle was applied in is done
+   */
+  boolean toggleActuator(Actuator actuator) {
+    return apply(new ActuatorOperation(new Actuator[] {actuator}, null))[0];
   }
 
   private Actuator getActuator(int actuatorId) {
@@ -220,10 +269,63 @@ public class SensorActuatorNode implements ActuatorListener, CommunicationChanne
     }
   }
 
-  @Override
-  public void actuatorUpdated(int nodeId, Actuator actuator) {
-    actuator.applyImpact(this);
-    notifyActuatorChange(actuator);
+  private boolean[] apply(ActuatorOperation operation) {
+    pendingOperations.add(operation);
+    for (Actuator actuator : applyPendingOperations()) {
+      notifyActuatorChange(actuator);
+    }
+    // Applied by now, by this thread or by the one which held the lock before
+    return operation.results;
+  }
+
+  /**
+   * Apply all the queued actuator commands as one batch.
+   *
+   * @return The actuators changed by the batch, empty when another thread applied the commands
+   */
+  private synchronized List<Actuator> applyPendingOperations() {
+    List<ActuatorOperation> batch = new ArrayList<>();
+    for (ActuatorOperation operation = pendingOperations.poll(); operation != null;
+         operation = pendingOperations.poll()) {
+      batch.add(operation);
+    }
+    if (batch.isEmpty()) {
+      return List.of();
+    }
+    // The state each actuator would have after the commands one by one
+    Map<Actuator, Boolean> states = new LinkedHashMap<>();
+    for (ActuatorOperation operation : batch) {
+      for (int i = 0; i < operation.actuators.length; i++) {
+        Actuator actuator = operation.actuators[i];
+        boolean on = states.getOrDefault(actuator, actuator.isOn());
+        states.put(actuator, operation.states == null ? !on : operation.states[i]);
+      }
+    }
+    List<Actuator> changed = new ArrayList<>();
+    Map<String, Double> impacts = new HashMap<>();
+    for (Map.Entry<Actuator, Boolean> state : states.entrySet()) {
+      Actuator actuator = state.getKey();
+      if (actuator.isOn() != state.getValue()) {
+        actuator.setState(state.getValue());
+        actuator.addImpact(impacts);
+        changed.add(actuator);
+      }
+    }
+    for (ActuatorOperation operation : batch) {
+      operation.results = new boolean[operation.actuators.length];
+      for (int i = 0; i < operation.actuators.length; i++) {
+        operation.results[i] = operation.actuators[i].isOn();
+      }
+    }
+    if (!impacts.isEmpty()) {
+      for (Sensor sensor : sensors) {
+        Double impact = impacts.get(sensor.getType());
+        if (impact != null) {
+          sensor.applyImpact(impact);
+        }
+      }
+    }
+    return changed;
   }
 
   private void notifyActuatorChange(Actuator actuator) {
@@ -252,20 +354,6 @@ public class SensorActuatorNode implements ActuatorListener, CommunicationChanne
     }
   }
 
-  /**
-   * An actuator has been turned on or off. Apply an impact from it to all sensors of given type.
-   *
-   * @param sensorType The type of sensors affected
-   * @param impact     The impact to apply
-   */
-  public void applyActuatorImpact(String sensorType, double impact) {
-    for (Sensor sensor : sensors) {
-      if (sensor.getType().equals(sensorType)) {
-        sensor.applyImpact(impact);
-      }
-    }
-  }
-
   /**
    * Get all the sensors available on the device.
    *
@@ -295,12 +383,26 @@ public class SensorActuatorNode implements ActuatorListener, CommunicationChanne
    *
    * @param actuatorId ID of the actuator to set.
    * @param on         Whether it should be on (true) or off (false)
+   * @return The state of the actuator once the batch the command was applied in is done, or
+   *     {@code false} if there is no such actuator
    */
-  public void setActuator(int actuatorId, boolean on) {
+  public boolean setActuator(int actuatorId, boolean on) {
     Actuator actuator = getActuator(actuatorId);
-    if (actuator != null) {
-      actuator.set(on);
+    if (actuator == null) {
+      return false;
     }
+    return setActuator(actuator, on);
+  }
+
+  /**
+   * Set an actuator of this node, queued like the commands of the control panels.
+   *
+   * @param actuator The actuator to set
+   * @param on       Whether it should be on (true) or off (false)
+   * @return The state of the actuator once the batch the command was applied in is done
+   */
+  boolean setActuator(Actuator actuator, boolean on) {
+    return apply(new ActuatorOperation(new Actuator[] {actuator}, new boolean[] {on}))[0];
   }
 
   /**
@@ -309,8 +411,51 @@ public class SensorActuatorNode implements ActuatorListener, CommunicationChanne
    * @param on Whether the actuators should be on (true) or off (false)
    */
   public void setAllActuators(boolean on) {
+    List<Actuator> all = new ArrayList<>();
     for (Actuator actuator : actuators) {
-      actuator.set(on);
+      all.add(actuator);
+    }
+    boolean[] states = new boolean[all.size()];
+    Arrays.fill(states, on);
+    apply(new ActuatorOperation(all.toArray(new Actuator[0]), states));
+  }
+
+  /**
+   * Set several actuators to desired states, all together. If one of the actuators is missing,
+   * none of them are changed. When the same actuator is named more than once, the last state
+   * wins.
+   *
+   * @param actuatorIds The IDs of the actuators to set
+   * @param on          The desired state of each actuator, {@code true} for on
+   * @return The state of each actuator once the batch the command was applied in is done
+   * @throws IllegalArgumentException If one of the actuators is not found on this node
+   */
+  public boolean[] setActuators(int[] actuatorIds, boolean[] on) {
+    Actuator[] selected = new Actuator[actuatorIds.length];
+    for (int i = 0; i < actuatorIds.length; i++) {
+      selected[i] = getActuator(actuatorIds[i]);
+      if (selected[i] == null) {
+        throw new IllegalArgumentException("actuator[" + actuatorIds[i] + "] not found on node "
+            + id);
+      }
+    }
+    return apply(new ActuatorOperation(selected, on.clone()));
+  }
+
+  /**
+   * One actuator command waiting in the queue of the node. All its actuators are set in the
+   * same batch.
+   */
+  private static final class ActuatorOperation {
+    private final Actuator[] actuators;
+    // The desired state of each actuator, or null to toggle them
+    private final boolean[] states;
+    // The state of each actuator after the batch, set when the batch is applied
+    private boolean[] results;
+
+    ActuatorOperation(Actuator[] actuators, boolean[] states) {
+      this.actuators = actuators;
+      this.states = states;
     }
   }
 }
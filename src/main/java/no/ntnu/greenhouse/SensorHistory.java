@@ -0,0 +1,230 @@
+package no.ntnu.greenhouse;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import no.ntnu.controlpanel.FileRegion;
+import no.ntnu.tools.Logger;
+import no.ntnu.tools.MessageCodec;
+
+/**
+ * The recorded sensor readings of all the nodes, kept in an append-only file.
+ *
+ * <p>Every time a node generates readings, one record is appended: the time in milliseconds
+ * (8 bytes), the node ID (4 bytes), the sensor count (2 bytes) and the readings, written like in
+ * a SENSOR_DATA payload. Control panels download it in chunks, which are either copied into an
+ * encrypted response or, when the control panel asks for it, go unencrypted straight from the
+ * file to the socket.</p>
+ *
+ * <p>Chunks never cross a multiple of {@link #CHUNK_SIZE}. As the file only grows, the digest of
+ * a complete chunk never changes, so it is calculated only once.</p>
+ *
+ * <p>The file is locked while it is open, so two greenhouses never record in the same file. Once
+ * the file has reached its size limit, no more records are added; the recorded part stays
+ * available for download.</p>
+ */
+public class SensorHistory {
+  /**
+   * The largest chunk of the history sent at a time, in bytes.
+   */
+  public static final int CHUNK_SIZE = 1024 * 1024;
+  /**
+   * The default size limit of the history file, in bytes.
+   */
+  public static final long DEFAULT_MAX_SIZE = 64L * 1024 * 1024;
+
+  private static final int MAX_RECORD_SIZE = 4096;
+
+  private final Path path;
+  private final FileChannel file;
+  private final long maxSize;
+  private final ByteBuffer record = ByteBuffer.allocate(MAX_RECORD_SIZE);
+  private final Map<Long, byte[]> chunkDigests = new ConcurrentHashMap<>();
+  private volatile long size;
+  private boolean full;
+
+  /**
+   * Open the history file, creating it if it does not exist. New records are added after the
+   * ones already in the file.
+   *
+   * @param path    The history file
+   * @param maxSize The size the file may grow to, in bytes
+   * @throws IOException If the file can not be opened, or is used by another greenhouse
+   */
+  public SensorHistory(Path path, long maxSize) throws IOException {
+    if (maxSize <= 0) {
+      throw new IllegalArgumentException("Invalid history size limit: " + maxSize);
+    }
+    this.path = path;
+    this.maxSize = maxSize;
+    this.file = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+    // Released when the file is closed
+    FileLock lock;
+    try {
+      lock = file.tryLock();
+    } catch (OverlappingFileLockException e) {
+      lock = null;
+    }
+    if (lock == null) {
+      file.close();
+      throw new IOException(path + " is used by another greenhouse");
+    }
+    this.size = file.size();
+  }
+
+  /**
+   * Record the readings of a node from now on.
+   *
+   * @param node The node
+   */
+  public void record(SensorActuatorNode node) {
+    node.addSensorListener(sensors -> append(node.getId(), sensors));
+  }
+
+  /**
+   * Append one record to the history.
+   *
+   * @param nodeId  The node the readings are from
+   * @param sensors The sensors of the node, with their new readings
+   */
+  public synchronized void append(int nodeId, List<Sensor> sensors) {
+    record.clear();
+    record.putLong(System.currentTimeMillis())
+        .putInt(nodeId)
+        .putShort((short) sensors.size());
+    for (Sensor sensor : sensors) {
+      MessageCodec.putReading(record, sensor.getReading());
+    }
+    record.flip();
+    if (full) {
+      return;
+    }
+    if (size + record.remaining() > maxSize) {
+      full = true;
+      Logger.error("The sensor history " + path + " has reached its limit of " + maxSize
+          + " bytes, no more readings are recorded");
+      return;
+    }
+    try {
+      long position = size;
+      while (record.hasRemaining()) {
+        position += file.write(record, position);
+      }
+      // Only make the record visible once it has been completely written
+      size = position;
+    } catch (IOException e) {
+      Logger.error("Could not record sensor history: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Get the size of the history.
+   *
+   * @return The number of bytes recorded
+   */
+  public long getSize() {
+    return size;
+  }
+
+  /**
+   * Get the length of the chunk starting at an offset.
+   *
+   * @param offset    Where the chunk starts
+   * @param maxLength The largest chunk the control panel wants
+   * @return The length of the chunk, 0 at the end of the history
+   * @throws IllegalArgumentException If the offset is outside of the history
+   */
+  public int getChunkLength(long offset, int maxLength) {
+    long currentSize = size;
+    if (offset < 0 || offset > currentSize) {
+      throw new IllegalArgumentException("Offset " + offset + " is outside of the history ("
+          + currentSize + " bytes)");
+    }
+    long chunkEnd = (offset / CHUNK_SIZE + 1) * CHUNK_SIZE;
+    return (int) Math.min(Math.min(maxLength, chunkEnd - offset), currentSize - offset);
+  }
+
+  /**
+   * Get a part of the history file, to send to a control panel.
+   *
+   * @param offset Where the part starts
+   * @param length The length of the part, see {@link #getChunkLength(long, int)}
+   * @return The part of the file
+   */
+  public FileRegion getRegion(long offset, int length) {
+    return new FileRegion(file, offset, length);
+  }
+
+  /**
+   * Read a chunk of the history into a buffer, to send it inside a message.
+   *
+   * @param offset Where the chunk starts
+   * @param length The length of the chunk, see {@link #getChunkLength(long, int)}
+   * @param target The buffer to read into, with room for the whole chunk
+   * @throws IOException If the file can not be read, or has become shorter than the chunk
+   */
+  public void read(long offset, int length, ByteBuffer target) throws IOException {
+    long position = offset;
+    long end = offset + length;
+    while (position < end) {
+      int count = file.read(target.slice(target.position(), (int) (end - position)), position);
+      if (count < 0) {
+        throw new IOException("The history ended " + (end - position) + " bytes before the chunk");
+      }
+      target.position(target.position() + count);
+      position += count;
+    }
+  }
+
+  /**
+   * Calculate the SHA-256 digest of a chunk, without reading it into the heap.
+   *
+   * @param offset Where the chunk starts
+   * @param length The length of the chunk, see {@link #getChunkLength(long, int)}
+   * @return The digest
+   * @throws IOException If the file can not be read
+   */
+  public byte[] getDigest(long offset, int length) throws IOException {
+    boolean complete = offset % CHUNK_SIZE == 0 && length == CHUNK_SIZE;
+    byte[] digest = complete ? chunkDigests.get(offset) : null;
+    if (digest == null) {
+      MessageDigest sha256;
+      try {
+        sha256 = MessageDigest.getInstance("SHA-256");
+      } catch (NoSuchAlgorithmException e) {
+        throw new IOException("SHA-256 is not available", e);
+      }
+      if (length > 0) {
+        MappedByteBuffer chunk = file.map(FileChannel.MapMode.READ_ONLY, offset, length);
+        sha256.update(chunk);
+      }
+      digest = sha256.digest();
+      if (complete) {
+        chunkDigests.put(offset, digest);
+      }
+    }
+    return digest;
+  }
+
+  /**
+   * Close the history file.
+   */
+  public void close() {
+    try {
+      file.close();
+    } catch (IOException e) {
+      Logger.error("Error closing the sensor history " + path + ": " + e.getMessage());
+    }
+  }
+}
@@ -0,0 +1,15 @@
+package no.ntnu.greenhouse;
+
+/**
+ * The ways the greenhouse can serve control panel connections.
+ */
+public enum ServerMode {
+  /**
+   * A blocking server socket, with one {@code ClientHandler} thread per connection.
+   */
+  THREAD_PER_CONNECTION,
+  /**
+   * A non-blocking server, where a few event loop threads multiplex all the connections.
+   */
+  NIO
+}
@@ -0,0 +1,221 @@
+package no.ntnu.greenhouse;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.security.GeneralSecurityException;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import no.ntnu.exceptions.MessageFormatException;
+import no.ntnu.tools.Logger;
+import no.ntnu.tools.MessageCodec;
+import no.ntnu.tools.MessageType;
+
+/**
+ * Multicasts the new sensor readings and actuator states of all the nodes, so any number of
+ * control panels can follow the greenhouse while it sends every update only once.
+ *
+ * <p>Each datagram is one ordinary protocol message, a SENSOR_DATA or ACTUATOR_STATE update
+ * with request ID 0, sealed with a group key instead of the key of a connection. The message
+ * counter numbers the datagrams, so a control panel can tell when it has missed some. The
+ * control panels get the key over their own encrypted connection, with
+ * {@link MessageType#JOIN_TELEMETRY}.</p>
+ *
+ * <p>The last {@link #RETAINED_COUNT} datagrams are kept, so a control panel which has missed
+ * some can have them sent again over its connection with
+ * {@link MessageType#RESEND_TELEMETRY}.</p>
+ */
+public class TelemetryPublisher {
+  /**
+   * The multicast group used when no other is chosen: an organization-local address, with the
+   * port after the TCP port of the greenhouse.
+   */
+  public static final String DEFAULT_GROUP = "239.255.90.57";
+  /**
+   * The port used when no other is chosen.
+   */
+  public static final int DEFAULT_PORT = GreenhouseSimulator.TCP_PORT + 1;
+  /**
+   * The largest datagram sent, so it fits in one Ethernet frame.
+   */
+  public static final int MAX_DATAGRAM_SIZE = 1472;
+  /**
+   * How many of the last datagrams can be sent again.
+   */
+  public static final int RETAINED_COUNT = 256;
+
+  private final InetSocketAddress group;
+  private final NetworkInterface networkInterface;
+  private final SecretKey key;
+  private final MessageCodec codec;
+  private final ByteBuffer payload =
+      ByteBuffer.allocate(MAX_DATAGRAM_SIZE - MessageCodec.HEADER_SIZE - MessageCodec.OVERHEAD);
+  private final ByteBuffer sealed = ByteBuffer.allocate(MAX_DATAGRAM_SIZE);
+  private final ByteBuffer[] retained = new ByteBuffer[RETAINED_COUNT];
+  private final AtomicLong sentCount = new AtomicLong();
+  private final AtomicLong resentCount = new AtomicLong();
+  private DatagramChannel channel;
+  private long nextSequence;
+
+  /**
+   * Create a publisher with a new random group key.
+   *
+   * @param group            The multicast group and port to send to
+   * @param networkInterface The interface to send on
+   * @throws GeneralSecurityException If AES is not available
+   */
+  public TelemetryPublisher(InetSocketAddress group, NetworkInterface networkInterface)
+      throws GeneralSecurityException {
+    this.group = group;
+    this.networkInterface = networkInterface;
+    KeyGenerator keyGenerator = KeyGenerator.getInstance("AES");
+    keyGenerator.init(128);
+    this.key = keyGenerator.generateKey();
+    this.codec = new MessageCodec(key, false);
+  }
+
+  /**
+   * Open the datagram socket and start publishing the updates of some nodes.
+   *
+   * @param nodes The nodes to publish
+   * @throws IOException If the socket can not be opened
+   */
+  public void start(Collection<SensorActuatorNode> nodes) throws IOException {
+    channel = DatagramChannel.open(StandardProtocolFamily.INET)
+        .setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface)
+        .setOption(StandardSocketOptions.IP_MULTICAST_TTL, 1)
+        .setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
+    for (SensorActuatorNode node : nodes) {
+      node.addSensorListener(sensors -> publishSensorData(node.getId(), sensors));
+      node.addActuatorListener(this::publishActuatorState);
+    }
+    Logger.info("Publishing telemetry to " + group + " on " + networkInterface.getName());
+  }
+
+  /**
+   * Write what a control panel needs to join the telemetry group: the group address (string),
+   * the port (2 bytes), the group key (16 bytes) and the sequence number of the next datagram
+   * (8 bytes).
+   *
+   * @param response The buffer to write to
+   */
+  public synchronized void writeGroup(ByteBuffer response) {
+    MessageCodec.putString(response, group.getAddress().getHostAddress());
+    response.putShort((short) group.getPort())
+        .put(key.getEncoded())
+        .putLong(nextSequence);
+  }
+
+  /**
+   * Write the datagrams with some sequence numbers again, for a control panel which missed
+   * them. Each one is written as its length (2 bytes) followed by the datagram. Datagrams which
+   * are no longer kept, or do not fit in the response, are left out.
+   *
+   * @param first    The sequence number of the first datagram wanted
+   * @param count    The number of datagrams wanted
+   * @param response The buffer to write to, after the number of datagrams written (2 bytes)
+   */
+  public synchronized void writeRetained(long first, int count, ByteBuffer response) {
+    int countPosition = response.position();
+    response.putShort((short) 0);
+    int written = 0;
+    long start = Math.max(first, nextSequence - RETAINED_COUNT);
+    long end = Math.min(first + count, nextSequence);
+    for (long sequence = Math.max(start, 0); sequence < end; sequence++) {
+      ByteBuffer datagram = retained[(int) (sequence % RETAINED_COUNT)];
+      if (datagram == null || MessageCodec.getCounter(datagram) != sequence) {
+        // The datagram could not be sealed
+        continue;
+      }
+      if (response.remaining() < 2 + datagram.remaining()) {
+        break;
+      }
+      datagram = datagram.duplicate();
+      response.putShort((short) datagram.remaining()).put(datagram);
+      written++;
+    }
+    response.putShort(countPosition, (short) written);
+    resentCount.addAndGet(written);
+  }
+
+  /**
+   * Stop publishing and close the socket.
+   */
+  public void stop() {
+    try {
+      if (channel != null) {
+        channel.close();
+      }
+    } catch (IOException e) {
+      Logger.error("Error closing the telemetry socket: " + e.getMessage());
+    }
+    Logger.info("Telemetry stopped, " + getStatistics());
+  }
+
+  /**
+   * Get how much has been published, for logging.
+   *
+   * @return The number of datagrams multicast and sent again over connections
+   */
+  public String getStatistics() {
+    return "telemetry: " + sentCount.get() + " datagrams multicast, " + resentCount.get()
+        + " resent";
+  }
+
+  private synchronized void publishSensorData(int nodeId, List<Sensor> sensors) {
+    payload.clear();
+    payload.putShort((short) sensors.size());
+    try {
+      for (Sensor sensor : sensors) {
+        MessageCodec.putReading(payload, sensor.getReading());
+      }
+    } catch (BufferOverflowException e) {
+      Logger.error("The readings of node " + nodeId + " do not fit in a datagram");
+      return;
+    }
+    publish(MessageType.SENSOR_DATA, nodeId);
+  }
+
+  private synchronized void publishActuatorState(int nodeId, Actuator actuator) {
+    payload.clear();
+    payload.putInt(actuator.getId()).put((byte) (actuator.isOn() ? 1 : 0));
+    publish(MessageType.ACTUATOR_STATE, nodeId);
+  }
+
+  /**
+   * Seal the payload as the next datagram, keep it and send it.
+   */
+  private void publish(byte type, int nodeId) {
+    payload.flip();
+    sealed.clear();
+    try {
+      codec.encode(type, MessageCodec.NO_REQUEST_ID, nodeId, payload, sealed);
+    } catch (MessageFormatException e) {
+      Logger.error("Could not seal telemetry from node " + nodeId + ": " + e.getMessage());
+      return;
+    }
+    sealed.flip();
+    long sequence = MessageCodec.getCounter(sealed);
+    int slot = (int) (sequence % RETAINED_COUNT);
+    if (retained[slot] == null) {
+      retained[slot] = ByteBuffer.allocate(MAX_DATAGRAM_SIZE);
+    }
+    retained[slot].clear().put(sealed.duplicate()).flip();
+    nextSequence = sequence + 1;
+    try {
+      channel.send(sealed, group);
+      sentCount.incrementAndGet();
+    } catch (IOException e) {
+      // Control panels get the datagram from the retained ones when they notice the gap
+      Logger.error("Could not multicast telemetry: " + e.getMessage());
+    }
+  }
+}
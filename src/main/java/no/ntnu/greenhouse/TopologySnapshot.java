@@ -0,0 +1,145 @@
+package no.ntnu.greenhouse;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import no.ntnu.tools.MessageCodec;
+
+/**
+ * The nodes of the greenhouse at one point in time, with their node list entries already
+ * serialized. A snapshot never changes: when a node is added or removed, the greenhouse builds a
+ * new snapshot with the next version number, so listing the nodes only copies bytes.
+ *
+ * <p>The nodes are sorted by their ID, which is what a cursor into the list is: a page starts
+ * at the first node with a greater ID than the cursor.</p>
+ */
+public final class TopologySnapshot {
+  // Page header: version (4 bytes), next cursor (4 bytes) and node count (2 bytes)
+  private static final int PAGE_HEADER_SIZE = 10;
+
+  private final int version;
+  private final List<SensorActuatorNode> nodes;
+  private final int[] nodeIds;
+  private final byte[][] entries;
+  private final int listSize;
+
+  /**
+   * Build a snapshot of the nodes.
+   *
+   * @param version The version of the snapshot, greater than that of the previous one
+   * @param nodes   The nodes of the greenhouse
+   */
+  public TopologySnapshot(int version, Collection<SensorActuatorNode> nodes) {
+    List<SensorActuatorNode> sorted = new ArrayList<>(nodes);
+    sorted.sort(Comparator.comparingInt(SensorActuatorNode::getId));
+    this.version = version;
+    this.nodes = Collections.unmodifiableList(sorted);
+    this.nodeIds = new int[sorted.size()];
+    this.entries = new byte[sorted.size()][];
+    int size = Short.BYTES;
+    ByteBuffer entry = ByteBuffer.allocate(MessageCodec.MAX_PAYLOAD_SIZE);
+    for (int i = 0; i < nodeIds.length; i++) {
+      SensorActuatorNode node = sorted.get(i);
+      nodeIds[i] = node.getId();
+      entry.clear();
+      writeEntry(node, entry);
+      entry.flip();
+      entries[i] = new byte[entry.remaining()];
+      entry.get(entries[i]);
+      size += entries[i].length;
+    }
+    this.listSize = size;
+  }
+
+  private static void writeEntry(SensorActuatorNode node, ByteBuffer entry) {
+    entry.putInt(node.getId());
+    entry.putShort((short) node.getSensors().size());
+    for (Sensor sensor : node.getSensors()) {
+      MessageCodec.putString(entry, sensor.getType());
+    }
+    ActuatorCollection actuators = node.getActuators();
+    entry.putShort((short) actuators.size());
+    for (Actuator actuator : actuators) {
+      entry.putInt(actuator.getId());
+      MessageCodec.putString(entry, actuator.getType());
+    }
+  }
+
+  /**
+   * Get the version of the snapshot.
+   *
+   * @return The version, which changes every time a node is added or removed
+   */
+  public int getVersion() {
+    return version;
+  }
+
+  /**
+   * Get the nodes of the snapshot.
+   *
+   * @return The nodes sorted by their ID, in a list which can not be changed
+   */
+  public List<SensorActuatorNode> getNodes() {
+    return nodes;
+  }
+
+  /**
+   * Find a node of the snapshot.
+   *
+   * @param nodeId The ID of the node
+   * @return The node, or {@code null} if there is no node with the ID
+   */
+  public SensorActuatorNode getNode(int nodeId) {
+    int index = Arrays.binarySearch(nodeIds, nodeId);
+    return index >= 0 ? nodes.get(index) : null;
+  }
+
+  /**
+   * Write the whole node list: the node count (2 bytes) and all the entries.
+   *
+   * @param response The buffer to write the node list to
+   * @return {@code true} on success, {@code false} if the list does not fit in the buffer, which
+   *     is then left unchanged
+   */
+  public boolean writeList(ByteBuffer response) {
+    if (response.remaining() < listSize) {
+      return false;
+    }
+    response.putShort((short) nodeIds.length);
+    for (byte[] entry : entries) {
+      response.put(entry);
+    }
+    return true;
+  }
+
+  /**
+   * Write one page of the node list: the version (4 bytes), the cursor of the next page
+   * (4 bytes, 0 after the last page), the node count (2 bytes) and the entries.
+   *
+   * @param cursor   The ID of the last node of the previous page, or 0 for the first page
+   * @param pageSize The largest number of nodes on the page. Fewer are written when the buffer
+   *                 fills up, but always at least one.
+   * @param response The buffer to write the page to
+   */
+  public void writePage(int cursor, int pageSize, ByteBuffer response) {
+    int first = Arrays.binarySearch(nodeIds, cursor);
+    first = first >= 0 ? first + 1 : -first - 1;
+    int end = first;
+    int size = PAGE_HEADER_SIZE;
+    while (end < nodeIds.length && end - first < pageSize
+        && (end == first || size + entries[end].length <= response.remaining())) {
+      size += entries[end].length;
+      end++;
+    }
+    response.putInt(version);
+    response.putInt(end < nodeIds.length ? nodeIds[end - 1] : 0);
+    response.putShort((short) (end - first));
+    for (int i = first; i < end; i++) {
+      response.put(entries[i]);
+    }
+  }
+}
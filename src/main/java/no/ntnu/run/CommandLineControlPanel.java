@@ -1,13 +1,20 @@
 package no.ntnu.run;
 
-import java.io.IOException;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Scanner;
-import javax.crypto.BadPaddingException;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+import no.ntnu.controlpanel.GreenhouseCluster;
+import no.ntnu.controlpanel.PollScheduler;
 import no.ntnu.controlpanel.RealCommunicationChannel;
+import no.ntnu.controlpanel.ResponseFormatter;
+import no.ntnu.controlpanel.SensorActuatorNodeInfo;
+import no.ntnu.exceptions.MessageFormatException;
+import no.ntnu.exceptions.ServerBusyException;
+import no.ntnu.greenhouse.SensorReading;
+import no.ntnu.listeners.controlpanel.GreenhouseEventListener;
 import no.ntnu.tools.Logger;
 
 /**
@@ -21,24 +28,46 @@ import no.ntnu.tools.Logger;
  *   <li>Display information about sensors</li>
  *   <li>Display information about actuators</li>
  *   <li>Turn an actuator on or off</li>
+ *   <li>Subscribe to sensor readings pushed by the greenhouse</li>
+ *   <li>Send a command to several greenhouses at once</li>
  *   <li>Turn heartbeat on or off</li>
  *   <li>Display the available commands</li>
  *   <li>Exit the control panel</li>
  * </ul>
  */
-public class CommandLineControlPanel {
+public class CommandLineControlPanel implements GreenhouseEventListener {
+  // The readings the heartbeat watches more closely as they get near
+  private static final double LOW_TEMPERATURE = 18;
+  private static final double HIGH_TEMPERATURE = 32;
+  private static final double LOW_HUMIDITY = 60;
+  private static final double HIGH_HUMIDITY = 95;
   private RealCommunicationChannel communicationChannel;
+  private GreenhouseCluster cluster;
+  private final List<String> endpoints = new ArrayList<>();
   private boolean running;
+  private boolean multicast;
+  private boolean plaintextHistory;
 
   /**
    * Main method for starting the command line control panel.
    *
-   * @param args Command line arguments, only the first one of them used: when it is "fake",
-   *             emulate fake events, when it is either something else or not present,
-   *             use real socket communication.
+   * @param args Command line arguments: when one of them is "multicast", receive the updates
+   *             from the multicast telemetry of the greenhouse instead of a subscription on
+   *             the connection. When one of them is "plaintext-history", the sensor history
+   *             is downloaded unencrypted, straight from the history file of the greenhouse.
+   *             Arguments like "localhost:9058" are the host and port of the
+   *             greenhouses to control, when there are several; the first one gets the
+   *             subscription and the heartbeat.
    */
   public static void main(String[] args) {
     CommandLineControlPanel controlPanel = new CommandLineControlPanel();
+    controlPanel.multicast = List.of(args).contains("multicast");
+    controlPanel.plaintextHistory = List.of(args).contains("plaintext-history");
+    for (String arg : args) {
+      if (arg.contains(":")) {
+        controlPanel.endpoints.add(arg);
+      }
+    }
     if (controlPanel.init()) { // Initialize the control panel
       Logger.success("Control panel initialized successfully!");
       controlPanel.run(); // Run the control panel if initialization was successful
@@ -52,18 +81,42 @@ public class CommandLineControlPanel {
    * {@code false} otherwise.
    */
   public boolean init() {
-    this.communicationChannel = new RealCommunicationChannel();
-    return this.communicationChannel.open();
+    List<RealCommunicationChannel> channels = new ArrayList<>();
+    for (String endpoint : this.endpoints) {
+      int separator = endpoint.lastIndexOf(':');
+      try {
+        channels.add(new RealCommunicationChannel(endpoint.substring(0, separator),
+            Integer.parseInt(endpoint.substring(separator + 1))));
+      } catch (NumberFormatException e) {
+        Logger.error("Invalid greenhouse address: " + endpoint);
+        return false;
+      }
+    }
+    if (channels.isEmpty()) {
+      channels.add(new RealCommunicationChannel());
+    }
+    for (RealCommunicationChannel channel : channels) {
+      channel.setPlaintextHistory(this.plaintextHistory);
+    }
+    this.communicationChannel = channels.get(0);
+    this.communicationChannel.addListener(this);
+    PollScheduler pollScheduler = this.communicationChannel.getPollScheduler();
+    pollScheduler.setLimits("temperature", LOW_TEMPERATURE, HIGH_TEMPERATURE);
+    pollScheduler.setLimits("humidity", LOW_HUMIDITY, HIGH_HUMIDITY);
+    this.cluster = new GreenhouseCluster(channels);
+    return this.cluster.open() > 0 && this.communicationChannel.isConnected();
   }
 
   /**
    * Run the control panel.
    */
   public void run() {
-    // Start heartbeat
-    Logger.info("Starting heartbeat...");
-    Logger.info("This will send a request sensor data command to the server every minute.");
-    this.communicationChannel.startHeartbeat();
+    // Subscribe to updates instead of polling with the heartbeat
+    if (!this.multicast || !joinTelemetry()) {
+      Logger.info("Subscribing to updates from all nodes...");
+      handleCommunicationCommand("subscribe all");
+    }
+    Logger.info("New sensor readings will be shown as soon as the greenhouse has them.");
 
     Logger.info("Running the control panel...");
     Logger.info("\nAvailable commands:");
@@ -105,8 +158,30 @@ public class CommandLineControlPanel {
     System.out.printf("| %-30s | %-40s | %-15s |%n",
         "0x03 [nodeId] [actuatorId]", "Turn an actuator on a node on or off", "0x03 1 2");
     System.out.printf("| %-30s | %-40s | %-15s |%n",
-        "list", "Lists all sensor/actuator nodes", "list");
+        "list [cursor]", "Lists the sensor/actuator nodes, a page", "list 100");
+    System.out.printf("| %-30s | %-40s | %-15s |%n",
+        "set [node:actuator=on|off,...]", "Sets many actuators, atomically per node",
+        "set 1:2=on");
+    System.out.printf("| %-30s | %-40s | %-15s |%n",
+        "scene save [name] [settings]", "Saves settings as for set, as a scene",
+        "scene save ...");
+    System.out.printf("| %-30s | %-40s | %-15s |%n",
+        "scene [sceneId]", "Applies the settings of a saved scene", "scene 1");
+    System.out.printf("| %-30s | %-40s | %-15s |%n",
+        "batch [nodeIds] [reads]", "Read sensors and actuators of many nodes", "batch all");
+    System.out.printf("| %-30s | %-40s | %-15s |%n",
+        "subscribe [nodeIds] [types]", "Get updates pushed from nodes", "subscribe 1,2");
+    System.out.printf("| %-30s | %-40s | %-15s |%n",
+        "unsubscribe", "Stops the pushed updates", "unsubscribe");
+    System.out.printf("| %-30s | %-40s | %-15s |%n",
+        "history [file]", "Downloads the recorded sensor history", "history h.bin");
+    System.out.printf("| %-30s | %-40s | %-15s |%n",
+        "ping", "Measures the round trip time", "ping");
+    System.out.printf("| %-30s | %-40s | %-15s |%n",
+        "all [command]", "Sends a command to all the greenhouses", "all 0x01 1");
     System.out.printf("| %-30s | %-40s | %-15s |%n", "toggle", "Toggles the heartbeat", "toggle");
+    System.out.printf("| %-30s | %-40s | %-15s |%n",
+        "intervals", "Shows the heartbeat poll intervals", "intervals");
     System.out.printf("| %-30s | %-40s | %-15s |%n",
         "help", "Prints the available commands", "help");
     System.out.printf("| %-30s | %-40s | %-15s |%n", "exit", "Exits the control panel", "exit");
@@ -123,6 +198,12 @@ public class CommandLineControlPanel {
       handleToggleHeartbeat();
     } else if (command.equals("exit")) {
       handleExitCommand();
+    } else if (command.equals("intervals")) {
+      Logger.info(this.communicationChannel.getPollScheduler().getStatistics());
+    } else if (command.startsWith("all ")) {
+      handleClusterCommand(command.substring("all ".length()).trim());
+    } else if (command.startsWith("history ")) {
+      handleHistoryDownload(command.substring("history ".length()).trim());
     } else {
       handleCommunicationCommand(command);
     }
@@ -130,29 +211,76 @@ public class CommandLineControlPanel {
 
   private void handleCommunicationCommand(String command) {
     try {
-      this.communicationChannel.sendCommand(command);
-      String response = this.communicationChannel.receiveResponse();
+      String response = this.communicationChannel.sendCommand(command).get();
       if (response != null) {
         Logger.info("Response: " + response);
       }
-    } catch (IOException e) {
-      Logger.error("Error on sending/receiving command: " + e.getMessage());
+    } catch (ExecutionException e) {
+      handleCommunicationError(e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      this.running = false;
+    }
+  }
+
+  private void handleClusterCommand(String command) {
+    try {
+      Logger.info(this.cluster.sendCommand(command).get().toString());
+    } catch (ExecutionException e) {
+      Logger.error("Invalid command: " + e.getCause().getMessage());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      this.running = false;
+    }
+  }
+
+  private boolean joinTelemetry() {
+    boolean joined = false;
+    try {
+      Logger.info(this.communicationChannel.joinTelemetry().get());
+      joined = true;
+    } catch (ExecutionException e) {
+      Logger.error("Could not join the telemetry, falling back to a subscription: "
+          + e.getCause().getMessage());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    return joined;
+  }
+
+  private void handleHistoryDownload(String file) {
+    try {
+      Logger.info(this.communicationChannel.downloadHistory(Path.of(file)).get());
+    } catch (ExecutionException e) {
+      Logger.error("History download stopped, run the command again to continue: "
+          + e.getCause().getMessage());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      this.running = false;
+    }
+  }
+
+  private void handleCommunicationError(Throwable cause) {
+    if (cause instanceof MessageFormatException) {
+      Logger.error("Invalid command: " + cause.getMessage());
+    } else if (cause instanceof TimeoutException) {
+      Logger.error("No response from the greenhouse");
+    } else if (cause instanceof ServerBusyException) {
+      Logger.error(cause.getMessage());
+    } else {
+      Logger.error("Error on sending/receiving command: " + cause.getMessage());
       Logger.info("Trying to reconnect...");
       if (!this.communicationChannel.open()) {
         Logger.error("Reconnection failed, stopping the control panel");
         this.running = false;
       }
-    } catch (NoSuchPaddingException | IllegalBlockSizeException | NoSuchAlgorithmException
-             | BadPaddingException | InvalidKeyException e) {
-      Logger.error("Error on decrypting command: " + e.getMessage());
-      this.running = false;
     }
   }
 
   private void handleExitCommand() {
     this.running = false;
     try {
-      this.communicationChannel.close();
+      this.cluster.close();
     } catch (Exception e) {
       Logger.error("Error on closing the communication channel: " + e.getMessage());
     }
@@ -165,4 +293,25 @@ public class CommandLineControlPanel {
       Logger.info("Heartbeat toggled off.");
     }
   }
+
+  @Override
+  public void onNodeAdded(SensorActuatorNodeInfo nodeInfo) {
+    Logger.info("Node " + nodeInfo.getId() + " added");
+  }
+
+  @Override
+  public void onNodeRemoved(int nodeId) {
+    Logger.info("Node " + nodeId + " removed");
+  }
+
+  @Override
+  public void onSensorData(int nodeId, List<SensorReading> sensors) {
+    Logger.info("Update: " + ResponseFormatter.formatSensorData(nodeId, sensors));
+  }
+
+  @Override
+  public void onActuatorStateChanged(int nodeId, int actuatorId, boolean isOn) {
+    Logger.info("Update: actuator " + actuatorId + " on node " + nodeId + " is now "
+        + (isOn ? "ON" : "off"));
+  }
 }
@@ -0,0 +1,65 @@
+package no.ntnu.run;
+
+import no.ntnu.controlpanel.AdmissionControl;
+import no.ntnu.controlpanel.BoundedPoolStrategy;
+import no.ntnu.gateway.Gateway;
+import no.ntnu.gateway.ReadCache;
+import no.ntnu.greenhouse.GreenhouseSimulator;
+import no.ntnu.tools.Logger;
+
+/**
+ * Run a gateway between many control panels and one greenhouse, see {@link Gateway}.
+ */
+public class CommandLineGateway {
+  private static final int POOL_SIZE = 64;
+  private static final int POOL_QUEUE_CAPACITY = 256;
+
+  /**
+   * Application entrypoint for the gateway.
+   *
+   * @param args Command line arguments: "greenhouse=host:port" is the greenhouse to connect to,
+   *             localhost:9057 by default. "port=9059" is the port the control panels connect
+   *             to. "upstream=2" is the number of connections to the greenhouse, and
+   *             "ttl=1000" how many milliseconds a read response is kept. "clients=256" is the
+   *             number of control panels served at the same time, and "pool" serves them on a
+   *             bounded thread pool instead of one thread per control panel.
+   */
+  public static void main(String[] args) {
+    String greenhouseHost = "localhost";
+    int greenhousePort = GreenhouseSimulator.TCP_PORT;
+    int port = Gateway.DEFAULT_PORT;
+    int upstreamConnections = Gateway.DEFAULT_UPSTREAM_CONNECTIONS;
+    long ttl = ReadCache.DEFAULT_TTL;
+    int clients = AdmissionControl.DEFAULT_CONNECTION_LIMIT;
+    boolean pool = false;
+    for (String arg : args) {
+      String value = arg.substring(arg.indexOf('=') + 1);
+      if (arg.startsWith("greenhouse=")) {
+        int separator = value.lastIndexOf(':');
+        greenhouseHost = value.substring(0, separator);
+        greenhousePort = Integer.parseInt(value.substring(separator + 1));
+      } else if (arg.startsWith("port=")) {
+        port = Integer.parseInt(value);
+      } else if (arg.startsWith("upstream=")) {
+        upstreamConnections = Integer.parseInt(value);
+      } else if (arg.startsWith("ttl=")) {
+        ttl = Long.parseLong(value);
+      } else if (arg.startsWith("clients=")) {
+        clients = Integer.parseInt(value);
+      } else if ("pool".equals(arg)) {
+        pool = true;
+      }
+    }
+    Logger.info("Running a gateway to the greenhouse at " + greenhouseHost + ":"
+        + greenhousePort + "...");
+    Gateway gateway = new Gateway(greenhouseHost, greenhousePort, port, upstreamConnections, ttl);
+    gateway.getAdmissionControl().setConnectionLimit(clients);
+    if (pool) {
+      gateway.setExecutionStrategy(new BoundedPoolStrategy(POOL_SIZE, POOL_QUEUE_CAPACITY));
+      Logger.info("Using a bounded pool of " + POOL_SIZE + " connection threads");
+    }
+    if (gateway.start()) {
+      Runtime.getRuntime().addShutdownHook(new Thread(gateway::stop));
+    }
+  }
+}
@@ -1,28 +1,115 @@
 package no.ntnu.run;
 
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.nio.file.Path;
+import no.ntnu.controlpanel.BoundedPoolStrategy;
+import no.ntnu.controlpanel.ClientExecutionStrategy;
+import no.ntnu.controlpanel.ThreadPerConnectionStrategy;
+import no.ntnu.controlpanel.VirtualThreadStrategy;
 import no.ntnu.greenhouse.GreenhouseSimulator;
+import no.ntnu.greenhouse.SensorHistory;
+import no.ntnu.greenhouse.ServerMode;
+import no.ntnu.greenhouse.TelemetryPublisher;
 import no.ntnu.tools.Logger;
 
 /**
  * Run a greenhouse simulation using command-line interface (no GUI).
  */
 public class CommandLineGreenhouse {
+  private static final int POOL_SIZE = 64;
+  private static final int POOL_QUEUE_CAPACITY = 256;
+
   /**
    * Application entrypoint for the command-line version of the simulator.
    *
-   * @param args Command line arguments, only the first one of them used: when it is "fake",
-   *             emulate fake events, when it is either something else or not present,
-   *             use real socket communication.
+   * @param args Command line arguments: when one of them is "fake", emulate fake events,
+   *             otherwise use real socket communication. When one of them is "nio", serve the
+   *             control panels with the non-blocking server instead of one thread per
+   *             connection. With the blocking server, "pool" runs the client handlers on a
+   *             bounded thread pool and "virtual" runs them on virtual threads.
+   *             "uncompressed" turns off payload compression. "multicast" also multicasts
+   *             the sensor readings and actuator states on the loopback interface, for the
+   *             control panels which join the telemetry group. "port=9058" listens on another
+   *             port than the default, so several greenhouses can run on one host.
+   *             "history=/path/to/history.bin" records the sensor readings in that file, which
+   *             only one greenhouse can use at a time, up to "history-limit=64" MiB.
    */
   public static void main(String[] args) {
     Logger.info("Running greenhouse simulator in command line (without GUI)...");
     boolean fake = false;
-    if (args.length == 1 && "fake".equals(args[0])) {
-      fake = true;
-      Logger.info("Using FAKE events");
+    ServerMode serverMode = ServerMode.THREAD_PER_CONNECTION;
+    ClientExecutionStrategy executionStrategy = new ThreadPerConnectionStrategy();
+    boolean compression = true;
+    boolean multicast = false;
+    int port = GreenhouseSimulator.TCP_PORT;
+    Path historyFile = null;
+    long historyLimit = SensorHistory.DEFAULT_MAX_SIZE;
+    for (String arg : args) {
+      if ("fake".equals(arg)) {
+        fake = true;
+        Logger.info("Using FAKE events");
+      } else if ("nio".equals(arg)) {
+        serverMode = ServerMode.NIO;
+        Logger.info("Using the non-blocking server");
+      } else if ("pool".equals(arg)) {
+        executionStrategy = new BoundedPoolStrategy(POOL_SIZE, POOL_QUEUE_CAPACITY);
+        Logger.info("Using a bounded pool of " + POOL_SIZE + " client handler threads");
+      } else if ("virtual".equals(arg)) {
+        executionStrategy = createVirtualThreadStrategy();
+      } else if ("uncompressed".equals(arg)) {
+        compression = false;
+        Logger.info("Payload compression turned off");
+      } else if ("multicast".equals(arg)) {
+        multicast = true;
+      } else if (arg.startsWith("port=")) {
+        port = Integer.parseInt(arg.substring("port=".length()));
+        Logger.info("Listening on port " + port);
+      } else if (arg.startsWith("history=")) {
+        historyFile = Path.of(arg.substring("history=".length()));
+      } else if (arg.startsWith("history-limit=")) {
+        historyLimit = Long.parseLong(arg.substring("history-limit=".length())) * 1024 * 1024;
+      }
     }
     GreenhouseSimulator simulator = new GreenhouseSimulator(fake);
+    simulator.setServerMode(serverMode);
+    simulator.setExecutionStrategy(executionStrategy);
+    simulator.setCompression(compression);
+    if (port != GreenhouseSimulator.TCP_PORT) {
+      simulator.setPort(port);
+    }
+    simulator.setHistoryFile(historyFile);
+    simulator.setHistoryLimit(historyLimit);
+    if (multicast) {
+      setLoopbackTelemetry(simulator);
+    }
     simulator.initialize();
     simulator.start();
   }
+
+  private static void setLoopbackTelemetry(GreenhouseSimulator simulator) {
+    try {
+      simulator.setTelemetry(new InetSocketAddress(TelemetryPublisher.DEFAULT_GROUP,
+              TelemetryPublisher.DEFAULT_PORT),
+          NetworkInterface.getByInetAddress(InetAddress.getLoopbackAddress()));
+    } catch (SocketException e) {
+      Logger.error("Could not find the loopback interface, not multicasting: "
+          + e.getMessage());
+    }
+  }
+
+  private static ClientExecutionStrategy createVirtualThreadStrategy() {
+    ClientExecutionStrategy strategy;
+    if (VirtualThreadStrategy.isSupported()) {
+      strategy = new VirtualThreadStrategy();
+      Logger.info("Using a virtual thread per client handler");
+    } else {
+      strategy = new BoundedPoolStrategy(POOL_SIZE, POOL_QUEUE_CAPACITY);
+      Logger.error("Virtual threads are not supported by this JDK, using a bounded pool of "
+          + POOL_SIZE + " client handler threads instead");
+    }
+    return strategy;
+  }
 }
@@ -0,0 +1,68 @@
+package no.ntnu.tools;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A small pool of buffers of the same size, shared by all the connections. A buffer is only
+ * taken for the time it takes to build and encode one message, so the number of buffers
+ * follows the number of messages built at the same time, not the number of connections or
+ * threads.
+ *
+ * <p>When the pool is empty, a new buffer is allocated; a buffer given back to a full pool is
+ * left to the garbage collector. All the methods are thread-safe.</p>
+ */
+public class BufferPool {
+  private final BlockingQueue<ByteBuffer> buffers;
+  private final int bufferSize;
+  private final AtomicLong misses = new AtomicLong();
+
+  /**
+   * Create an empty buffer pool.
+   *
+   * @param bufferSize The size of each buffer, in bytes
+   * @param capacity   The largest number of buffers kept in the pool
+   */
+  public BufferPool(int bufferSize, int capacity) {
+    if (bufferSize <= 0 || capacity <= 0) {
+      throw new IllegalArgumentException("Invalid buffer size or capacity");
+    }
+    this.bufferSize = bufferSize;
+    this.buffers = new ArrayBlockingQueue<>(capacity);
+  }
+
+  /**
+   * Take a buffer from the pool, or allocate one if the pool is empty.
+   *
+   * @return A cleared buffer, to be given back with {@link #release(ByteBuffer)}
+   */
+  public ByteBuffer take() {
+    ByteBuffer buffer = buffers.poll();
+    if (buffer == null) {
+      misses.incrementAndGet();
+      buffer = ByteBuffer.allocate(bufferSize);
+    }
+    buffer.clear();
+    return buffer;
+  }
+
+  /**
+   * Give a buffer back to the pool. It must not be used after that.
+   *
+   * @param buffer A buffer taken from this pool
+   */
+  public void release(ByteBuffer buffer) {
+    buffers.offer(buffer);
+  }
+
+  /**
+   * Get the number of buffers which had to be allocated, because the pool was empty.
+   *
+   * @return The number of misses
+   */
+  public long getMissCount() {
+    return misses.get();
+  }
+}
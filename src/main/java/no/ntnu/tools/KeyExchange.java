@@ -0,0 +1,380 @@
+package no.ntnu.tools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * The key exchange done when a control panel connects, before any message is sent.
+ *
+ * <p>In a full handshake, both sides send {@link #HELLO_FULL} followed by their 32-byte X25519
+ * public key, the control panel first. The AES key of the connection is derived from the shared
+ * secret with HKDF (HMAC-SHA256), using both public keys as the salt. The key pairs are
+ * ephemeral and come from a {@link KeyPairPool}, so generating them is not part of the
+ * handshake.</p>
+ *
+ * <p>The greenhouse ends every handshake with a session ticket (see {@link SessionTickets}).
+ * A reconnecting control panel sends {@link #HELLO_RESUME} with the ticket and a random nonce.
+ * If the greenhouse accepts the ticket, it answers with its own nonce, and both sides derive the
+ * new key from the resumption secret and the nonces, without any public key operation. If not,
+ * the greenhouse answers with a full handshake, which is possible as the resume hello carries a
+ * public key as well. Either way the handshake takes one round trip.</p>
+ *
+ * <p>Every hello has a features byte right after the first byte. The control panel sends the
+ * optional features it supports, and the greenhouse answers with the ones they both support,
+ * such as {@link #FEATURE_COMPRESSION}.</p>
+ *
+ * <p>One instance is used for one handshake, and measures how long it took.</p>
+ */
+public class KeyExchange {
+  /**
+   * The first byte of a full handshake hello.
+   */
+  public static final byte HELLO_FULL = 1;
+  /**
+   * The first byte of a hello resuming a session with a ticket.
+   */
+  public static final byte HELLO_RESUME = 2;
+  /**
+   * Feature flag: payloads may be compressed, see {@link PayloadCompressor}.
+   */
+  public static final int FEATURE_COMPRESSION = 1;
+  /**
+   * Size of a raw X25519 public key, in bytes.
+   */
+  public static final int PUBLIC_KEY_SIZE = 32;
+
+  private static final String ALGORITHM = "X25519";
+  private static final String HMAC_ALGORITHM = "HmacSHA256";
+  private static final int AES_KEY_SIZE = 16;
+  private static final int RESUMPTION_SECRET_SIZE = 32;
+  private static final int NONCE_SIZE = 16;
+  // The largest session ticket accepted from the other side, in bytes
+  static final int MAX_TICKET_SIZE = 1024;
+  private static final int POOL_CAPACITY = 32;
+  private static final byte[] KEY_INFO = "greenhouse aes key".getBytes(StandardCharsets.UTF_8);
+  private static final byte[] RESUMPTION_INFO =
+      "greenhouse resumption".getBytes(StandardCharsets.UTF_8);
+  // The X.509 encoding of an X25519 public key is this prefix followed by the raw key
+  private static final byte[] X509_PREFIX = {
+      0x30, 0x2a, 0x30, 0x05, 0x06, 0x03, 0x2b, 0x65, 0x6e, 0x03, 0x21, 0x00
+  };
+  private static final KeyPairPool KEY_PAIRS = createPool();
+  private static final SecureRandom RANDOM = new SecureRandom();
+  private static final AtomicLong handshakeCount = new AtomicLong();
+  private static final AtomicLong resumedCount = new AtomicLong();
+  private static final AtomicLong handshakeNanos = new AtomicLong();
+
+  private long duration;
+  private boolean resumed;
+  private int features;
+  private SessionTicket sessionTicket;
+
+  /**
+   * Create a key exchange which does not offer any optional features.
+   */
+  public KeyExchange() {
+    this(0);
+  }
+
+  /**
+   * Create a key exchange.
+   *
+   * @param features The optional features this side supports, the {@code FEATURE_} flags
+   *                 combined
+   */
+  public KeyExchange(int features) {
+    this.features = features;
+  }
+
+  /**
+   * Do the control panel side of the handshake.
+   *
+   * @param input    The stream from the greenhouse
+   * @param output   The stream to the greenhouse
+   * @param previous The ticket from the previous connection, to resume that session, or
+   *                 {@code null} for a full handshake
+   * @return The AES key of the connection
+   * @throws IOException              If the connection fails, or the greenhouse does not speak
+   *                                  the same version of the handshake
+   * @throws GeneralSecurityException If the key can not be derived
+   */
+  public SecretKey initiate(InputStream input, OutputStream output, SessionTicket previous)
+      throws IOException, GeneralSecurityException {
+    long start = System.nanoTime();
+    KeyPair keyPair = KEY_PAIRS.take();
+    byte[] ownKey = toRaw(keyPair.getPublic());
+    byte[] ownNonce = null;
+    ByteArrayOutputStream helloBytes = new ByteArrayOutputStream();
+    DataOutputStream hello = new DataOutputStream(helloBytes);
+    if (previous == null) {
+      hello.writeByte(HELLO_FULL);
+      hello.writeByte(features);
+      hello.write(ownKey);
+    } else {
+      ownNonce = new byte[NONCE_SIZE];
+      RANDOM.nextBytes(ownNonce);
+      hello.writeByte(HELLO_RESUME);
+      hello.writeByte(features);
+      hello.write(ownKey);
+      hello.write(ownNonce);
+      writeTicket(hello, previous.getTicket());
+    }
+    send(output, helloBytes);
+
+    DataInputStream reply = new DataInputStream(input);
+    int type = readType(reply);
+    features &= reply.readUnsignedByte();
+    byte[] salt;
+    byte[] secret;
+    if (type == HELLO_RESUME && previous != null) {
+      salt = concat(ownNonce, readBytes(reply, NONCE_SIZE));
+      secret = previous.getSecret();
+      resumed = true;
+    } else if (type == HELLO_FULL) {
+      byte[] peerKey = readBytes(reply, PUBLIC_KEY_SIZE);
+      salt = concat(ownKey, peerKey);
+      secret = agree(keyPair, peerKey);
+    } else {
+      throw new IOException("Unexpected key exchange reply: " + type);
+    }
+    byte[] ticket = readTicket(reply);
+    sessionTicket = new SessionTicket(ticket,
+        hkdf(salt, secret, RESUMPTION_INFO, RESUMPTION_SECRET_SIZE));
+    SecretKey key = new SecretKeySpec(hkdf(salt, secret, KEY_INFO, AES_KEY_SIZE), "AES");
+    record(start);
+    return key;
+  }
+
+  /**
+   * Do the greenhouse side of the handshake. The time spent waiting for the control panel to
+   * start the handshake is not measured.
+   *
+   * @param input   The stream from the control panel
+   * @param output  The stream to the control panel
+   * @param tickets Opens the ticket of a resumed session, and issues the next ticket
+   * @return The AES key of the connection
+   * @throws IOException              If the connection fails, or the control panel does not
+   *                                  speak the same version of the handshake
+   * @throws GeneralSecurityException If the key can not be derived
+   */
+  public SecretKey respond(InputStream input, OutputStream output, SessionTickets tickets)
+      throws IOException, GeneralSecurityException {
+    DataInputStream hello = new DataInputStream(input);
+    int type = readType(hello);
+    if (type != HELLO_FULL && type != HELLO_RESUME) {
+      throw new IOException("Unsupported key exchange version: " + type);
+    }
+    features &= hello.readUnsignedByte();
+    byte[] peerKey = readBytes(hello, PUBLIC_KEY_SIZE);
+    byte[] peerNonce = null;
+    byte[] previousSecret = null;
+    if (type == HELLO_RESUME) {
+      peerNonce = readBytes(hello, NONCE_SIZE);
+      previousSecret = tickets.open(readTicket(hello));
+    }
+    long start = System.nanoTime();
+    ByteArrayOutputStream replyBytes = new ByteArrayOutputStream();
+    DataOutputStream reply = new DataOutputStream(replyBytes);
+    byte[] salt;
+    byte[] secret;
+    if (previousSecret != null) {
+      byte[] ownNonce = new byte[NONCE_SIZE];
+      RANDOM.nextBytes(ownNonce);
+      reply.writeByte(HELLO_RESUME);
+      reply.writeByte(features);
+      reply.write(ownNonce);
+      salt = concat(peerNonce, ownNonce);
+      secret = previousSecret;
+      resumed = true;
+    } else {
+      KeyPair keyPair = KEY_PAIRS.take();
+      byte[] ownKey = toRaw(keyPair.getPublic());
+      reply.writeByte(HELLO_FULL);
+      reply.writeByte(features);
+      reply.write(ownKey);
+      salt = concat(peerKey, ownKey);
+      secret = agree(keyPair, peerKey);
+    }
+    writeTicket(reply, tickets.issue(hkdf(salt, secret, RESUMPTION_INFO,
+        RESUMPTION_SECRET_SIZE)));
+    send(output, replyBytes);
+    SecretKey key = new SecretKeySpec(hkdf(salt, secret, KEY_INFO, AES_KEY_SIZE), "AES");
+    record(start);
+    return key;
+  }
+
+  /**
+   * Check whether the handshake resumed a previous session instead of doing a full key
+   * exchange.
+   *
+   * @return {@code true} if a session ticket was used
+   */
+  public boolean isResumed() {
+    return resumed;
+  }
+
+  /**
+   * Get the optional features both sides support. Before the handshake, these are the features
+   * this side supports.
+   *
+   * @return The {@code FEATURE_} flags combined
+   */
+  public int getFeatures() {
+    return features;
+  }
+
+  /**
+   * Get the ticket the greenhouse issued in this handshake, to resume the session with later.
+   *
+   * @return The session ticket, or {@code null} on the greenhouse side
+   */
+  public SessionTicket getSessionTicket() {
+    return sessionTicket;
+  }
+
+  /**
+   * Get how long the handshake took.
+   *
+   * @return The duration in nanoseconds
+   */
+  public long getDuration() {
+    return duration;
+  }
+
+  /**
+   * Get a summary of all the handshakes done by this process, for logging.
+   *
+   * @return The number of handshakes, their average duration and the key pool misses
+   */
+  public static String getStatistics() {
+    long count = handshakeCount.get();
+    double average = count == 0 ? 0 : handshakeNanos.get() / (count * 1e6);
+    return String.format("%d key exchanges (%d resumed), %.3f ms on average, "
+            + "%d key pairs generated on demand",
+        count, resumedCount.get(), average, KEY_PAIRS.getMissCount());
+  }
+
+  /**
+   * Derive key material with HKDF (RFC 5869), using HMAC-SHA256.
+   *
+   * @param salt   The salt
+   * @param secret The input key material
+   * @param info   What the key is for
+   * @param length The number of bytes to derive, at most 8160
+   * @return The derived bytes
+   * @throws GeneralSecurityException If HMAC-SHA256 is not available
+   */
+  public static byte[] hkdf(byte[] salt, byte[] secret, byte[] info, int length)
+      throws GeneralSecurityException {
+    Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+    mac.init(new SecretKeySpec(salt, HMAC_ALGORITHM));
+    byte[] pseudoRandomKey = mac.doFinal(secret);
+    mac.init(new SecretKeySpec(pseudoRandomKey, HMAC_ALGORITHM));
+    byte[] output = new byte[length];
+    byte[] block = new byte[0];
+    int position = 0;
+    for (int counter = 1; position < length; counter++) {
+      mac.update(block);
+      mac.update(info);
+      mac.update((byte) counter);
+      block = mac.doFinal();
+      int count = Math.min(block.length, length - position);
+      System.arraycopy(block, 0, output, position, count);
+      position += count;
+    }
+    return output;
+  }
+
+  private static byte[] agree(KeyPair keyPair, byte[] peerKey)
+      throws GeneralSecurityException {
+    KeyAgreement keyAgreement = KeyAgreement.getInstance(ALGORITHM);
+    keyAgreement.init(keyPair.getPrivate());
+    keyAgreement.doPhase(fromRaw(peerKey), true);
+    return keyAgreement.generateSecret();
+  }
+
+  private void record(long start) {
+    duration = System.nanoTime() - start;
+    handshakeCount.incrementAndGet();
+    handshakeNanos.addAndGet(duration);
+    if (resumed) {
+      resumedCount.incrementAndGet();
+    }
+  }
+
+  private static void send(OutputStream output, ByteArrayOutputStream hello)
+      throws IOException {
+    hello.writeTo(output);
+    output.flush();
+  }
+
+  private static int readType(DataInputStream input) throws IOException {
+    int type = input.read();
+    if (type < 0) {
+      throw new EOFException("Connection closed during the key exchange");
+    }
+    return type;
+  }
+
+  private static byte[] readBytes(DataInputStream input, int length) throws IOException {
+    byte[] bytes = new byte[length];
+    input.readFully(bytes);
+    return bytes;
+  }
+
+  private static void writeTicket(DataOutputStream output, byte[] ticket) throws IOException {
+    output.writeShort(ticket.length);
+    output.write(ticket);
+  }
+
+  private static byte[] readTicket(DataInputStream input) throws IOException {
+    int length = input.readUnsignedShort();
+    if (length > MAX_TICKET_SIZE) {
+      throw new IOException("Session ticket too large: " + length + " bytes");
+    }
+    return readBytes(input, length);
+  }
+
+  private static byte[] concat(byte[] first, byte[] second) {
+    byte[] result = Arrays.copyOf(first, first.length + second.length);
+    System.arraycopy(second, 0, result, first.length, second.length);
+    return result;
+  }
+
+  private static byte[] toRaw(PublicKey publicKey) {
+    byte[] encoded = publicKey.getEncoded();
+    return Arrays.copyOfRange(encoded, encoded.length - PUBLIC_KEY_SIZE, encoded.length);
+  }
+
+  private static PublicKey fromRaw(byte[] rawKey) throws GeneralSecurityException {
+    byte[] encoded = Arrays.copyOf(X509_PREFIX, X509_PREFIX.length + PUBLIC_KEY_SIZE);
+    System.arraycopy(rawKey, 0, encoded, X509_PREFIX.length, PUBLIC_KEY_SIZE);
+    return KeyFactory.getInstance(ALGORITHM).generatePublic(new X509EncodedKeySpec(encoded));
+  }
+
+  private static KeyPairPool createPool() {
+    try {
+      return new KeyPairPool(ALGORITHM, POOL_CAPACITY);
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException("X25519 is not supported by this JDK", e);
+    }
+  }
+}
@@ -0,0 +1,87 @@
+package no.ntnu.tools;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of ephemeral key pairs, generated in the background so that generating a key pair is
+ * not part of the time it takes to set up a connection. Each key pair is handed out only once.
+ */
+public class KeyPairPool {
+  private final BlockingQueue<KeyPair> keyPairs;
+  private final String algorithm;
+  private final AtomicLong misses = new AtomicLong();
+  private Thread generator;
+
+  /**
+   * Create a key pair pool. The background generation starts with the first key pair taken.
+   *
+   * @param algorithm The key pair algorithm, for example "X25519"
+   * @param capacity  The number of key pairs to keep ready
+   * @throws NoSuchAlgorithmException If the algorithm is not supported
+   */
+  public KeyPairPool(String algorithm, int capacity) throws NoSuchAlgorithmException {
+    // Fail early if the algorithm is not available
+    KeyPairGenerator.getInstance(algorithm);
+    this.algorithm = algorithm;
+    this.keyPairs = new ArrayBlockingQueue<>(capacity);
+  }
+
+  /**
+   * Take a key pair from the pool. If the pool is empty, a key pair is generated on the calling
+   * thread instead of waiting for the background thread.
+   *
+   * @return A key pair which has not been used before
+   */
+  public KeyPair take() {
+    startGenerator();
+    KeyPair keyPair = keyPairs.poll();
+    if (keyPair == null) {
+      misses.incrementAndGet();
+      keyPair = newGenerator().generateKeyPair();
+    }
+    return keyPair;
+  }
+
+  /**
+   * Get the number of key pairs which had to be generated on the calling thread, because the
+   * pool was empty.
+   *
+   * @return The number of misses
+   */
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  private synchronized void startGenerator() {
+    if (generator == null) {
+      generator = new Thread(this::fill, "key-pair-generator");
+      generator.setDaemon(true);
+      generator.start();
+    }
+  }
+
+  private void fill() {
+    KeyPairGenerator keyPairGenerator = newGenerator();
+    try {
+      while (!Thread.currentThread().isInterrupted()) {
+        keyPairs.put(keyPairGenerator.generateKeyPair());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private KeyPairGenerator newGenerator() {
+    try {
+      return KeyPairGenerator.getInstance(algorithm);
+    } catch (NoSuchAlgorithmException e) {
+      // Checked in the constructor
+      throw new IllegalStateException(e);
+    }
+  }
+}
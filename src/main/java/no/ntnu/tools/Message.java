@@ -0,0 +1,90 @@
+package no.ntnu.tools;
+
+import java.nio.ByteBuffer;
+
+/**
+ * One decoded protocol message: the header fields and the decrypted payload. A connection
+ * reuses the same instance for every message it reads, so the payload is only valid until the
+ * next message is decoded into it.
+ */
+public class Message {
+  private static final int INITIAL_PAYLOAD_CAPACITY = 256;
+
+  private byte type;
+  private int nodeId;
+  private int timestamp;
+  private int requestId;
+  private ByteBuffer payload = ByteBuffer.allocate(INITIAL_PAYLOAD_CAPACITY);
+
+  public byte getType() {
+    return type;
+  }
+
+  public void setType(byte type) {
+    this.type = type;
+  }
+
+  public int getNodeId() {
+    return nodeId;
+  }
+
+  public void setNodeId(int nodeId) {
+    this.nodeId = nodeId;
+  }
+
+  public int getTimestamp() {
+    return timestamp;
+  }
+
+  public void setTimestamp(int timestamp) {
+    this.timestamp = timestamp;
+  }
+
+  public int getRequestId() {
+    return requestId;
+  }
+
+  public void setRequestId(int requestId) {
+    this.requestId = requestId;
+  }
+
+  /**
+   * Get the payload of the message, ready for reading.
+   *
+   * @return The payload
+   */
+  public ByteBuffer getPayload() {
+    return payload;
+  }
+
+  /**
+   * Copy the message, so it can be kept after the next message is decoded into this one.
+   *
+   * @return A new message with the same header fields and a copy of the remaining payload
+   */
+  public Message copy() {
+    Message copy = new Message();
+    copy.type = type;
+    copy.nodeId = nodeId;
+    copy.timestamp = timestamp;
+    copy.requestId = requestId;
+    copy.payload = ByteBuffer.allocate(payload.remaining());
+    copy.payload.put(payload.duplicate()).flip();
+    return copy;
+  }
+
+  /**
+   * Clear the payload buffer so it can be filled with a new payload, making sure it can hold
+   * at least the given number of bytes.
+   *
+   * @param capacity The number of bytes the payload buffer must be able to hold
+   * @return The cleared payload buffer
+   */
+  ByteBuffer clearPayload(int capacity) {
+    if (payload.capacity() < capacity) {
+      payload = ByteBuffer.allocate(capacity);
+    }
+    payload.clear();
+    return payload;
+  }
+}
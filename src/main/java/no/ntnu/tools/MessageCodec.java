@@ -0,0 +1,456 @@
+package no.ntnu.tools;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import no.ntnu.exceptions.MessageFormatException;
+import no.ntnu.greenhouse.SensorReading;
+
+/**
+ * Encodes and decodes the binary TLV messages described in protocol.md.
+ *
+ * <p>Every message has a 15-byte header (type, length, node ID, timestamp, request ID) followed
+ * by the value: an 8-byte message counter and the payload encrypted with AES-GCM, ending with
+ * the 16-byte authentication tag. The header is authenticated as well, so neither part can be
+ * changed without the message being rejected.</p>
+ *
+ * <p>The GCM nonce is the direction of the message followed by the counter, which each side
+ * increases for every message it encodes. As the control panel and the greenhouse use the same
+ * key, the direction keeps them from ever using the same nonce. The counter is sent along
+ * instead of being implied, as the greenhouse may drop or replace updates which have already
+ * been encoded. The highest bit of the counter is set when the payload has been compressed
+ * (see {@link PayloadCompressor}).</p>
+ *
+ * <p>A message is only accepted once: the codec remembers which of the last
+ * {@link #REPLAY_WINDOW} counters it has received, and rejects a message with one of those
+ * counters or an older one. A window is needed rather than just the highest counter, as the
+ * other side may send messages out of the order it encoded them in, for example responses
+ * finished on different threads.</p>
+ *
+ * <p>One codec belongs to one connection, as it holds the shared secret of that connection and
+ * its cipher contexts. It can be used from several threads.</p>
+ */
+public class MessageCodec {
+  /**
+   * Size of the message header, in bytes.
+   */
+  public static final int HEADER_SIZE = 15;
+  /**
+   * The request ID of messages which are not a response to any request.
+   */
+  public static final int NO_REQUEST_ID = 0;
+  /**
+   * The largest value the 2-byte length field can describe.
+   */
+  public static final int MAX_VALUE_LENGTH = 0xFFFF;
+  /**
+   * The largest possible message, header included.
+   */
+  public static final int MAX_MESSAGE_SIZE = HEADER_SIZE + MAX_VALUE_LENGTH;
+  /**
+   * The number of bytes the encryption adds to a payload: the counter and the tag.
+   */
+  public static final int OVERHEAD = 8 + 16;
+  /**
+   * The largest payload which still fits in one message after encryption.
+   */
+  public static final int MAX_PAYLOAD_SIZE = MAX_VALUE_LENGTH - OVERHEAD;
+  /**
+   * How far below the highest counter received a message may be and still be accepted.
+   */
+  public static final int REPLAY_WINDOW = 256;
+
+  private static final int LENGTH_OFFSET = 1;
+  private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+  private static final int TAG_BITS = 128;
+  private static final int NONCE_SIZE = 12;
+  private static final int FROM_GREENHOUSE = 0;
+  private static final int FROM_CONTROL_PANEL = 1;
+  // The highest bit of the message counter marks a compressed payload
+  private static final long COMPRESSED = Long.MIN_VALUE;
+  private static final double VALUE_SCALE = 100.0;
+
+  private final SecretKey key;
+  private final int sendDirection;
+  private final int receiveDirection;
+  private final Cipher encryptCipher;
+  private final Cipher decryptCipher;
+  private final ByteBuffer encryptNonce = ByteBuffer.allocate(NONCE_SIZE);
+  private final ByteBuffer decryptNonce = ByteBuffer.allocate(NONCE_SIZE);
+  private long nextCounter;
+  // The counters received in the window below the highest one, one bit per counter
+  private final long[] receivedCounters = new long[REPLAY_WINDOW / Long.SIZE];
+  private long highestReceived = -1;
+  private volatile PayloadCompressor compressor;
+
+  /**
+   * Create a codec for one connection.
+   *
+   * @param key          The shared secret of the connection
+   * @param controlPanel {@code true} on the control panel side of the connection,
+   *                     {@code false} on the greenhouse side
+   * @throws GeneralSecurityException If AES-GCM is not available
+   */
+  public MessageCodec(SecretKey key, boolean controlPanel) throws GeneralSecurityException {
+    this.key = key;
+    this.sendDirection = controlPanel ? FROM_CONTROL_PANEL : FROM_GREENHOUSE;
+    this.receiveDirection = controlPanel ? FROM_GREENHOUSE : FROM_CONTROL_PANEL;
+    this.encryptCipher = Cipher.getInstance(TRANSFORMATION);
+    this.decryptCipher = Cipher.getInstance(TRANSFORMATION);
+  }
+
+  /**
+   * Encrypt a payload and write it, with a header, as one message.
+   *
+   * @param type      The message type, one of the {@link MessageType} constants
+   * @param requestId The ID of the request, which a response repeats so the control panel can
+   *                  match it with its request; {@link #NO_REQUEST_ID} for other messages
+   * @param nodeId    The node the message is about, or 0 when it is not about a specific node
+   * @param payload   The payload, ready for reading. The position is moved to the limit.
+   * @param output    The buffer to write the message to
+   * @throws MessageFormatException If the payload is too large, or could not be encrypted
+   */
+  public void encode(byte type, int requestId, int nodeId, ByteBuffer payload,
+                     ByteBuffer output) throws MessageFormatException {
+    if (payload.remaining() > MAX_PAYLOAD_SIZE) {
+      throw new MessageFormatException("Message too large: " + payload.remaining() + " bytes");
+    }
+    PayloadCompressor compressor = this.compressor;
+    synchronized (encryptCipher) {
+      long counter = nextCounter++;
+      ByteBuffer plain = payload;
+      if (compressor != null) {
+        ByteBuffer compressed = compressor.compress(payload);
+        if (compressed != null) {
+          plain = compressed;
+          counter |= COMPRESSED;
+        }
+      }
+      int headerStart = output.position();
+      output.put(type)
+          .putShort((short) (plain.remaining() + OVERHEAD))
+          .putInt(nodeId)
+          .putInt(currentTimestamp())
+          .putInt(requestId);
+      ByteBuffer header = output.duplicate();
+      header.flip().position(headerStart);
+      output.putLong(counter);
+      try {
+        encryptCipher.init(Cipher.ENCRYPT_MODE, key, nonce(encryptNonce, sendDirection, counter));
+        encryptCipher.updateAAD(header);
+        encryptCipher.doFinal(plain, output);
+      } catch (GeneralSecurityException e) {
+        throw new MessageFormatException("Could not encrypt the message: " + e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Decode one complete message, check that it has not been tampered with and decrypt its
+   * payload.
+   *
+   * @param input   The buffer holding the message, positioned at the start of the header.
+   *                The position is moved past the message.
+   * @param message The message to decode into
+   * @throws MessageFormatException If the message is malformed, was not sent by the other side
+   *                                of this connection, has been tampered with, or has already
+   *                                been received
+   */
+  public void decode(ByteBuffer input, Message message) throws MessageFormatException {
+    ByteBuffer header = input.duplicate();
+    header.limit(header.position() + HEADER_SIZE);
+    message.setType(input.get());
+    int valueLength = Short.toUnsignedInt(input.getShort());
+    message.setNodeId(input.getInt());
+    message.setTimestamp(input.getInt());
+    message.setRequestId(input.getInt());
+    if (valueLength < OVERHEAD || valueLength > input.remaining()) {
+      throw new MessageFormatException("Invalid message length: " + valueLength);
+    }
+    int end = input.position() + valueLength;
+    long counter = input.getLong();
+    ByteBuffer encrypted = input.duplicate();
+    encrypted.limit(end);
+    input.position(end);
+    boolean compressed = (counter & COMPRESSED) != 0;
+    PayloadCompressor compressor = this.compressor;
+    if (compressed && compressor == null) {
+      throw new MessageFormatException("Compressed message, but compression is not enabled");
+    }
+    synchronized (decryptCipher) {
+      if (isReplayed(counter & ~COMPRESSED)) {
+        throw new MessageFormatException("Replayed message: " + (counter & ~COMPRESSED));
+      }
+      ByteBuffer payload = compressed ? compressor.getReceiveBuffer()
+          : message.clearPayload(valueLength - OVERHEAD);
+      try {
+        decryptCipher.init(Cipher.DECRYPT_MODE, key,
+            nonce(decryptNonce, receiveDirection, counter));
+        decryptCipher.updateAAD(header);
+        decryptCipher.doFinal(encrypted, payload);
+      } catch (AEADBadTagException e) {
+        throw new MessageFormatException("Message authentication failed");
+      } catch (GeneralSecurityException e) {
+        throw new MessageFormatException("Could not decrypt the message: " + e.getMessage());
+      }
+      // Only an authentic message moves the window
+      markReceived(counter & ~COMPRESSED);
+      payload.flip();
+      if (compressed) {
+        ByteBuffer decompressed = message.clearPayload(MAX_PAYLOAD_SIZE);
+        compressor.decompress(payload, decompressed);
+        decompressed.flip();
+      }
+    }
+  }
+
+  /**
+   * Compress the payloads of large messages from now on, and accept compressed messages. Only
+   * to be enabled when both sides have agreed to it during the key exchange, see
+   * {@link KeyExchange#FEATURE_COMPRESSION}.
+   *
+   * @param compressor The compressor of this connection
+   */
+  public void enableCompression(PayloadCompressor compressor) {
+    this.compressor = compressor;
+  }
+
+  /**
+   * Get the compressor of this connection.
+   *
+   * @return The compressor, or {@code null} if compression is not enabled
+   */
+  public PayloadCompressor getCompressor() {
+    return compressor;
+  }
+
+  private boolean isReplayed(long counter) {
+    if (counter > highestReceived) {
+      return false;
+    }
+    return highestReceived - counter >= REPLAY_WINDOW
+        || (receivedCounters[windowIndex(counter)] & windowBit(counter)) != 0;
+  }
+
+  private void markReceived(long counter) {
+    if (counter > highestReceived) {
+      // Forget the counters which move out of the window
+      long cleared = Math.min(counter - highestReceived, REPLAY_WINDOW);
+      for (long c = counter - cleared + 1; c <= counter; c++) {
+        receivedCounters[windowIndex(c)] &= ~windowBit(c);
+      }
+      highestReceived = counter;
+    }
+    receivedCounters[windowIndex(counter)] |= windowBit(counter);
+  }
+
+  private static int windowIndex(long counter) {
+    return (int) (counter % REPLAY_WINDOW) / Long.SIZE;
+  }
+
+  private static long windowBit(long counter) {
+    return 1L << (counter % Long.SIZE);
+  }
+
+  private static GCMParameterSpec nonce(ByteBuffer nonce, int direction, long counter) {
+    nonce.clear();
+    nonce.putInt(direction).putLong(counter);
+    return new GCMParameterSpec(TAG_BITS, nonce.array());
+  }
+
+  /**
+   * Get the total size of the message starting at the current position of a buffer.
+   *
+   * @param input The buffer, ready for reading
+   * @return The size of the message in bytes, header included, or -1 if not enough of the
+   *     header has been received yet to tell.
+   */
+  public static int getMessageSize(ByteBuffer input) {
+    int size = -1;
+    if (input.remaining() >= HEADER_SIZE) {
+      size = HEADER_SIZE
+          + Short.toUnsignedInt(input.getShort(input.position() + LENGTH_OFFSET));
+    }
+    return size;
+  }
+
+  /**
+   * Get the counter of the complete message starting at the current position of a buffer,
+   * without decoding it. Each side numbers the messages it encodes with a codec from 0 and up.
+   *
+   * @param input The buffer holding the message, ready for reading
+   * @return The counter of the message, without the compression flag
+   */
+  public static long getCounter(ByteBuffer input) {
+    return input.getLong(input.position() + HEADER_SIZE) & ~COMPRESSED;
+  }
+
+  /**
+   * Read one complete message from a blocking stream.
+   *
+   * @param input  The stream to read from
+   * @param buffer The buffer to read the message into. It is cleared first, and is ready for
+   *               reading (and decoding) when the method returns.
+   * @return {@code true} when a message was read, {@code false} if the stream ended before the
+   *     start of a new message.
+   * @throws IOException When reading fails, or the stream ends in the middle of a message
+   */
+  public static boolean readMessage(InputStream input, ByteBuffer buffer) throws IOException {
+    return readMessage(input, buffer, false) != null;
+  }
+
+  /**
+   * Read one complete message from a blocking stream, into a larger buffer if it does not fit
+   * in the one given. Lets a connection start with a small buffer.
+   *
+   * @param input  The stream to read from
+   * @param buffer The buffer to read the message into, at least {@link #HEADER_SIZE} bytes. It
+   *               is cleared first.
+   * @return The buffer holding the message, ready for reading: the given buffer, or a new one
+   *     just large enough for the message. {@code null} if the stream ended before the start of
+   *     a new message.
+   * @throws IOException When reading fails, or the stream ends in the middle of a message
+   */
+  public static ByteBuffer readMessageGrowing(InputStream input, ByteBuffer buffer)
+      throws IOException {
+    return readMessage(input, buffer, true);
+  }
+
+  private static ByteBuffer readMessage(InputStream input, ByteBuffer buffer, boolean grow)
+      throws IOException {
+    buffer.clear();
+    int firstByte = input.read();
+    if (firstByte < 0) {
+      return null;
+    }
+    buffer.put((byte) firstByte);
+    readFully(input, buffer.array(), buffer.arrayOffset() + 1, HEADER_SIZE - 1);
+    buffer.position(0).limit(HEADER_SIZE);
+    int size = getMessageSize(buffer);
+    if (grow && size > buffer.capacity()) {
+      ByteBuffer larger = ByteBuffer.allocate(size);
+      larger.put(buffer);
+      buffer = larger;
+    }
+    readFully(input, buffer.array(), buffer.arrayOffset() + HEADER_SIZE, size - HEADER_SIZE);
+    buffer.position(0).limit(size);
+    return buffer;
+  }
+
+  private static void readFully(InputStream input, byte[] array, int offset, int length)
+      throws IOException {
+    int read = 0;
+    while (read < length) {
+      int count = input.read(array, offset + read, length - read);
+      if (count < 0) {
+        throw new EOFException("Stream ended in the middle of a message");
+      }
+      read += count;
+    }
+  }
+
+  /**
+   * Write a short string: one byte for the length, followed by the UTF-8 bytes.
+   *
+   * @param buffer The buffer to write to
+   * @param s      The string, at most 255 bytes long when encoded
+   */
+  public static void putString(ByteBuffer buffer, String s) {
+    byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+    if (bytes.length > 0xFF) {
+      throw new IllegalArgumentException("String too long for the protocol: " + s);
+    }
+    buffer.put((byte) bytes.length).put(bytes);
+  }
+
+  /**
+   * Read a short string written by {@link #putString(ByteBuffer, String)}.
+   *
+   * @param buffer The buffer to read from
+   * @return The string
+   */
+  public static String getString(ByteBuffer buffer) {
+    byte[] bytes = new byte[Byte.toUnsignedInt(buffer.get())];
+    buffer.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Write a sensor reading: the sensor type, the value in hundredths and the unit.
+   *
+   * @param buffer  The buffer to write to
+   * @param reading The sensor reading
+   */
+  public static void putReading(ByteBuffer buffer, SensorReading reading) {
+    putString(buffer, reading.getType());
+    buffer.putInt(toHundredths(reading.getValue()));
+    putString(buffer, reading.getUnit());
+  }
+
+  /**
+   * Read a sensor reading written by {@link #putReading(ByteBuffer, SensorReading)}.
+   *
+   * @param buffer The buffer to read from
+   * @return The sensor reading
+   */
+  public static SensorReading getReading(ByteBuffer buffer) {
+    String type = getString(buffer);
+    double value = fromHundredths(buffer.getInt());
+    String unit = getString(buffer);
+    return new SensorReading(type, value, unit);
+  }
+
+  /**
+   * Convert a sensor value to the integer in hundredths which is sent in a message.
+   *
+   * @param value The sensor value
+   * @return The value in hundredths, rounded
+   */
+  public static int toHundredths(double value) {
+    return (int) Math.round(value * VALUE_SCALE);
+  }
+
+  /**
+   * Convert a sensor value received in hundredths back to the value.
+   *
+   * @param hundredths The value in hundredths
+   * @return The sensor value
+   */
+  public static double fromHundredths(int hundredths) {
+    return hundredths / VALUE_SCALE;
+  }
+
+  /**
+   * Write an error message as the whole payload.
+   *
+   * @param buffer  The payload buffer to write to
+   * @param message The error message
+   */
+  public static void putError(ByteBuffer buffer, String message) {
+    byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+    buffer.put(bytes, 0, Math.min(bytes.length, buffer.remaining()));
+  }
+
+  /**
+   * Read an error message which takes up the whole remaining payload.
+   *
+   * @param buffer The payload buffer to read from
+   * @return The error message
+   */
+  public static String getError(ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.remaining()];
+    buffer.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static int currentTimestamp() {
+    return (int) (System.currentTimeMillis() / 1000);
+  }
+}
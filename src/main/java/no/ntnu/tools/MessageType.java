@@ -0,0 +1,157 @@
+package no.ntnu.tools;
+
+/**
+ * The values of the message type field of the protocol. See protocol.md for the payload of each
+ * message type.
+ */
+public final class MessageType {
+  /**
+   * Request the current sensor readings of a node.
+   */
+  public static final byte REQUEST_SENSOR_DATA = 0x01;
+  /**
+   * Request the state of all the actuators of a node.
+   */
+  public static final byte REQUEST_ACTUATOR_STATUS = 0x02;
+  /**
+   * Toggle one actuator of a node.
+   */
+  public static final byte SEND_ACTUATOR_COMMAND = 0x03;
+  /**
+   * Request a list of all the nodes, with their sensor types and actuators, at once or one page
+   * at a time.
+   */
+  public static final byte LIST_SENSORS = 0x04;
+  /**
+   * Push sensor readings and actuator changes of the selected nodes to the control panel as they
+   * happen, replacing any earlier subscription.
+   */
+  public static final byte SUBSCRIBE = 0x05;
+  /**
+   * Stop pushing sensor readings and actuator changes to the control panel.
+   */
+  public static final byte UNSUBSCRIBE = 0x06;
+  /**
+   * Read the sensor data and/or actuator status of several nodes in one request.
+   */
+  public static final byte BATCH_READ = 0x07;
+  /**
+   * Download one chunk of the recorded sensor history.
+   */
+  public static final byte READ_HISTORY = 0x08;
+  /**
+   * Request the address and the key of the multicast telemetry group.
+   */
+  public static final byte JOIN_TELEMETRY = 0x09;
+  /**
+   * Request multicast telemetry messages which the control panel missed.
+   */
+  public static final byte RESEND_TELEMETRY = 0x0A;
+  /**
+   * Check that the connection is alive and measure its round trip time.
+   */
+  public static final byte PING = 0x0B;
+  /**
+   * Turn many actuators on one or more nodes on or off in one request, atomically per node.
+   */
+  public static final byte SET_ACTUATORS = 0x0C;
+  /**
+   * Save actuator settings as a named scene in the greenhouse.
+   */
+  public static final byte SAVE_SCENE = 0x0D;
+  /**
+   * Apply the actuator settings of a saved scene, by its ID.
+   */
+  public static final byte RUN_SCENE = 0x0E;
+  /**
+   * The control panel is closing the connection.
+   */
+  public static final byte SHUTDOWN = 0x0F;
+
+  /**
+   * Sensor readings of one node, the response to {@link #REQUEST_SENSOR_DATA}. Also pushed
+   * with no request ID to subscribed control panels.
+   */
+  public static final byte SENSOR_DATA = (byte) 0x81;
+  /**
+   * Actuator states of one node, the response to {@link #REQUEST_ACTUATOR_STATUS}.
+   */
+  public static final byte ACTUATOR_STATUS = (byte) 0x82;
+  /**
+   * The new state of one actuator, the response to {@link #SEND_ACTUATOR_COMMAND}. Also pushed
+   * with no request ID to subscribed control panels.
+   */
+  public static final byte ACTUATOR_STATE = (byte) 0x83;
+  /**
+   * All the nodes, the response to {@link #LIST_SENSORS}.
+   */
+  public static final byte NODE_LIST = (byte) 0x84;
+  /**
+   * The number of nodes the control panel is now subscribed to, the response to
+   * {@link #SUBSCRIBE} and {@link #UNSUBSCRIBE}.
+   */
+  public static final byte SUBSCRIPTION = (byte) 0x85;
+  /**
+   * Sensor readings of one node relative to the previous ones sent on the connection, the
+   * response to {@link #REQUEST_SENSOR_DATA} in delta mode. Either a keyframe with all the
+   * readings, or only the readings which changed.
+   */
+  public static final byte SENSOR_DELTA = (byte) 0x86;
+  /**
+   * The responses to all the reads of a {@link #BATCH_READ}, each framed with its own type,
+   * node ID and length.
+   */
+  public static final byte BATCH = (byte) 0x87;
+  /**
+   * One chunk of the sensor history, the response to {@link #READ_HISTORY}. The payload
+   * describes the chunk, and the chunk itself follows the message on the connection.
+   */
+  public static final byte HISTORY_CHUNK = (byte) 0x88;
+  /**
+   * Where the greenhouse multicasts its telemetry and the key it is sealed with, the response
+   * to {@link #JOIN_TELEMETRY}.
+   */
+  public static final byte TELEMETRY_GROUP = (byte) 0x89;
+  /**
+   * Telemetry messages as they were multicast, the response to {@link #RESEND_TELEMETRY}.
+   */
+  public static final byte TELEMETRY = (byte) 0x8A;
+  /**
+   * The client is over its rate limit, and the request was not executed. The payload says how
+   * long to wait before sending it again.
+   */
+  public static final byte BUSY = (byte) 0x8B;
+  /**
+   * The timestamp of a {@link #PING}, sent back at once.
+   */
+  public static final byte PONG = (byte) 0x8C;
+  /**
+   * One page of the nodes, with the version of the topology and the cursor of the next page,
+   * the response to {@link #LIST_SENSORS} with a cursor.
+   */
+  public static final byte NODE_PAGE = (byte) 0x8D;
+  /**
+   * The nodes have not changed since the version the control panel knows, the response to
+   * {@link #LIST_SENSORS} for the first page.
+   */
+  public static final byte TOPOLOGY_UNCHANGED = (byte) 0x8E;
+  /**
+   * One result byte for each actuator setting, the response to {@link #SET_ACTUATORS} and
+   * {@link #RUN_SCENE}.
+   */
+  public static final byte ACTUATOR_RESULTS = (byte) 0x8F;
+  /**
+   * The ID of a saved scene, the response to {@link #SAVE_SCENE}.
+   */
+  public static final byte SCENE_SAVED = (byte) 0x90;
+  /**
+   * The request could not be handled. The payload is a UTF-8 error message.
+   */
+  public static final byte ERROR = (byte) 0xFF;
+
+  /**
+   * Not allowed to create instances of this class.
+   */
+  private MessageType() {
+  }
+}
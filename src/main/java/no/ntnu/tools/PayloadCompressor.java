@@ -0,0 +1,157 @@
+package no.ntnu.tools;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import no.ntnu.exceptions.MessageFormatException;
+import no.ntnu.greenhouse.DeviceFactory;
+
+/**
+ * Compresses and decompresses the payloads of one connection with raw deflate.
+ *
+ * <p>Payloads are short, so on their own they compress poorly. Both sides therefore start every
+ * payload from the same preset dictionary, made from the sensor types, units and actuator types
+ * of {@link DeviceFactory} as they are written in a message. Only payloads of at least the
+ * threshold size are compressed, and only when compressing makes them smaller.</p>
+ *
+ * <p>The deflater and the inflater are reused for every message. Compressing and decompressing
+ * can run at the same time, but each of them must be called from one thread at a time.</p>
+ */
+public class PayloadCompressor {
+  /**
+   * Payloads smaller than this are not worth compressing, in bytes.
+   */
+  public static final int DEFAULT_THRESHOLD = 128;
+
+  private static final byte[] DICTIONARY = createDictionary();
+
+  private final int threshold;
+  private final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+  private final Inflater inflater = new Inflater(true);
+  private final ByteBuffer compressed = ByteBuffer.allocate(MessageCodec.MAX_PAYLOAD_SIZE);
+  private final ByteBuffer received = ByteBuffer.allocate(MessageCodec.MAX_PAYLOAD_SIZE);
+  private final AtomicLong compressedCount = new AtomicLong();
+  private final AtomicLong rawBytes = new AtomicLong();
+  private final AtomicLong compressedBytes = new AtomicLong();
+  private final AtomicLong compressNanos = new AtomicLong();
+  private final AtomicLong decompressNanos = new AtomicLong();
+
+  /**
+   * Create a compressor with the default threshold.
+   */
+  public PayloadCompressor() {
+    this(DEFAULT_THRESHOLD);
+  }
+
+  /**
+   * Create a compressor.
+   *
+   * @param threshold The size a payload must have to be compressed, in bytes
+   */
+  public PayloadCompressor(int threshold) {
+    this.threshold = threshold;
+  }
+
+  /**
+   * Compress a payload, if it is large enough and compresses well enough.
+   *
+   * @param payload The payload, ready for reading. The position is moved to the limit if the
+   *                payload was compressed, and is left alone otherwise.
+   * @return The compressed payload, ready for reading, or {@code null} if the payload should be
+   *     sent as it is. The buffer is reused by the next call.
+   */
+  public ByteBuffer compress(ByteBuffer payload) {
+    int rawLength = payload.remaining();
+    if (rawLength < threshold) {
+      return null;
+    }
+    long start = System.nanoTime();
+    int position = payload.position();
+    deflater.reset();
+    deflater.setDictionary(DICTIONARY);
+    deflater.setInput(payload);
+    deflater.finish();
+    compressed.clear();
+    // Anything which is not smaller than the payload is not worth sending
+    compressed.limit(rawLength - 1);
+    while (!deflater.finished() && compressed.hasRemaining()) {
+      deflater.deflate(compressed);
+    }
+    ByteBuffer result = null;
+    if (deflater.finished()) {
+      compressed.flip();
+      result = compressed;
+      compressedCount.incrementAndGet();
+      rawBytes.addAndGet(rawLength);
+      compressedBytes.addAndGet(compressed.remaining());
+    } else {
+      payload.position(position);
+    }
+    compressNanos.addAndGet(System.nanoTime() - start);
+    return result;
+  }
+
+  /**
+   * Get an empty buffer to receive a compressed payload in, before decompressing it.
+   *
+   * @return The buffer, cleared. It is reused by the next call.
+   */
+  public ByteBuffer getReceiveBuffer() {
+    return received.clear();
+  }
+
+  /**
+   * Decompress a payload compressed by the compressor on the other side of the connection.
+   *
+   * @param input  The compressed payload, ready for reading
+   * @param output The buffer to write the payload to
+   * @throws MessageFormatException If the input is not a valid compressed payload, or does not
+   *                                fit in the output buffer
+   */
+  public void decompress(ByteBuffer input, ByteBuffer output) throws MessageFormatException {
+    long start = System.nanoTime();
+    inflater.reset();
+    inflater.setDictionary(DICTIONARY);
+    inflater.setInput(input);
+    try {
+      while (!inflater.finished() && output.hasRemaining()) {
+        if (inflater.inflate(output) == 0 && inflater.needsInput()) {
+          break;
+        }
+      }
+    } catch (DataFormatException e) {
+      throw new MessageFormatException("Invalid compressed payload: " + e.getMessage());
+    }
+    if (!inflater.finished()) {
+      throw new MessageFormatException("Compressed payload is truncated or too large");
+    }
+    decompressNanos.addAndGet(System.nanoTime() - start);
+  }
+
+  /**
+   * Get a summary of the compression on this connection, for logging.
+   *
+   * @return The number of payloads compressed, the compressed/raw ratio and the time spent
+   */
+  public String getStatistics() {
+    long raw = rawBytes.get();
+    double ratio = raw == 0 ? 1 : (double) compressedBytes.get() / raw;
+    return String.format("compression: %d payloads, %d -> %d bytes (ratio %.2f), "
+            + "%.3f ms compressing, %.3f ms decompressing",
+        compressedCount.get(), raw, compressedBytes.get(), ratio,
+        compressNanos.get() / 1e6, decompressNanos.get() / 1e6);
+  }
+
+  private static byte[] createDictionary() {
+    ByteBuffer dictionary = ByteBuffer.allocate(1024);
+    for (String name : DeviceFactory.getDeviceNames()) {
+      MessageCodec.putString(dictionary, name);
+    }
+    dictionary.flip();
+    byte[] bytes = new byte[dictionary.remaining()];
+    dictionary.get(bytes);
+    return bytes;
+  }
+}
@@ -0,0 +1,29 @@
+package no.ntnu.tools;
+
+/**
+ * What a control panel keeps from a key exchange to resume the session when it reconnects:
+ * the ticket issued by the greenhouse, and the resumption secret sealed inside it.
+ */
+public class SessionTicket {
+  private final byte[] ticket;
+  private final byte[] secret;
+
+  /**
+   * Create a session ticket.
+   *
+   * @param ticket The ticket, opaque to the control panel
+   * @param secret The resumption secret
+   */
+  SessionTicket(byte[] ticket, byte[] secret) {
+    this.ticket = ticket;
+    this.secret = secret;
+  }
+
+  byte[] getTicket() {
+    return ticket;
+  }
+
+  byte[] getSecret() {
+    return secret;
+  }
+}
@@ -0,0 +1,127 @@
+package no.ntnu.tools;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * Issues and opens the session tickets of a greenhouse.
+ *
+ * <p>A ticket holds the resumption secret of a connection and the time the ticket expires,
+ * encrypted and authenticated with AES-GCM under a key only the greenhouse knows. The control
+ * panel keeps the ticket and hands it back when it reconnects, so the greenhouse does not need
+ * to remember anything about closed connections. The key is created when the greenhouse starts,
+ * so tickets do not survive a restart.</p>
+ */
+public class SessionTickets {
+  /**
+   * How long a ticket can be used, in milliseconds.
+   */
+  public static final long DEFAULT_LIFETIME = 15 * 60 * 1000;
+
+  private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+  private static final int IV_SIZE = 12;
+  private static final int TAG_BITS = 128;
+
+  private final SecretKey ticketKey;
+  private final long lifetime;
+  private final SecureRandom random = new SecureRandom();
+  private final AtomicLong issued = new AtomicLong();
+  private final AtomicLong accepted = new AtomicLong();
+  private final AtomicLong rejected = new AtomicLong();
+
+  /**
+   * Create a ticket issuer with a new random key and the default lifetime.
+   */
+  public SessionTickets() {
+    this(DEFAULT_LIFETIME);
+  }
+
+  /**
+   * Create a ticket issuer with a new random key.
+   *
+   * @param lifetime How long a ticket can be used, in milliseconds
+   */
+  public SessionTickets(long lifetime) {
+    try {
+      KeyGenerator keyGenerator = KeyGenerator.getInstance("AES");
+      keyGenerator.init(128, random);
+      this.ticketKey = keyGenerator.generateKey();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("AES is not supported by this JDK", e);
+    }
+    this.lifetime = lifetime;
+  }
+
+  /**
+   * Issue a ticket for a resumption secret.
+   *
+   * @param secret The resumption secret of the connection
+   * @return The ticket
+   * @throws GeneralSecurityException If the ticket can not be encrypted
+   */
+  public byte[] issue(byte[] secret) throws GeneralSecurityException {
+    ByteBuffer plain = ByteBuffer.allocate(Long.BYTES + secret.length);
+    plain.putLong(System.currentTimeMillis() + lifetime).put(secret);
+    byte[] iv = new byte[IV_SIZE];
+    random.nextBytes(iv);
+    Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+    cipher.init(Cipher.ENCRYPT_MODE, ticketKey, new GCMParameterSpec(TAG_BITS, iv));
+    byte[] encrypted = cipher.doFinal(plain.array());
+    byte[] ticket = new byte[IV_SIZE + encrypted.length];
+    System.arraycopy(iv, 0, ticket, 0, IV_SIZE);
+    System.arraycopy(encrypted, 0, ticket, IV_SIZE, encrypted.length);
+    issued.incrementAndGet();
+    return ticket;
+  }
+
+  /**
+   * Open a ticket issued by this greenhouse.
+   *
+   * @param ticket The ticket received from the control panel
+   * @return The resumption secret, or {@code null} if the ticket is not valid or has expired
+   */
+  public byte[] open(byte[] ticket) {
+    byte[] secret = null;
+    try {
+      if (ticket.length > IV_SIZE) {
+        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+        cipher.init(Cipher.DECRYPT_MODE, ticketKey,
+            new GCMParameterSpec(TAG_BITS, ticket, 0, IV_SIZE));
+        ByteBuffer plain = ByteBuffer.wrap(
+            cipher.doFinal(ticket, IV_SIZE, ticket.length - IV_SIZE));
+        if (plain.getLong() >= System.currentTimeMillis()) {
+          secret = new byte[plain.remaining()];
+          plain.get(secret);
+        }
+      }
+    } catch (AEADBadTagException e) {
+      // Not one of our tickets, or tampered with
+    } catch (GeneralSecurityException e) {
+      Logger.error("Could not open a session ticket: " + e.getMessage());
+    }
+    if (secret != null) {
+      accepted.incrementAndGet();
+    } else {
+      rejected.incrementAndGet();
+    }
+    return secret;
+  }
+
+  /**
+   * Get a summary of the tickets, for logging.
+   *
+   * @return The number of tickets issued, accepted and rejected
+   */
+  public String getStatistics() {
+    return "session tickets: " + issued.get() + " issued, " + accepted.get() + " accepted, "
+        + rejected.get() + " rejected";
+  }
+}
@@ -0,0 +1,129 @@
+package no.ntnu.commands;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.spec.SecretKeySpec;
+import no.ntnu.exceptions.MessageFormatException;
+import no.ntnu.greenhouse.GreenhouseSimulator;
+import no.ntnu.tools.Message;
+import no.ntnu.tools.MessageCodec;
+import no.ntnu.tools.MessageType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares the two ways the greenhouse can execute a frequent request: looking up its handler
+ * in the {@link CommandRegistry}, which reads the arguments in place, and parsing it into a
+ * {@link Command} with the switch of the {@link CommandFactory} first.
+ *
+ * <p>Run the main method from the test classpath. The GC profiler reports the bytes allocated
+ * per request next to the time.</p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CommandDispatchBenchmark {
+  /**
+   * The request to execute.
+   */
+  @Param({"sensors", "actuators", "ping"})
+  public String request;
+
+  private GreenhouseSimulator greenhouse;
+  private CommandRegistry registry;
+  private CommandFactory commandFactory;
+  private final Message message = new Message();
+  private final ByteBuffer response = ByteBuffer.allocate(MessageCodec.MAX_PAYLOAD_SIZE);
+
+  /**
+   * Create a greenhouse with the default nodes, and decode the request like a connection does.
+   *
+   * @throws GeneralSecurityException If AES-GCM is not available
+   * @throws MessageFormatException   If the request can not be encoded
+   */
+  @Setup
+  public void setUp() throws GeneralSecurityException, MessageFormatException {
+    greenhouse = new GreenhouseSimulator(true);
+    greenhouse.setHistoryFile(null);
+    greenhouse.initialize();
+    registry = CommandRegistry.createDefault();
+    commandFactory = new CommandFactory();
+    byte type;
+    ByteBuffer payload = ByteBuffer.allocate(Long.BYTES);
+    switch (request) {
+      case "sensors":
+        type = MessageType.REQUEST_SENSOR_DATA;
+        break;
+      case "actuators":
+        type = MessageType.REQUEST_ACTUATOR_STATUS;
+        break;
+      default:
+        type = MessageType.PING;
+        payload.putLong(System.nanoTime());
+        break;
+    }
+    payload.flip();
+    SecretKeySpec key = new SecretKeySpec(new byte[16], "AES");
+    ByteBuffer encoded = ByteBuffer.allocate(MessageCodec.MAX_MESSAGE_SIZE);
+    int nodeId = greenhouse.getTopology().getNodes().get(0).getId();
+    new MessageCodec(key, true).encode(type, 1, nodeId, payload, encoded);
+    encoded.flip();
+    new MessageCodec(key, false).decode(encoded, message);
+  }
+
+  /**
+   * Execute the request with the handler registered for its type.
+   *
+   * @return The type of the response
+   * @throws MessageFormatException If the request is invalid
+   */
+  @Benchmark
+  public byte registry() throws MessageFormatException {
+    message.getPayload().rewind();
+    response.clear();
+    return registry.execute(message, greenhouse, null, response);
+  }
+
+  /**
+   * Parse the request into a command, then execute the command.
+   *
+   * @return The type of the response
+   * @throws MessageFormatException If the request is invalid
+   */
+  @Benchmark
+  public byte factory() throws MessageFormatException {
+    message.getPayload().rewind();
+    response.clear();
+    return commandFactory.parseCommand(message).execute(greenhouse, null, response);
+  }
+
+  /**
+   * Run the benchmark.
+   *
+   * @param args Not used
+   * @throws RunnerException If the benchmark fails
+   */
+  public static void main(String[] args) throws RunnerException {
+    new Runner(new OptionsBuilder()
+        .include(CommandDispatchBenchmark.class.getSimpleName())
+        .addProfiler(GCProfiler.class)
+        .build()).run();
+  }
+}
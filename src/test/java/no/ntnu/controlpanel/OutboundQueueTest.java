@@ -0,0 +1,199 @@
+package no.ntnu.controlpanel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import javax.crypto.spec.SecretKeySpec;
+import no.ntnu.exceptions.MessageFormatException;
+import no.ntnu.tools.Message;
+import no.ntnu.tools.MessageCodec;
+import no.ntnu.tools.MessageType;
+import org.junit.Test;
+
+/**
+ * Tests of the {@link OutboundQueue}: coalescing of updates, and dropping of sensor updates
+ * while the connection is falling behind.
+ */
+public class OutboundQueueTest {
+  private static final long SENSORS = OutboundQueue.updateKey(1, -1);
+  private static final long ACTUATOR = OutboundQueue.updateKey(1, 2);
+
+  @Test
+  public void updateKeyTellsSensorsFromActuators() {
+    assertTrue(OutboundQueue.isSensorKey(SENSORS));
+    assertFalse(OutboundQueue.isSensorKey(ACTUATOR));
+    assertFalse(OutboundQueue.isSensorKey(OutboundQueue.updateKey(-1, 0)));
+  }
+
+  @Test
+  public void updateReplacesAQueuedUpdateAboutTheSameThing() {
+    OutboundQueue queue = new OutboundQueue();
+
+    assertTrue(queue.addUpdate(message(1, 4), SENSORS));
+    assertTrue(queue.addUpdate(message(2, 6), SENSORS));
+
+    assertEquals(1, queue.getDepth());
+    assertEquals(6, queue.getQueuedBytes());
+    assertEquals(1, queue.getCoalescedCount());
+    assertEquals(2, queue.poll().get(0));
+    assertTrue(queue.isEmpty());
+  }
+
+  @Test
+  public void replacingUpdateGoesToTheTail() {
+    OutboundQueue queue = new OutboundQueue();
+    queue.addUpdate(message(1, 4), SENSORS);
+    queue.addResponse(message(2, 4));
+
+    queue.addUpdate(message(3, 4), SENSORS);
+
+    assertEquals(2, queue.getDepth());
+    assertEquals(2, queue.poll().get(0));
+    assertEquals(3, queue.poll().get(0));
+    assertNull(queue.poll());
+  }
+
+  @Test
+  public void responseBehindManyReplacedUpdatesIsNotTakenForAReplay()
+      throws GeneralSecurityException, MessageFormatException {
+    SecretKeySpec key = new SecretKeySpec(new byte[16], "AES");
+    MessageCodec greenhouse = new MessageCodec(key, false);
+    MessageCodec controlPanel = new MessageCodec(key, true);
+    OutboundQueue queue = new OutboundQueue();
+    queue.addUpdate(encode(greenhouse, MessageType.SENSOR_DATA), SENSORS);
+    queue.addResponse(encode(greenhouse, MessageType.PONG));
+    for (int i = 0; i < 2 * MessageCodec.REPLAY_WINDOW; i++) {
+      queue.addUpdate(encode(greenhouse, MessageType.SENSOR_DATA), SENSORS);
+    }
+    queue.addResponse(encode(greenhouse, MessageType.PONG));
+
+    Message message = new Message();
+    controlPanel.decode(queue.poll(), message);
+    assertEquals(MessageType.PONG, message.getType());
+    controlPanel.decode(queue.poll(), message);
+    assertEquals(MessageType.SENSOR_DATA, message.getType());
+    controlPanel.decode(queue.poll(), message);
+    assertEquals(MessageType.PONG, message.getType());
+    assertTrue(queue.isEmpty());
+  }
+
+  @Test
+  public void updatesAboutDifferentThingsAreAllQueued() {
+    OutboundQueue queue = new OutboundQueue();
+
+    queue.addUpdate(message(1, 4), SENSORS);
+    queue.addUpdate(message(2, 4), ACTUATOR);
+    queue.addUpdate(message(3, 4), OutboundQueue.updateKey(2, -1));
+
+    assertEquals(3, queue.getDepth());
+    assertEquals(0, queue.getCoalescedCount());
+  }
+
+  @Test
+  public void responsesAreNeverReplaced() {
+    OutboundQueue queue = new OutboundQueue();
+
+    queue.addResponse(message(1, 4));
+    queue.addResponse(message(2, 4));
+
+    assertEquals(2, queue.getDepth());
+    assertEquals(1, queue.poll().get(0));
+    assertEquals(2, queue.poll().get(0));
+  }
+
+  @Test
+  public void updateIsQueuedAgainOnceTheOlderOneHasBeenTaken() {
+    OutboundQueue queue = new OutboundQueue();
+    queue.addUpdate(message(1, 4), ACTUATOR);
+    queue.poll();
+
+    queue.addUpdate(message(2, 4), ACTUATOR);
+
+    assertEquals(1, queue.getDepth());
+    assertEquals(0, queue.getCoalescedCount());
+  }
+
+  @Test
+  public void sensorUpdatesAreDroppedWhileFallingBehind() {
+    OutboundQueue queue = new OutboundQueue(10, 5);
+    queue.addResponse(message(1, 11));
+    assertTrue(queue.isFallingBehind());
+
+    assertFalse(queue.addUpdate(message(2, 4), SENSORS));
+
+    assertEquals(1, queue.getDroppedCount());
+    assertEquals(1, queue.getDepth());
+  }
+
+  @Test
+  public void actuatorStatesAreNeverDropped() {
+    OutboundQueue queue = new OutboundQueue(10, 5);
+    queue.addResponse(message(1, 11));
+
+    for (int i = 0; i < 10; i++) {
+      assertTrue(queue.addUpdate(message(2, 4), OutboundQueue.updateKey(1, i)));
+    }
+
+    assertEquals(0, queue.getDroppedCount());
+    assertEquals(11, queue.getDepth());
+  }
+
+  @Test
+  public void queuedSensorUpdateIsStillReplacedWhileFallingBehind() {
+    OutboundQueue queue = new OutboundQueue(10, 5);
+    queue.addUpdate(message(1, 4), SENSORS);
+    queue.addResponse(message(2, 11));
+
+    assertTrue(queue.addUpdate(message(3, 4), SENSORS));
+
+    assertEquals(0, queue.getDroppedCount());
+    assertEquals(2, queue.poll().get(0));
+    assertEquals(3, queue.poll().get(0));
+  }
+
+  @Test
+  public void queueCatchesUpBelowTheLowWatermark() {
+    OutboundQueue queue = new OutboundQueue(10, 5);
+    queue.addResponse(message(1, 6));
+    queue.addResponse(message(2, 6));
+    assertTrue(queue.isFallingBehind());
+
+    queue.poll();
+    assertTrue(queue.isFallingBehind());
+    queue.poll();
+
+    assertFalse(queue.isFallingBehind());
+    assertTrue(queue.addUpdate(message(3, 4), SENSORS));
+  }
+
+  @Test
+  public void closedQueueAcceptsNothing() {
+    OutboundQueue queue = new OutboundQueue();
+    queue.addResponse(message(1, 4));
+    queue.close();
+
+    queue.addResponse(message(2, 4));
+    assertFalse(queue.addUpdate(message(3, 4), ACTUATOR));
+
+    assertEquals(1, queue.poll().get(0));
+    assertNull(queue.poll());
+  }
+
+  private static ByteBuffer encode(MessageCodec codec, byte type)
+      throws MessageFormatException {
+    ByteBuffer message = ByteBuffer.allocate(MessageCodec.MAX_MESSAGE_SIZE);
+    codec.encode(type, MessageCodec.NO_REQUEST_ID, 1, ByteBuffer.allocate(8), message);
+    message.flip();
+    return message;
+  }
+
+  private static ByteBuffer message(int first, int size) {
+    ByteBuffer message = ByteBuffer.allocate(size);
+    message.put(0, (byte) first);
+    return message;
+  }
+}
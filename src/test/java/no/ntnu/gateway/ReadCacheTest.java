@@ -0,0 +1,134 @@
+package no.ntnu.gateway;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import no.ntnu.tools.Message;
+import no.ntnu.tools.MessageType;
+import org.junit.Test;
+
+/**
+ * Tests of the {@link ReadCache}: sharing of responses, invalidation, and the purging of
+ * expired and surplus entries.
+ */
+public class ReadCacheTest {
+  private static final ReadCache.Key SENSORS_1 = key(MessageType.REQUEST_SENSOR_DATA, 1);
+  private static final ReadCache.Key SENSORS_2 = key(MessageType.REQUEST_SENSOR_DATA, 2);
+
+  private final AtomicInteger reads = new AtomicInteger();
+  private final Supplier<CompletableFuture<Message>> read = () -> {
+    reads.incrementAndGet();
+    return CompletableFuture.completedFuture(new Message());
+  };
+
+  @Test
+  public void repeatedReadIsAnsweredFromTheCache() {
+    ReadCache cache = new ReadCache(60000);
+
+    Message first = cache.get(SENSORS_1, read).join();
+    Message second = cache.get(SENSORS_1, read).join();
+
+    assertSame(first, second);
+    assertEquals(1, reads.get());
+    assertEquals(0.5, cache.getHitRatio(), 0.001);
+  }
+
+  @Test
+  public void readOfTheSameThingJoinsAWaitingRead() {
+    ReadCache cache = new ReadCache(60000);
+    CompletableFuture<Message> waiting = new CompletableFuture<>();
+
+    CompletableFuture<Message> first = cache.get(SENSORS_1, () -> waiting);
+    CompletableFuture<Message> second = cache.get(SENSORS_1, read);
+
+    assertSame(first, second);
+    assertEquals(0, reads.get());
+    Message response = new Message();
+    waiting.complete(response);
+    assertSame(response, second.join());
+  }
+
+  @Test
+  public void readsOfDifferentThingsAreNotShared() {
+    ReadCache cache = new ReadCache(60000);
+
+    cache.get(SENSORS_1, read);
+    cache.get(SENSORS_2, read);
+    cache.get(new ReadCache.Key(MessageType.REQUEST_SENSOR_DATA, 1, new byte[] {1}), read);
+
+    assertEquals(3, reads.get());
+  }
+
+  @Test
+  public void failedReadIsNotKept() {
+    ReadCache cache = new ReadCache(60000);
+
+    CompletableFuture<Message> failed = cache.get(SENSORS_1,
+        () -> CompletableFuture.failedFuture(new IllegalStateException("Not connected")));
+    assertTrue(failed.isCompletedExceptionally());
+    cache.get(SENSORS_1, read);
+
+    assertEquals(1, reads.get());
+    assertEquals(1, cache.size());
+  }
+
+  @Test
+  public void invalidateForgetsTheReadsOfTheNodeAndBatchReads() {
+    ReadCache cache = new ReadCache(60000);
+    Message kept = cache.get(SENSORS_2, read).join();
+    Message forgotten = cache.get(SENSORS_1, read).join();
+    cache.get(key(MessageType.BATCH_READ, 0), read);
+
+    cache.invalidate(1);
+
+    assertEquals(1, cache.size());
+    assertSame(kept, cache.get(SENSORS_2, read).join());
+    assertNotSame(forgotten, cache.get(SENSORS_1, read).join());
+  }
+
+  @Test
+  public void expiredResponseIsReadAgain() throws InterruptedException {
+    ReadCache cache = new ReadCache(10);
+    cache.get(SENSORS_1, read);
+
+    Thread.sleep(30);
+    cache.get(SENSORS_1, read);
+
+    assertEquals(2, reads.get());
+  }
+
+  @Test
+  public void expiredResponsesArePurgedOnAMiss() throws InterruptedException {
+    ReadCache cache = new ReadCache(10);
+    for (int nodeId = 1; nodeId <= 100; nodeId++) {
+      cache.get(key(MessageType.REQUEST_SENSOR_DATA, nodeId), read);
+    }
+    assertEquals(100, cache.size());
+
+    Thread.sleep(30);
+    cache.get(key(MessageType.REQUEST_ACTUATOR_STATUS, 1), read);
+
+    assertEquals(1, cache.size());
+  }
+
+  @Test
+  public void cacheNeverHoldsMoreThanTheLargestNumberOfEntries() {
+    ReadCache cache = new ReadCache(60000, 10);
+
+    for (int nodeId = 1; nodeId <= 50; nodeId++) {
+      cache.get(key(MessageType.REQUEST_SENSOR_DATA, nodeId), read);
+      assertTrue(cache.size() <= 10);
+    }
+
+    assertEquals(10, cache.size());
+  }
+
+  private static ReadCache.Key key(byte type, int nodeId) {
+    return new ReadCache.Key(type, nodeId, new byte[0]);
+  }
+}
@@ -0,0 +1,147 @@
+package no.ntnu.greenhouse;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import no.ntnu.tools.MessageCodec;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of {@link ActuatorSettings}: their encoding, and how they are applied to the nodes of a
+ * greenhouse.
+ */
+public class ActuatorSettingsTest {
+  private GreenhouseSimulator greenhouse;
+
+  /**
+   * Create a greenhouse with node 1 holding actuators 10 and 11, and node 2 holding
+   * actuator 20.
+   */
+  @Before
+  public void setUp() {
+    greenhouse = new GreenhouseSimulator(true);
+    greenhouse.addNode(createNode(1, 10, 11));
+    greenhouse.addNode(createNode(2, 20));
+  }
+
+  @Test
+  public void applySetsTheActuatorsOfEveryNode() {
+    ActuatorSettings settings = new ActuatorSettings(new int[] {1, 2, 1},
+        new int[] {10, 20, 11}, new boolean[] {true, true, false});
+
+    byte[] results = settings.apply(greenhouse);
+
+    assertArrayEquals(new byte[] {ActuatorSettings.RESULT_ON, ActuatorSettings.RESULT_ON,
+        ActuatorSettings.RESULT_OFF}, results);
+    assertTrue(isOn(1, 10));
+    assertTrue(isOn(2, 20));
+    assertFalse(isOn(1, 11));
+  }
+
+  @Test
+  public void applySkipsAnUnknownNode() {
+    ActuatorSettings settings = new ActuatorSettings(new int[] {7, 2},
+        new int[] {10, 20}, new boolean[] {true, true});
+
+    byte[] results = settings.apply(greenhouse);
+
+    assertArrayEquals(new byte[] {ActuatorSettings.RESULT_UNKNOWN_NODE,
+        ActuatorSettings.RESULT_ON}, results);
+    assertTrue(isOn(2, 20));
+  }
+
+  @Test
+  public void applyChangesNothingOnANodeWithAnUnknownActuator() {
+    ActuatorSettings settings = new ActuatorSettings(new int[] {1, 1, 2},
+        new int[] {10, 99, 20}, new boolean[] {true, true, true});
+
+    byte[] results = settings.apply(greenhouse);
+
+    assertArrayEquals(new byte[] {ActuatorSettings.RESULT_NOT_APPLIED,
+        ActuatorSettings.RESULT_UNKNOWN_ACTUATOR, ActuatorSettings.RESULT_ON}, results);
+    assertFalse(isOn(1, 10));
+    assertTrue(isOn(2, 20));
+  }
+
+  @Test
+  public void lastSettingOfAnActuatorWins() {
+    ActuatorSettings settings = new ActuatorSettings(new int[] {1, 1},
+        new int[] {10, 10}, new boolean[] {true, false});
+
+    byte[] results = settings.apply(greenhouse);
+
+    assertArrayEquals(new byte[] {ActuatorSettings.RESULT_OFF, ActuatorSettings.RESULT_OFF},
+        results);
+    assertFalse(isOn(1, 10));
+  }
+
+  @Test
+  public void readReturnsTheWrittenSettings() {
+    ActuatorSettings settings = new ActuatorSettings(new int[] {1, 2},
+        new int[] {10, 20}, new boolean[] {true, false});
+    ByteBuffer buffer = ByteBuffer.allocate(64);
+    settings.write(buffer);
+    buffer.flip();
+    assertEquals(2 + 2 * 9, buffer.remaining());
+
+    ActuatorSettings read = ActuatorSettings.read(buffer);
+
+    assertEquals(2, read.size());
+    assertArrayEquals(new byte[] {ActuatorSettings.RESULT_ON, ActuatorSettings.RESULT_OFF},
+        read.apply(greenhouse));
+  }
+
+  @Test
+  public void readRejectsAnInvalidState() {
+    ByteBuffer buffer = ByteBuffer.allocate(11);
+    buffer.putShort((short) 1).putInt(1).putInt(10).put((byte) 2).flip();
+
+    assertThrows(IllegalArgumentException.class, () -> ActuatorSettings.read(buffer));
+  }
+
+  @Test
+  public void readRejectsMissingSettings() {
+    ByteBuffer buffer = ByteBuffer.allocate(11);
+    buffer.putShort((short) 2).putInt(1).putInt(10).put((byte) 1).flip();
+
+    assertThrows(IllegalArgumentException.class, () -> ActuatorSettings.read(buffer));
+  }
+
+  @Test
+  public void maxSettingsFitInOnePayload() {
+    int count = ActuatorSettings.MAX_SETTINGS;
+    ActuatorSettings settings = new ActuatorSettings(new int[count], new int[count],
+        new boolean[count]);
+    ByteBuffer payload = ByteBuffer.allocate(MessageCodec.MAX_PAYLOAD_SIZE);
+
+    settings.write(payload);
+  }
+
+  @Test
+  public void constructorRejectsAnInvalidNumberOfSettings() {
+    int tooMany = ActuatorSettings.MAX_SETTINGS + 1;
+    assertThrows(IllegalArgumentException.class,
+        () -> new ActuatorSettings(new int[0], new int[0], new boolean[0]));
+    assertThrows(IllegalArgumentException.class,
+        () -> new ActuatorSettings(new int[tooMany], new int[tooMany], new boolean[tooMany]));
+    assertThrows(IllegalArgumentException.class,
+        () -> new ActuatorSettings(new int[2], new int[1], new boolean[2]));
+  }
+
+  private boolean isOn(int nodeId, int actuatorId) {
+    return greenhouse.getSensorNode(nodeId).getActuators().get(actuatorId).isOn();
+  }
+
+  private static SensorActuatorNode createNode(int nodeId, int... actuatorIds) {
+    SensorActuatorNode node = new SensorActuatorNode(nodeId);
+    for (int actuatorId : actuatorIds) {
+      node.addActuator(new Actuator(actuatorId, "fan", nodeId));
+    }
+    return node;
+  }
+}
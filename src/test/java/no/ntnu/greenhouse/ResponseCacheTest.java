@@ -0,0 +1,184 @@
+package no.ntnu.greenhouse;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import no.ntnu.tools.MessageType;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of the {@link ResponseCache}: sharing of one serialization between concurrent requests,
+ * and the invalidation of the cached responses when the node changes.
+ */
+public class ResponseCacheTest {
+  private static final int HEATER = 10;
+
+  private final AtomicInteger serializations = new AtomicInteger();
+  // Writes the state of every actuator, one byte each
+  private final BiConsumer<SensorActuatorNode, ByteBuffer> serializer = (target, response) -> {
+    serializations.incrementAndGet();
+    for (Actuator actuator : target.getActuators()) {
+      response.put((byte) (actuator.isOn() ? 1 : 0));
+    }
+  };
+
+  private SensorActuatorNode node;
+  private ResponseCache cache;
+
+  /**
+   * Create a node with a heater and a temperature sensor, and a cache watching it.
+   */
+  @Before
+  public void setUp() {
+    node = new SensorActuatorNode(1);
+    node.addSensors(new Sensor("temperature", 15, 40, 20, "°C"), 1);
+    node.addActuator(new Actuator(HEATER, "heater", 1));
+    cache = new ResponseCache();
+    cache.watch(node);
+  }
+
+  @Test
+  public void repeatedRequestIsAnsweredFromTheCache() {
+    byte[] first = write(MessageType.ACTUATOR_STATUS, serializer);
+    byte[] second = write(MessageType.ACTUATOR_STATUS, serializer);
+
+    assertArrayEquals(first, second);
+    assertEquals(1, serializations.get());
+    assertEquals(0.5, cache.getHitRatio(), 0.001);
+  }
+
+  @Test(timeout = 10000)
+  public void concurrentRequestsShareOneSerialization() throws InterruptedException {
+    CountDownLatch serializing = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    BiConsumer<SensorActuatorNode, ByteBuffer> slowSerializer = (target, response) -> {
+      serializing.countDown();
+      await(release);
+      serializer.accept(target, response);
+    };
+    List<byte[]> responses = new ArrayList<>();
+    List<Thread> threads = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      Thread thread = new Thread(() -> {
+        byte[] response = write(MessageType.ACTUATOR_STATUS, slowSerializer);
+        synchronized (responses) {
+          responses.add(response);
+        }
+      });
+      thread.start();
+      threads.add(thread);
+      if (i == 0) {
+        serializing.await();
+      }
+    }
+    // The requests after the first one wait for its serialization
+    for (Thread thread : threads.subList(1, threads.size())) {
+      while (thread.getState() != Thread.State.WAITING) {
+        Thread.sleep(1);
+      }
+    }
+
+    release.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    assertEquals(1, serializations.get());
+    assertEquals(4, responses.size());
+    for (byte[] response : responses) {
+      assertArrayEquals(new byte[] {0}, response);
+    }
+    assertEquals(0.75, cache.getHitRatio(), 0.001);
+    assertTrue(cache.getStatistics().contains("3 joined"));
+  }
+
+  @Test
+  public void actuatorChangeInvalidatesTheCachedResponses() {
+    write(MessageType.ACTUATOR_STATUS, serializer);
+    write(MessageType.SENSOR_DATA, serializer);
+
+    node.toggleActuator(HEATER);
+
+    assertArrayEquals(new byte[] {1}, write(MessageType.ACTUATOR_STATUS, serializer));
+    write(MessageType.SENSOR_DATA, serializer);
+    assertEquals(4, serializations.get());
+  }
+
+  @Test
+  public void newSensorReadingsOnlyInvalidateTheSensorData() {
+    write(MessageType.ACTUATOR_STATUS, serializer);
+    write(MessageType.SENSOR_DATA, serializer);
+
+    node.generateNewSensorValues();
+    write(MessageType.ACTUATOR_STATUS, serializer);
+    write(MessageType.SENSOR_DATA, serializer);
+
+    assertEquals(3, serializations.get());
+  }
+
+  @Test(timeout = 10000)
+  public void responseSerializedWhileTheNodeChangedIsNotKept() throws InterruptedException {
+    CountDownLatch serializing = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    Thread request = new Thread(() -> write(MessageType.ACTUATOR_STATUS, (target, response) -> {
+      serializing.countDown();
+      await(release);
+      serializer.accept(target, response);
+    }));
+    request.start();
+    serializing.await();
+
+    node.toggleActuator(HEATER);
+    release.countDown();
+    request.join();
+
+    assertArrayEquals(new byte[] {1}, write(MessageType.ACTUATOR_STATUS, serializer));
+    assertEquals(2, serializations.get());
+  }
+
+  @Test
+  public void failedSerializationIsNotKept() {
+    assertThrows(IllegalStateException.class, () -> write(MessageType.ACTUATOR_STATUS,
+        (target, response) -> {
+          throw new IllegalStateException("Node is gone");
+        }));
+
+    write(MessageType.ACTUATOR_STATUS, serializer);
+
+    assertEquals(1, serializations.get());
+  }
+
+  @Test
+  public void forgottenNodeIsNotCached() {
+    cache.forget(node);
+
+    write(MessageType.ACTUATOR_STATUS, serializer);
+    write(MessageType.ACTUATOR_STATUS, serializer);
+
+    assertEquals(2, serializations.get());
+  }
+
+  private byte[] write(byte type, BiConsumer<SensorActuatorNode, ByteBuffer> writer) {
+    ByteBuffer response = ByteBuffer.allocate(64);
+    cache.write(node, type, response, writer);
+    return Arrays.copyOf(response.array(), response.position());
+  }
+
+  private static void await(CountDownLatch latch) {
+    try {
+      latch.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
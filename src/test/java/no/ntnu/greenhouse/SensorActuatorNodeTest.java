@@ -0,0 +1,183 @@
+package no.ntnu.greenhouse;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of the actuator commands of a {@link SensorActuatorNode}, and of how the commands
+ * queued while another batch is applied are coalesced into one batch.
+ */
+public class SensorActuatorNodeTest {
+  private static final int HEATER = 10;
+  private static final int FAN = 11;
+  private static final double HEATER_IMPACT = 4;
+  private static final double START_TEMPERATURE = 20;
+
+  private SensorActuatorNode node;
+  private final List<Integer> notifications = new CopyOnWriteArrayList<>();
+  private final CountDownLatch fanNotified = new CountDownLatch(1);
+  private final CountDownLatch releaseFan = new CountDownLatch(1);
+  private volatile boolean notifiedUnderLock;
+
+  /**
+   * Create a node with a heater, a fan and one temperature sensor. The listener records whether
+   * it was notified while the node was locked, and holds up the first notification about the fan
+   * until {@link #releaseFan} is counted down.
+   */
+  @Before
+  public void setUp() {
+    node = new SensorActuatorNode(1);
+    node.addSensors(new Sensor("temperature", 15, 40, START_TEMPERATURE, "°C"), 1);
+    Actuator heater = new Actuator(HEATER, "heater", 1);
+    heater.setImpact("temperature", HEATER_IMPACT);
+    node.addActuator(heater);
+    node.addActuator(new Actuator(FAN, "fan", 1));
+    node.addActuatorListener((nodeId, actuator) -> {
+      if (Thread.holdsLock(node)) {
+        notifiedUnderLock = true;
+      }
+      notifications.add(actuator.getId());
+      if (actuator.getId() == FAN && fanNotified.getCount() > 0) {
+        fanNotified.countDown();
+        try {
+          releaseFan.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    });
+  }
+
+  @Test
+  public void toggleChangesTheStateAndTheSensors() {
+    releaseFan.countDown();
+
+    assertTrue(node.toggleActuator(HEATER));
+
+    assertTrue(node.getActuators().get(HEATER).isOn());
+    assertEquals(START_TEMPERATURE + HEATER_IMPACT, temperature(), 0.001);
+    assertEquals(List.of(HEATER), notifications);
+    assertFalse(notifiedUnderLock);
+  }
+
+  @Test
+  public void turningOnAnAttachedActuatorGoesThroughTheNode() {
+    releaseFan.countDown();
+
+    node.getActuators().get(HEATER).turnOn();
+    node.getActuators().get(HEATER).turnOn();
+
+    assertTrue(node.getActuators().get(HEATER).isOn());
+    assertEquals(START_TEMPERATURE + HEATER_IMPACT, temperature(), 0.001);
+    assertEquals(List.of(HEATER), notifications);
+    assertFalse(notifiedUnderLock);
+  }
+
+  @Test(timeout = 10000)
+  public void aSlowListenerDoesNotHoldUpTheNextBatch() throws InterruptedException {
+    Thread fan = new Thread(() -> node.setActuator(FAN, true));
+    fan.start();
+    fanNotified.await();
+
+    assertTrue(node.setActuator(HEATER, true));
+    assertEquals(START_TEMPERATURE + HEATER_IMPACT, temperature(), 0.001);
+
+    releaseFan.countDown();
+    fan.join();
+    assertEquals(List.of(FAN, HEATER), notifications);
+  }
+
+  @Test
+  public void toggleOfAnUnknownActuatorFails() {
+    assertThrows(IllegalArgumentException.class, () -> node.toggleActuator(99));
+  }
+
+  @Test
+  public void settingTheCurrentStateChangesNothing() {
+    assertFalse(node.setActuator(HEATER, false));
+
+    assertEquals(START_TEMPERATURE, temperature(), 0.001);
+    assertTrue(notifications.isEmpty());
+  }
+
+  @Test
+  public void setActuatorsChangesNothingWhenAnActuatorIsMissing() {
+    assertThrows(IllegalArgumentException.class,
+        () -> node.setActuators(new int[] {HEATER, 99}, new boolean[] {true, true}));
+
+    assertFalse(node.getActuators().get(HEATER).isOn());
+    assertTrue(notifications.isEmpty());
+  }
+
+  @Test(timeout = 10000)
+  public void togglesInOneBatchCancelOut() throws InterruptedException {
+    releaseFan.countDown();
+    boolean[] results = new boolean[2];
+    List<Thread> commands = queueCommands(
+        () -> results[0] = node.toggleActuator(HEATER),
+        () -> results[1] = node.toggleActuator(HEATER));
+
+    for (Thread command : commands) {
+      command.join();
+    }
+
+    assertFalse(results[0]);
+    assertFalse(results[1]);
+    assertFalse(node.getActuators().get(HEATER).isOn());
+    assertEquals(START_TEMPERATURE, temperature(), 0.001);
+    assertTrue(notifications.isEmpty());
+  }
+
+  @Test(timeout = 10000)
+  public void setsInOneBatchCollapseIntoTheLast() throws InterruptedException {
+    releaseFan.countDown();
+    boolean[] results = new boolean[3];
+    List<Thread> commands = queueCommands(
+        () -> results[0] = node.setActuator(HEATER, true),
+        () -> results[1] = node.setActuator(HEATER, false),
+        () -> results[2] = node.setActuator(HEATER, true));
+
+    for (Thread command : commands) {
+      command.join();
+    }
+
+    for (boolean result : results) {
+      assertTrue(result);
+    }
+    assertEquals(START_TEMPERATURE + HEATER_IMPACT, temperature(), 0.001);
+    assertEquals(List.of(HEATER), notifications);
+  }
+
+  /**
+   * Start one thread per command while holding the node, as a batch being applied does, each
+   * once the one before has queued its command and waits for the node. The commands all go into
+   * the batch applied once the node is released.
+   */
+  private List<Thread> queueCommands(Runnable... commands) throws InterruptedException {
+    List<Thread> threads = new ArrayList<>();
+    synchronized (node) {
+      for (Runnable command : commands) {
+        Thread thread = new Thread(command);
+        thread.start();
+        while (thread.getState() != Thread.State.BLOCKED) {
+          Thread.sleep(1);
+        }
+        threads.add(thread);
+      }
+    }
+    return threads;
+  }
+
+  private double temperature() {
+    return node.getSensors().get(0).getReading().getValue();
+  }
+}
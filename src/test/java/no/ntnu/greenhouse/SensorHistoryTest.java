@@ -0,0 +1,82 @@
+package no.ntnu.greenhouse;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import no.ntnu.tools.MessageCodec;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of the locking and the size limit of a {@link SensorHistory} file.
+ */
+public class SensorHistoryTest {
+  private Path path;
+  private final List<Sensor> sensors =
+      List.of(new Sensor("temperature", 15, 40, 20, "°C"));
+  private int recordSize;
+
+  /**
+   * Create an empty file for the history, and find the size of one record of the sensor.
+   */
+  @Before
+  public void setUp() throws IOException {
+    path = Files.createTempFile("sensor-history", ".bin");
+    ByteBuffer reading = ByteBuffer.allocate(256);
+    MessageCodec.putReading(reading, sensors.get(0).getReading());
+    // The time, the node ID and the sensor count come before the reading
+    recordSize = 8 + 4 + 2 + reading.position();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    Files.deleteIfExists(path);
+  }
+
+  @Test
+  public void fileUsedByAnotherHistoryCanNotBeOpened() throws IOException {
+    SensorHistory history = new SensorHistory(path, SensorHistory.DEFAULT_MAX_SIZE);
+    try {
+      assertThrows(IOException.class,
+          () -> new SensorHistory(path, SensorHistory.DEFAULT_MAX_SIZE));
+    } finally {
+      history.close();
+    }
+    new SensorHistory(path, SensorHistory.DEFAULT_MAX_SIZE).close();
+  }
+
+  @Test
+  public void recordsStopAtTheSizeLimit() throws IOException {
+    SensorHistory history = new SensorHistory(path, 2 * recordSize + 1);
+    try {
+      for (int i = 0; i < 5; i++) {
+        history.append(1, sensors);
+      }
+      assertEquals(2 * recordSize, history.getSize());
+      assertEquals(2 * recordSize, Files.size(path));
+    } finally {
+      history.close();
+    }
+  }
+
+  @Test
+  public void recordsContinueAfterAnExistingHistory() throws IOException {
+    SensorHistory history = new SensorHistory(path, SensorHistory.DEFAULT_MAX_SIZE);
+    history.append(1, sensors);
+    history.close();
+
+    history = new SensorHistory(path, SensorHistory.DEFAULT_MAX_SIZE);
+    try {
+      history.append(2, sensors);
+      assertEquals(2 * recordSize, history.getSize());
+    } finally {
+      history.close();
+    }
+  }
+}
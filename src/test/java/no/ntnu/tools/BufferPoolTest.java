@@ -0,0 +1,52 @@
+package no.ntnu.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.nio.ByteBuffer;
+import org.junit.Test;
+
+/**
+ * Tests of the {@link BufferPool}.
+ */
+public class BufferPoolTest {
+  @Test
+  public void releasedBufferIsTakenAgainCleared() {
+    BufferPool pool = new BufferPool(16, 2);
+    ByteBuffer buffer = pool.take();
+    buffer.putInt(1).flip();
+    pool.release(buffer);
+
+    ByteBuffer again = pool.take();
+
+    assertSame(buffer, again);
+    assertEquals(0, again.position());
+    assertEquals(16, again.limit());
+    assertEquals(1, pool.getMissCount());
+  }
+
+  @Test
+  public void emptyPoolAllocatesABuffer() {
+    BufferPool pool = new BufferPool(16, 2);
+
+    ByteBuffer first = pool.take();
+    ByteBuffer second = pool.take();
+
+    assertNotSame(first, second);
+    assertEquals(16, second.capacity());
+    assertEquals(2, pool.getMissCount());
+  }
+
+  @Test
+  public void fullPoolKeepsNoMoreBuffers() {
+    BufferPool pool = new BufferPool(16, 1);
+    ByteBuffer first = pool.take();
+    ByteBuffer second = pool.take();
+    pool.release(first);
+    pool.release(second);
+
+    assertSame(first, pool.take());
+    assertNotSame(second, pool.take());
+  }
+}
@@ -0,0 +1,182 @@
+package no.ntnu.tools;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.SecretKey;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of the {@link KeyExchange} between a control panel and a greenhouse: full and resumed
+ * handshakes, the fallback to a full handshake when a ticket can not be used, and the
+ * negotiation of the optional features.
+ */
+public class KeyExchangeTest {
+  private SessionTickets tickets;
+  private KeyExchange controlPanel;
+  private KeyExchange greenhouse;
+
+  /**
+   * Create the ticket issuer of the greenhouse and the key exchanges of both sides, which both
+   * support compression.
+   */
+  @Before
+  public void setUp() {
+    tickets = new SessionTickets();
+    controlPanel = new KeyExchange(KeyExchange.FEATURE_COMPRESSION);
+    greenhouse = new KeyExchange(KeyExchange.FEATURE_COMPRESSION);
+  }
+
+  @Test(timeout = 10000)
+  public void fullHandshakeDerivesTheSameKeyOnBothSides() throws Exception {
+    SecretKey[] keys = handshake(null);
+
+    assertArrayEquals(keys[0].getEncoded(), keys[1].getEncoded());
+    assertFalse(controlPanel.isResumed());
+    assertFalse(greenhouse.isResumed());
+    assertNotNull(controlPanel.getSessionTicket());
+  }
+
+  @Test(timeout = 10000)
+  public void resumedHandshakeDerivesTheSameNewKeyOnBothSides() throws Exception {
+    SecretKey[] first = handshake(null);
+    SessionTicket ticket = controlPanel.getSessionTicket();
+
+    SecretKey[] resumed = reconnect(ticket);
+
+    assertTrue(controlPanel.isResumed());
+    assertTrue(greenhouse.isResumed());
+    assertArrayEquals(resumed[0].getEncoded(), resumed[1].getEncoded());
+    assertFalse(Arrays.equals(first[0].getEncoded(), resumed[0].getEncoded()));
+  }
+
+  @Test(timeout = 10000)
+  public void expiredTicketFallsBackToAFullHandshake() throws Exception {
+    tickets = new SessionTickets(1);
+    handshake(null);
+    SessionTicket ticket = controlPanel.getSessionTicket();
+    Thread.sleep(10);
+
+    assertFullHandshake(reconnect(ticket));
+  }
+
+  @Test(timeout = 10000)
+  public void tamperedTicketFallsBackToAFullHandshake() throws Exception {
+    handshake(null);
+    SessionTicket ticket = controlPanel.getSessionTicket();
+    byte[] tampered = ticket.getTicket().clone();
+    tampered[tampered.length - 1] ^= 1;
+
+    assertFullHandshake(reconnect(new SessionTicket(tampered, ticket.getSecret())));
+  }
+
+  @Test(timeout = 10000)
+  public void ticketOfAnotherGreenhouseFallsBackToAFullHandshake() throws Exception {
+    handshake(null);
+    SessionTicket ticket = controlPanel.getSessionTicket();
+    tickets = new SessionTickets();
+
+    assertFullHandshake(reconnect(ticket));
+  }
+
+  @Test(timeout = 10000)
+  public void featuresSupportedByBothSidesAreUsed() throws Exception {
+    handshake(null);
+
+    assertEquals(KeyExchange.FEATURE_COMPRESSION, controlPanel.getFeatures());
+    assertEquals(KeyExchange.FEATURE_COMPRESSION, greenhouse.getFeatures());
+  }
+
+  @Test(timeout = 10000)
+  public void featureOnlyTheGreenhouseSupportsIsNotUsed() throws Exception {
+    controlPanel = new KeyExchange();
+
+    handshake(null);
+
+    assertEquals(0, controlPanel.getFeatures());
+    assertEquals(0, greenhouse.getFeatures());
+  }
+
+  @Test(timeout = 10000)
+  public void featureOnlyTheControlPanelSupportsIsNotUsed() throws Exception {
+    greenhouse = new KeyExchange();
+
+    handshake(null);
+
+    assertEquals(0, controlPanel.getFeatures());
+    assertEquals(0, greenhouse.getFeatures());
+  }
+
+  @Test
+  public void ticketOverTheSizeLimitIsRejected() throws IOException {
+    ByteArrayOutputStream helloBytes = new ByteArrayOutputStream();
+    DataOutputStream hello = new DataOutputStream(helloBytes);
+    hello.writeByte(KeyExchange.HELLO_RESUME);
+    hello.writeByte(0);
+    hello.write(new byte[KeyExchange.PUBLIC_KEY_SIZE]);
+    // The nonce
+    hello.write(new byte[16]);
+    hello.writeShort(KeyExchange.MAX_TICKET_SIZE + 1);
+    hello.write(new byte[KeyExchange.MAX_TICKET_SIZE + 1]);
+
+    IOException e = assertThrows(IOException.class, () -> greenhouse.respond(
+        new ByteArrayInputStream(helloBytes.toByteArray()), new ByteArrayOutputStream(),
+        tickets));
+    assertTrue(e.getMessage().contains("too large"));
+  }
+
+  private void assertFullHandshake(SecretKey[] keys) {
+    assertFalse(controlPanel.isResumed());
+    assertFalse(greenhouse.isResumed());
+    assertArrayEquals(keys[0].getEncoded(), keys[1].getEncoded());
+  }
+
+  /**
+   * Do a second handshake with new key exchanges on both sides, as a control panel which
+   * reconnects does.
+   */
+  private SecretKey[] reconnect(SessionTicket ticket) throws Exception {
+    controlPanel = new KeyExchange(KeyExchange.FEATURE_COMPRESSION);
+    greenhouse = new KeyExchange(KeyExchange.FEATURE_COMPRESSION);
+    return handshake(ticket);
+  }
+
+  /**
+   * Do a handshake over a pair of pipes, the greenhouse on another thread.
+   *
+   * @return The key of the control panel and the key of the greenhouse
+   */
+  private SecretKey[] handshake(SessionTicket previous) throws Exception {
+    PipedInputStream greenhouseInput = new PipedInputStream();
+    PipedOutputStream controlPanelOutput = new PipedOutputStream(greenhouseInput);
+    PipedInputStream controlPanelInput = new PipedInputStream();
+    PipedOutputStream greenhouseOutput = new PipedOutputStream(controlPanelInput);
+    KeyExchange greenhouseSide = greenhouse;
+    SessionTickets greenhouseTickets = tickets;
+    CompletableFuture<SecretKey> greenhouseKey = CompletableFuture.supplyAsync(() -> {
+      try {
+        return greenhouseSide.respond(greenhouseInput, greenhouseOutput, greenhouseTickets);
+      } catch (Exception e) {
+        throw new CompletionException(e);
+      }
+    });
+    SecretKey controlPanelKey =
+        controlPanel.initiate(controlPanelInput, controlPanelOutput, previous);
+    return new SecretKey[] {controlPanelKey, greenhouseKey.get(5, TimeUnit.SECONDS)};
+  }
+}
@@ -0,0 +1,146 @@
+package no.ntnu.tools;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import javax.crypto.spec.SecretKeySpec;
+import no.ntnu.exceptions.MessageFormatException;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of the {@link MessageCodec}: encoding and decoding, and the rejection of tampered and
+ * replayed messages.
+ */
+public class MessageCodecTest {
+  private static final byte[] PAYLOAD = {1, 2, 3, 4, 5};
+
+  private MessageCodec controlPanel;
+  private MessageCodec greenhouse;
+
+  /**
+   * Create the codecs of both sides of a connection, with the same key.
+   *
+   * @throws GeneralSecurityException If AES-GCM is not available
+   */
+  @Before
+  public void setUp() throws GeneralSecurityException {
+    SecretKeySpec key = new SecretKeySpec(new byte[16], "AES");
+    controlPanel = new MessageCodec(key, true);
+    greenhouse = new MessageCodec(key, false);
+  }
+
+  @Test
+  public void decodeReturnsTheEncodedMessage() throws MessageFormatException {
+    ByteBuffer encoded = encode(controlPanel);
+    assertEquals(MessageCodec.getMessageSize(encoded), encoded.remaining());
+
+    Message message = new Message();
+    greenhouse.decode(encoded, message);
+
+    assertEquals(MessageType.REQUEST_SENSOR_DATA, message.getType());
+    assertEquals(7, message.getRequestId());
+    assertEquals(3, message.getNodeId());
+    assertArrayEquals(PAYLOAD, remainingBytes(message.getPayload()));
+    assertEquals(0, encoded.remaining());
+  }
+
+  @Test
+  public void decodeRejectsAChangedHeader() throws MessageFormatException {
+    ByteBuffer encoded = encode(controlPanel);
+    // The node ID
+    encoded.put(3, (byte) 1);
+
+    assertThrows(MessageFormatException.class, () -> greenhouse.decode(encoded, new Message()));
+  }
+
+  @Test
+  public void decodeRejectsAChangedPayload() throws MessageFormatException {
+    ByteBuffer encoded = encode(controlPanel);
+    int last = encoded.limit() - 1;
+    encoded.put(last, (byte) (encoded.get(last) ^ 1));
+
+    assertThrows(MessageFormatException.class, () -> greenhouse.decode(encoded, new Message()));
+  }
+
+  @Test
+  public void decodeRejectsAMessageFromTheSameSide() throws MessageFormatException {
+    ByteBuffer encoded = encode(controlPanel);
+
+    assertThrows(MessageFormatException.class,
+        () -> controlPanel.decode(encoded, new Message()));
+  }
+
+  @Test
+  public void decodeRejectsAReplayedMessage() throws MessageFormatException {
+    ByteBuffer encoded = encode(controlPanel);
+    greenhouse.decode(encoded.duplicate(), new Message());
+
+    assertThrows(MessageFormatException.class, () -> greenhouse.decode(encoded, new Message()));
+  }
+
+  @Test
+  public void rejectedMessageDoesNotMoveTheWindow() throws MessageFormatException {
+    ByteBuffer first = encode(controlPanel);
+    ByteBuffer second = encode(controlPanel);
+    ByteBuffer tampered = copy(second);
+    tampered.put(tampered.limit() - 1, (byte) (tampered.get(tampered.limit() - 1) ^ 1));
+    assertThrows(MessageFormatException.class, () -> greenhouse.decode(tampered, new Message()));
+
+    greenhouse.decode(first, new Message());
+    greenhouse.decode(second, new Message());
+  }
+
+  @Test
+  public void decodeAcceptsMessagesOutOfOrderWithinTheWindow() throws MessageFormatException {
+    List<ByteBuffer> messages = encodeMany(MessageCodec.REPLAY_WINDOW);
+    Message message = new Message();
+
+    greenhouse.decode(messages.get(MessageCodec.REPLAY_WINDOW - 1), message);
+    for (int i = 0; i < MessageCodec.REPLAY_WINDOW - 1; i++) {
+      greenhouse.decode(messages.get(i), message);
+    }
+  }
+
+  @Test
+  public void decodeRejectsAMessageOlderThanTheWindow() throws MessageFormatException {
+    List<ByteBuffer> messages = encodeMany(MessageCodec.REPLAY_WINDOW + 1);
+    greenhouse.decode(messages.get(MessageCodec.REPLAY_WINDOW), new Message());
+
+    assertThrows(MessageFormatException.class,
+        () -> greenhouse.decode(messages.get(0), new Message()));
+    greenhouse.decode(messages.get(1), new Message());
+  }
+
+  private List<ByteBuffer> encodeMany(int count) throws MessageFormatException {
+    List<ByteBuffer> messages = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      messages.add(encode(controlPanel));
+    }
+    return messages;
+  }
+
+  private static ByteBuffer encode(MessageCodec codec) throws MessageFormatException {
+    ByteBuffer encoded = ByteBuffer.allocate(MessageCodec.MAX_MESSAGE_SIZE);
+    codec.encode(MessageType.REQUEST_SENSOR_DATA, 7, 3, ByteBuffer.wrap(PAYLOAD), encoded);
+    encoded.flip();
+    return encoded;
+  }
+
+  private static ByteBuffer copy(ByteBuffer buffer) {
+    ByteBuffer copy = ByteBuffer.allocate(buffer.remaining());
+    copy.put(buffer.duplicate()).flip();
+    return copy;
+  }
+
+  private static byte[] remainingBytes(ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.remaining()];
+    buffer.duplicate().get(bytes);
+    return bytes;
+  }
+}
@@ -0,0 +1,62 @@
+package no.ntnu.tools;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+
+import java.security.GeneralSecurityException;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of the {@link SessionTickets} of a greenhouse: a ticket is only opened by the greenhouse
+ * which issued it, unchanged and before it expires.
+ */
+public class SessionTicketsTest {
+  private static final byte[] SECRET = {1, 2, 3, 4, 5, 6, 7, 8};
+
+  private SessionTickets tickets;
+
+  /**
+   * Create a ticket issuer with the default lifetime.
+   */
+  @Before
+  public void setUp() {
+    tickets = new SessionTickets();
+  }
+
+  @Test
+  public void openReturnsTheIssuedSecret() throws GeneralSecurityException {
+    assertArrayEquals(SECRET, tickets.open(tickets.issue(SECRET)));
+  }
+
+  @Test
+  public void expiredTicketIsNotOpened() throws Exception {
+    tickets = new SessionTickets(1);
+    byte[] ticket = tickets.issue(SECRET);
+    Thread.sleep(10);
+
+    assertNull(tickets.open(ticket));
+  }
+
+  @Test
+  public void tamperedTicketIsNotOpened() throws GeneralSecurityException {
+    byte[] ticket = tickets.issue(SECRET);
+    ticket[ticket.length / 2] ^= 1;
+
+    assertNull(tickets.open(ticket));
+  }
+
+  @Test
+  public void ticketOfAnotherGreenhouseIsNotOpened() throws GeneralSecurityException {
+    byte[] ticket = new SessionTickets().issue(SECRET);
+
+    assertNull(tickets.open(ticket));
+  }
+
+  @Test
+  public void truncatedTicketIsNotOpened() throws GeneralSecurityException {
+    byte[] ticket = tickets.issue(SECRET);
+
+    assertNull(tickets.open(new byte[] {ticket[0], ticket[1]}));
+  }
+}